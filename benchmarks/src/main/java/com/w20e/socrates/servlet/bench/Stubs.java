@@ -0,0 +1,495 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+
+/**
+ * In-memory stand-ins for the servlet container. Only the methods the
+ * Socrates servlets actually call do something; everything else returns
+ * null, zero or false. The stubs are dynamic proxies, so they keep working
+ * whatever servlet API version is on the class path.
+ */
+public final class Stubs {
+
+    /**
+     * Session id sequence.
+     */
+    private static final AtomicLong SESSION_IDS = new AtomicLong();
+
+    /**
+     * Utility class.
+     */
+    private Stubs() {
+        // Nothing to do...
+    }
+
+    /**
+     * Create servlet config.
+     *
+     * @param name
+     *            servlet name
+     * @param params
+     *            init parameters
+     * @param ctx
+     *            servlet context
+     * @return the config
+     */
+    public static ServletConfig config(final String name,
+            final Map<String, String> params, final ServletContext ctx) {
+
+        return proxy(ServletConfig.class, new Handler() {
+            @Override
+            Object handle(final String method, final Object[] args) {
+                if ("getServletName".equals(method)) {
+                    return name;
+                } else if ("getInitParameter".equals(method)) {
+                    return params.get(args[0]);
+                } else if ("getInitParameterNames".equals(method)) {
+                    return Collections.enumeration(params.keySet());
+                } else if ("getServletContext".equals(method)) {
+                    return ctx;
+                }
+                return UNHANDLED;
+            }
+        });
+    }
+
+    /**
+     * Create servlet context, holding attributes only.
+     *
+     * @return the context
+     */
+    public static ServletContext context() {
+
+        final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+
+        return proxy(ServletContext.class, new Handler() {
+            @Override
+            Object handle(final String method, final Object[] args) {
+                if ("getAttribute".equals(method)) {
+                    return attributes.get(args[0]);
+                } else if ("setAttribute".equals(method)) {
+                    if (args[1] == null) {
+                        attributes.remove(args[0]);
+                    } else {
+                        attributes.put((String) args[0], args[1]);
+                    }
+                    return null;
+                } else if ("removeAttribute".equals(method)) {
+                    attributes.remove(args[0]);
+                    return null;
+                } else if ("getAttributeNames".equals(method)) {
+                    return Collections.enumeration(attributes.keySet());
+                }
+                return UNHANDLED;
+            }
+        });
+    }
+
+    /**
+     * A respondent's browser: holds on to the session between requests, like
+     * the JSESSIONID cookie would.
+     */
+    public static final class Client {
+
+        /**
+         * Servlet context the sessions belong to.
+         */
+        private final ServletContext servletContext;
+
+        /**
+         * Current session, if any.
+         */
+        private Session session;
+
+        /**
+         * Create client.
+         *
+         * @param ctx
+         *            servlet context
+         */
+        public Client(final ServletContext ctx) {
+
+            this.servletContext = ctx;
+        }
+
+        /**
+         * Create a request for this client.
+         *
+         * @param params
+         *            request parameters, name followed by value
+         * @return the request
+         */
+        public HttpServletRequest request(final String... params) {
+
+            final Map<String, String[]> map = new LinkedHashMap<String, String[]>();
+
+            for (int i = 0; i < params.length; i += 2) {
+                map.put(params[i], new String[] {params[i + 1]});
+            }
+
+            return proxy(HttpServletRequest.class, new Handler() {
+                @Override
+                Object handle(final String method, final Object[] args) {
+                    if ("getParameter".equals(method)) {
+                        String[] vals = map.get(args[0]);
+                        return vals == null ? null : vals[0];
+                    } else if ("getParameterValues".equals(method)) {
+                        return map.get(args[0]);
+                    } else if ("getParameterNames".equals(method)) {
+                        return Collections.enumeration(map.keySet());
+                    } else if ("getParameterMap".equals(method)) {
+                        return map;
+                    } else if ("getSession".equals(method)) {
+                        boolean create = args == null || (Boolean) args[0];
+                        return getSession(create);
+                    } else if ("isRequestedSessionIdValid".equals(method)) {
+                        return Client.this.session != null
+                                && Client.this.session.valid;
+                    } else if ("getRequestedSessionId".equals(method)) {
+                        return Client.this.session == null ? null
+                                : Client.this.session.id;
+                    } else if ("getLocale".equals(method)) {
+                        return Locale.UK;
+                    } else if ("getLocales".equals(method)) {
+                        return Collections.enumeration(Collections
+                                .singletonList(Locale.UK));
+                    } else if ("getRemoteAddr".equals(method)) {
+                        return "127.0.0.1";
+                    } else if ("getMethod".equals(method)) {
+                        return "POST";
+                    }
+                    return UNHANDLED;
+                }
+            });
+        }
+
+        /**
+         * Get or create the session.
+         *
+         * @param create
+         *            whether to create a session if there is none
+         * @return the session or null
+         */
+        private HttpSession getSession(final boolean create) {
+
+            if (this.session == null || !this.session.valid) {
+                if (!create) {
+                    return null;
+                }
+                this.session = new Session(this.servletContext);
+            }
+
+            return this.session.proxy;
+        }
+
+        /**
+         * Forget the session, like a fresh browser would.
+         */
+        public void reset() {
+
+            this.session = null;
+        }
+    }
+
+    /**
+     * Response that counts, and optionally captures, the bytes written.
+     */
+    public static final class Response {
+
+        /**
+         * Captured output, or null if not capturing.
+         */
+        private final ByteArrayOutputStream captured;
+
+        /**
+         * Number of bytes written.
+         */
+        private long count;
+
+        /**
+         * Redirect location, if any.
+         */
+        private String redirect;
+
+        /**
+         * Cookies added.
+         */
+        private final List<Cookie> cookies = new ArrayList<Cookie>();
+
+        /**
+         * The response proxy.
+         */
+        private final HttpServletResponse proxy;
+
+        /**
+         * Create response.
+         *
+         * @param capture
+         *            whether to keep the body
+         */
+        public Response(final boolean capture) {
+
+            this.captured = capture ? new ByteArrayOutputStream() : null;
+
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    Response.this.count++;
+                    if (Response.this.captured != null) {
+                        Response.this.captured.write(b);
+                    }
+                }
+
+                @Override
+                public void write(final byte[] b, final int off,
+                        final int len) throws IOException {
+                    Response.this.count += len;
+                    if (Response.this.captured != null) {
+                        Response.this.captured.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(final WriteListener listener) {
+                    try {
+                        listener.onWritePossible();
+                    } catch (IOException e) {
+                        listener.onError(e);
+                    }
+                }
+            };
+
+            this.proxy = proxy(HttpServletResponse.class, new Handler() {
+                @Override
+                Object handle(final String method, final Object[] args) {
+                    if ("getOutputStream".equals(method)) {
+                        return out;
+                    } else if ("sendRedirect".equals(method)) {
+                        Response.this.redirect = (String) args[0];
+                        return null;
+                    } else if ("addCookie".equals(method)) {
+                        Response.this.cookies.add((Cookie) args[0]);
+                        return null;
+                    } else if ("getCharacterEncoding".equals(method)) {
+                        return "UTF-8";
+                    }
+                    return UNHANDLED;
+                }
+            });
+        }
+
+        /**
+         * @return the response proxy to hand to the servlet
+         */
+        public HttpServletResponse get() {
+
+            return this.proxy;
+        }
+
+        /**
+         * @return number of bytes written
+         */
+        public long getCount() {
+
+            return this.count;
+        }
+
+        /**
+         * @return the captured body as text
+         * @throws IOException
+         *             never, really
+         */
+        public String getBody() throws IOException {
+
+            return this.captured.toString("UTF-8");
+        }
+
+        /**
+         * @return the redirect location, or null
+         */
+        public String getRedirect() {
+
+            return this.redirect;
+        }
+    }
+
+    /**
+     * HTTP session holding attributes.
+     */
+    private static final class Session {
+
+        /**
+         * Session id.
+         */
+        private final String id = "bench-" + SESSION_IDS.incrementAndGet();
+
+        /**
+         * Attributes.
+         */
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        /**
+         * Still valid?
+         */
+        private boolean valid = true;
+
+        /**
+         * Creation time.
+         */
+        private final long created = System.currentTimeMillis();
+
+        /**
+         * The session proxy.
+         */
+        private final HttpSession proxy;
+
+        /**
+         * Create session.
+         *
+         * @param ctx
+         *            servlet context
+         */
+        Session(final ServletContext ctx) {
+
+            this.proxy = proxy(HttpSession.class, new Handler() {
+                @Override
+                Object handle(final String method, final Object[] args) {
+                    if ("getId".equals(method)) {
+                        return Session.this.id;
+                    } else if ("getAttribute".equals(method)) {
+                        return Session.this.attributes.get(args[0]);
+                    } else if ("setAttribute".equals(method)) {
+                        Session.this.attributes.put((String) args[0], args[1]);
+                        return null;
+                    } else if ("removeAttribute".equals(method)) {
+                        Session.this.attributes.remove(args[0]);
+                        return null;
+                    } else if ("invalidate".equals(method)) {
+                        Session.this.valid = false;
+                        Session.this.attributes.clear();
+                        return null;
+                    } else if ("getServletContext".equals(method)) {
+                        return ctx;
+                    } else if ("getCreationTime".equals(method)
+                            || "getLastAccessedTime".equals(method)) {
+                        return Session.this.created;
+                    } else if ("getMaxInactiveInterval".equals(method)) {
+                        return 1800;
+                    } else if ("isNew".equals(method)) {
+                        return Boolean.FALSE;
+                    }
+                    return UNHANDLED;
+                }
+            });
+        }
+    }
+
+    /**
+     * Create a proxy for the given interface.
+     *
+     * @param iface
+     *            interface to implement
+     * @param handler
+     *            handler
+     * @param <T>
+     *            type of the interface
+     * @return the proxy
+     */
+    private static <T> T proxy(final Class<T> iface, final Handler handler) {
+
+        return iface.cast(Proxy.newProxyInstance(Stubs.class.getClassLoader(),
+                new Class<?>[] {iface}, handler));
+    }
+
+    /**
+     * Base handler: dispatches on method name, and provides harmless defaults
+     * for anything not handled.
+     */
+    private abstract static class Handler implements InvocationHandler {
+
+        /**
+         * Marker for methods the handler doesn't care about.
+         */
+        static final Object UNHANDLED = new Object();
+
+        /**
+         * Handle the call.
+         *
+         * @param method
+         *            method name
+         * @param args
+         *            arguments, or null
+         * @return the result, or UNHANDLED
+         */
+        abstract Object handle(String method, Object[] args);
+
+        @Override
+        public Object invoke(final Object proxy, final Method method,
+                final Object[] args) {
+
+            String name = method.getName();
+
+            if ("equals".equals(name) && args != null && args.length == 1) {
+                return proxy == args[0];
+            } else if ("hashCode".equals(name) && args == null) {
+                return System.identityHashCode(proxy);
+            } else if ("toString".equals(name) && args == null) {
+                return "Stub " + method.getDeclaringClass().getSimpleName();
+            }
+
+            Object result = handle(name, args);
+
+            if (result != UNHANDLED) {
+                return result;
+            }
+
+            Class<?> type = method.getReturnType();
+
+            if (type.isPrimitive() && type != void.class) {
+                // A fresh array holds the proper zero value for any type.
+                return Array.get(Array.newInstance(type, 1), 0);
+            }
+
+            return null;
+        }
+    }
+}
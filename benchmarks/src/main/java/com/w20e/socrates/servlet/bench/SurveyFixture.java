@@ -0,0 +1,200 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.w20e.socrates.servlet.WebsurveyAjaxValidateServlet;
+import com.w20e.socrates.servlet.WebsurveyServlet;
+
+/**
+ * Servlets set up against the test questionnaire (test-model.xml and
+ * test-workflow.xml), shared by all benchmarks of a thread. The config root
+ * defaults to the servlet project's target/test-classes, and may be set with
+ * the socrates.bench.root system property.
+ */
+@State(Scope.Thread)
+public class SurveyFixture {
+
+    /**
+     * Survey id of the test questionnaire.
+     */
+    public static final String SURVEY_ID = "websurvey-test-config";
+
+    /**
+     * Find the state id in a rendered page.
+     */
+    private static final Pattern STATE_ID = Pattern
+            .compile("name=\"stateId\" value=\"([^\"]*)\"");
+
+    /**
+     * Servlet context shared by the servlets.
+     */
+    private ServletContext servletContext;
+
+    /**
+     * The survey servlet.
+     */
+    private WebsurveyServlet survey;
+
+    /**
+     * The Ajax validation servlet.
+     */
+    private WebsurveyAjaxValidateServlet validator;
+
+    /**
+     * Create the servlets.
+     *
+     * @throws Exception
+     *             if the servlets won't initialize
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        Map<String, String> params = new HashMap<String, String>();
+        params.put("socrates.cfg.root",
+                System.getProperty("socrates.bench.root", "./target/test-classes/"));
+
+        this.servletContext = Stubs.context();
+
+        this.survey = new WebsurveyServlet();
+        this.survey.init(Stubs.config("WebsurveyServlet", params,
+                this.servletContext));
+
+        this.validator = new WebsurveyAjaxValidateServlet();
+        this.validator.init(Stubs.config("WebsurveyAjaxValidateServlet",
+                params, this.servletContext));
+    }
+
+    /**
+     * Release the servlets.
+     */
+    @TearDown
+    public void tearDown() {
+
+        this.survey.destroy();
+        this.validator.destroy();
+    }
+
+    /**
+     * @return a fresh respondent
+     */
+    public Stubs.Client newClient() {
+
+        return new Stubs.Client(this.servletContext);
+    }
+
+    /**
+     * Post to the survey servlet.
+     *
+     * @param req
+     *            request
+     * @param capture
+     *            whether to keep the page
+     * @return the response
+     * @throws Exception
+     *             when the servlet fails
+     */
+    public Stubs.Response post(final HttpServletRequest req,
+            final boolean capture) throws Exception {
+
+        Stubs.Response res = new Stubs.Response(capture);
+        this.survey.doPost(req, res.get());
+        return res;
+    }
+
+    /**
+     * Post to the Ajax validation servlet.
+     *
+     * @param req
+     *            request
+     * @return the response
+     * @throws Exception
+     *             when the servlet fails
+     */
+    public Stubs.Response validate(final HttpServletRequest req)
+            throws Exception {
+
+        Stubs.Response res = new Stubs.Response(false);
+        this.validator.doPost(req, res.get());
+        return res;
+    }
+
+    /**
+     * Start the survey for the client, and return the state id of the first
+     * page.
+     *
+     * @param client
+     *            respondent
+     * @return state id
+     * @throws Exception
+     *             when the servlet fails
+     */
+    public String start(final Stubs.Client client) throws Exception {
+
+        client.reset();
+
+        return stateId(post(client.request("id", SURVEY_ID, "locale", "en_GB"),
+                true));
+    }
+
+    /**
+     * Go to the next page, filling in the required question on the first
+     * page.
+     *
+     * @param client
+     *            respondent
+     * @param stateId
+     *            current state id
+     * @return state id of the next page
+     * @throws Exception
+     *             when the servlet fails
+     */
+    public String next(final Stubs.Client client, final String stateId)
+            throws Exception {
+
+        return stateId(post(client.request("stateId", stateId, "A1", "fine"),
+                true));
+    }
+
+    /**
+     * Extract the state id from a page.
+     *
+     * @param res
+     *            response holding the page
+     * @return the state id
+     * @throws Exception
+     *             if there is no state id
+     */
+    private static String stateId(final Stubs.Response res) throws Exception {
+
+        Matcher m = STATE_ID.matcher(res.getBody());
+
+        if (!m.find()) {
+            throw new IllegalStateException("No state id in page; redirect: "
+                    + res.getRedirect());
+        }
+
+        return m.group(1);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.URI;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.model.SubmissionImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+import com.w20e.socrates.servlet.WebsurveyContext;
+
+/**
+ * Session serialization, as done by the container when persisting or
+ * replicating sessions: the compact WebsurveyContext format against default
+ * serialization of what the context used to hold (instance, submission and
+ * locale). Serialized sizes are printed at setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WebsurveyContextBenchmark {
+
+    /**
+     * Number of nodes in the instance.
+     */
+    @Param({ "50", "500" })
+    int nodes;
+
+    /**
+     * The context.
+     */
+    private WebsurveyContext ctx;
+
+    /**
+     * Compact form.
+     */
+    private byte[] compact;
+
+    /**
+     * Default serialized form.
+     */
+    private byte[] legacy;
+
+    /**
+     * Build context with half of the nodes answered.
+     *
+     * @throws Exception
+     *             when serialization fails
+     */
+    @Setup
+    public void setUp() throws Exception {
+
+        InstanceImpl inst = new InstanceImpl();
+
+        for (int i = 0; i < this.nodes; i++) {
+            inst.addNode(new NodeImpl("Q" + i, i % 2 == 0 ? "answer " + i
+                    : null));
+        }
+
+        inst.getMetaData().put("stateId", "page" + (this.nodes / 10));
+
+        SubmissionImpl sub = new SubmissionImpl();
+        sub.setAction(new URI("file:///tmp/out"));
+
+        ModelImpl model = new ModelImpl();
+        model.setSubmission(sub);
+
+        this.ctx = new WebsurveyContext(new RunnerContextImpl(
+                new ByteArrayOutputStream(), null, null, model, inst, null),
+                "bench", new Locale("nl", "NL"));
+
+        this.compact = writeCompact();
+        this.legacy = writeLegacy();
+
+        System.out.println("\nSerialized size, " + this.nodes
+                + " nodes: compact " + this.compact.length + " bytes, default "
+                + this.legacy.length + " bytes");
+    }
+
+    /**
+     * Write context in compact format.
+     *
+     * @return bytes
+     * @throws Exception
+     *             when serialization fails
+     */
+    @Benchmark
+    public byte[] writeCompact() throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(this.ctx);
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write the same data with default serialization.
+     *
+     * @return bytes
+     * @throws Exception
+     *             when serialization fails
+     */
+    @Benchmark
+    public byte[] writeLegacy() throws Exception {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(4096);
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(this.ctx.getInstance());
+        out.writeObject(this.ctx.getSubmission());
+        out.writeObject(this.ctx.getLocale());
+        out.close();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read compact format.
+     *
+     * @return the context
+     * @throws Exception
+     *             when deserialization fails
+     */
+    @Benchmark
+    public Object readCompact() throws Exception {
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                this.compact));
+
+        return in.readObject();
+    }
+
+    /**
+     * Read default serialized form.
+     *
+     * @return the instance
+     * @throws Exception
+     *             when deserialization fails
+     */
+    @Benchmark
+    public Object readLegacy() throws Exception {
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+                this.legacy));
+        Object inst = in.readObject();
+        in.readObject();
+        in.readObject();
+
+        return inst;
+    }
+}
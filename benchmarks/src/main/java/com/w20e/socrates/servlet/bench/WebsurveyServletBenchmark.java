@@ -0,0 +1,247 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full request cycle of the survey and Ajax validation servlets: session
+ * lookup, parameter parsing, running the workflow and rendering. Run with
+ * '-prof gc' to get allocation per request.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WebsurveyServletBenchmark {
+
+    /**
+     * Respondent positioned on the first page.
+     */
+    @State(Scope.Thread)
+    public static class FirstPage {
+
+        /**
+         * The respondent.
+         */
+        Stubs.Client client;
+
+        /**
+         * State id of the first page.
+         */
+        String stateId;
+
+        /**
+         * Start the survey.
+         *
+         * @param fixture
+         *            servlets
+         * @throws Exception
+         *             when the servlet fails
+         */
+        @Setup(Level.Invocation)
+        public void setUp(final SurveyFixture fixture) throws Exception {
+
+            if (this.client == null) {
+                this.client = fixture.newClient();
+            }
+            this.stateId = fixture.start(this.client);
+        }
+    }
+
+    /**
+     * Respondent positioned on the second page.
+     */
+    @State(Scope.Thread)
+    public static class SecondPage {
+
+        /**
+         * The respondent.
+         */
+        Stubs.Client client;
+
+        /**
+         * State id of the second page.
+         */
+        String stateId;
+
+        /**
+         * Start the survey and move on one page.
+         *
+         * @param fixture
+         *            servlets
+         * @throws Exception
+         *             when the servlet fails
+         */
+        @Setup(Level.Invocation)
+        public void setUp(final SurveyFixture fixture) throws Exception {
+
+            if (this.client == null) {
+                this.client = fixture.newClient();
+            }
+            this.stateId = fixture.next(this.client,
+                    fixture.start(this.client));
+        }
+    }
+
+    /**
+     * Respondent positioned on the last page.
+     */
+    @State(Scope.Thread)
+    public static class LastPage {
+
+        /**
+         * The respondent.
+         */
+        Stubs.Client client;
+
+        /**
+         * State id of the last page.
+         */
+        String stateId;
+
+        /**
+         * Walk through the survey up to the last page.
+         *
+         * @param fixture
+         *            servlets
+         * @throws Exception
+         *             when the servlet fails
+         */
+        @Setup(Level.Invocation)
+        public void setUp(final SurveyFixture fixture) throws Exception {
+
+            if (this.client == null) {
+                this.client = fixture.newClient();
+            }
+            this.stateId = fixture.next(this.client, fixture.next(
+                    this.client, fixture.start(this.client)));
+        }
+    }
+
+    /**
+     * A new respondent arrives: session and runner context creation, and
+     * rendering of the first page.
+     *
+     * @param fixture
+     *            servlets
+     * @param client
+     *            the respondent
+     * @return bytes written
+     * @throws Exception
+     *             when the servlet fails
+     */
+    @Benchmark
+    public long firstPage(final SurveyFixture fixture,
+            final FirstPage client) throws Exception {
+
+        client.client.reset();
+
+        return fixture.post(
+                client.client.request("id", SurveyFixture.SURVEY_ID,
+                        "locale", "en_GB"), false).getCount();
+    }
+
+    /**
+     * Submit the first page and render the second.
+     *
+     * @param fixture
+     *            servlets
+     * @param page
+     *            respondent on the first page
+     * @return bytes written
+     * @throws Exception
+     *             when the servlet fails
+     */
+    @Benchmark
+    public long next(final SurveyFixture fixture, final FirstPage page)
+            throws Exception {
+
+        return fixture.post(
+                page.client.request("stateId", page.stateId, "A1", "fine"),
+                false).getCount();
+    }
+
+    /**
+     * Go back from the second page to the first.
+     *
+     * @param fixture
+     *            servlets
+     * @param page
+     *            respondent on the second page
+     * @return bytes written
+     * @throws Exception
+     *             when the servlet fails
+     */
+    @Benchmark
+    public long previous(final SurveyFixture fixture, final SecondPage page)
+            throws Exception {
+
+        return fixture.post(
+                page.client.request("stateId", page.stateId, "previous",
+                        "previous"), false).getCount();
+    }
+
+    /**
+     * Submit the last page, ending the survey.
+     *
+     * @param fixture
+     *            servlets
+     * @param page
+     *            respondent on the last page
+     * @return bytes written
+     * @throws Exception
+     *             when the servlet fails
+     */
+    @Benchmark
+    public long submit(final SurveyFixture fixture, final LastPage page)
+            throws Exception {
+
+        return fixture.post(page.client.request("stateId", page.stateId),
+                false).getCount();
+    }
+
+    /**
+     * Ajax validation of the required question on the first page,
+     * alternating between an empty and a filled in value so every call
+     * yields a change.
+     *
+     * @param fixture
+     *            servlets
+     * @param page
+     *            respondent on the first page
+     * @return bytes written
+     * @throws Exception
+     *             when the servlet fails
+     */
+    @Benchmark
+    public long ajaxValidate(final SurveyFixture fixture, final FirstPage page)
+            throws Exception {
+
+        fixture.validate(page.client.request("A1", ""));
+
+        return fixture.validate(page.client.request("A1", "fine")).getCount();
+    }
+}
@@ -0,0 +1,498 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletConfig;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Runs requests asynchronously on a bounded pool of workers, so the
+ * container thread is returned as soon as the request is handed over. If
+ * all workers are busy and the queue is full, the request is answered with
+ * 503 right away. Requests that wait in the queue longer than the timeout
+ * are answered with 503 as well. Requests still being served at the timeout
+ * are abandoned: they are answered with 503 if nothing was sent yet, and
+ * completed, and the task must leave the response alone from then on (see
+ * Handle). So the timeout should be well above the time it takes to serve a
+ * request; by default there is none.
+ */
+public final class AsyncExecutor {
+
+    /**
+     * Default number of workers.
+     */
+    public static final int DEFAULT_WORKERS = 32;
+
+    /**
+     * Default queue size.
+     */
+    public static final int DEFAULT_CAPACITY = 512;
+
+    /**
+     * Default timeout in ms; 0 for none.
+     */
+    public static final long DEFAULT_TIMEOUT = 0;
+
+    /**
+     * Request states.
+     */
+    private static final int QUEUED = 0, RUNNING = 1, TIMED_OUT = 2,
+            ABANDONED = 3;
+
+    /**
+     * The request the current worker serves.
+     */
+    private static final ThreadLocal<Handle> CURRENT = new ThreadLocal<Handle>();
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(AsyncExecutor.class.getName());
+
+    /**
+     * Work to do for a request.
+     */
+    public interface Task {
+
+        /**
+         * Serve the request.
+         *
+         * @param async
+         *            the request's async context
+         * @return true if the task arranged for the context to be completed
+         *         itself, false to have it completed when the task returns
+         * @throws Exception
+         *             when serving fails; the client gets a 500
+         */
+        boolean run(AsyncContext async) throws Exception;
+    }
+
+    /**
+     * Something written to a response: a header, a cookie, a redirect or the
+     * stream itself.
+     */
+    public interface ResponseWrite {
+
+        /**
+         * Write to the response.
+         *
+         * @throws IOException
+         *             when writing fails
+         */
+        void write() throws IOException;
+    }
+
+    /**
+     * A dispatched request, as seen by its task. Once the request is
+     * abandoned, the container may reuse the response, so anything written
+     * to it must be written while holding the handle's lock, and only if the
+     * request isn't abandoned.
+     */
+    public static final class Handle {
+
+        /**
+         * Request state.
+         */
+        private final AtomicInteger state = new AtomicInteger(QUEUED);
+
+        /**
+         * Create handle for a request that is yet to be served.
+         */
+        Handle() {
+        }
+
+        /**
+         * Did the request time out while being served?
+         *
+         * @return whether it did; if so, the response must be left alone
+         */
+        public boolean isAbandoned() {
+
+            return this.state.get() == ABANDONED;
+        }
+    }
+
+    /**
+     * The workers.
+     */
+    private final ThreadPoolExecutor workers;
+
+    /**
+     * Async timeout, in ms.
+     */
+    private final long timeout;
+
+    /**
+     * Number of requests turned away because the queue was full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of requests that timed out in the queue.
+     */
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Number of requests that timed out while being served.
+     */
+    private final AtomicLong abandoned = new AtomicLong();
+
+    /**
+     * Did we warn about a request without async support yet?
+     */
+    private volatile boolean warned;
+
+    /**
+     * Create executor.
+     *
+     * @param name
+     *            name for the worker threads
+     * @param nrOfWorkers
+     *            number of workers
+     * @param capacity
+     *            max number of requests waiting for a worker
+     * @param newTimeout
+     *            max time a request may wait for a worker, in ms; 0 for no
+     *            limit
+     */
+    public AsyncExecutor(final String name, final int nrOfWorkers,
+            final int capacity, final long newTimeout) {
+
+        this.timeout = Math.max(0, newTimeout);
+        this.workers = new ThreadPoolExecutor(nrOfWorkers, nrOfWorkers, 0,
+                TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(
+                        Math.max(1, capacity)), new ThreadFactory() {
+                    private final AtomicInteger nr = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "socrates-async-" + name
+                                + "-" + this.nr.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Create the executor from the servlet's settings, if socrates.async is
+     * true: socrates.async.workers, .queue_size and .timeout (ms).
+     *
+     * @param c
+     *            servlet configuration
+     * @return the executor, or null if requests are to be served
+     *         synchronously
+     */
+    public static AsyncExecutor create(final ServletConfig c) {
+
+        if (!"true".equals(ServletHelper.getParameter(c, "socrates.async",
+                "false"))) {
+            return null;
+        }
+
+        AsyncExecutor executor = new AsyncExecutor(c.getServletName(),
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.async.workers", DEFAULT_WORKERS),
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.async.queue_size", DEFAULT_CAPACITY),
+                ServletHelper.getLongParameter(c, "socrates.async.timeout",
+                        DEFAULT_TIMEOUT));
+
+        LOGGER.info("Serving " + c.getServletName() + " asynchronously with "
+                + executor.workers.getCorePoolSize() + " workers");
+
+        return executor;
+    }
+
+    /**
+     * Can the request be served asynchronously? This is not the case if the
+     * servlet isn't declared async-supported, or if the request was
+     * dispatched through something that isn't.
+     *
+     * @param req
+     *            the request
+     * @return whether dispatch may be called
+     */
+    public boolean accepts(final HttpServletRequest req) {
+
+        if (req.isAsyncSupported()) {
+            return true;
+        }
+
+        if (!this.warned) {
+            this.warned = true;
+            LOGGER.warning("Async not supported for " + req.getRequestURI()
+                    + "; declare the servlet async-supported. Serving "
+                    + "synchronously");
+        }
+
+        return false;
+    }
+
+    /**
+     * Put request in async mode and queue it for a worker.
+     *
+     * @param req
+     *            the request
+     * @param res
+     *            the response
+     * @param task
+     *            what to do
+     */
+    public void dispatch(final HttpServletRequest req,
+            final HttpServletResponse res, final Task task) {
+
+        final AsyncContext async = req.startAsync(req, res);
+        final Handle handle = new Handle();
+        final AtomicInteger state = handle.state;
+
+        async.setTimeout(this.timeout);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(final AsyncEvent event) throws IOException {
+                if (state.compareAndSet(QUEUED, TIMED_OUT)) {
+                    AsyncExecutor.this.timedOut.incrementAndGet();
+                    LOGGER.warning("Request timed out waiting for a worker");
+                    reject(res);
+                    async.complete();
+                    return;
+                }
+
+                synchronized (handle) {
+                    if (state.compareAndSet(RUNNING, ABANDONED)) {
+                        AsyncExecutor.this.abandoned.incrementAndGet();
+                        LOGGER.warning("Abandoning request still being "
+                                + "served after " + AsyncExecutor.this.timeout
+                                + " ms");
+                        reject(res);
+                        async.complete();
+                    }
+                }
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                LOGGER.log(Level.WARNING, "Async request failed", event
+                        .getThrowable());
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                // Nothing to clean up.
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+                // Not restarted.
+            }
+        });
+
+        try {
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.compareAndSet(QUEUED, RUNNING)) {
+                        serve(async, res, task, handle);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            LOGGER.warning("All async workers busy; rejecting request");
+            state.set(TIMED_OUT);
+            reject(res);
+            async.complete();
+        }
+    }
+
+    /**
+     * Get the request served by the current thread.
+     *
+     * @return the request's handle, or null if the thread isn't serving a
+     *         request for an executor
+     */
+    public static Handle current() {
+
+        return CURRENT.get();
+    }
+
+    /**
+     * Write to the response of the request the current thread serves, while
+     * holding its handle's lock, unless it was abandoned. On a thread that
+     * doesn't serve a request for an executor, just write.
+     *
+     * @param write
+     *            what to write
+     * @return false if the request was abandoned and nothing was written
+     * @throws IOException
+     *             when writing fails
+     */
+    public static boolean respond(final ResponseWrite write)
+            throws IOException {
+
+        Handle handle = CURRENT.get();
+
+        if (handle == null) {
+            write.write();
+            return true;
+        }
+
+        synchronized (handle) {
+            if (handle.isAbandoned()) {
+                return false;
+            }
+            write.write();
+            return true;
+        }
+    }
+
+    /**
+     * Run task on a worker.
+     *
+     * @param async
+     *            the async context
+     * @param res
+     *            the response
+     * @param task
+     *            what to do
+     * @param handle
+     *            the request
+     */
+    private void serve(final AsyncContext async,
+            final HttpServletResponse res, final Task task,
+            final Handle handle) {
+
+        boolean handedOver = false;
+
+        CURRENT.set(handle);
+
+        try {
+            handedOver = task.run(async);
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Async request failed", e);
+
+            synchronized (handle) {
+                if (!handle.isAbandoned() && !res.isCommitted()) {
+                    try {
+                        res.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+                    } catch (IOException ioe) {
+                        LOGGER.severe("Couldn't send error: "
+                                + ioe.getMessage());
+                    }
+                }
+            }
+        } finally {
+            CURRENT.remove();
+
+            if (!handedOver) {
+                synchronized (handle) {
+                    if (!handle.isAbandoned()) {
+                        try {
+                            async.complete();
+                        } catch (IllegalStateException e) {
+                            LOGGER.warning("Async request completed already: "
+                                    + e.getMessage());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Answer 503, if still possible.
+     *
+     * @param res
+     *            the response
+     */
+    private static void reject(final HttpServletResponse res) {
+
+        if (res.isCommitted()) {
+            return;
+        }
+
+        try {
+            res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        } catch (IOException e) {
+            LOGGER.severe("Couldn't send 503: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return number of requests turned away because the queue was full
+     */
+    public long getRejected() {
+
+        return this.rejected.get();
+    }
+
+    /**
+     * @return number of requests that timed out waiting for a worker
+     */
+    public long getTimedOut() {
+
+        return this.timedOut.get();
+    }
+
+    /**
+     * @return number of requests that timed out while being served
+     */
+    public long getAbandoned() {
+
+        return this.abandoned.get();
+    }
+
+    /**
+     * @return number of requests waiting for a worker
+     */
+    public int getQueued() {
+
+        return this.workers.getQueue().size();
+    }
+
+    /**
+     * Stop taking requests, and wait for those accepted to be served.
+     *
+     * @param wait
+     *            max time to wait, in ms
+     */
+    public void shutdown(final long wait) {
+
+        this.workers.shutdown();
+
+        try {
+            if (!this.workers.awaitTermination(wait, TimeUnit.MILLISECONDS)) {
+                LOGGER.warning("Async requests still running at shutdown");
+                this.workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.workers.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+/**
+ * Sends a rendered page without blocking: the container calls back whenever
+ * the client is ready for more, so no thread waits for slow clients. The
+ * async context is completed once the page is sent. If the request is
+ * abandoned by the executor, the page is dropped.
+ */
+final class AsyncPageWriter implements WriteListener {
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(AsyncPageWriter.class.getName());
+
+    /**
+     * The page.
+     */
+    private final PageOutputStream page;
+
+    /**
+     * The request's async context.
+     */
+    private final AsyncContext async;
+
+    /**
+     * Response stream, once started.
+     */
+    private ServletOutputStream out;
+
+    /**
+     * Called when the page is sent, or null.
+     */
+    private final Runnable done;
+
+    /**
+     * The request, as dispatched by the executor; null if not known.
+     */
+    private final AsyncExecutor.Handle handle;
+
+    /**
+     * Is the page sent, or given up on?
+     */
+    private boolean finished;
+
+    /**
+     * Create writer. The page must be fully buffered.
+     *
+     * @param newPage
+     *            the page
+     * @param newAsync
+     *            the request's async context
+     * @param whenDone
+     *            called when the page is sent, may be null
+     * @param newHandle
+     *            the request as dispatched by the executor, may be null
+     */
+    AsyncPageWriter(final PageOutputStream newPage,
+            final AsyncContext newAsync, final Runnable whenDone,
+            final AsyncExecutor.Handle newHandle) {
+
+        this.page = newPage;
+        this.async = newAsync;
+        this.done = whenDone;
+        this.handle = newHandle == null ? new AsyncExecutor.Handle()
+                : newHandle;
+    }
+
+    /**
+     * Start sending. From here on the writer owns the page. The response is
+     * only touched if the request wasn't abandoned; once it is, the
+     * container may have completed or reused it.
+     *
+     * @throws IOException
+     *             when the response stream isn't available; the page is
+     *             dropped
+     */
+    void start() throws IOException {
+
+        synchronized (this.handle) {
+            if (abandon()) {
+                return;
+            }
+
+            try {
+                this.out = this.async.getResponse().getOutputStream();
+            } catch (IOException e) {
+                drop();
+                throw e;
+            } catch (IllegalStateException e) {
+                drop();
+                throw new IOException("Response no longer available", e);
+            }
+
+            this.out.setWriteListener(this);
+        }
+    }
+
+    /**
+     * Give up on the page before it is started.
+     */
+    private synchronized void drop() {
+
+        this.finished = true;
+        this.page.release();
+    }
+
+    /**
+     * Drop the page if the request was abandoned.
+     *
+     * @return whether it was
+     */
+    private synchronized boolean abandon() {
+
+        if (!this.handle.isAbandoned()) {
+            return false;
+        }
+
+        if (!this.finished) {
+            this.finished = true;
+            this.page.release();
+            LOGGER.warning("Dropping page of abandoned request");
+        }
+
+        return true;
+    }
+
+    /**
+     * Send as much as the client takes.
+     *
+     * @throws IOException
+     *             when sending fails
+     */
+    @Override
+    public void onWritePossible() throws IOException {
+
+        synchronized (this.handle) {
+            if (abandon()) {
+                return;
+            }
+
+            synchronized (this) {
+                if (this.finished) {
+                    return;
+                }
+
+                if (this.page.drain(this.out)) {
+                    this.finished = true;
+
+                    if (this.done != null) {
+                        this.done.run();
+                    }
+
+                    this.async.complete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Give up on the page.
+     *
+     * @param t
+     *            what went wrong
+     */
+    @Override
+    public void onError(final Throwable t) {
+
+        LOGGER.warning("Couldn't send page: " + t.getMessage());
+
+        synchronized (this.handle) {
+            if (abandon()) {
+                return;
+            }
+
+            synchronized (this) {
+                if (this.finished) {
+                    return;
+                }
+
+                this.finished = true;
+                this.page.release();
+
+                try {
+                    this.async.complete();
+                } catch (IllegalStateException e) {
+                    // Completed by the container already.
+                }
+            }
+        }
+    }
+}
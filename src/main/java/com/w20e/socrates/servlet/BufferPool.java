@@ -0,0 +1,123 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed size byte chunks, used for rendering pages. The pool never
+ * holds more than the given number of chunks; anything returned beyond that
+ * is left to the garbage collector.
+ */
+public final class BufferPool {
+
+    /**
+     * Default chunk size.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    /**
+     * Default number of pooled chunks.
+     */
+    public static final int DEFAULT_POOL_SIZE = 512;
+
+    /**
+     * The free chunks.
+     */
+    private final Queue<byte[]> free = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Number of chunks in the free queue. Kept separately, since the queue's
+     * size() is not a constant time operation.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Size of chunks.
+     */
+    private final int chunkSize;
+
+    /**
+     * Maximum number of pooled chunks.
+     */
+    private final int maxChunks;
+
+    /**
+     * Create pool.
+     *
+     * @param newChunkSize
+     *            size of the chunks in bytes
+     * @param newMaxChunks
+     *            maximum number of chunks to keep
+     */
+    public BufferPool(final int newChunkSize, final int newMaxChunks) {
+
+        this.chunkSize = newChunkSize;
+        this.maxChunks = newMaxChunks;
+    }
+
+    /**
+     * Get a chunk from the pool, or a fresh one if the pool is empty.
+     *
+     * @return a chunk
+     */
+    public byte[] acquire() {
+
+        byte[] chunk = this.free.poll();
+
+        if (chunk == null) {
+            return new byte[this.chunkSize];
+        }
+
+        this.size.decrementAndGet();
+
+        return chunk;
+    }
+
+    /**
+     * Return chunk to the pool.
+     *
+     * @param chunk
+     *            the chunk
+     */
+    public void release(final byte[] chunk) {
+
+        if (chunk == null || chunk.length != this.chunkSize) {
+            return;
+        }
+
+        if (this.size.incrementAndGet() > this.maxChunks) {
+            this.size.decrementAndGet();
+            return;
+        }
+
+        this.free.offer(chunk);
+    }
+
+    /**
+     * @return the chunk size
+     */
+    public int getChunkSize() {
+
+        return this.chunkSize;
+    }
+
+    /**
+     * @return number of chunks currently pooled
+     */
+    public int getPooled() {
+
+        return this.size.get();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Write behind store for 'save for later' requests. A store request for a
+ * session that already has a write pending within the window replaces that
+ * write; the write itself is done by a background thread once the window
+ * has passed. Callers hand in a write of a copy of the session's state, so
+ * the newest copy gets stored, without touching the live session.
+ */
+public final class CoalescingStore {
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(CoalescingStore.class.getName());
+
+    /**
+     * Time to wait for a running write at shutdown, in milliseconds.
+     */
+    private static final long SHUTDOWN_WAIT = 30000;
+
+    /**
+     * Pending writes by session id.
+     */
+    private final ConcurrentMap<String, Runnable> pending = new ConcurrentHashMap<String, Runnable>();
+
+    /**
+     * Background writer.
+     */
+    private final ScheduledThreadPoolExecutor writer;
+
+    /**
+     * Coalesce window in milliseconds.
+     */
+    private final long window;
+
+    /**
+     * Number of store requests.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Number of actual writes.
+     */
+    private final AtomicLong writes = new AtomicLong();
+
+    /**
+     * Create store.
+     *
+     * @param newWindow
+     *            coalesce window in milliseconds
+     */
+    public CoalescingStore(final long newWindow) {
+
+        this.window = newWindow;
+        this.writer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "socrates-session-storage");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        // Delayed writes are flushed by shutdown itself.
+        this.writer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Schedule write for session. If one is pending already, it is replaced
+     * by this one. After shutdown, the write is done right away.
+     *
+     * @param id
+     *            session id
+     * @param write
+     *            the actual write
+     */
+    public void store(final String id, final Runnable write) {
+
+        this.requests.incrementAndGet();
+
+        if (this.pending.put(id, write) != null) {
+            return;
+        }
+
+        try {
+            this.writer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable w = CoalescingStore.this.pending.remove(id);
+
+                    if (w != null) {
+                        write(w);
+                    }
+                }
+            }, this.window, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            if (this.pending.remove(id, write)) {
+                write(write);
+            }
+        }
+    }
+
+    /**
+     * Stop the writer, wait for the write it may be doing, and do pending
+     * writes now.
+     */
+    public void shutdown() {
+
+        this.writer.shutdown();
+
+        try {
+            if (!this.writer.awaitTermination(SHUTDOWN_WAIT,
+                    TimeUnit.MILLISECONDS)) {
+                LOGGER.warning("Session write still running after "
+                        + SHUTDOWN_WAIT + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<String> ids = new ArrayList<String>(this.pending.keySet());
+
+        LOGGER.info("Flushing " + ids.size() + " pending session writes");
+
+        for (String id : ids) {
+            Runnable w = this.pending.remove(id);
+
+            if (w != null) {
+                write(w);
+            }
+        }
+    }
+
+    /**
+     * Run write, logging any errors.
+     *
+     * @param w
+     *            the write
+     */
+    private void write(final Runnable w) {
+
+        try {
+            w.run();
+            this.writes.incrementAndGet();
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Couldn't store session", e);
+        }
+    }
+
+    /**
+     * @return number of writes pending
+     */
+    public int getPending() {
+
+        return this.pending.size();
+    }
+
+    /**
+     * @return number of store requests
+     */
+    public long getRequests() {
+
+        return this.requests.get();
+    }
+
+    /**
+     * @return number of actual writes
+     */
+    public long getWrites() {
+
+        return this.writes.get();
+    }
+}
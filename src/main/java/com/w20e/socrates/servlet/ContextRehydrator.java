@@ -0,0 +1,255 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+/**
+ * Restores the runner context of deserialized sessions. After a restart, all
+ * sessions of a questionnaire come back at once; every one of them needs a
+ * context of its own, built on the questionnaire's shared runner factory.
+ * The number of contexts built at the same time is limited, so a stampede
+ * queues up instead of thrashing.
+ *
+ * With a session state store, contexts are restored on every request. A
+ * context stored by a previous request is then handed back to its
+ * questionnaire, and taken up by the next one restored, so the questionnaire
+ * needn't be parsed again.
+ */
+public final class ContextRehydrator {
+
+    /**
+     * Default max number of contexts built at the same time.
+     */
+    public static final int DEFAULT_CONCURRENCY = Runtime.getRuntime()
+            .availableProcessors();
+
+    /**
+     * Where the questionnaires live.
+     */
+    private final QuestionnaireRegistry registry;
+
+    /**
+     * Limits the number of concurrent builds.
+     */
+    private final Semaphore builders;
+
+    /**
+     * Number of contexts restored.
+     */
+    private final AtomicLong rehydrations = new AtomicLong();
+
+    /**
+     * Number of contexts restored on a spare context.
+     */
+    private final AtomicLong reuses = new AtomicLong();
+
+    /**
+     * Create rehydrator.
+     *
+     * @param newRegistry
+     *            questionnaire registry
+     * @param concurrency
+     *            max number of contexts built at the same time
+     */
+    public ContextRehydrator(final QuestionnaireRegistry newRegistry,
+            final int concurrency) {
+
+        this.registry = newRegistry;
+        this.builders = new Semaphore(Math.max(1, concurrency), true);
+    }
+
+    /**
+     * Restore the runner context of a deserialized session: a spare or fresh
+     * context for the questionnaire the session is bound to, set to the stored state, locale and
+     * instance. Does nothing if the context is valid, which may be the case
+     * if another request for the same session got here first.
+     *
+     * @param wwCtx
+     *            deserialized context
+     * @return whether the context is valid now
+     * @throws Exception
+     *             when the context can't be built
+     */
+    public boolean rehydrate(final WebsurveyContext wwCtx) throws Exception {
+
+        synchronized (wwCtx) {
+
+            if (!wwCtx.isInvalid()) {
+                return true;
+            }
+
+            QuestionnaireEntry entry = entry(wwCtx);
+
+            if (entry == null) {
+                return false;
+            }
+
+            RunnerContextImpl ctx = reuse(entry, wwCtx.getStateId());
+            URI qUri = entry.getURI();
+
+            if (ctx == null) {
+                ctx = build(entry);
+                ctx.getStateManager().setStateById(wwCtx.getStateId());
+            }
+
+            ctx.setLocale(wwCtx.getLocale());
+            ctx.setQuestionnaireId(qUri);
+            ctx.setInstance(wwCtx.getInstance());
+            wwCtx.setEntry(entry);
+            wwCtx.setRunnerContext(ctx);
+            this.rehydrations.incrementAndGet();
+
+            return true;
+        }
+    }
+
+    /**
+     * Get the model of a context, without restoring the context. For a
+     * deserialized context, a spare context of the questionnaire is used up
+     * for the model, or if there is none, a fresh one is built. Used to
+     * submit the data of sessions that are gone.
+     *
+     * @param wwCtx
+     *            the context
+     * @return the model, or null if the questionnaire can't be found
+     * @throws Exception
+     *             when the context can't be built
+     */
+    public Model getModel(final WebsurveyContext wwCtx) throws Exception {
+
+        synchronized (wwCtx) {
+
+            if (!wwCtx.isInvalid()) {
+                return wwCtx.getRunnerContext().getModel();
+            }
+        }
+
+        QuestionnaireEntry entry = entry(wwCtx);
+
+        if (entry == null) {
+            return null;
+        }
+
+        RunnerContextImpl ctx = entry.takeSpareContext();
+
+        return ctx == null ? build(entry).getModel() : ctx.getModel();
+    }
+
+    /**
+     * Get the questionnaire of a context: the version it is bound to, even
+     * if reloaded since, or else the current one.
+     *
+     * @param wwCtx
+     *            the context
+     * @return the questionnaire, or null if it can't be found
+     */
+    private QuestionnaireEntry entry(final WebsurveyContext wwCtx) {
+
+        QuestionnaireEntry entry = wwCtx.getEntry();
+
+        return entry != null ? entry : this.registry.getEntry(wwCtx
+                .getModelId());
+    }
+
+    /**
+     * Take a spare context of the questionnaire, set to the given state. The
+     * state must be known, since that is all there is to reset.
+     *
+     * @param entry
+     *            questionnaire
+     * @param stateId
+     *            the state to set, or null
+     * @return the context, or null if there is none to use
+     */
+    private RunnerContextImpl reuse(final QuestionnaireEntry entry,
+            final String stateId) {
+
+        if (stateId == null) {
+            return null;
+        }
+
+        RunnerContextImpl ctx = entry.takeSpareContext();
+
+        if (ctx == null || !ctx.getStateManager().setStateById(stateId)) {
+            return null;
+        }
+
+        // Options of the previous session are not to be merged into.
+        ctx.setProperty("renderOptions", null);
+        this.reuses.incrementAndGet();
+
+        return ctx;
+    }
+
+    /**
+     * Number of contexts restored so far.
+     *
+     * @return the count
+     */
+    public long getRehydrations() {
+
+        return this.rehydrations.get();
+    }
+
+    /**
+     * Number of contexts restored on a spare context, rather than built.
+     *
+     * @return the count
+     */
+    public long getReuses() {
+
+        return this.reuses.get();
+    }
+
+    /**
+     * Build fresh context for questionnaire, waiting for a free builder if
+     * need be. Every session gets its own context, so builds can't be
+     * shared; the questionnaire's runner factory is, though.
+     *
+     * @param entry
+     *            questionnaire
+     * @return new context
+     * @throws Exception
+     *             when the context can't be built
+     */
+    RunnerContextImpl build(final QuestionnaireEntry entry) throws Exception {
+
+        this.builders.acquire();
+
+        try {
+            return createContext(entry);
+        } finally {
+            this.builders.release();
+        }
+    }
+
+    /**
+     * Build context.
+     *
+     * @param entry
+     *            questionnaire
+     * @return new context
+     * @throws Exception
+     *             when the context can't be built
+     */
+    private static RunnerContextImpl createContext(
+            final QuestionnaireEntry entry) throws Exception {
+
+        return entry.getRunnerFactory().createContext(entry.getURI(), null);
+    }
+}
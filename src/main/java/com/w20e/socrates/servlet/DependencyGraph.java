@@ -0,0 +1,284 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.ItemProperties;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.rendering.Control;
+
+/**
+ * Which nodes depend on which, according to the model's relevant, required,
+ * readonly, calculate and constraint expressions. Used for Ajax validation,
+ * so only controls that may actually change are evaluated.
+ *
+ * References, plain names as well as paths, are found by NodeReferences.
+ * This may find too many references, but never too few. Labels and hints
+ * with fills are scanned when asked for, and cached per text.
+ */
+public final class DependencyGraph {
+
+    /**
+     * Graphs by model.
+     */
+    private static final Map<Model, DependencyGraph> GRAPHS = Collections
+            .synchronizedMap(new WeakHashMap<Model, DependencyGraph>());
+
+    /**
+     * Node references of the instance.
+     */
+    private final NodeReferences references;
+
+    /**
+     * For every node, the nodes whose properties depend on it.
+     */
+    private final Map<String, Set<String>> dependents = new HashMap<String, Set<String>>();
+
+    /**
+     * For every node, the calculated nodes whose value depends on it.
+     */
+    private final Map<String, Set<String>> calculated = new HashMap<String, Set<String>>();
+
+    /**
+     * Node references in label and hint texts.
+     */
+    private final ConcurrentMap<String, Set<String>> fills = new ConcurrentHashMap<String, Set<String>>();
+
+    /**
+     * Build graph.
+     *
+     * @param model
+     *            the model
+     * @param inst
+     *            an instance of the model, for the node names
+     */
+    DependencyGraph(final Model model, final Instance inst) {
+
+        Set<String> names = new HashSet<String>();
+
+        for (Node node : inst.getAllNodes()) {
+            names.add(node.getName());
+        }
+
+        this.references = new NodeReferences(names);
+
+        for (String name : names) {
+            ItemProperties props = model.getItemProperties(name);
+
+            if (props == null) {
+                continue;
+            }
+
+            addExpression(name, props.getRelevant(), false);
+            addExpression(name, props.getRequired(), false);
+            addExpression(name, props.getReadOnly(), false);
+            addExpression(name, props.getConstraint(), false);
+            addExpression(name, props.getCalculate(), true);
+        }
+    }
+
+    /**
+     * Build graph without expressions; add them with addExpression.
+     *
+     * @param names
+     *            names of all nodes
+     */
+    DependencyGraph(final Collection<String> names) {
+
+        this.references = new NodeReferences(names);
+    }
+
+    /**
+     * Get graph for model, building it if need be.
+     *
+     * @param model
+     *            the model
+     * @param inst
+     *            an instance of the model
+     * @return the graph
+     */
+    public static DependencyGraph getInstance(final Model model,
+            final Instance inst) {
+
+        DependencyGraph graph = GRAPHS.get(model);
+
+        if (graph == null) {
+            graph = new DependencyGraph(model, inst);
+            GRAPHS.put(model, graph);
+        }
+
+        return graph;
+    }
+
+    /**
+     * Register the node references in expression as dependencies of node.
+     *
+     * @param node
+     *            the dependent node
+     * @param expr
+     *            the expression, or null
+     * @param calculate
+     *            whether the expression calculates the node's value
+     */
+    void addExpression(final String node, final Object expr,
+            final boolean calculate) {
+
+        if (expr == null) {
+            return;
+        }
+
+        for (String ref : this.references.resolve(expr.toString())) {
+            addDependency(ref, node, this.dependents);
+
+            if (calculate) {
+                addDependency(ref, node, this.calculated);
+            }
+        }
+    }
+
+    /**
+     * Register node as dependent of ref.
+     *
+     * @param ref
+     *            the referenced node
+     * @param node
+     *            the dependent node
+     * @param graph
+     *            where to register
+     */
+    private static void addDependency(final String ref, final String node,
+            final Map<String, Set<String>> graph) {
+
+        Set<String> deps = graph.get(ref);
+
+        if (deps == null) {
+            deps = new HashSet<String>();
+            graph.put(ref, deps);
+        }
+
+        deps.add(node);
+    }
+
+    /**
+     * Determine all nodes that may be affected by changing the given nodes:
+     * the changed nodes themselves, calculated nodes depending on them,
+     * transitively, and all nodes with properties depending on any of
+     * those.
+     *
+     * @param changed
+     *            names of changed nodes
+     * @return affected node names
+     */
+    public Set<String> getAffected(final Collection<String> changed) {
+
+        // First find all values that change, following calculations.
+        Set<String> values = new HashSet<String>(changed);
+        LinkedList<String> todo = new LinkedList<String>(changed);
+
+        while (!todo.isEmpty()) {
+            Set<String> calcs = this.calculated.get(todo.removeFirst());
+
+            if (calcs == null) {
+                continue;
+            }
+
+            for (String calc : calcs) {
+                if (values.add(calc)) {
+                    todo.add(calc);
+                }
+            }
+        }
+
+        Set<String> affected = new HashSet<String>(values);
+
+        for (String value : values) {
+            Set<String> deps = this.dependents.get(value);
+
+            if (deps != null) {
+                affected.addAll(deps);
+            }
+        }
+
+        return affected;
+    }
+
+    /**
+     * Is the control affected by the changes, either through its bind or
+     * through fills in its label or hint?
+     *
+     * @param control
+     *            the control
+     * @param affected
+     *            affected node names, as given by getAffected
+     * @return whether the control needs to be evaluated again
+     */
+    public boolean isAffected(final Control control,
+            final Set<String> affected) {
+
+        if (affected.contains(control.getBind())) {
+            return true;
+        }
+
+        return refersTo(control.getLabel(), affected)
+                || refersTo(control.getHint(), affected);
+    }
+
+    /**
+     * Does the text have fills for any of the given nodes?
+     *
+     * @param text
+     *            label or hint, may be null
+     * @param values
+     *            node names
+     * @return whether it does
+     */
+    private boolean refersTo(final Object text,
+            final Collection<String> values) {
+
+        if (text == null) {
+            return false;
+        }
+
+        String s = text.toString();
+
+        if (s.indexOf("${") == -1) {
+            return false;
+        }
+
+        Set<String> refs = this.fills.get(s);
+
+        if (refs == null) {
+            refs = this.references.resolveFills(s);
+            this.fills.put(s, refs);
+        }
+
+        for (String ref : refs) {
+            if (values.contains(ref)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
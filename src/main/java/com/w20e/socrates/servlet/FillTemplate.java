@@ -0,0 +1,277 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.InvalidPathExpression;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.rendering.RenderConfig;
+import com.w20e.socrates.util.FillProcessor;
+
+/**
+ * Label or hint text with fills, like "you said ${A1}", parsed once. The
+ * filled in text is remembered for the values of the referenced nodes, so
+ * as long as those don't change, FillProcessor isn't called again.
+ *
+ * Besides the node values, FillProcessor's output depends on the locale and
+ * on the model and render config, for datatypes and option labels. Templates
+ * are kept per model instance, and results are keyed on the values, the
+ * locale and the render config. Since each session parses its own model,
+ * results are only reused within the session that has the model.
+ *
+ * Fills that refer to anything but a single node name or path, like
+ * formatting options, are not remembered, since the result may then depend
+ * on more than the node values.
+ */
+final class FillTemplate {
+
+    /**
+     * Templates per model, by text.
+     */
+    private static final Map<Model, ConcurrentMap<String, FillTemplate>> TEMPLATES = Collections
+            .synchronizedMap(new WeakHashMap<Model, ConcurrentMap<String, FillTemplate>>());
+
+    /**
+     * Max number of templates per model.
+     */
+    private static final int MAX_TEMPLATES = 10000;
+
+    /**
+     * Max number of results remembered per template.
+     */
+    private static final int MAX_RESULTS = 256;
+
+    /**
+     * Does the actual filling in; FillProcessor, unless testing.
+     */
+    interface Filler {
+
+        /**
+         * Fill in the text.
+         *
+         * @param text
+         *            label or hint text
+         * @param inst
+         *            instance
+         * @param model
+         *            model
+         * @param cfg
+         *            render config
+         * @param locale
+         *            locale
+         * @return the filled in text
+         * @throws Exception
+         *             when the fills can't be processed
+         */
+        String fill(String text, Instance inst, Model model, RenderConfig cfg,
+                Locale locale) throws Exception;
+    }
+
+    /**
+     * Fill in with FillProcessor.
+     */
+    static final Filler PROCESSOR = new Filler() {
+        @Override
+        public String fill(final String text, final Instance inst,
+                final Model model, final RenderConfig cfg, final Locale locale)
+                throws Exception {
+
+            return FillProcessor.processFills(text, inst, model, cfg, locale);
+        }
+    };
+
+    /**
+     * The text.
+     */
+    private final String text;
+
+    /**
+     * Does the text have fills at all?
+     */
+    private final boolean fills;
+
+    /**
+     * Names of referenced nodes, or null if the result can't be remembered.
+     */
+    private final String[] refs;
+
+    /**
+     * Results by node values, locale and render config.
+     */
+    private final ConcurrentMap<List<Object>, String> results = new ConcurrentHashMap<List<Object>, String>();
+
+    /**
+     * Parse the template.
+     *
+     * @param newText
+     *            label or hint text
+     * @param inst
+     *            instance, to check node names against
+     */
+    private FillTemplate(final String newText, final Instance inst) {
+
+        this.text = newText;
+        this.fills = newText.indexOf("${") != -1;
+
+        Set<String> names = new LinkedHashSet<String>();
+        boolean plain = this.fills;
+
+        for (String expr : NodeReferences.getFills(newText)) {
+            if (!NodeReferences.isReference(expr)) {
+                plain = false;
+                break;
+            }
+
+            try {
+                inst.getNode(expr);
+                names.add(expr);
+            } catch (InvalidPathExpression e) {
+                plain = false;
+                break;
+            }
+        }
+
+        this.refs = plain ? names.toArray(new String[names.size()]) : null;
+    }
+
+    /**
+     * Get template for text.
+     *
+     * @param text
+     *            label or hint text
+     * @param inst
+     *            instance
+     * @param model
+     *            model
+     * @return the template
+     */
+    static FillTemplate getInstance(final String text, final Instance inst,
+            final Model model) {
+
+        ConcurrentMap<String, FillTemplate> templates = TEMPLATES.get(model);
+
+        if (templates == null) {
+            templates = new ConcurrentHashMap<String, FillTemplate>();
+            TEMPLATES.put(model, templates);
+        }
+
+        FillTemplate template = templates.get(text);
+
+        if (template == null) {
+            template = new FillTemplate(text, inst);
+
+            if (templates.size() < MAX_TEMPLATES) {
+                templates.put(text, template);
+            }
+        }
+
+        return template;
+    }
+
+    /**
+     * Does the text have fills?
+     *
+     * @return whether it does
+     */
+    boolean hasFills() {
+
+        return this.fills;
+    }
+
+    /**
+     * Fill in the text.
+     *
+     * @param inst
+     *            instance
+     * @param model
+     *            model
+     * @param cfg
+     *            render config
+     * @param locale
+     *            locale
+     * @return the filled in text
+     * @throws Exception
+     *             when the fills can't be processed
+     */
+    String render(final Instance inst, final Model model,
+            final RenderConfig cfg, final Locale locale) throws Exception {
+
+        return render(inst, model, cfg, locale, PROCESSOR);
+    }
+
+    /**
+     * Fill in the text with the given filler.
+     *
+     * @param inst
+     *            instance
+     * @param model
+     *            model
+     * @param cfg
+     *            render config
+     * @param locale
+     *            locale
+     * @param filler
+     *            does the filling in, if the result isn't known yet
+     * @return the filled in text
+     * @throws Exception
+     *             when the fills can't be processed
+     */
+    String render(final Instance inst, final Model model,
+            final RenderConfig cfg, final Locale locale, final Filler filler)
+            throws Exception {
+
+        if (!this.fills) {
+            return this.text;
+        }
+
+        if (this.refs == null) {
+            return filler.fill(this.text, inst, model, cfg, locale);
+        }
+
+        List<Object> key = new ArrayList<Object>(this.refs.length + 2);
+
+        for (String ref : this.refs) {
+            Node node = inst.getNode(ref);
+            key.add(node == null ? null : node.getValue());
+        }
+
+        key.add(locale);
+        key.add(cfg);
+
+        String result = this.results.get(key);
+
+        if (result == null) {
+            result = filler.fill(this.text, inst, model, cfg, locale);
+
+            if (result != null) {
+                if (this.results.size() >= MAX_RESULTS) {
+                    this.results.clear();
+                }
+                this.results.put(key, result);
+            }
+        }
+
+        return result;
+    }
+}
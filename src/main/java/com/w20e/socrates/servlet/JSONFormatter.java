@@ -0,0 +1,173 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.w20e.socrates.process.RunnerContext;
+
+/**
+ * Compact alternative to the XMLRPCFormatter: the changed properties are
+ * sent as one JSON object, holding an object per item with only the
+ * properties that changed. Boolean properties (required, relevant, readonly)
+ * are sent as booleans, the rest as strings. Groups are keyed as
+ * group:&lt;id&gt;, like in the XML format. Example:
+ *
+ * <pre>
+ * {"A01":{"required":true,"alert":""},"group:g1":{"relevant":false}}
+ * </pre>
+ *
+ * The client for this format is in META-INF/resources/socrates/validate.js.
+ */
+public final class JSONFormatter {
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger.getLogger(JSONFormatter.class
+            .getName());
+
+    /**
+     * Hex digits for escapes.
+     */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Format list of items.
+     *
+     * @param items
+     *            changed properties per item
+     * @param out
+     *            OutputStream to use
+     * @param pContext
+     *            Processing context
+     * @throws Exception
+     *             in case of output stream errors.
+     */
+    public void format(final Map<String, Map<String, String>> items,
+            final OutputStream out, final RunnerContext pContext)
+            throws Exception {
+
+        LOGGER.finest("Formatting " + items.size() + " items");
+
+        StringBuilder json = new StringBuilder(64 * (items.size() + 1));
+
+        json.append('{');
+
+        boolean firstItem = true;
+
+        for (Map.Entry<String, Map<String, String>> item : items.entrySet()) {
+
+            if (!firstItem) {
+                json.append(',');
+            }
+            firstItem = false;
+
+            string(item.getKey(), json);
+            json.append(":{");
+
+            boolean firstProp = true;
+
+            for (Map.Entry<String, String> prop : item.getValue().entrySet()) {
+
+                if (prop.getValue() == null) {
+                    continue;
+                }
+
+                if (!firstProp) {
+                    json.append(',');
+                }
+                firstProp = false;
+
+                string(prop.getKey(), json);
+                json.append(':');
+
+                if (isBoolean(prop.getKey())) {
+                    json.append("true".equals(prop.getValue()));
+                } else {
+                    string(prop.getValue(), json);
+                }
+            }
+
+            json.append('}');
+        }
+
+        json.append('}');
+
+        out.write(json.toString().getBytes("UTF-8"));
+        out.flush();
+    }
+
+    /**
+     * Is this a boolean property?
+     *
+     * @param prop
+     *            property name
+     * @return whether it is
+     */
+    private static boolean isBoolean(final String prop) {
+
+        return "required".equals(prop) || "relevant".equals(prop)
+                || "readonly".equals(prop);
+    }
+
+    /**
+     * Append string as JSON string.
+     *
+     * @param s
+     *            the string
+     * @param json
+     *            where to append
+     */
+    private static void string(final String s, final StringBuilder json) {
+
+        json.append('"');
+
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+            case '"':
+                json.append("\\\"");
+                break;
+            case '\\':
+                json.append("\\\\");
+                break;
+            case '\n':
+                json.append("\\n");
+                break;
+            case '\r':
+                json.append("\\r");
+                break;
+            case '\t':
+                json.append("\\t");
+                break;
+            case '<':
+                // Keep </script> and the like harmless.
+                json.append("\\u003c");
+                break;
+            default:
+                if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                    json.append("\\u").append(HEX[c >> 12]).append(
+                            HEX[(c >> 8) & 0xf]).append(HEX[(c >> 4) & 0xf])
+                            .append(HEX[c & 0xf]);
+                } else {
+                    json.append(c);
+                }
+            }
+        }
+
+        json.append('"');
+    }
+}
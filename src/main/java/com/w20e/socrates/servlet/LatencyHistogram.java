@@ -0,0 +1,141 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram. Latencies are counted in buckets that double
+ * in size: bucket n holds latencies of 2^n up to 2^(n+1) microseconds.
+ * Percentiles are estimated as the upper bound of the bucket they fall in,
+ * so they are off by at most a factor two; good enough to tell where time
+ * goes, and recording is a couple of atomic increments.
+ */
+final class LatencyHistogram {
+
+    /**
+     * Number of buckets; the last one holds everything from about 18
+     * minutes.
+     */
+    private static final int BUCKETS = 31;
+
+    /**
+     * Counts per bucket.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of recorded latencies.
+     */
+    private final AtomicLong count = new AtomicLong();
+
+    /**
+     * Sum of recorded latencies, in ns.
+     */
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * Largest recorded latency, in ns.
+     */
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record latency.
+     *
+     * @param nanos
+     *            latency in ns
+     */
+    void record(final long nanos) {
+
+        long micros = Math.max(0, nanos) / 1000;
+        int bucket = 63 - Long.numberOfLeadingZeros(micros | 1);
+
+        this.buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+        this.count.incrementAndGet();
+        this.total.addAndGet(nanos);
+
+        long current = this.max.get();
+
+        while (nanos > current && !this.max.compareAndSet(current, nanos)) {
+            current = this.max.get();
+        }
+    }
+
+    /**
+     * Number of recorded latencies.
+     *
+     * @return the count
+     */
+    long getCount() {
+
+        return this.count.get();
+    }
+
+    /**
+     * Mean latency.
+     *
+     * @return mean in microseconds, or 0 if nothing was recorded
+     */
+    double getMeanMicros() {
+
+        long n = this.count.get();
+
+        return n == 0 ? 0 : this.total.get() / 1000.0 / n;
+    }
+
+    /**
+     * Largest latency.
+     *
+     * @return max in microseconds
+     */
+    long getMaxMicros() {
+
+        return this.max.get() / 1000;
+    }
+
+    /**
+     * Estimate percentile.
+     *
+     * @param p
+     *            percentile, between 0 and 100
+     * @return upper bound of the latency in microseconds
+     */
+    long getPercentileMicros(final double p) {
+
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+
+        // Copy first; recording goes on in the meantime.
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = this.buckets.get(i);
+            n += counts[i];
+        }
+
+        if (n == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return Math.min(1L << (i + 1), getMaxMicros());
+            }
+        }
+
+        return getMaxMicros();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.lang.management.ManagementFactory;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Registration of our MBeans with the platform MBean server, as
+ * com.w20e.socrates:type=type,servlet=name. Failure is logged, and otherwise
+ * ignored: management is nice to have.
+ */
+final class MBeans {
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger.getLogger(MBeans.class
+            .getName());
+
+    /**
+     * Utility class.
+     */
+    private MBeans() {
+    }
+
+    /**
+     * Register MBean, replacing one registered under the same name.
+     *
+     * @param mbean
+     *            the MBean
+     * @param type
+     *            MBean type
+     * @param servlet
+     *            name of the servlet it belongs to
+     * @return the name, or null if registration failed
+     */
+    static ObjectName register(final Object mbean, final String type,
+            final String servlet) {
+
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("com.w20e.socrates:type=" + type
+                    + ",servlet=" + ObjectName.quote(servlet));
+
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+
+            server.registerMBean(mbean, name);
+
+            return name;
+        } catch (Exception e) {
+            LOGGER.warning("Couldn't register " + type + " for " + servlet
+                    + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Unregister MBean.
+     *
+     * @param name
+     *            the name, may be null
+     */
+    static void unregister(final ObjectName name) {
+
+        if (name == null) {
+            return;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            LOGGER.fine("Couldn't unregister " + name + ": " + e.getMessage());
+        }
+    }
+}
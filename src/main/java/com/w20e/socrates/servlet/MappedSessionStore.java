@@ -0,0 +1,510 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Session state store that keeps serialized contexts in memory mapped files,
+ * outside of the heap. Only a small slot per session stays on the heap.
+ *
+ * Contexts are appended to fixed size segment files. A segment without live
+ * contexts is reused; when all segments are in use, the segment with the most
+ * garbage is compacted. If that doesn't free enough space, saving fails and
+ * the context stays in the HTTP session. The files are scratch space: their
+ * contents don't survive a restart.
+ */
+public final class MappedSessionStore implements SessionStateStore {
+
+    /**
+     * Default segment size: 64MB.
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Default max number of segments.
+     */
+    public static final int DEFAULT_MAX_SEGMENTS = 64;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(MappedSessionStore.class.getName());
+
+    /**
+     * Size of the length field in front of every record.
+     */
+    private static final int HEADER = 4;
+
+    /**
+     * Where the segment files live.
+     */
+    private final File dir;
+
+    /**
+     * Size per segment.
+     */
+    private final int segmentSize;
+
+    /**
+     * Max number of segments.
+     */
+    private final int maxSegments;
+
+    /**
+     * The segments.
+     */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /**
+     * Where the contexts are, by session id.
+     */
+    private final Map<String, Slot> slots = new HashMap<String, Slot>();
+
+    /**
+     * Segment that is appended to.
+     */
+    private Segment current;
+
+    /**
+     * Last version handed out.
+     */
+    private long version;
+
+    /**
+     * Create store.
+     *
+     * @param newDir
+     *            directory for the segment files; created if need be
+     * @param newSegmentSize
+     *            size per segment file
+     * @param newMaxSegments
+     *            max number of segment files
+     * @throws IOException
+     *             when the directory can't be created
+     */
+    public MappedSessionStore(final File newDir, final int newSegmentSize,
+            final int newMaxSegments) throws IOException {
+
+        if (!newDir.isDirectory() && !newDir.mkdirs()) {
+            throw new IOException("Can't create session store directory "
+                    + newDir);
+        }
+
+        this.dir = newDir;
+        this.segmentSize = Math.max(1024, newSegmentSize);
+        this.maxSegments = Math.max(1, newMaxSegments);
+    }
+
+    @Override
+    public WebsurveyContext load(final String id) throws IOException {
+
+        byte[] bytes;
+
+        synchronized (this) {
+            Slot slot = this.slots.get(id);
+
+            if (slot == null) {
+                return null;
+            }
+
+            bytes = new byte[slot.length];
+            slot.segment.read(slot.offset + HEADER, bytes);
+        }
+
+        return WebsurveyContext.fromBytes(bytes);
+    }
+
+    @Override
+    public void save(final String id, final WebsurveyContext ctx)
+            throws IOException {
+
+        byte[] bytes = ctx.toBytes();
+        int size = bytes.length + HEADER;
+
+        if (size > this.segmentSize) {
+            throw new IOException("Context of " + bytes.length
+                    + " bytes doesn't fit in a segment");
+        }
+
+        synchronized (this) {
+            free(this.slots.remove(id));
+
+            Segment segment = allocate(size);
+
+            Slot slot = new Slot(segment, segment.top, bytes.length,
+                    ++this.version);
+            segment.buffer.putInt(slot.offset, bytes.length);
+            segment.write(slot.offset + HEADER, bytes);
+            segment.top += size;
+            segment.live += size;
+            segment.count++;
+
+            this.slots.put(id, slot);
+        }
+    }
+
+    @Override
+    public synchronized void remove(final String id) {
+
+        free(this.slots.remove(id));
+    }
+
+    @Override
+    public synchronized long getVersion(final String id) {
+
+        Slot slot = this.slots.get(id);
+
+        return slot == null ? -1 : slot.version;
+    }
+
+    @Override
+    public boolean isShared() {
+
+        return false;
+    }
+
+    @Override
+    public synchronized int size() {
+
+        return this.slots.size();
+    }
+
+    /**
+     * Number of segment files.
+     *
+     * @return the number of segments
+     */
+    public synchronized int getSegments() {
+
+        return this.segments.size();
+    }
+
+    /**
+     * Bytes in use by live contexts.
+     *
+     * @return live bytes
+     */
+    public synchronized long getLiveBytes() {
+
+        long live = 0;
+
+        for (Segment segment : this.segments) {
+            live += segment.live;
+        }
+
+        return live;
+    }
+
+    @Override
+    public synchronized void close() {
+
+        this.slots.clear();
+        this.current = null;
+
+        for (Segment segment : this.segments) {
+            if (!segment.file.delete()) {
+                segment.file.deleteOnExit();
+            }
+        }
+
+        this.segments.clear();
+    }
+
+    /**
+     * Release slot.
+     *
+     * @param slot
+     *            the slot, may be null
+     */
+    private void free(final Slot slot) {
+
+        if (slot == null) {
+            return;
+        }
+
+        slot.segment.live -= slot.length + HEADER;
+        slot.segment.count--;
+
+        // Nothing left: start over, unless this is where we append anyway.
+        if (slot.segment.count == 0) {
+            slot.segment.top = 0;
+        }
+    }
+
+    /**
+     * Find segment with room for size bytes: the current one, an empty one,
+     * a new one, or a compacted one, in that order.
+     *
+     * @param size
+     *            bytes needed
+     * @return the segment
+     * @throws IOException
+     *             when there's no room
+     */
+    private Segment allocate(final int size) throws IOException {
+
+        if (this.current != null && this.current.room() >= size) {
+            return this.current;
+        }
+
+        for (Segment segment : this.segments) {
+            if (segment.count == 0) {
+                this.current = segment;
+                return segment;
+            }
+        }
+
+        if (this.segments.size() < this.maxSegments) {
+            this.current = createSegment();
+            return this.current;
+        }
+
+        Segment victim = null;
+
+        for (Segment segment : this.segments) {
+            if (victim == null
+                    || segment.top - segment.live > victim.top - victim.live) {
+                victim = segment;
+            }
+        }
+
+        if (this.segmentSize - victim.live < size) {
+            throw new IOException("Session store is full");
+        }
+
+        compact(victim);
+        this.current = victim;
+
+        return victim;
+    }
+
+    /**
+     * Create and map a new segment file.
+     *
+     * @return the segment
+     * @throws IOException
+     *             when the file can't be created
+     */
+    private Segment createSegment() throws IOException {
+
+        File file = File.createTempFile("sessions-", ".seg", this.dir);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+        try {
+            raf.setLength(this.segmentSize);
+            MappedByteBuffer buffer = raf.getChannel().map(
+                    FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+
+            Segment segment = new Segment(file, buffer);
+            this.segments.add(segment);
+
+            LOGGER.info("Created session store segment " + file + " ("
+                    + this.segments.size() + " of " + this.maxSegments + ")");
+
+            return segment;
+        } finally {
+            // The mapping stays valid after closing the file.
+            raf.close();
+        }
+    }
+
+    /**
+     * Move the live records of the segment to the front.
+     *
+     * @param segment
+     *            the segment
+     */
+    private void compact(final Segment segment) {
+
+        List<Slot> live = new ArrayList<Slot>(segment.count);
+
+        for (Slot slot : this.slots.values()) {
+            if (slot.segment == segment) {
+                live.add(slot);
+            }
+        }
+
+        Collections.sort(live, new Comparator<Slot>() {
+            @Override
+            public int compare(final Slot s0, final Slot s1) {
+                return s0.offset < s1.offset ? -1 : s0.offset == s1.offset ? 0
+                        : 1;
+            }
+        });
+
+        int top = 0;
+
+        for (Slot slot : live) {
+            int size = slot.length + HEADER;
+
+            if (slot.offset != top) {
+                byte[] record = new byte[size];
+                segment.read(slot.offset, record);
+                segment.write(top, record);
+                slot.offset = top;
+            }
+
+            top += size;
+        }
+
+        LOGGER.fine("Compacted session store segment " + segment.file
+                + " from " + segment.top + " to " + top + " bytes");
+
+        segment.top = top;
+    }
+
+    /**
+     * Segment file.
+     */
+    private final class Segment {
+
+        /**
+         * The file.
+         */
+        private final File file;
+
+        /**
+         * The mapped file.
+         */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * End of last record.
+         */
+        private int top;
+
+        /**
+         * Bytes used by live records.
+         */
+        private int live;
+
+        /**
+         * Number of live records.
+         */
+        private int count;
+
+        /**
+         * Create segment.
+         *
+         * @param newFile
+         *            the file
+         * @param newBuffer
+         *            the mapped file
+         */
+        Segment(final File newFile, final MappedByteBuffer newBuffer) {
+
+            this.file = newFile;
+            this.buffer = newBuffer;
+        }
+
+        /**
+         * Free space at the end.
+         *
+         * @return bytes left
+         */
+        int room() {
+
+            return MappedSessionStore.this.segmentSize - this.top;
+        }
+
+        /**
+         * Copy bytes out of the segment.
+         *
+         * @param offset
+         *            where to start
+         * @param dst
+         *            destination, filled completely
+         */
+        void read(final int offset, final byte[] dst) {
+
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(offset);
+            view.get(dst);
+        }
+
+        /**
+         * Copy bytes into the segment.
+         *
+         * @param offset
+         *            where to start
+         * @param src
+         *            the bytes
+         */
+        void write(final int offset, final byte[] src) {
+
+            ByteBuffer view = this.buffer.duplicate();
+            view.position(offset);
+            view.put(src);
+        }
+    }
+
+    /**
+     * Location of a stored context.
+     */
+    private static final class Slot {
+
+        /**
+         * Segment holding the record.
+         */
+        private final Segment segment;
+
+        /**
+         * Start of the record. Changes when the segment is compacted.
+         */
+        private int offset;
+
+        /**
+         * Length of the serialized context.
+         */
+        private final int length;
+
+        /**
+         * Version of the context.
+         */
+        private final long version;
+
+        /**
+         * Create slot.
+         *
+         * @param newSegment
+         *            segment
+         * @param newOffset
+         *            record offset
+         * @param newLength
+         *            context length
+         * @param newVersion
+         *            context version
+         */
+        Slot(final Segment newSegment, final int newOffset,
+                final int newLength, final long newVersion) {
+
+            this.segment = newSegment;
+            this.offset = newOffset;
+            this.length = newLength;
+            this.version = newVersion;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.Locale;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.w20e.socrates.model.ConstraintViolation;
+import com.w20e.socrates.process.RunnerContext;
+import com.w20e.socrates.util.UTF8ResourceBundle;
+import com.w20e.socrates.util.UTF8ResourceBundleImpl;
+
+/**
+ * Alert messages for a questionnaire in a given locale, looked up once from
+ * the questionnaire's resource bundle. Catalogs are immutable, and shared by
+ * all sessions. They are held by the questionnaire's entry, so a reloaded
+ * questionnaire gets fresh ones, and the old ones go with the old entry once
+ * its last session finishes.
+ */
+public final class MessageCatalog {
+
+    /**
+     * Used when the bundle has no translation.
+     */
+    private static final String DEFAULT_MESSAGE = "Erroneous input";
+
+    /**
+     * Message for required fields.
+     */
+    private final String required;
+
+    /**
+     * Message for wrong type.
+     */
+    private final String type;
+
+    /**
+     * Message for constraint violations.
+     */
+    private final String constraint;
+
+    /**
+     * Message for anything else.
+     */
+    private final String unknown;
+
+    /**
+     * Create catalog from bundle.
+     *
+     * @param bundle
+     *            the bundle
+     */
+    private MessageCatalog(final UTF8ResourceBundle bundle) {
+
+        this.required = lookup(bundle, "alert.required");
+        this.type = lookup(bundle, "alert.type");
+        this.constraint = lookup(bundle, "alert.constraint");
+        this.unknown = lookup(bundle, "alert.unknown");
+    }
+
+    /**
+     * Load catalog for the questionnaire with the given configuration. The
+     * catalog isn't cached; use QuestionnaireEntry.getMessageCatalog for
+     * that.
+     *
+     * @param cfg
+     *            questionnaire configuration
+     * @param locale
+     *            the locale
+     * @return the catalog
+     * @throws Exception
+     *             when the bundle can't be loaded
+     */
+    public static MessageCatalog load(final Configuration cfg,
+            final Locale locale) throws Exception {
+
+        return new MessageCatalog(UTF8ResourceBundleImpl.getBundle(cfg
+                .getString("formatter.locale.prefix"), locale));
+    }
+
+    /**
+     * Get catalog for a context, from its questionnaire's entry if known.
+     *
+     * @param entry
+     *            the entry the context was created for, or null
+     * @param ctx
+     *            the context
+     * @return the catalog
+     * @throws Exception
+     *             when the bundle can't be loaded
+     */
+    public static MessageCatalog getInstance(final QuestionnaireEntry entry,
+            final RunnerContext ctx) throws Exception {
+
+        if (entry == null) {
+            return load(ctx.getConfiguration(), ctx.getLocale());
+        }
+
+        return entry.getMessageCatalog(ctx.getLocale());
+    }
+
+    /**
+     * Return the translated alert message.
+     *
+     * @param msg
+     *            original message.
+     * @return the translated message.
+     */
+    public String translate(final String msg) {
+
+        if (ConstraintViolation.REQUIRED.equals(msg)) {
+            return this.required;
+        } else if (ConstraintViolation.TYPE.equals(msg)) {
+            return this.type;
+        } else if (ConstraintViolation.FALSE.equals(msg)) {
+            return this.constraint;
+        } else {
+            return this.unknown;
+        }
+    }
+
+    /**
+     * Get message from bundle.
+     *
+     * @param bundle
+     *            the bundle
+     * @param key
+     *            message key
+     * @return the message, or the default if not found
+     */
+    private static String lookup(final UTF8ResourceBundle bundle,
+            final String key) {
+
+        try {
+            String msg = bundle.getString(key);
+
+            return msg == null ? DEFAULT_MESSAGE : msg;
+        } catch (Exception e) {
+            return DEFAULT_MESSAGE;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds references to instance nodes in expressions and fills. References
+ * are what the expression parser takes for variables: plain names like
+ * 'bar', and paths like '/xx/bar' or '../bar'.
+ *
+ * A reference is resolved to every node with a matching name, or whose last
+ * path step matches any of the reference's steps. This may find too many
+ * nodes, for example when a node name is also used as a literal, but never
+ * too few.
+ */
+final class NodeReferences {
+
+    /**
+     * Fills like ${name}.
+     */
+    static final Pattern FILL = Pattern.compile("\\$\\{([^}]*)\\}");
+
+    /**
+     * Anything that may be a node name or path.
+     */
+    static final Pattern REFERENCE = Pattern
+            .compile("(\\.{0,2}/)*[A-Za-z_][A-Za-z0-9_.\\-]*(/(\\.{1,2}|[A-Za-z_][A-Za-z0-9_.\\-]*))*");
+
+    /**
+     * Node names by last path step.
+     */
+    private final Map<String, Set<String>> steps = new HashMap<String, Set<String>>();
+
+    /**
+     * Index node names.
+     *
+     * @param names
+     *            names of all nodes in the instance
+     */
+    NodeReferences(final Collection<String> names) {
+
+        for (String name : names) {
+            String step = name.substring(name.lastIndexOf('/') + 1);
+            Set<String> nodes = this.steps.get(step);
+
+            if (nodes == null) {
+                nodes = new HashSet<String>();
+                this.steps.put(step, nodes);
+            }
+
+            nodes.add(name);
+        }
+    }
+
+    /**
+     * Is the expression a single node reference?
+     *
+     * @param expr
+     *            the expression
+     * @return whether it is
+     */
+    static boolean isReference(final String expr) {
+
+        return REFERENCE.matcher(expr).matches();
+    }
+
+    /**
+     * Get the expressions of all fills in text.
+     *
+     * @param text
+     *            label or hint text
+     * @return the fill expressions, trimmed, in order
+     */
+    static List<String> getFills(final String text) {
+
+        List<String> exprs = new ArrayList<String>();
+        Matcher m = FILL.matcher(text);
+
+        while (m.find()) {
+            exprs.add(m.group(1).trim());
+        }
+
+        return exprs;
+    }
+
+    /**
+     * Find the nodes referred to in an expression.
+     *
+     * @param expr
+     *            the expression
+     * @return node names
+     */
+    Set<String> resolve(final String expr) {
+
+        Set<String> refs = new HashSet<String>();
+        Matcher m = REFERENCE.matcher(expr);
+
+        while (m.find()) {
+            for (String step : m.group().split("/")) {
+                addStep(step, refs);
+            }
+        }
+
+        return refs;
+    }
+
+    /**
+     * Find the nodes referred to in the fills of a text.
+     *
+     * @param text
+     *            label or hint text
+     * @return node names
+     */
+    Set<String> resolveFills(final String text) {
+
+        Set<String> refs = new HashSet<String>();
+
+        for (String expr : getFills(text)) {
+            refs.addAll(resolve(expr));
+        }
+
+        return refs;
+    }
+
+    /**
+     * Add nodes for a path step. A step that isn't a node name may still be
+     * a subtraction, like 'a-b'.
+     *
+     * @param step
+     *            path step
+     * @param refs
+     *            where to add the node names
+     */
+    private void addStep(final String step, final Set<String> refs) {
+
+        Set<String> nodes = this.steps.get(step);
+
+        if (nodes != null) {
+            refs.addAll(nodes);
+        } else if (step.indexOf('-') != -1) {
+            for (String part : step.split("-")) {
+                nodes = this.steps.get(part);
+
+                if (nodes != null) {
+                    refs.addAll(nodes);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.servlet.ServletOutputStream;
+
+/**
+ * Output stream for rendered pages, backed by pooled chunks. The page is
+ * kept in memory until the stream threshold is reached; up to that point
+ * nothing is sent to the client, so the response may still be redirected or
+ * turned into an error page. Once over the threshold, the buffered part is
+ * sent, and from then on every full chunk goes straight to the client.
+ * Use a negative threshold to always buffer the full page.
+ *
+ * A fully buffered page may also be sent without blocking, for async
+ * requests: drain writes as much as the client takes.
+ */
+public final class PageOutputStream extends OutputStream {
+
+    /**
+     * Chunk provider.
+     */
+    private final BufferPool pool;
+
+    /**
+     * Where the page should end up.
+     */
+    private final OutputStream target;
+
+    /**
+     * Number of bytes after which we start streaming, or -1 for never.
+     */
+    private final int threshold;
+
+    /**
+     * Full chunks not sent yet.
+     */
+    private final List<byte[]> chunks = new ArrayList<byte[]>();
+
+    /**
+     * Chunk currently written to.
+     */
+    private byte[] current;
+
+    /**
+     * Position in current chunk.
+     */
+    private int pos;
+
+    /**
+     * Number of bytes buffered.
+     */
+    private int buffered;
+
+    /**
+     * Have we sent anything yet?
+     */
+    private boolean committed;
+
+    /**
+     * Number of kept chunks drained so far.
+     */
+    private int drained;
+
+    /**
+     * Called just before streaming starts, or null.
+     */
+    private Runnable beforeCommit;
+
+    /**
+     * Create page stream.
+     *
+     * @param newPool
+     *            chunk pool
+     * @param newTarget
+     *            target stream, usually the servlet's output stream; may be
+     *            null for a page that is kept in full and drained
+     * @param newThreshold
+     *            stream threshold in bytes, or a negative value to buffer
+     *            the complete page
+     */
+    public PageOutputStream(final BufferPool newPool,
+            final OutputStream newTarget, final int newThreshold) {
+
+        this.pool = newPool;
+        this.target = newTarget;
+        this.threshold = newThreshold;
+        this.current = newPool.acquire();
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+
+        if (this.pos == this.current.length) {
+            nextChunk();
+        }
+
+        this.current[this.pos++] = (byte) b;
+        this.buffered++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+
+        int offset = off;
+        int left = len;
+
+        while (left > 0) {
+            if (this.pos == this.current.length) {
+                nextChunk();
+            }
+
+            int n = Math.min(left, this.current.length - this.pos);
+            System.arraycopy(b, offset, this.current, this.pos, n);
+            this.pos += n;
+            this.buffered += n;
+            offset += n;
+            left -= n;
+        }
+    }
+
+    /**
+     * Current chunk is full: either send it, or keep it and get a new one.
+     *
+     * @throws IOException
+     *             when sending fails
+     */
+    private void nextChunk() throws IOException {
+
+        if (!this.committed && this.threshold >= 0
+                && this.buffered >= this.threshold) {
+            if (this.beforeCommit != null) {
+                this.beforeCommit.run();
+            }
+
+            sendBuffered();
+            this.committed = true;
+        }
+
+        if (this.committed) {
+            this.target.write(this.current, 0, this.pos);
+        } else {
+            this.chunks.add(this.current);
+            this.current = this.pool.acquire();
+        }
+
+        this.pos = 0;
+    }
+
+    /**
+     * Send all full chunks kept so far, and return them to the pool.
+     *
+     * @throws IOException
+     *             when sending fails
+     */
+    private void sendBuffered() throws IOException {
+
+        for (byte[] chunk : this.chunks) {
+            this.target.write(chunk, 0, chunk.length);
+            this.pool.release(chunk);
+        }
+
+        this.chunks.clear();
+    }
+
+    /**
+     * Have something done just before the page starts streaming, while
+     * headers may still be set.
+     *
+     * @param hook
+     *            what to do, or null for nothing
+     */
+    public void setBeforeCommit(final Runnable hook) {
+
+        this.beforeCommit = hook;
+    }
+
+    /**
+     * Whether part of the page was sent to the client already. If so, the
+     * response can no longer be redirected, nor can headers be added.
+     *
+     * @return committed or not
+     */
+    public boolean isCommitted() {
+
+        return this.committed;
+    }
+
+    /**
+     * Send whatever is left, flush the target and return all chunks to the
+     * pool. The stream is not to be used afterwards.
+     *
+     * @throws IOException
+     *             when sending fails
+     */
+    public void finish() throws IOException {
+
+        if (this.current == null) {
+            return;
+        }
+
+        try {
+            sendBuffered();
+            this.target.write(this.current, 0, this.pos);
+            this.target.flush();
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Send the buffered page for as far as the stream is ready to take it,
+     * for non-blocking writes. Call again when the stream is ready for more;
+     * once everything is sent, the chunks are returned to the pool. The page
+     * is not to be written to afterwards.
+     *
+     * @param out
+     *            the response stream, in non-blocking mode
+     * @return whether the page is sent completely
+     * @throws IOException
+     *             when sending fails
+     */
+    public boolean drain(final ServletOutputStream out) throws IOException {
+
+        if (this.current == null) {
+            return true;
+        }
+
+        while (this.drained < this.chunks.size()) {
+            if (!out.isReady()) {
+                return false;
+            }
+
+            byte[] chunk = this.chunks.get(this.drained++);
+            this.committed = true;
+            out.write(chunk, 0, chunk.length);
+            this.pool.release(chunk);
+        }
+
+        if (!out.isReady()) {
+            return false;
+        }
+
+        this.committed = true;
+        out.write(this.current, 0, this.pos);
+        release();
+
+        return true;
+    }
+
+    /**
+     * Drop the page, returning all chunks to the pool. Use in case of errors.
+     */
+    public void release() {
+
+        for (int i = this.drained; i < this.chunks.size(); i++) {
+            this.pool.release(this.chunks.get(i));
+        }
+
+        this.chunks.clear();
+        this.drained = 0;
+
+        if (this.current != null) {
+            this.pool.release(this.current);
+            this.current = null;
+        }
+    }
+}
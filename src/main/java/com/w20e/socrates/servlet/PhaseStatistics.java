@@ -0,0 +1,145 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latency statistics of a request phase for a questionnaire, as published
+ * through JMX. All latencies are in microseconds.
+ */
+public final class PhaseStatistics {
+
+    /**
+     * Questionnaire id.
+     */
+    private final String questionnaire;
+
+    /**
+     * Phase name.
+     */
+    private final String phase;
+
+    /**
+     * Number of requests.
+     */
+    private final long count;
+
+    /**
+     * Mean latency.
+     */
+    private final double mean;
+
+    /**
+     * Median latency.
+     */
+    private final long p50;
+
+    /**
+     * 99th percentile latency.
+     */
+    private final long p99;
+
+    /**
+     * Max latency.
+     */
+    private final long max;
+
+    /**
+     * Create statistics.
+     *
+     * @param newQuestionnaire
+     *            questionnaire id
+     * @param newPhase
+     *            phase name
+     * @param newCount
+     *            number of requests
+     * @param newMean
+     *            mean latency
+     * @param newP50
+     *            median latency
+     * @param newP99
+     *            99th percentile latency
+     * @param newMax
+     *            max latency
+     */
+    @ConstructorProperties({ "questionnaire", "phase", "count", "meanMicros",
+            "p50Micros", "p99Micros", "maxMicros" })
+    public PhaseStatistics(final String newQuestionnaire,
+            final String newPhase, final long newCount, final double newMean,
+            final long newP50, final long newP99, final long newMax) {
+
+        this.questionnaire = newQuestionnaire;
+        this.phase = newPhase;
+        this.count = newCount;
+        this.mean = newMean;
+        this.p50 = newP50;
+        this.p99 = newP99;
+        this.max = newMax;
+    }
+
+    /**
+     * @return the questionnaire id
+     */
+    public String getQuestionnaire() {
+
+        return this.questionnaire;
+    }
+
+    /**
+     * @return the phase name
+     */
+    public String getPhase() {
+
+        return this.phase;
+    }
+
+    /**
+     * @return the number of requests
+     */
+    public long getCount() {
+
+        return this.count;
+    }
+
+    /**
+     * @return the mean latency
+     */
+    public double getMeanMicros() {
+
+        return this.mean;
+    }
+
+    /**
+     * @return the median latency
+     */
+    public long getP50Micros() {
+
+        return this.p50;
+    }
+
+    /**
+     * @return the 99th percentile latency
+     */
+    public long getP99Micros() {
+
+        return this.p99;
+    }
+
+    /**
+     * @return the max latency
+     */
+    public long getMaxMicros() {
+
+        return this.max;
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.w20e.socrates.process.Runner;
+import com.w20e.socrates.process.RunnerContextImpl;
+import com.w20e.socrates.process.RunnerFactoryImpl;
+
+/**
+ * Everything the servlet needs to know about a single questionnaire, resolved
+ * once by the {@link QuestionnaireRegistry}. Entries are never modified after
+ * creation; a change on disk results in a fresh entry, and the old one is
+ * retired. Sessions hold on to the entry they started with until they
+ * finish, retired or not; new sessions get the fresh one.
+ */
+public final class QuestionnaireEntry {
+
+    /**
+     * Max number of spare contexts kept.
+     */
+    static final int MAX_SPARE_CONTEXTS = 16;
+
+    /**
+     * Survey id, as given by the 'id' request parameter.
+     */
+    private final String id;
+
+    /**
+     * Location of the questionnaire configuration.
+     */
+    private final URI uri;
+
+    /**
+     * Parsed configuration.
+     */
+    private final Configuration configuration;
+
+    /**
+     * Factory used for this version of the questionnaire. Every entry gets
+     * it's own factory, so a reload doesn't pick up cached runners.
+     */
+    private final RunnerFactoryImpl runnerFactory;
+
+    /**
+     * The runner (parsed workflow).
+     */
+    private final Runner runner;
+
+    /**
+     * Files this entry was created from: config, model and workflow.
+     */
+    private final List<File> files;
+
+    /**
+     * Modification times of the files, at load time.
+     */
+    private final long[] lastModified;
+
+    /**
+     * Last time the files were checked for modification.
+     */
+    private volatile long lastChecked;
+
+    /**
+     * Has the entry been replaced, or dropped from the registry?
+     */
+    private volatile boolean retired;
+
+    /**
+     * Alert messages by locale, loaded when first needed.
+     */
+    private final ConcurrentMap<Locale, MessageCatalog> catalogs = new ConcurrentHashMap<Locale, MessageCatalog>();
+
+    /**
+     * Contexts no session uses anymore, ready to be given another session's
+     * state.
+     */
+    private final ConcurrentLinkedQueue<RunnerContextImpl> spareContexts = new ConcurrentLinkedQueue<RunnerContextImpl>();
+
+    /**
+     * Number of spare contexts.
+     */
+    private final AtomicInteger spares = new AtomicInteger();
+
+    /**
+     * Create entry.
+     *
+     * @param newId
+     *            survey id
+     * @param newUri
+     *            config location
+     * @param cfg
+     *            parsed configuration
+     * @param factory
+     *            runner factory for this entry
+     * @param newRunner
+     *            the runner
+     * @param deps
+     *            files to watch for modifications
+     */
+    QuestionnaireEntry(final String newId, final URI newUri,
+            final Configuration cfg, final RunnerFactoryImpl factory,
+            final Runner newRunner, final List<File> deps) {
+
+        this.id = newId;
+        this.uri = newUri;
+        this.configuration = cfg;
+        this.runnerFactory = factory;
+        this.runner = newRunner;
+        this.files = Collections.unmodifiableList(deps);
+        this.lastModified = new long[deps.size()];
+
+        for (int i = 0; i < deps.size(); i++) {
+            this.lastModified[i] = deps.get(i).lastModified();
+        }
+
+        this.lastChecked = System.currentTimeMillis();
+    }
+
+    /**
+     * Check whether any of the files this entry was created from changed.
+     * The file system is hit at most once per interval.
+     *
+     * @param interval
+     *            check interval in milliseconds
+     * @return whether the entry needs to be reloaded
+     */
+    boolean isStale(final long interval) {
+
+        long now = System.currentTimeMillis();
+
+        if (now - this.lastChecked < interval) {
+            return false;
+        }
+
+        this.lastChecked = now;
+
+        for (int i = 0; i < this.files.size(); i++) {
+            if (this.files.get(i).lastModified() != this.lastModified[i]) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Mark the entry as replaced.
+     */
+    void retire() {
+
+        this.retired = true;
+        this.spareContexts.clear();
+        this.spares.set(0);
+    }
+
+    /**
+     * Whether the entry has been replaced by a fresh one, or dropped from the
+     * registry.
+     *
+     * @return retired or not
+     */
+    public boolean isRetired() {
+
+        return this.retired;
+    }
+
+    /**
+     * @return the survey id
+     */
+    public String getId() {
+
+        return this.id;
+    }
+
+    /**
+     * @return the config URI
+     */
+    public URI getURI() {
+
+        return this.uri;
+    }
+
+    /**
+     * @return the questionnaire configuration
+     */
+    public Configuration getConfiguration() {
+
+        return this.configuration;
+    }
+
+    /**
+     * @return the runner factory to create contexts with
+     */
+    public RunnerFactoryImpl getRunnerFactory() {
+
+        return this.runnerFactory;
+    }
+
+    /**
+     * @return the runner for this questionnaire
+     */
+    public Runner getRunner() {
+
+        return this.runner;
+    }
+
+    /**
+     * Get the alert messages for this questionnaire, loading them on first
+     * use.
+     *
+     * @param locale
+     *            the locale
+     * @return the catalog
+     * @throws Exception
+     *             when the bundle can't be loaded
+     */
+    public MessageCatalog getMessageCatalog(final Locale locale)
+            throws Exception {
+
+        MessageCatalog catalog = this.catalogs.get(locale);
+
+        if (catalog == null) {
+            catalog = MessageCatalog.load(this.configuration, locale);
+
+            MessageCatalog other = this.catalogs.putIfAbsent(locale, catalog);
+
+            if (other != null) {
+                catalog = other;
+            }
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Keep a context for this questionnaire that no session uses anymore, so
+     * it needn't be built again. Dropped if there are enough spares, or if
+     * the entry is retired.
+     *
+     * @param ctx
+     *            the context
+     */
+    void offerSpareContext(final RunnerContextImpl ctx) {
+
+        if (this.retired
+                || this.spares.incrementAndGet() > MAX_SPARE_CONTEXTS) {
+            this.spares.decrementAndGet();
+            return;
+        }
+
+        this.spareContexts.offer(ctx);
+    }
+
+    /**
+     * Take a spare context, if there is one. It still holds the state of the
+     * session that used it last.
+     *
+     * @return the context, or null
+     */
+    RunnerContextImpl takeSpareContext() {
+
+        RunnerContextImpl ctx = this.spareContexts.poll();
+
+        if (ctx != null) {
+            this.spares.decrementAndGet();
+        }
+
+        return ctx;
+    }
+
+    /**
+     * @return files this entry depends upon
+     */
+    public List<File> getFiles() {
+
+        return this.files;
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.w20e.socrates.config.ConfigurationResource;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+/**
+ * Loads all questionnaires under the config root into the registry, in
+ * parallel, so the first respondents after a deploy don't pay for parsing.
+ * Every XML file directly under the root that configures a runner is taken
+ * to be a questionnaire, with the file name (minus .xml) as id. Loading a
+ * questionnaire parses its configuration and workflow, and builds a first
+ * context to validate the model. Optionally, the regkey indexes of the
+ * questionnaires' stored sessions are rebuilt on the way.
+ */
+public final class QuestionnairePreloader {
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(QuestionnairePreloader.class.getName());
+
+    /**
+     * Where the questionnaires end up.
+     */
+    private final QuestionnaireRegistry registry;
+
+    /**
+     * Number of questionnaires loaded at the same time.
+     */
+    private final int parallelism;
+
+    /**
+     * Load time per questionnaire, in ms.
+     */
+    private final Map<String, Long> loadTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Failure per questionnaire.
+     */
+    private final Map<String, String> failures = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Rebuild the regkey indexes?
+     */
+    private boolean rebuildIndexes;
+
+    /**
+     * Directories whose regkey index was rebuilt.
+     */
+    private final Set<String> rebuilt = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * Create preloader.
+     *
+     * @param newRegistry
+     *            registry to load into
+     * @param newParallelism
+     *            number of questionnaires loaded at the same time
+     */
+    public QuestionnairePreloader(final QuestionnaireRegistry newRegistry,
+            final int newParallelism) {
+
+        this.registry = newRegistry;
+        this.parallelism = Math.max(1, newParallelism);
+    }
+
+    /**
+     * Rebuild the regkey index of the stored sessions of every questionnaire
+     * loaded. Directories shared by questionnaires are rebuilt once.
+     *
+     * @param rebuild
+     *            whether to rebuild
+     */
+    public void setRebuildIndexes(final boolean rebuild) {
+
+        this.rebuildIndexes = rebuild;
+    }
+
+    /**
+     * Find the questionnaires under the config root.
+     *
+     * @return survey ids, sorted
+     */
+    public List<String> discover() {
+
+        File[] files = new File(this.registry.getRootDir())
+                .listFiles(new FileFilter() {
+                    @Override
+                    public boolean accept(final File f) {
+                        return f.isFile() && f.getName().endsWith(".xml");
+                    }
+                });
+
+        List<String> ids = new ArrayList<String>();
+
+        if (files == null) {
+            LOGGER.warning("Can't list config root "
+                    + this.registry.getRootDir());
+            return ids;
+        }
+
+        Arrays.sort(files);
+
+        for (File file : files) {
+            if (isQuestionnaire(file)) {
+                String name = file.getName();
+                ids.add(name.substring(0, name.length() - 4));
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Does the file configure a questionnaire? Models, workflows and other
+     * XML files don't name a runner.
+     *
+     * @param file
+     *            XML file
+     * @return whether it does
+     */
+    private static boolean isQuestionnaire(final File file) {
+
+        try {
+            Configuration cfg = ConfigurationResource.getInstance()
+                    .getConfiguration(file.toURI().toURL());
+
+            return cfg != null && cfg.getString("runner.url") != null;
+        } catch (Exception e) {
+            LOGGER.fine("Not a questionnaire: " + file);
+            return false;
+        }
+    }
+
+    /**
+     * Load all questionnaires under the config root, and wait for them.
+     * Failures are logged and kept, and don't stop the others.
+     *
+     * @return number of questionnaires loaded
+     */
+    public int preload() {
+
+        List<String> ids = discover();
+
+        if (ids.isEmpty()) {
+            LOGGER.info("No questionnaires to preload in "
+                    + this.registry.getRootDir());
+            return 0;
+        }
+
+        long start = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(this.parallelism);
+
+        try {
+            pool.invoke(new Load(ids, 0, ids.size()));
+        } finally {
+            pool.shutdown();
+        }
+
+        LOGGER.info("Preloaded " + this.loadTimes.size() + " of "
+                + ids.size() + " questionnaires in "
+                + (System.currentTimeMillis() - start) + " ms, "
+                + this.parallelism + " at a time");
+
+        for (Map.Entry<String, Long> time : getLoadTimes().entrySet()) {
+            LOGGER.info("Questionnaire " + time.getKey() + " loaded in "
+                    + time.getValue() + " ms");
+        }
+
+        for (Map.Entry<String, String> failure : getFailures().entrySet()) {
+            LOGGER.severe("Questionnaire " + failure.getKey()
+                    + " failed to load: " + failure.getValue());
+        }
+
+        return this.loadTimes.size();
+    }
+
+    /**
+     * Load a single questionnaire.
+     *
+     * @param id
+     *            survey id
+     */
+    private void load(final String id) {
+
+        long start = System.currentTimeMillis();
+
+        try {
+            QuestionnaireEntry entry = this.registry.getEntry(id);
+
+            if (entry == null) {
+                this.failures.put(id, "not loaded; see log");
+                return;
+            }
+
+            RunnerContextImpl ctx = entry.getRunnerFactory().createContext(
+                    entry.getURI(), null);
+
+            if (ctx == null) {
+                this.failures.put(id, "no context created");
+                return;
+            }
+
+            if (this.rebuildIndexes) {
+                rebuildIndex(SessionManager.getStoredSessionsDir(ctx
+                        .getModel()));
+            }
+
+            this.loadTimes.put(id, System.currentTimeMillis() - start);
+        } catch (Exception e) {
+            this.failures.put(id, String.valueOf(e.getMessage()));
+        }
+    }
+
+    /**
+     * Rebuild the regkey index of a stored sessions directory, unless done
+     * already.
+     *
+     * @param dir
+     *            stored sessions dir
+     */
+    private void rebuildIndex(final File dir) {
+
+        if (!this.rebuilt.add(dir.getAbsolutePath())) {
+            return;
+        }
+
+        RegkeyIndex index = RegkeyIndex.forDirectory(dir);
+
+        if (index != null) {
+            index.rebuild();
+        }
+    }
+
+    /**
+     * Load time per questionnaire loaded.
+     *
+     * @return time in ms, by survey id
+     */
+    public Map<String, Long> getLoadTimes() {
+
+        return Collections.unmodifiableMap(new TreeMap<String, Long>(
+                this.loadTimes));
+    }
+
+    /**
+     * Failure per questionnaire that could not be loaded.
+     *
+     * @return failure, by survey id
+     */
+    public Map<String, String> getFailures() {
+
+        return Collections.unmodifiableMap(new TreeMap<String, String>(
+                this.failures));
+    }
+
+    /**
+     * Load a range of questionnaires, splitting it up until single ones.
+     */
+    private final class Load extends RecursiveAction {
+
+        /**
+         * Version ID.
+         */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * All survey ids.
+         */
+        private final List<String> ids;
+
+        /**
+         * Start of the range.
+         */
+        private final int from;
+
+        /**
+         * End of the range, exclusive.
+         */
+        private final int to;
+
+        /**
+         * Create task.
+         *
+         * @param newIds
+         *            survey ids
+         * @param newFrom
+         *            start of the range
+         * @param newTo
+         *            end of the range, exclusive
+         */
+        Load(final List<String> newIds, final int newFrom, final int newTo) {
+
+            this.ids = newIds;
+            this.from = newFrom;
+            this.to = newTo;
+        }
+
+        @Override
+        protected void compute() {
+
+            if (this.to - this.from == 1) {
+                load(this.ids.get(this.from));
+                return;
+            }
+
+            int mid = (this.from + this.to) >>> 1;
+
+            invokeAll(new Load(this.ids, this.from, mid), new Load(this.ids,
+                    mid, this.to));
+        }
+    }
+}
@@ -0,0 +1,435 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.commons.configuration.Configuration;
+
+import com.w20e.socrates.config.ConfigurationResource;
+import com.w20e.socrates.process.Runner;
+import com.w20e.socrates.process.RunnerFactoryImpl;
+
+/**
+ * Registry of questionnaires. Resolves a survey id to it's config URI,
+ * configuration and runner once, and serves later requests from memory.
+ * Entries are reloaded when the config, model or workflow file changes on
+ * disk: either checked at most once per check interval per questionnaire, or
+ * reported by a {@link QuestionnaireWatcher}. A reload replaces the entry in
+ * one go, and retires the old one. Survey ids without a config file under
+ * the root, and questionnaires that fail to load, are remembered for a while,
+ * so clients asking for them again don't cause a load every time.
+ */
+public final class QuestionnaireRegistry {
+
+    /**
+     * Default interval for modification checks, in milliseconds.
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 2000;
+
+    /**
+     * Time a failed lookup is remembered, in milliseconds.
+     */
+    static final long FAILURE_TTL = 5000;
+
+    /**
+     * Max number of failed lookups remembered.
+     */
+    static final int MAX_FAILURES = 1024;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(QuestionnaireRegistry.class.getName());
+
+    /**
+     * Config root dir.
+     */
+    private final String rootDir;
+
+    /**
+     * Check interval for file modifications.
+     */
+    private volatile long checkInterval;
+
+    /**
+     * Loaded questionnaires.
+     */
+    private final ConcurrentMap<String, QuestionnaireEntry> entries = new ConcurrentHashMap<String, QuestionnaireEntry>();
+
+    /**
+     * Per survey locks, so a questionnaire is only loaded once when many
+     * respondents arrive at the same time. Only questionnaires with a config
+     * file get one.
+     */
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Time of failed lookups, by survey id.
+     */
+    private final ConcurrentMap<String, Long> failures = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Create registry for given root dir.
+     *
+     * @param root
+     *            config root dir
+     * @param interval
+     *            check interval for file modifications in milliseconds. Use
+     *            a negative value to never check.
+     */
+    public QuestionnaireRegistry(final String root, final long interval) {
+
+        this.rootDir = root;
+        this.checkInterval = interval;
+    }
+
+    /**
+     * Get the questionnaire for the given survey id, loading it if
+     * necessary.
+     *
+     * @param surveyId
+     *            survey id
+     * @return the entry, or null if the questionnaire couldn't be loaded.
+     */
+    public QuestionnaireEntry getEntry(final String surveyId) {
+
+        if (surveyId == null) {
+            return null;
+        }
+
+        QuestionnaireEntry entry = this.entries.get(surveyId);
+        long interval = this.checkInterval;
+
+        if (entry != null && (interval < 0 || !entry.isStale(interval))) {
+            return entry;
+        }
+
+        if (entry == null && (isKnownFailure(surveyId) || !exists(surveyId))) {
+            return null;
+        }
+
+        synchronized (getLock(surveyId)) {
+
+            // Someone else may have done the job by now.
+            QuestionnaireEntry current = this.entries.get(surveyId);
+
+            if (current != null && current != entry) {
+                return current;
+            }
+
+            if (entry != null) {
+                LOGGER.info("Questionnaire " + surveyId
+                        + " changed on disk; reloading");
+            }
+
+            QuestionnaireEntry loaded = load(surveyId);
+
+            if (loaded == null) {
+                if (entry == null) {
+                    fail(surveyId);
+                }
+
+                // Better stale than nothing at all.
+                return entry;
+            }
+
+            this.failures.remove(surveyId);
+
+            replace(surveyId, entry, loaded);
+
+            return loaded;
+        }
+    }
+
+    /**
+     * Reload the given questionnaire now, if it is loaded. If loading fails,
+     * the current entry stays.
+     *
+     * @param surveyId
+     *            survey id
+     * @return whether the questionnaire was reloaded
+     */
+    public boolean reload(final String surveyId) {
+
+        synchronized (getLock(surveyId)) {
+
+            QuestionnaireEntry entry = this.entries.get(surveyId);
+
+            if (entry == null) {
+                return false;
+            }
+
+            QuestionnaireEntry loaded = load(surveyId);
+
+            if (loaded == null) {
+                LOGGER.warning("Keeping current version of questionnaire "
+                        + surveyId);
+                return false;
+            }
+
+            replace(surveyId, entry, loaded);
+
+            return true;
+        }
+    }
+
+    /**
+     * Swap in fresh entry. Caller holds the questionnaire's lock.
+     *
+     * @param surveyId
+     *            survey id
+     * @param entry
+     *            current entry, or null
+     * @param loaded
+     *            fresh entry
+     */
+    private void replace(final String surveyId,
+            final QuestionnaireEntry entry, final QuestionnaireEntry loaded) {
+
+        this.entries.put(surveyId, loaded);
+
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    /**
+     * Get the lock for a questionnaire.
+     *
+     * @param surveyId
+     *            survey id
+     * @return the lock
+     */
+    private Object getLock(final String surveyId) {
+
+        Object lock = this.locks.get(surveyId);
+
+        if (lock == null) {
+            this.locks.putIfAbsent(surveyId, new Object());
+            lock = this.locks.get(surveyId);
+        }
+
+        return lock;
+    }
+
+    /**
+     * Is there a config file for the questionnaire? Failure is remembered.
+     *
+     * @param surveyId
+     *            survey id
+     * @return whether there is
+     */
+    private boolean exists(final String surveyId) {
+
+        File file = new File(QuestionnaireURIFactory.getInstance()
+                .determineURI(this.rootDir, surveyId));
+
+        if (file.isFile()) {
+            return true;
+        }
+
+        LOGGER.warning("No questionnaire " + surveyId + " in " + this.rootDir);
+        fail(surveyId);
+
+        return false;
+    }
+
+    /**
+     * Did a lookup of the questionnaire fail recently?
+     *
+     * @param surveyId
+     *            survey id
+     * @return whether it did
+     */
+    boolean isKnownFailure(final String surveyId) {
+
+        Long time = this.failures.get(surveyId);
+
+        if (time == null) {
+            return false;
+        }
+
+        if (System.currentTimeMillis() - time.longValue() < FAILURE_TTL) {
+            return true;
+        }
+
+        this.failures.remove(surveyId, time);
+
+        return false;
+    }
+
+    /**
+     * Remember failed lookup. When too many are remembered, expired ones are
+     * dropped, and all of them if that doesn't help.
+     *
+     * @param surveyId
+     *            survey id
+     */
+    private void fail(final String surveyId) {
+
+        long now = System.currentTimeMillis();
+
+        if (this.failures.size() >= MAX_FAILURES) {
+            for (Iterator<Map.Entry<String, Long>> i = this.failures
+                    .entrySet().iterator(); i.hasNext();) {
+                if (now - i.next().getValue().longValue() >= FAILURE_TTL) {
+                    i.remove();
+                }
+            }
+
+            if (this.failures.size() >= MAX_FAILURES) {
+                this.failures.clear();
+            }
+        }
+
+        this.failures.put(surveyId, Long.valueOf(now));
+    }
+
+    /**
+     * Number of questionnaire locks held.
+     *
+     * @return the count
+     */
+    int getLockCount() {
+
+        return this.locks.size();
+    }
+
+    /**
+     * Loaded questionnaires.
+     *
+     * @return the current entries
+     */
+    public Collection<QuestionnaireEntry> getEntries() {
+
+        return new ArrayList<QuestionnaireEntry>(this.entries.values());
+    }
+
+    /**
+     * Set the check interval for file modifications.
+     *
+     * @param interval
+     *            interval in milliseconds, or a negative value to never
+     *            check
+     */
+    public void setCheckInterval(final long interval) {
+
+        this.checkInterval = interval;
+    }
+
+    /**
+     * Add a loaded questionnaire, replacing the current one.
+     *
+     * @param loaded
+     *            the entry
+     */
+    void add(final QuestionnaireEntry loaded) {
+
+        replace(loaded.getId(), this.entries.get(loaded.getId()), loaded);
+    }
+
+    /**
+     * Drop the given questionnaire, forcing a reload on next use.
+     *
+     * @param surveyId
+     *            survey id
+     */
+    public void invalidate(final String surveyId) {
+
+        QuestionnaireEntry entry = this.entries.remove(surveyId);
+
+        if (entry != null) {
+            entry.retire();
+        }
+    }
+
+    /**
+     * Return the config root dir.
+     *
+     * @return root dir
+     */
+    public String getRootDir() {
+
+        return this.rootDir;
+    }
+
+    /**
+     * Actually load the questionnaire.
+     *
+     * @param surveyId
+     *            survey id
+     * @return fresh entry, or null
+     */
+    private QuestionnaireEntry load(final String surveyId) {
+
+        URI qUri = QuestionnaireURIFactory.getInstance().determineURI(
+                this.rootDir, surveyId);
+
+        try {
+            Configuration cfg = ConfigurationResource.getInstance()
+                    .getConfiguration(qUri.toURL());
+
+            RunnerFactoryImpl factory = new RunnerFactoryImpl(this.rootDir);
+            Runner runner = factory.createRunner(qUri);
+
+            List<File> files = new ArrayList<File>();
+            files.add(new File(qUri));
+            addFile(files, cfg.getString("model.id"));
+            addFile(files, cfg.getString("runner.url"));
+
+            LOGGER.fine("Loaded questionnaire " + surveyId + " from " + qUri);
+
+            return new QuestionnaireEntry(surveyId, qUri, cfg, factory,
+                    runner, files);
+        } catch (Exception e) {
+            LOGGER.warning("Couldn't load questionnaire " + surveyId + ": "
+                    + e);
+            return null;
+        }
+    }
+
+    /**
+     * Add file to list if the location is a local file.
+     *
+     * @param files
+     *            list to add to
+     * @param location
+     *            location as found in the config
+     */
+    private static void addFile(final List<File> files, final String location) {
+
+        if (location == null || !location.startsWith("file:")) {
+            return;
+        }
+
+        try {
+            if (location.startsWith("file://")) {
+                files.add(new File(URI.create(location)));
+            } else {
+                files.add(new File(location.substring(5)));
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.fine("Not checking " + location + " for modifications");
+        }
+    }
+}
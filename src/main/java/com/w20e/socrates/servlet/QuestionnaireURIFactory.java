@@ -12,7 +12,7 @@ import java.util.logging.Logger;
  */
 public final class QuestionnaireURIFactory {
 
-	private static QuestionnaireURIFactory factory;
+	private static final QuestionnaireURIFactory FACTORY = new QuestionnaireURIFactory();
 
 	private static final Logger LOGGER = Logger
 			.getLogger(QuestionnaireURIFactory.class.getName());
@@ -25,17 +25,14 @@ public final class QuestionnaireURIFactory {
 	}
 
 	/**
-	 * Get an instance of the factory.
+	 * Get an instance of the factory. The factory is stateless, so no need
+	 * to synchronize.
 	 * 
 	 * @return
 	 */
-	public static synchronized QuestionnaireURIFactory getInstance() {
+	public static QuestionnaireURIFactory getInstance() {
 
-		if (factory == null) {
-			factory = new QuestionnaireURIFactory();
-		}
-
-		return factory;
+		return FACTORY;
 	}
 
 	/**
@@ -0,0 +1,309 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the files loaded questionnaires were created from, and reloads a
+ * questionnaire in the background when one of its files changes. Changes are
+ * collected until things are quiet for a while, since editors tend to write
+ * a file in several steps. With a watcher running, requests don't need to
+ * check for modifications themselves.
+ */
+public final class QuestionnaireWatcher implements Runnable {
+
+    /**
+     * Default quiet period before reloading, in ms.
+     */
+    public static final long DEFAULT_DELAY = 500;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(QuestionnaireWatcher.class.getName());
+
+    /**
+     * The questionnaires.
+     */
+    private final QuestionnaireRegistry registry;
+
+    /**
+     * Quiet period, in ms.
+     */
+    private final long delay;
+
+    /**
+     * The watch service.
+     */
+    private final WatchService service;
+
+    /**
+     * Watched directories by key.
+     */
+    private final Map<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+
+    /**
+     * Watched directories.
+     */
+    private final Set<Path> watched = new HashSet<Path>();
+
+    /**
+     * Files changed since the last reload.
+     */
+    private final Set<Path> changed = new HashSet<Path>();
+
+    /**
+     * The watcher thread.
+     */
+    private final Thread thread;
+
+    /**
+     * Keep watching?
+     */
+    private volatile boolean running = true;
+
+    /**
+     * Create watcher.
+     *
+     * @param newRegistry
+     *            the questionnaires
+     * @param newDelay
+     *            quiet period before reloading, in ms
+     * @throws IOException
+     *             when the file system can't be watched
+     */
+    private QuestionnaireWatcher(final QuestionnaireRegistry newRegistry,
+            final long newDelay) throws IOException {
+
+        this.registry = newRegistry;
+        this.delay = Math.max(1, newDelay);
+        this.service = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this, "socrates-questionnaire-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    /**
+     * Start watching the registry's questionnaires. Files of questionnaires
+     * loaded later on are picked up as well.
+     *
+     * @param registry
+     *            the questionnaires
+     * @param delay
+     *            quiet period before reloading, in ms
+     * @return the watcher, or null if the file system can't be watched
+     */
+    public static QuestionnaireWatcher start(
+            final QuestionnaireRegistry registry, final long delay) {
+
+        try {
+            QuestionnaireWatcher watcher = new QuestionnaireWatcher(registry,
+                    delay);
+
+            watcher.watch(new File(registry.getRootDir()).toPath());
+            watcher.thread.start();
+
+            LOGGER.info("Watching questionnaires in " + registry.getRootDir());
+
+            return watcher;
+        } catch (IOException e) {
+            LOGGER.warning("Can't watch questionnaires: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Stop watching.
+     */
+    public void stop() {
+
+        this.running = false;
+        this.thread.interrupt();
+
+        try {
+            this.service.close();
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't close watch service: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Collect changes, and reload once it's quiet.
+     */
+    @Override
+    public void run() {
+
+        long lastEvent = 0;
+
+        while (this.running) {
+            try {
+                watchEntries();
+
+                WatchKey key = this.service.poll(Math.min(this.delay, 1000),
+                        TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    collect(key);
+                    lastEvent = System.currentTimeMillis();
+                }
+
+                if (!this.changed.isEmpty()
+                        && System.currentTimeMillis() - lastEvent >= this.delay) {
+                    reload();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                if (this.running) {
+                    LOGGER.log(Level.WARNING, "Questionnaire watcher", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Make sure the directories of all loaded questionnaires are watched.
+     */
+    private void watchEntries() {
+
+        for (QuestionnaireEntry entry : this.registry.getEntries()) {
+            for (File file : entry.getFiles()) {
+                File dir = file.getAbsoluteFile().getParentFile();
+
+                if (dir != null) {
+                    watch(dir.toPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Watch directory, unless watched already.
+     *
+     * @param dir
+     *            the directory
+     */
+    private void watch(final Path dir) {
+
+        Path path = dir.toAbsolutePath().normalize();
+
+        if (!this.watched.add(path)) {
+            return;
+        }
+
+        try {
+            this.keys.put(path.register(this.service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY), path);
+            LOGGER.fine("Watching " + path);
+        } catch (IOException e) {
+            LOGGER.warning("Can't watch " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Take the changed files from a signalled key.
+     *
+     * @param key
+     *            the key
+     */
+    private void collect(final WatchKey key) {
+
+        Path dir = this.keys.get(key);
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Lost track; check everything in the directory.
+                this.changed.add(dir);
+            } else if (dir != null) {
+                this.changed.add(dir.resolve((Path) event.context()));
+            }
+        }
+
+        if (!key.reset()) {
+            this.keys.remove(key);
+            this.watched.remove(dir);
+        }
+    }
+
+    /**
+     * Reload the questionnaires affected by the changes.
+     */
+    private void reload() {
+
+        List<String> ids = affected(this.registry.getEntries(), this.changed);
+
+        this.changed.clear();
+
+        for (String id : ids) {
+            LOGGER.info("Questionnaire " + id + " changed on disk; reloading");
+
+            if (this.registry.reload(id)) {
+                LOGGER.info("Reloaded questionnaire " + id);
+            }
+        }
+    }
+
+    /**
+     * Determine the questionnaires depending on the changed files. A changed
+     * directory affects all questionnaires with files in it.
+     *
+     * @param entries
+     *            loaded questionnaires
+     * @param paths
+     *            changed files or directories
+     * @return survey ids
+     */
+    static List<String> affected(final Collection<QuestionnaireEntry> entries,
+            final Set<Path> paths) {
+
+        Set<Path> normalized = new HashSet<Path>();
+
+        for (Path path : paths) {
+            normalized.add(path.toAbsolutePath().normalize());
+        }
+
+        List<String> ids = new ArrayList<String>();
+
+        for (QuestionnaireEntry entry : entries) {
+            for (File file : entry.getFiles()) {
+                Path path = file.getAbsoluteFile().toPath().normalize();
+
+                if (normalized.contains(path)
+                        || normalized.contains(path.getParent())) {
+                    ids.add(entry.getId());
+                    break;
+                }
+            }
+        }
+
+        return ids;
+    }
+}
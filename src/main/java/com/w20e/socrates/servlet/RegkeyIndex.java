@@ -0,0 +1,559 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * On-disk index from regkey to stored session file, kept in the
+ * stored_sessions directory itself. The index is a memory mapped hash table
+ * with open addressing: every slot holds the hash of the regkey and the file
+ * name. The regkey itself is not stored; since stored session files are
+ * named ..._regkey.xml, a hit is verified against the file name instead.
+ *
+ * The index is only a shortcut: anything not found in it is looked up in
+ * the directory the old way, and added. If the index file is missing it is
+ * rebuilt from the directory when opened; a rebuild of existing indexes is
+ * up to the servlet, at startup.
+ */
+public final class RegkeyIndex {
+
+    /**
+     * Name of the index file.
+     */
+    public static final String INDEX_FILE = ".regkey.idx";
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger.getLogger(RegkeyIndex.class
+            .getName());
+
+    /**
+     * File format marker.
+     */
+    private static final int MAGIC = 0x52474b31;
+
+    /**
+     * Header size: magic, capacity and count, padded.
+     */
+    private static final int HEADER = 16;
+
+    /**
+     * Slot size: hash (8), name length (2) and name.
+     */
+    private static final int SLOT = 128;
+
+    /**
+     * Max length of a file name in bytes.
+     */
+    private static final int MAX_NAME = SLOT - 10;
+
+    /**
+     * Initial number of slots.
+     */
+    private static final int INITIAL_CAPACITY = 1 << 16;
+
+    /**
+     * Max number of slots, keeping offsets within int range.
+     */
+    private static final int MAX_CAPACITY = 1 << 23;
+
+    /**
+     * Name encoding.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Open indexes, by directory.
+     */
+    private static final ConcurrentMap<String, RegkeyIndex> INDEXES = new ConcurrentHashMap<String, RegkeyIndex>();
+
+    /**
+     * Indexed directory.
+     */
+    private final File dir;
+
+    /**
+     * Index file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The mapped hash table.
+     */
+    private MappedByteBuffer buffer;
+
+    /**
+     * Number of slots.
+     */
+    private int capacity;
+
+    /**
+     * Number of used slots.
+     */
+    private int count;
+
+    /**
+     * Lookups may run in parallel; updates and growing may not.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Open index for directory.
+     *
+     * @param newDir
+     *            stored sessions dir
+     * @throws IOException
+     *             when the index can't be opened
+     */
+    private RegkeyIndex(final File newDir) throws IOException {
+
+        this.dir = newDir;
+
+        File idx = new File(newDir, INDEX_FILE);
+        boolean valid = idx.exists() && idx.length() > HEADER;
+
+        this.file = new RandomAccessFile(idx, "rw");
+
+        if (valid) {
+            int cap = this.file.readInt() == MAGIC ? this.file.readInt() : 0;
+            valid = cap > 0 && cap <= MAX_CAPACITY && (cap & (cap - 1)) == 0;
+        }
+
+        map(valid ? 0 : INITIAL_CAPACITY);
+
+        if (!valid) {
+            rebuild();
+        }
+    }
+
+    /**
+     * Get the index for the given directory, opening it if need be.
+     *
+     * @param dir
+     *            stored sessions dir
+     * @return the index, or null if it can't be opened.
+     */
+    public static RegkeyIndex forDirectory(final File dir) {
+
+        String key = dir.getAbsolutePath();
+        RegkeyIndex index = INDEXES.get(key);
+
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (INDEXES) {
+            index = INDEXES.get(key);
+
+            if (index == null && dir.isDirectory()) {
+                try {
+                    index = new RegkeyIndex(dir);
+                    INDEXES.put(key, index);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Couldn't open regkey index in "
+                            + dir, e);
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Does the file name hold the regkey as its key segment, that is, is it
+     * named ..._regkey.xml?
+     *
+     * @param name
+     *            file name
+     * @param regkey
+     *            the regkey
+     * @return whether it does
+     */
+    public static boolean matches(final String name, final String regkey) {
+
+        int end = name.length() - 4;
+        int start = end - regkey.length();
+
+        return start > 0 && name.endsWith(".xml")
+                && name.charAt(start - 1) == '_'
+                && name.regionMatches(start, regkey, 0, regkey.length());
+    }
+
+    /**
+     * Close all open indexes.
+     */
+    public static void closeAll() {
+
+        synchronized (INDEXES) {
+            for (RegkeyIndex index : INDEXES.values()) {
+                index.close();
+            }
+            INDEXES.clear();
+        }
+    }
+
+    /**
+     * Find the stored session file for the regkey.
+     *
+     * @param regkey
+     *            the regkey
+     * @return the file, or null if the index doesn't know the regkey, or the
+     *         file is gone.
+     */
+    public File get(final String regkey) {
+
+        if (regkey == null) {
+            return null;
+        }
+
+        long hash = hash(regkey);
+
+        this.lock.readLock().lock();
+
+        try {
+            for (int i = 0; i < this.capacity; i++) {
+                int slot = slot(hash, i);
+                long h = this.buffer.getLong(slot);
+
+                if (h == 0) {
+                    return null;
+                }
+
+                if (h == hash) {
+                    String name = readName(slot);
+
+                    if (matches(name, regkey)) {
+                        File f = new File(this.dir, name);
+                        return f.exists() ? f : null;
+                    }
+                }
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        return null;
+    }
+
+    /**
+     * Add or replace the file for the given regkey.
+     *
+     * @param regkey
+     *            the regkey
+     * @param name
+     *            file name, relative to the indexed directory
+     */
+    public void put(final String regkey, final String name) {
+
+        byte[] bytes = name.getBytes(UTF8);
+
+        if (regkey == null || bytes.length > MAX_NAME
+                || !matches(name, regkey)) {
+            // Can't store, or we would never find it back.
+            return;
+        }
+
+        this.lock.writeLock().lock();
+
+        try {
+            if ((this.count + 1) * 10 > this.capacity * 7) {
+                grow();
+            }
+
+            insert(hash(regkey), regkey, bytes);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't grow regkey index for " + this.dir,
+                    e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rebuild the index from the files in the directory. File names are
+     * expected to end with _regkey.xml.
+     */
+    public void rebuild() {
+
+        LOGGER.info("Rebuilding regkey index for " + this.dir);
+
+        String[] names = this.dir.list();
+
+        this.lock.writeLock().lock();
+
+        try {
+            clear();
+
+            if (names == null) {
+                return;
+            }
+
+            for (String name : names) {
+                int sep = name.lastIndexOf('_');
+
+                if (!name.endsWith(".xml") || sep == -1) {
+                    continue;
+                }
+
+                String regkey = name.substring(sep + 1, name.length() - 4);
+                byte[] bytes = name.getBytes(UTF8);
+
+                if (regkey.length() == 0 || bytes.length > MAX_NAME) {
+                    continue;
+                }
+
+                if ((this.count + 1) * 10 > this.capacity * 7) {
+                    grow();
+                }
+
+                insert(hash(regkey), regkey, bytes);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't rebuild regkey index for "
+                    + this.dir, e);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        LOGGER.info("Regkey index for " + this.dir + " holds " + this.count
+                + " entries");
+    }
+
+    /**
+     * @return number of entries
+     */
+    public int size() {
+
+        return this.count;
+    }
+
+    /**
+     * Close the index file.
+     */
+    private void close() {
+
+        this.lock.writeLock().lock();
+
+        try {
+            this.buffer.force();
+            this.file.close();
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't close regkey index for " + this.dir);
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Insert into a slot. Caller must hold the write lock.
+     *
+     * @param hash
+     *            hash of the regkey
+     * @param regkey
+     *            the regkey
+     * @param name
+     *            encoded file name
+     */
+    private void insert(final long hash, final String regkey,
+            final byte[] name) {
+
+        for (int i = 0; i < this.capacity; i++) {
+            int slot = slot(hash, i);
+            long h = this.buffer.getLong(slot);
+
+            if (h == 0 || (h == hash && matches(readName(slot), regkey))) {
+                if (h == 0) {
+                    this.count++;
+                    this.buffer.putInt(8, this.count);
+                }
+                this.buffer.putShort(slot + 8, (short) name.length);
+                for (int j = 0; j < name.length; j++) {
+                    this.buffer.put(slot + 10 + j, name[j]);
+                }
+                this.buffer.putLong(slot, hash);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Double the capacity, rehashing all entries. Caller must hold the write
+     * lock.
+     *
+     * @throws IOException
+     *             when the file can't be resized
+     */
+    private void grow() throws IOException {
+
+        if (this.capacity >= MAX_CAPACITY) {
+            throw new IOException("Regkey index is full");
+        }
+
+        List<Long> hashes = new ArrayList<Long>(this.count);
+        List<byte[]> names = new ArrayList<byte[]>(this.count);
+
+        for (int i = 0; i < this.capacity; i++) {
+            int slot = HEADER + i * SLOT;
+            long h = this.buffer.getLong(slot);
+
+            if (h != 0) {
+                hashes.add(h);
+                names.add(readName(slot).getBytes(UTF8));
+            }
+        }
+
+        map(this.capacity * 2);
+        clear();
+
+        for (int i = 0; i < hashes.size(); i++) {
+            insertRaw(hashes.get(i), names.get(i));
+        }
+    }
+
+    /**
+     * Insert in first free slot, without checking for an existing entry.
+     *
+     * @param hash
+     *            regkey hash
+     * @param name
+     *            encoded file name
+     */
+    private void insertRaw(final long hash, final byte[] name) {
+
+        for (int i = 0; i < this.capacity; i++) {
+            int slot = slot(hash, i);
+
+            if (this.buffer.getLong(slot) == 0) {
+                this.buffer.putShort(slot + 8, (short) name.length);
+                for (int j = 0; j < name.length; j++) {
+                    this.buffer.put(slot + 10 + j, name[j]);
+                }
+                this.buffer.putLong(slot, hash);
+                this.count++;
+                this.buffer.putInt(8, this.count);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Map the index file.
+     *
+     * @param newCapacity
+     *            number of slots, or 0 to use the capacity in the file
+     * @throws IOException
+     *             when mapping fails
+     */
+    private void map(final int newCapacity) throws IOException {
+
+        int cap = newCapacity;
+
+        if (cap == 0) {
+            this.file.seek(4);
+            cap = this.file.readInt();
+            this.count = this.file.readInt();
+        }
+
+        long size = HEADER + (long) cap * SLOT;
+
+        this.file.setLength(size);
+        this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                0, size);
+        this.capacity = cap;
+
+        this.buffer.putInt(0, MAGIC);
+        this.buffer.putInt(4, cap);
+    }
+
+    /**
+     * Empty all slots.
+     */
+    private void clear() {
+
+        for (int i = 0; i < this.capacity; i++) {
+            this.buffer.putLong(HEADER + i * SLOT, 0);
+        }
+
+        this.count = 0;
+        this.buffer.putInt(8, 0);
+    }
+
+    /**
+     * Read file name from slot.
+     *
+     * @param slot
+     *            slot offset
+     * @return the name
+     */
+    private String readName(final int slot) {
+
+        int len = this.buffer.getShort(slot + 8);
+        byte[] bytes = new byte[len];
+
+        for (int j = 0; j < len; j++) {
+            bytes[j] = this.buffer.get(slot + 10 + j);
+        }
+
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Offset of the i-th probe for the given hash.
+     *
+     * @param hash
+     *            the hash
+     * @param i
+     *            probe number
+     * @return offset in the buffer
+     */
+    private int slot(final long hash, final int i) {
+
+        int idx = (int) ((hash + i) & (this.capacity - 1));
+
+        return HEADER + idx * SLOT;
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the regkey; never 0, since that marks empty
+     * slots.
+     *
+     * @param regkey
+     *            the regkey
+     * @return the hash
+     */
+    private static long hash(final String regkey) {
+
+        long h = 0xcbf29ce484222325L;
+
+        for (int i = 0; i < regkey.length(); i++) {
+            h ^= regkey.charAt(i);
+            h *= 0x100000001b3L;
+        }
+
+        return h == 0 ? 1 : h;
+    }
+}
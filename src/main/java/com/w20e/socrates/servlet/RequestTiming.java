@@ -0,0 +1,206 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.ObjectName;
+
+/**
+ * Latency histograms per request phase and questionnaire. Servlets record
+ * the time spent in each phase of a request; the histograms are published
+ * through JMX as com.w20e.socrates:type=RequestTiming,servlet=name.
+ * Recording doesn't lock, so it can be done on every request.
+ */
+public final class RequestTiming implements RequestTimingMXBean {
+
+    /**
+     * Max number of questionnaires to keep apart; others are lumped together.
+     */
+    public static final int MAX_QUESTIONNAIRES = 256;
+
+    /**
+     * Id for requests without questionnaire, or beyond the max.
+     */
+    private static final String OTHER = "(other)";
+
+    /**
+     * Phase names.
+     */
+    private final String[] phases;
+
+    /**
+     * Histograms per questionnaire, one per phase. Replaced on reset.
+     */
+    private volatile ConcurrentMap<String, LatencyHistogram[]> histograms = new ConcurrentHashMap<String, LatencyHistogram[]>();
+
+    /**
+     * Name under which we're registered, if we are.
+     */
+    private ObjectName name;
+
+    /**
+     * Create timing for the given phases.
+     *
+     * @param newPhases
+     *            phase names; phases are recorded by index in this list
+     */
+    public RequestTiming(final String... newPhases) {
+
+        this.phases = newPhases.clone();
+    }
+
+    /**
+     * Record time spent in a phase.
+     *
+     * @param questionnaire
+     *            questionnaire id, may be null
+     * @param phase
+     *            index of the phase
+     * @param nanos
+     *            time spent, in ns
+     */
+    public void record(final String questionnaire, final int phase,
+            final long nanos) {
+
+        getHistograms(questionnaire)[phase].record(nanos);
+    }
+
+    /**
+     * Get histograms for questionnaire, creating them if need be.
+     *
+     * @param questionnaire
+     *            questionnaire id
+     * @return the histograms
+     */
+    private LatencyHistogram[] getHistograms(final String questionnaire) {
+
+        ConcurrentMap<String, LatencyHistogram[]> map = this.histograms;
+        String id = questionnaire == null ? OTHER : questionnaire;
+        LatencyHistogram[] result = map.get(id);
+
+        if (result != null) {
+            return result;
+        }
+
+        if (map.size() >= MAX_QUESTIONNAIRES) {
+            id = OTHER;
+        }
+
+        LatencyHistogram[] fresh = new LatencyHistogram[this.phases.length];
+
+        for (int i = 0; i < fresh.length; i++) {
+            fresh[i] = new LatencyHistogram();
+        }
+
+        result = map.putIfAbsent(id, fresh);
+
+        return result == null ? fresh : result;
+    }
+
+    /**
+     * Register with the platform MBean server. Failure is logged, and
+     * otherwise ignored: timing still works, it's just not visible.
+     *
+     * @param servlet
+     *            name of the servlet we time
+     */
+    public synchronized void register(final String servlet) {
+
+        this.name = MBeans.register(this, "RequestTiming", servlet);
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+
+        MBeans.unregister(this.name);
+        this.name = null;
+    }
+
+    @Override
+    public String[] getPhases() {
+
+        return this.phases.clone();
+    }
+
+    @Override
+    public String[] getQuestionnaires() {
+
+        return this.histograms.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public List<PhaseStatistics> getStatistics() {
+
+        List<PhaseStatistics> stats = new ArrayList<PhaseStatistics>();
+
+        for (Map.Entry<String, LatencyHistogram[]> entry : this.histograms
+                .entrySet()) {
+            for (int i = 0; i < this.phases.length; i++) {
+                stats.add(toStatistics(entry.getKey(), i, entry.getValue()[i]));
+            }
+        }
+
+        return stats;
+    }
+
+    @Override
+    public PhaseStatistics getPhaseStatistics(final String questionnaire,
+            final String phase) {
+
+        LatencyHistogram[] histos = this.histograms.get(questionnaire);
+
+        if (histos == null) {
+            return null;
+        }
+
+        for (int i = 0; i < this.phases.length; i++) {
+            if (this.phases[i].equals(phase)) {
+                return toStatistics(questionnaire, i, histos[i]);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public void reset() {
+
+        this.histograms = new ConcurrentHashMap<String, LatencyHistogram[]>();
+    }
+
+    /**
+     * Create statistics from histogram.
+     *
+     * @param questionnaire
+     *            questionnaire id
+     * @param phase
+     *            phase index
+     * @param histo
+     *            the histogram
+     * @return the statistics
+     */
+    private PhaseStatistics toStatistics(final String questionnaire,
+            final int phase, final LatencyHistogram histo) {
+
+        return new PhaseStatistics(questionnaire, this.phases[phase], histo
+                .getCount(), histo.getMeanMicros(), histo
+                .getPercentileMicros(50), histo.getPercentileMicros(99), histo
+                .getMaxMicros());
+    }
+}
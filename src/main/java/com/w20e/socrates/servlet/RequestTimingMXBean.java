@@ -0,0 +1,51 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.List;
+
+/**
+ * Management interface for per phase request timing.
+ */
+public interface RequestTimingMXBean {
+
+    /**
+     * @return names of the phases, in request order
+     */
+    String[] getPhases();
+
+    /**
+     * @return ids of the questionnaires with recorded requests
+     */
+    String[] getQuestionnaires();
+
+    /**
+     * @return statistics per questionnaire and phase
+     */
+    List<PhaseStatistics> getStatistics();
+
+    /**
+     * Statistics for one phase of a questionnaire.
+     *
+     * @param questionnaire
+     *            questionnaire id
+     * @param phase
+     *            phase name
+     * @return the statistics, or null if unknown
+     */
+    PhaseStatistics getPhaseStatistics(String questionnaire, String phase);
+
+    /**
+     * Forget everything recorded so far.
+     */
+    void reset();
+}
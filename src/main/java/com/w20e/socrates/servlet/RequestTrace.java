@@ -0,0 +1,269 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.PrintWriter;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Events of one traced request. Traces are allocated once, with room for a
+ * fixed number of events, and reused; when a request has more events, the
+ * oldest are overwritten. Event arguments are turned into strings when the
+ * request ends, so the trace doesn't hold on to request data.
+ */
+final class RequestTrace {
+
+    /**
+     * Set while a request writes the trace.
+     */
+    final AtomicBoolean busy = new AtomicBoolean();
+
+    /**
+     * Event times, in ns.
+     */
+    private final long[] times;
+
+    /**
+     * Event names.
+     */
+    private final String[] names;
+
+    /**
+     * First event arguments.
+     */
+    private final Object[] args0;
+
+    /**
+     * Second event arguments.
+     */
+    private final Object[] args1;
+
+    /**
+     * Sequence number of the request.
+     */
+    private long sequence;
+
+    /**
+     * Start of the request, in ns.
+     */
+    private long start;
+
+    /**
+     * Start of the request, wall clock.
+     */
+    private long started;
+
+    /**
+     * Duration, in ns.
+     */
+    private long duration;
+
+    /**
+     * Request URI.
+     */
+    private String uri;
+
+    /**
+     * Questionnaire id.
+     */
+    private String questionnaire;
+
+    /**
+     * Number of events recorded, including overwritten ones.
+     */
+    private int count;
+
+    /**
+     * Were events recorded, or just the summary?
+     */
+    private boolean sampled;
+
+    /**
+     * Did the request take longer than the threshold?
+     */
+    private boolean slow;
+
+    /**
+     * Is the trace complete?
+     */
+    private volatile boolean complete;
+
+    /**
+     * Create trace.
+     *
+     * @param capacity
+     *            max number of events kept
+     */
+    RequestTrace(final int capacity) {
+
+        this.times = new long[capacity];
+        this.names = new String[capacity];
+        this.args0 = new Object[capacity];
+        this.args1 = new Object[capacity];
+    }
+
+    /**
+     * Start (re)using the trace for a request. Caller owns busy.
+     *
+     * @param newSequence
+     *            request sequence number
+     * @param newUri
+     *            request URI
+     * @param newStart
+     *            start of the request, in ns
+     * @param record
+     *            record events?
+     */
+    void reset(final long newSequence, final String newUri,
+            final long newStart, final boolean record) {
+
+        this.complete = false;
+        this.sequence = newSequence;
+        this.uri = newUri;
+        this.start = newStart;
+        this.started = System.currentTimeMillis()
+                - (System.nanoTime() - newStart) / 1000000;
+        this.questionnaire = null;
+        this.count = 0;
+        this.sampled = record;
+        this.slow = false;
+    }
+
+    /**
+     * Record event.
+     *
+     * @param name
+     *            event name
+     * @param arg0
+     *            first argument, may be null
+     * @param arg1
+     *            second argument, may be null
+     */
+    void add(final String name, final Object arg0, final Object arg1) {
+
+        int i = this.count++ % this.times.length;
+
+        this.times[i] = System.nanoTime();
+        this.names[i] = name;
+        this.args0[i] = arg0;
+        this.args1[i] = arg1;
+    }
+
+    /**
+     * End the request.
+     *
+     * @param qId
+     *            questionnaire id, may be null
+     * @param nanos
+     *            duration
+     * @param isSlow
+     *            slower than the threshold?
+     */
+    void finish(final String qId, final long nanos, final boolean isSlow) {
+
+        this.questionnaire = qId;
+        this.duration = nanos;
+        this.slow = isSlow;
+
+        int n = Math.min(this.count, this.times.length);
+
+        for (int i = 0; i < n; i++) {
+            this.args0[i] = toString(this.args0[i]);
+            this.args1[i] = toString(this.args1[i]);
+        }
+
+        this.complete = true;
+    }
+
+    /**
+     * Stringify argument, whatever it is.
+     *
+     * @param arg
+     *            the argument
+     * @return the string, or null
+     */
+    private static String toString(final Object arg) {
+
+        if (arg == null || arg instanceof String) {
+            return (String) arg;
+        }
+
+        try {
+            return String.valueOf(arg);
+        } catch (RuntimeException e) {
+            return arg.getClass().getName();
+        }
+    }
+
+    /**
+     * @return request sequence number
+     */
+    long getSequence() {
+
+        return this.sequence;
+    }
+
+    /**
+     * @return whether the trace is complete
+     */
+    boolean isComplete() {
+
+        return this.complete;
+    }
+
+    /**
+     * Write the trace, if complete.
+     *
+     * @param out
+     *            where to write
+     */
+    void dump(final PrintWriter out) {
+
+        if (!this.complete) {
+            return;
+        }
+
+        out.print("#" + this.sequence + " " + new Date(this.started)
+                + " " + this.uri + " q=" + this.questionnaire + " "
+                + (this.duration / 1000) + "us");
+
+        if (this.slow) {
+            out.print(" SLOW");
+        }
+
+        out.println(this.sampled ? "" : " (not sampled)");
+
+        int n = Math.min(this.count, this.times.length);
+        int first = this.count - n;
+
+        if (first > 0) {
+            out.println("  ... " + first + " earlier events dropped");
+        }
+
+        for (int j = first; j < this.count; j++) {
+            int i = j % this.times.length;
+
+            out.print("  +" + (this.times[i] - this.start) / 1000 + "us "
+                    + this.names[i]);
+
+            if (this.args0[i] != null) {
+                out.print(" " + this.args0[i]);
+            }
+            if (this.args1[i] != null) {
+                out.print(" " + this.args1[i]);
+            }
+
+            out.println();
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * Sampled request tracing. One in so many requests records its events in a
+ * trace; so does nothing else. Requests that take longer than the threshold
+ * without being sampled leave a summary. The latest traces are kept in a
+ * ring of preallocated traces, and can be dumped through TraceDumpServlet.
+ *
+ * Code on the request path calls the static event methods with the bare
+ * arguments. For requests that are not traced, that is a thread local
+ * lookup and nothing else: no strings are built.
+ */
+public final class RequestTracer {
+
+    /**
+     * Default: trace one in so many requests.
+     */
+    public static final long DEFAULT_SAMPLE_EVERY = 1000;
+
+    /**
+     * Default slow request threshold, in ms.
+     */
+    public static final long DEFAULT_SLOW_THRESHOLD = 2000;
+
+    /**
+     * Default number of traces kept.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Default max number of events per trace.
+     */
+    public static final int DEFAULT_EVENTS = 128;
+
+    /**
+     * Servlet context attribute holding the tracer.
+     */
+    public static final String ATTRIBUTE = "socrates.tracer";
+
+    /**
+     * Trace of the request the thread is serving, if traced.
+     */
+    private static final ThreadLocal<RequestTrace> CURRENT = new ThreadLocal<RequestTrace>();
+
+    /**
+     * The traces.
+     */
+    private final RequestTrace[] ring;
+
+    /**
+     * Next trace to use.
+     */
+    private final AtomicLong next = new AtomicLong();
+
+    /**
+     * Requests seen.
+     */
+    private final AtomicLong requests = new AtomicLong();
+
+    /**
+     * Trace one in so many requests; 0 for none.
+     */
+    private final long sampleEvery;
+
+    /**
+     * Slow request threshold, in ns; 0 for none.
+     */
+    private final long slowThreshold;
+
+    /**
+     * Create tracer.
+     *
+     * @param newSampleEvery
+     *            trace one in so many requests; 0 for none
+     * @param slowThresholdMs
+     *            summarize requests slower than this, in ms; 0 for none
+     * @param capacity
+     *            number of traces kept
+     * @param events
+     *            max number of events per trace
+     */
+    public RequestTracer(final long newSampleEvery,
+            final long slowThresholdMs, final int capacity, final int events) {
+
+        this.sampleEvery = Math.max(0, newSampleEvery);
+        this.slowThreshold = Math.max(0, slowThresholdMs) * 1000000;
+        this.ring = new RequestTrace[Math.max(1, capacity)];
+
+        for (int i = 0; i < this.ring.length; i++) {
+            this.ring[i] = new RequestTrace(Math.max(1, events));
+        }
+    }
+
+    /**
+     * Get the tracer shared by the servlets in the context, creating it from
+     * the servlet's settings if need be: socrates.trace.sample_every,
+     * .slow_threshold (ms), .capacity and .events.
+     *
+     * @param c
+     *            servlet configuration
+     * @return the tracer
+     */
+    public static RequestTracer getInstance(final ServletConfig c) {
+
+        ServletContext sc = c.getServletContext();
+
+        synchronized (sc) {
+            RequestTracer tracer = (RequestTracer) sc.getAttribute(ATTRIBUTE);
+
+            if (tracer == null) {
+                tracer = new RequestTracer(ServletHelper.getLongParameter(c,
+                        "socrates.trace.sample_every", DEFAULT_SAMPLE_EVERY),
+                        ServletHelper.getLongParameter(c,
+                                "socrates.trace.slow_threshold",
+                                DEFAULT_SLOW_THRESHOLD),
+                        (int) ServletHelper.getLongParameter(c,
+                                "socrates.trace.capacity", DEFAULT_CAPACITY),
+                        (int) ServletHelper.getLongParameter(c,
+                                "socrates.trace.events", DEFAULT_EVENTS));
+                sc.setAttribute(ATTRIBUTE, tracer);
+            }
+
+            return tracer;
+        }
+    }
+
+    /**
+     * Start request. If the request is sampled, its events are recorded
+     * until end is called, which must be done in a finally block.
+     *
+     * @param req
+     *            the request
+     * @param start
+     *            start of the request, in ns
+     */
+    public void begin(final HttpServletRequest req, final long start) {
+
+        long n = this.requests.incrementAndGet();
+        RequestTrace stale = CURRENT.get();
+
+        if (stale != null) {
+            CURRENT.remove();
+            stale.busy.set(false);
+        }
+
+        if (this.sampleEvery > 0 && n % this.sampleEvery == 0) {
+            RequestTrace trace = claim();
+
+            if (trace != null) {
+                trace.reset(n, req.getRequestURI(), start, true);
+                CURRENT.set(trace);
+            }
+        }
+    }
+
+    /**
+     * End request. Keeps the trace if sampled, and a summary if the request
+     * was slow. The questionnaire is taken from the socrates.qid request
+     * attribute, if set.
+     *
+     * @param req
+     *            the request
+     * @param start
+     *            start of the request, as passed to begin
+     */
+    public void end(final HttpServletRequest req, final long start) {
+
+        long nanos = System.nanoTime() - start;
+        boolean slow = this.slowThreshold > 0 && nanos > this.slowThreshold;
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            CURRENT.remove();
+        } else if (slow) {
+            trace = claim();
+
+            if (trace == null) {
+                return;
+            }
+
+            trace.reset(this.requests.get(), req.getRequestURI(), start, false);
+        } else {
+            return;
+        }
+
+        trace.finish((String) req.getAttribute("socrates.qid"), nanos, slow);
+        trace.busy.set(false);
+    }
+
+    /**
+     * Take the next trace in the ring, unless it's still in use.
+     *
+     * @return the trace, or null
+     */
+    private RequestTrace claim() {
+
+        RequestTrace trace = this.ring[(int) (this.next.getAndIncrement() % this.ring.length)];
+
+        return trace.busy.compareAndSet(false, true) ? trace : null;
+    }
+
+    /**
+     * Is the current request traced?
+     *
+     * @return whether it is
+     */
+    public static boolean isTracing() {
+
+        return CURRENT.get() != null;
+    }
+
+    /**
+     * Record event for the current request, if traced.
+     *
+     * @param name
+     *            event name
+     */
+    public static void event(final String name) {
+
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            trace.add(name, null, null);
+        }
+    }
+
+    /**
+     * Record event for the current request, if traced.
+     *
+     * @param name
+     *            event name
+     * @param arg
+     *            argument
+     */
+    public static void event(final String name, final Object arg) {
+
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            trace.add(name, arg, null);
+        }
+    }
+
+    /**
+     * Record event for the current request, if traced.
+     *
+     * @param name
+     *            event name
+     * @param arg0
+     *            first argument
+     * @param arg1
+     *            second argument
+     */
+    public static void event(final String name, final Object arg0,
+            final Object arg1) {
+
+        RequestTrace trace = CURRENT.get();
+
+        if (trace != null) {
+            trace.add(name, arg0, arg1);
+        }
+    }
+
+    /**
+     * Write the kept traces, newest first.
+     *
+     * @param out
+     *            where to write
+     */
+    public void dump(final PrintWriter out) {
+
+        List<RequestTrace> traces = new ArrayList<RequestTrace>();
+
+        for (RequestTrace trace : this.ring) {
+            if (trace.isComplete()) {
+                traces.add(trace);
+            }
+        }
+
+        Collections.sort(traces, new Comparator<RequestTrace>() {
+            @Override
+            public int compare(final RequestTrace t0, final RequestTrace t1) {
+                return t0.getSequence() > t1.getSequence() ? -1 : t0
+                        .getSequence() == t1.getSequence() ? 0 : 1;
+            }
+        });
+
+        out.println(this.requests.get() + " requests; tracing one in "
+                + this.sampleEvery + ", slow threshold "
+                + this.slowThreshold / 1000000 + "ms");
+
+        for (RequestTrace trace : traces) {
+            out.println();
+
+            // Don't dump a trace that is being reused.
+            if (trace.busy.compareAndSet(false, true)) {
+                try {
+                    trace.dump(out);
+                } finally {
+                    trace.busy.set(false);
+                }
+            }
+        }
+    }
+}
@@ -9,10 +9,16 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.NodeImpl;
 import com.w20e.socrates.util.LocaleUtility;
 
 public class ServletHelper {
@@ -33,6 +39,58 @@ public class ServletHelper {
     //
     // }
 
+    /**
+     * Get a servlet setting. Java system properties take precedence over the
+     * servlet's init parameters.
+     *
+     * @param c
+     *            servlet config
+     * @param name
+     *            name of the setting
+     * @param defaultValue
+     *            value to use if the setting is not given at all
+     * @return the value
+     */
+    public static String getParameter(final ServletConfig c,
+            final String name, final String defaultValue) {
+
+        if (System.getProperty(name) != null) {
+            return System.getProperty(name);
+        } else if (c.getInitParameter(name) != null) {
+            return c.getInitParameter(name);
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Get a numeric servlet setting.
+     *
+     * @param c
+     *            servlet config
+     * @param name
+     *            name of the setting
+     * @param defaultValue
+     *            value to use if the setting is not given, or not a number
+     * @return the value
+     */
+    public static long getLongParameter(final ServletConfig c,
+            final String name, final long defaultValue) {
+
+        String val = getParameter(c, name, null);
+
+        if (val == null) {
+            return defaultValue;
+        }
+
+        try {
+            return Long.parseLong(val.trim());
+        } catch (NumberFormatException e) {
+            LOGGER.warning("Setting " + name + " is not a number: " + val);
+            return defaultValue;
+        }
+    }
+
     /**
      * Get user agent from request. This will yield a string of the form
      * agent[/version].
@@ -208,4 +266,102 @@ public class ServletHelper {
 
         return null;
     }
+
+    /**
+     * Get the existing session for a request, through the session manager if
+     * there is one, so sessions from other nodes are found as well.
+     *
+     * @param sc
+     *            servlet context
+     * @param req
+     *            the request
+     * @return the session, or null if there is none
+     */
+    public static HttpSession findSession(final ServletContext sc,
+            final HttpServletRequest req) {
+
+        SessionManager mgr = (SessionManager) sc
+                .getAttribute("socrates.sessionmanager");
+
+        return mgr == null ? req.getSession(false) : mgr.findSession(req);
+    }
+
+    /**
+     * Get the session's context for a request, through the session manager
+     * if there is one, and restore its runner context if need be. Every call
+     * must be followed by releaseContext.
+     *
+     * @param sc
+     *            servlet context
+     * @param session
+     *            the session
+     * @return the context, or null if the session has none
+     * @throws Exception
+     *             when the runner context can't be restored
+     */
+    public static WebsurveyContext acquireContext(final ServletContext sc,
+            final HttpSession session) throws Exception {
+
+        SessionManager mgr = (SessionManager) sc
+                .getAttribute("socrates.sessionmanager");
+
+        WebsurveyContext wwCtx = mgr == null ? (WebsurveyContext) session
+                .getAttribute("runnerCtx") : mgr.acquireContext(session);
+
+        if (wwCtx != null && wwCtx.isInvalid()) {
+            ContextRehydrator rehydrator = (ContextRehydrator) sc
+                    .getAttribute("socrates.rehydrator");
+
+            if (rehydrator == null || !rehydrator.rehydrate(wwCtx)) {
+                throw new Exception("Can't restore context for "
+                        + wwCtx.getModelId());
+            }
+        }
+
+        return wwCtx;
+    }
+
+    /**
+     * Release context acquired by acquireContext.
+     *
+     * @param sc
+     *            servlet context
+     * @param session
+     *            the session
+     */
+    public static void releaseContext(final ServletContext sc,
+            final HttpSession session) {
+
+        SessionManager mgr = (SessionManager) sc
+                .getAttribute("socrates.sessionmanager");
+
+        if (mgr != null) {
+            mgr.releaseContext(session);
+        }
+    }
+
+    /**
+     * Copy an instance's nodes and metadata, so the copy can be used while
+     * the original goes on changing.
+     *
+     * @param inst
+     *            the instance
+     * @return the copy
+     */
+    public static Instance copyInstance(final Instance inst) {
+
+        InstanceImpl copy = new InstanceImpl();
+
+        copy.getMetaData().putAll(inst.getMetaData());
+
+        for (Node node : inst.getAllNodes()) {
+            if (node.getValue() == null) {
+                copy.addNode(new NodeImpl(node.getName()));
+            } else {
+                copy.addNode(new NodeImpl(node.getName(), node.getValue()));
+            }
+        }
+
+        return copy;
+    }
 }
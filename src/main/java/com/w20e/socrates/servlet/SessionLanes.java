@@ -0,0 +1,438 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+import javax.management.ObjectName;
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Lets requests on the same session take turns, since they all work on the
+ * same runner context and instance: a double click and a pending Ajax
+ * validation must not interleave. Every session with requests has a lane of
+ * its own, so respondents never wait for each other. A request waits for its
+ * turn in arrival order, but not longer than the timeout; after that it is
+ * turned away with a 503, so the client may try again. The lanes are shared
+ * by all servlets in the context.
+ */
+public final class SessionLanes implements SessionLanesMXBean {
+
+    /**
+     * Default max time to wait for a turn, in ms.
+     */
+    public static final long DEFAULT_TIMEOUT = 5000;
+
+    /**
+     * Servlet context attribute holding the lanes.
+     */
+    private static final String ATTRIBUTE = "socrates.lanes";
+
+    /**
+     * Seconds a turned away client is asked to wait before trying again.
+     */
+    private static final String RETRY_AFTER = "1";
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger.getLogger(SessionLanes.class
+            .getName());
+
+    /**
+     * Lanes by session id.
+     */
+    private final ConcurrentMap<String, Lane> lanes = new ConcurrentHashMap<String, Lane>();
+
+    /**
+     * Max time to wait for a turn, in ms.
+     */
+    private final long timeout;
+
+    /**
+     * Requests that got their turn.
+     */
+    private final AtomicLong entered = new AtomicLong();
+
+    /**
+     * Requests that had to wait.
+     */
+    private final AtomicLong contended = new AtomicLong();
+
+    /**
+     * Requests turned away.
+     */
+    private final AtomicLong timedOut = new AtomicLong();
+
+    /**
+     * Requests waiting right now.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Waits of contended requests.
+     */
+    private volatile LatencyHistogram waits = new LatencyHistogram();
+
+    /**
+     * Registered MBean name, or null.
+     */
+    private ObjectName name;
+
+    /**
+     * Create lanes.
+     *
+     * @param newTimeout
+     *            max time to wait for a turn, in ms
+     */
+    public SessionLanes(final long newTimeout) {
+
+        this.timeout = Math.max(0, newTimeout);
+    }
+
+    /**
+     * Get the lanes shared by the servlets in the context, creating them
+     * from the servlet's settings if need be: socrates.session.lane_timeout
+     * (ms). New lanes are registered as MBean under the context path.
+     *
+     * @param c
+     *            servlet configuration
+     * @return the lanes
+     */
+    public static SessionLanes getInstance(final ServletConfig c) {
+
+        ServletContext sc = c.getServletContext();
+
+        synchronized (sc) {
+            SessionLanes lanes = (SessionLanes) sc.getAttribute(ATTRIBUTE);
+
+            if (lanes == null) {
+                lanes = new SessionLanes(ServletHelper.getLongParameter(c,
+                        "socrates.session.lane_timeout", DEFAULT_TIMEOUT));
+                String path = sc.getContextPath();
+
+                lanes.name = MBeans.register(lanes, "SessionLanes",
+                        path == null || path.length() == 0 ? "/" : path);
+                sc.setAttribute(ATTRIBUTE, lanes);
+            }
+
+            return lanes;
+        }
+    }
+
+    /**
+     * Drop the lanes shared by the servlets in the context, and unregister
+     * them.
+     *
+     * @param sc
+     *            servlet context
+     */
+    public static void release(final ServletContext sc) {
+
+        synchronized (sc) {
+            SessionLanes lanes = (SessionLanes) sc.getAttribute(ATTRIBUTE);
+
+            if (lanes != null) {
+                sc.removeAttribute(ATTRIBUTE);
+                MBeans.unregister(lanes.name);
+            }
+        }
+    }
+
+    /**
+     * Wait for the session's turn. If this returns true, the request must
+     * call exit on the same thread when done. A thread that has its turn
+     * already gets it again right away.
+     *
+     * @param sessionId
+     *            the session
+     * @return whether the request has its turn; false if it timed out
+     */
+    public boolean enter(final String sessionId) {
+
+        Lane lane = join(sessionId);
+        boolean turn = false;
+
+        // Not tryLock(), that would go before requests already waiting.
+        try {
+            turn = lane.lock.tryLock(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (turn) {
+            this.entered.incrementAndGet();
+            return true;
+        }
+
+        this.contended.incrementAndGet();
+        this.waiting.incrementAndGet();
+
+        long start = System.nanoTime();
+
+        try {
+            turn = lane.lock.tryLock(this.timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            this.waiting.decrementAndGet();
+            this.waits.record(System.nanoTime() - start);
+        }
+
+        if (turn) {
+            this.entered.incrementAndGet();
+            return true;
+        }
+
+        this.timedOut.incrementAndGet();
+        leave(sessionId, lane);
+
+        LOGGER.warning("Request on session " + sessionId
+                + " didn't get its turn in " + this.timeout + " ms");
+
+        return false;
+    }
+
+    /**
+     * Take the session's turn if no one has it or waits for it, without
+     * waiting. If this returns true, exit must be called on the same thread
+     * when done. Not counted as a request.
+     *
+     * @param sessionId
+     *            the session
+     * @return whether the turn was taken
+     */
+    public boolean tryEnter(final String sessionId) {
+
+        Lane lane = join(sessionId);
+        boolean turn = false;
+
+        try {
+            turn = lane.lock.tryLock(0, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (!turn) {
+            leave(sessionId, lane);
+        }
+
+        return turn;
+    }
+
+    /**
+     * Hand the turn to the next request on the session.
+     *
+     * @param sessionId
+     *            the session
+     */
+    public void exit(final String sessionId) {
+
+        Lane lane = this.lanes.get(sessionId);
+
+        if (lane == null || !lane.lock.isHeldByCurrentThread()) {
+            LOGGER.warning("Exit from session " + sessionId
+                    + " without a turn");
+            return;
+        }
+
+        lane.lock.unlock();
+        leave(sessionId, lane);
+    }
+
+    /**
+     * Turn away a request that didn't get its turn. An async request that was
+     * abandoned meanwhile is answered already, and left alone.
+     *
+     * @param res
+     *            the response
+     * @throws IOException
+     *             when the error can't be sent
+     */
+    public static void reject(final HttpServletResponse res)
+            throws IOException {
+
+        AsyncExecutor.respond(new AsyncExecutor.ResponseWrite() {
+            @Override
+            public void write() throws IOException {
+                sendBusy(res);
+            }
+        });
+    }
+
+    /**
+     * Send 503, if still possible.
+     *
+     * @param res
+     *            the response
+     * @throws IOException
+     *             when the error can't be sent
+     */
+    private static void sendBusy(final HttpServletResponse res)
+            throws IOException {
+
+        if (res.isCommitted()) {
+            return;
+        }
+
+        res.setHeader("Retry-After", RETRY_AFTER);
+        res.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Busy with another request for this session");
+    }
+
+    /**
+     * Get the session's lane and count the request as a user, creating the
+     * lane if need be.
+     *
+     * @param sessionId
+     *            the session
+     * @return the lane
+     */
+    private Lane join(final String sessionId) {
+
+        while (true) {
+            Lane lane = this.lanes.get(sessionId);
+
+            if (lane == null) {
+                Lane fresh = new Lane();
+                lane = this.lanes.putIfAbsent(sessionId, fresh);
+                if (lane == null) {
+                    lane = fresh;
+                }
+            }
+
+            synchronized (lane) {
+                if (lane.released) {
+                    continue;
+                }
+
+                lane.users++;
+
+                return lane;
+            }
+        }
+    }
+
+    /**
+     * Uncount a user of the lane, and drop the lane with the last one.
+     *
+     * @param sessionId
+     *            the session
+     * @param lane
+     *            the lane
+     */
+    private void leave(final String sessionId, final Lane lane) {
+
+        synchronized (lane) {
+            if (--lane.users > 0) {
+                return;
+            }
+
+            lane.released = true;
+            this.lanes.remove(sessionId, lane);
+        }
+    }
+
+    @Override
+    public long getTimeout() {
+
+        return this.timeout;
+    }
+
+    @Override
+    public int getActiveLanes() {
+
+        return this.lanes.size();
+    }
+
+    @Override
+    public int getWaiting() {
+
+        return this.waiting.get();
+    }
+
+    @Override
+    public long getEntered() {
+
+        return this.entered.get();
+    }
+
+    @Override
+    public long getContended() {
+
+        return this.contended.get();
+    }
+
+    @Override
+    public long getTimedOut() {
+
+        return this.timedOut.get();
+    }
+
+    @Override
+    public double getWaitMeanMicros() {
+
+        return this.waits.getMeanMicros();
+    }
+
+    @Override
+    public long getWaitP99Micros() {
+
+        return this.waits.getPercentileMicros(99);
+    }
+
+    @Override
+    public long getWaitMaxMicros() {
+
+        return this.waits.getMaxMicros();
+    }
+
+    @Override
+    public void reset() {
+
+        this.entered.set(0);
+        this.contended.set(0);
+        this.timedOut.set(0);
+        this.waits = new LatencyHistogram();
+    }
+
+    /**
+     * Requests on a session. The lock is fair, so requests get their turn
+     * in arrival order.
+     */
+    private static final class Lane {
+
+        /**
+         * Held by the request that has its turn.
+         */
+        private final ReentrantLock lock = new ReentrantLock(true);
+
+        /**
+         * Number of requests running or waiting.
+         */
+        private int users;
+
+        /**
+         * Set when the last request is done; a new request needs a new lane.
+         */
+        private boolean released;
+    }
+}
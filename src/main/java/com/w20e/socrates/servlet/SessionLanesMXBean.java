@@ -0,0 +1,68 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+/**
+ * Management interface for the per session request lanes.
+ */
+public interface SessionLanesMXBean {
+
+    /**
+     * @return max time a request waits for its turn, in ms
+     */
+    long getTimeout();
+
+    /**
+     * @return sessions with a request running or waiting
+     */
+    int getActiveLanes();
+
+    /**
+     * @return requests waiting for their turn right now
+     */
+    int getWaiting();
+
+    /**
+     * @return requests that got their turn
+     */
+    long getEntered();
+
+    /**
+     * @return requests that had to wait for another request on the session
+     */
+    long getContended();
+
+    /**
+     * @return requests turned away because their turn didn't come in time
+     */
+    long getTimedOut();
+
+    /**
+     * @return mean wait of contended requests, in microseconds
+     */
+    double getWaitMeanMicros();
+
+    /**
+     * @return 99th percentile wait of contended requests, in microseconds
+     */
+    long getWaitP99Micros();
+
+    /**
+     * @return longest wait of a contended request, in microseconds
+     */
+    long getWaitMaxMicros();
+
+    /**
+     * Forget the counts and waits recorded so far.
+     */
+    void reset();
+}
@@ -0,0 +1,206 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+/**
+ * Session statistics and operations of a websurvey servlet, published
+ * through JMX as com.w20e.socrates:type=SessionManager,servlet=name.
+ */
+public final class SessionManagement implements SessionManagementMXBean {
+
+    /**
+     * Number of sessions to look at for the size estimate.
+     */
+    private static final int SAMPLE = 32;
+
+    /**
+     * The sessions.
+     */
+    private final SessionManager sessionMgr;
+
+    /**
+     * Restores deserialized sessions.
+     */
+    private final ContextRehydrator rehydrator;
+
+    /**
+     * Submits timed out sessions, or null.
+     */
+    private final SubmissionPipeline pipeline;
+
+    /**
+     * Name under which we're registered, if we are.
+     */
+    private ObjectName name;
+
+    /**
+     * Create management for session manager.
+     *
+     * @param newSessionMgr
+     *            the session manager
+     * @param newRehydrator
+     *            the rehydrator, may be null
+     */
+    public SessionManagement(final SessionManager newSessionMgr,
+            final ContextRehydrator newRehydrator) {
+
+        this(newSessionMgr, newRehydrator, null);
+    }
+
+    /**
+     * Create management for session manager and submission pipeline.
+     *
+     * @param newSessionMgr
+     *            the session manager
+     * @param newRehydrator
+     *            the rehydrator, may be null
+     * @param newPipeline
+     *            the submission pipeline, may be null
+     */
+    public SessionManagement(final SessionManager newSessionMgr,
+            final ContextRehydrator newRehydrator,
+            final SubmissionPipeline newPipeline) {
+
+        this.sessionMgr = newSessionMgr;
+        this.rehydrator = newRehydrator;
+        this.pipeline = newPipeline;
+    }
+
+    /**
+     * Register with the platform MBean server.
+     *
+     * @param servlet
+     *            name of the servlet the sessions belong to
+     */
+    public synchronized void register(final String servlet) {
+
+        this.name = MBeans.register(this, "SessionManager", servlet);
+    }
+
+    /**
+     * Unregister from the platform MBean server, if registered.
+     */
+    public synchronized void unregister() {
+
+        MBeans.unregister(this.name);
+        this.name = null;
+    }
+
+    @Override
+    public int getSessionReferences() {
+
+        return this.sessionMgr.getNrOfSessionRefs();
+    }
+
+    @Override
+    public Map<String, Integer> getSessionsPerQuestionnaire() {
+
+        return this.sessionMgr.getSessionsPerQuestionnaire();
+    }
+
+    @Override
+    public int getStoredContexts() {
+
+        SessionStateStore store = this.sessionMgr.getStore();
+
+        return store == null ? -1 : store.size();
+    }
+
+    @Override
+    public long getSalvageHits() {
+
+        return this.sessionMgr.getSalvageHits();
+    }
+
+    @Override
+    public long getSalvageFallbacks() {
+
+        return this.sessionMgr.getSalvageFallbacks();
+    }
+
+    @Override
+    public long getRehydrations() {
+
+        return this.rehydrator == null ? 0 : this.rehydrator
+                .getRehydrations();
+    }
+
+    @Override
+    public long getRehydrationReuses() {
+
+        return this.rehydrator == null ? 0 : this.rehydrator.getReuses();
+    }
+
+    @Override
+    public long getLongSessionsCreated() {
+
+        return this.sessionMgr.getLongSessionsCreated();
+    }
+
+    @Override
+    public long getEstimatedBytesPerSession() {
+
+        return this.sessionMgr.getEstimatedBytesPerSession(SAMPLE);
+    }
+
+    @Override
+    public int getSubmissionsPending() {
+
+        return this.pipeline == null ? -1 : this.pipeline.getPending();
+    }
+
+    @Override
+    public long getSubmissionsDone() {
+
+        return this.pipeline == null ? 0 : this.pipeline.getSubmitted();
+    }
+
+    @Override
+    public long getSubmissionRetries() {
+
+        return this.pipeline == null ? 0 : this.pipeline.getRetried();
+    }
+
+    @Override
+    public long getSubmissionsFailed() {
+
+        return this.pipeline == null ? 0 : this.pipeline.getFailed();
+    }
+
+    @Override
+    public long getSubmissionsSynchronous() {
+
+        return this.pipeline == null ? 0 : this.pipeline.getRejected();
+    }
+
+    @Override
+    public boolean evictSession(final String id) {
+
+        return this.sessionMgr.evictSession(id);
+    }
+
+    @Override
+    public int evictIdleSessions(final long idleSeconds) {
+
+        return this.sessionMgr.evictIdleSessions(idleSeconds);
+    }
+
+    @Override
+    public int passivateSessions() {
+
+        return this.sessionMgr.passivateSessions();
+    }
+}
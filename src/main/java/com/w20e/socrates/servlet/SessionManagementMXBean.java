@@ -0,0 +1,121 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.Map;
+
+/**
+ * Management interface for the sessions of a websurvey servlet.
+ */
+public interface SessionManagementMXBean {
+
+    /**
+     * @return number of session references held by the session manager
+     */
+    int getSessionReferences();
+
+    /**
+     * @return live sessions per questionnaire id
+     */
+    Map<String, Integer> getSessionsPerQuestionnaire();
+
+    /**
+     * @return number of contexts in the session state store, or -1 without
+     *         a store
+     */
+    int getStoredContexts();
+
+    /**
+     * @return instances salvaged from a live session on resume
+     */
+    long getSalvageHits();
+
+    /**
+     * @return instances looked for on disk on resume, for lack of a live
+     *         session
+     */
+    long getSalvageFallbacks();
+
+    /**
+     * @return runner contexts restored after deserialization
+     */
+    long getRehydrations();
+
+    /**
+     * @return runner contexts restored on a spare context, without building
+     */
+    long getRehydrationReuses();
+
+    /**
+     * @return long session cookies handed out
+     */
+    long getLongSessionsCreated();
+
+    /**
+     * @return average serialized size of the contexts held in sessions, in
+     *         bytes, from a sample
+     */
+    long getEstimatedBytesPerSession();
+
+    /**
+     * @return timed out sessions queued or being submitted in the
+     *         background, -1 without a submission pipeline
+     */
+    int getSubmissionsPending();
+
+    /**
+     * @return timed out sessions submitted
+     */
+    long getSubmissionsDone();
+
+    /**
+     * @return retries of failed submissions
+     */
+    long getSubmissionRetries();
+
+    /**
+     * @return submissions given up on
+     */
+    long getSubmissionsFailed();
+
+    /**
+     * @return submissions done by the caller, because the pipeline was full
+     *         or shut down
+     */
+    long getSubmissionsSynchronous();
+
+    /**
+     * Invalidate a session; its data are stored as with a time out.
+     *
+     * @param id
+     *            session id
+     * @return whether the session was found
+     */
+    boolean evictSession(String id);
+
+    /**
+     * Invalidate all sessions idle for longer than the given time.
+     *
+     * @param idleSeconds
+     *            idle time in seconds
+     * @return number of evicted sessions
+     */
+    int evictIdleSessions(long idleSeconds);
+
+    /**
+     * Move the contexts of all sessions that are not serving a request to
+     * the session state store, if there is one.
+     *
+     * @return number of passivated sessions
+     */
+    int passivateSessions();
+}
@@ -21,9 +21,14 @@ package com.w20e.socrates.servlet;
 
 import java.io.File;
 import java.io.FilenameFilter;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,8 +38,10 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.Model;
 import com.w20e.socrates.model.util.InstanceXMLSerializer;
 import com.w20e.socrates.process.RunnerContext;
+import com.w20e.socrates.process.RunnerContextImpl;
 
 /**
  * Basic implementation of session management using cookies. For the websurvey,
@@ -64,9 +71,95 @@ public class SessionManager {
 	public static final String LONG_SESSION_SEPARATOR = "\\|\\|";
 
 	/**
-	 * Hold references to existing sessions.
+	 * Cookie that identifies the stored context with a shared store, so
+	 * other nodes can take over the session.
 	 */
-	private HashMap<String, HttpSession> sessionRefs = new HashMap<String, HttpSession>();
+	public static final String STORE_COOKIE = "SOCRATES_SESSION";
+
+	/**
+	 * Hold references to existing sessions. This is accessed from request
+	 * threads as well as from the container's session reaper.
+	 */
+	private final SessionRegistry sessionRefs;
+
+	/**
+	 * Where contexts live between requests, or null to keep them in the
+	 * session.
+	 */
+	private final SessionStateStore store;
+
+	/**
+	 * Requests using a session's context, by session id.
+	 */
+	private final ConcurrentMap<String, Lease> leases = new ConcurrentHashMap<String, Lease>();
+
+	/**
+	 * Questionnaire bound to each stored context, by store key. The entry
+	 * isn't part of the stored context, so it is kept here; a context loaded
+	 * by another node of a shared store isn't found, and goes to the
+	 * registry.
+	 */
+	private final ConcurrentMap<String, QuestionnaireEntry> entries = new ConcurrentHashMap<String, QuestionnaireEntry>();
+
+	/**
+	 * Per session turns of the servlets, or null if not known.
+	 */
+	private volatile SessionLanes lanes;
+
+	/**
+	 * Instances salvaged from a live session.
+	 */
+	private final AtomicLong salvageHits = new AtomicLong();
+
+	/**
+	 * Instances looked for on disk, for lack of a live session.
+	 */
+	private final AtomicLong salvageFallbacks = new AtomicLong();
+
+	/**
+	 * Long session cookies handed out.
+	 */
+	private final AtomicLong longSessions = new AtomicLong();
+
+	/**
+	 * Create session manager with default registry settings.
+	 */
+	public SessionManager() {
+
+		this(SessionRegistry.DEFAULT_MAX_SIZE, SessionRegistry.DEFAULT_TTL);
+	}
+
+	/**
+	 * Create session manager.
+	 * 
+	 * @param maxSessions
+	 *            maximum number of session references to hold
+	 * @param ttl
+	 *            time to live in seconds for references to sessions that
+	 *            never time out
+	 */
+	public SessionManager(final int maxSessions, final long ttl) {
+
+		this(maxSessions, ttl, null);
+	}
+
+	/**
+	 * Create session manager that keeps contexts in a store between requests.
+	 * 
+	 * @param maxSessions
+	 *            maximum number of session references to hold
+	 * @param ttl
+	 *            time to live in seconds for references to sessions that
+	 *            never time out
+	 * @param newStore
+	 *            session state store, or null to keep contexts in the session
+	 */
+	public SessionManager(final int maxSessions, final long ttl,
+			final SessionStateStore newStore) {
+
+		this.sessionRefs = new SessionRegistry(maxSessions, ttl);
+		this.store = newStore;
+	}
 
 	/**
 	 * Check for existence of a valid Session.
@@ -101,6 +194,10 @@ public class SessionManager {
 		HttpSession session = req.getSession();
 		session.setAttribute("runnerCtx", null);
 
+		if (this.store != null) {
+			this.store.remove(session.getId());
+		}
+
 		// Add reference of session to self
 		storeSessionReference(session.getId(), session);
 
@@ -131,7 +228,105 @@ public class SessionManager {
 			return createSession(req);
 		}
 
-		return req.getSession(false);
+		return findSession(req);
+	}
+
+	/**
+	 * Get the existing session for this request. With a shared store, a
+	 * request without a session on this node, but with a stored context,
+	 * gets a new session for that context: another node served the previous
+	 * request.
+	 * 
+	 * @param req
+	 *            the request
+	 * @return the session, or null if there is none
+	 */
+	public final HttpSession findSession(final HttpServletRequest req) {
+
+		HttpSession session = req.getSession(false);
+
+		if (session != null || this.store == null || !this.store.isShared()) {
+			return session;
+		}
+
+		Cookie cookie = ServletHelper.getCookie(req, STORE_COOKIE);
+
+		if (cookie == null || this.store.getVersion(cookie.getValue()) < 0) {
+			return null;
+		}
+
+		session = req.getSession();
+		session.setAttribute("socrates.storekey", cookie.getValue());
+		storeSessionReference(session.getId(), session);
+
+		LOGGER.info("Continuing stored session " + cookie.getValue()
+				+ " in session " + session.getId());
+
+		return session;
+	}
+
+	/**
+	 * With a shared store, tell the client which stored context belongs to
+	 * the session, so any node can serve its next request. The cookie holds
+	 * the session id, so it is kept from scripts, and from plain http if the
+	 * request came in over https.
+	 * 
+	 * @param session
+	 *            the session
+	 * @param req
+	 *            the request
+	 * @param res
+	 *            the response
+	 */
+	public final void exposeSession(final HttpSession session,
+			final HttpServletRequest req, final HttpServletResponse res) {
+
+		if (this.store == null || !this.store.isShared()
+				|| session.getAttribute("socrates.storekey") != null) {
+			return;
+		}
+
+		session.setAttribute("socrates.storekey", session.getId());
+
+		Cookie cookie = new Cookie(STORE_COOKIE, session.getId());
+		cookie.setPath("/");
+		cookie.setHttpOnly(true);
+		cookie.setSecure(req.isSecure());
+		res.addCookie(cookie);
+	}
+
+	/**
+	 * Does the stored context still belong to this session? With a shared
+	 * store, it doesn't if another node stored it since.
+	 * 
+	 * @param session
+	 *            the session
+	 * @return whether it does
+	 */
+	public final boolean ownsContext(final HttpSession session) {
+
+		if (this.store == null || !this.store.isShared()) {
+			return true;
+		}
+
+		long version = this.store.getVersion(storeKey(session));
+		Long saved = (Long) session.getAttribute("socrates.storeversion");
+
+		return version < 0 || (saved != null && saved.longValue() == version);
+	}
+
+	/**
+	 * Key of the session's context in the store.
+	 * 
+	 * @param session
+	 *            the session
+	 * @return the key
+	 */
+	private String storeKey(final HttpSession session) {
+
+		String key = (String) session.getAttribute("socrates.storekey");
+
+		return key == null ? session.getId() : key;
 	}
 
 	/**
@@ -148,7 +343,9 @@ public class SessionManager {
 
 		bastogne.setMaxAge(SessionManager.WEEK);
 
-		res.addCookie(bastogne);
+		if (addCookie(res, bastogne)) {
+			this.longSessions.incrementAndGet();
+		}
 	}
 
 	/**
@@ -199,6 +396,227 @@ public class SessionManager {
 		return null;
 	}
 
+	/**
+	 * Get the context for the session, without taking it out of the store.
+	 * A context loaded from the store is invalid, and needs to be rehydrated;
+	 * it is bound to the questionnaire it was stored with, if known.
+	 * 
+	 * @param session
+	 *            the session
+	 * @return the context, or null if there is none
+	 */
+	public final WebsurveyContext getContext(final HttpSession session) {
+
+		WebsurveyContext ctx = (WebsurveyContext) session
+				.getAttribute("runnerCtx");
+
+		if (ctx != null || this.store == null) {
+			return ctx;
+		}
+
+		String key = storeKey(session);
+
+		try {
+			ctx = this.store.load(key);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "Couldn't load context for session "
+					+ key, e);
+			return null;
+		}
+
+		QuestionnaireEntry entry = this.entries.get(key);
+
+		if (ctx != null && entry != null) {
+			ctx.setEntry(entry);
+		}
+
+		return ctx;
+	}
+
+	/**
+	 * Store context, and remember the questionnaire it is bound to.
+	 * 
+	 * @param key
+	 *            store key
+	 * @param ctx
+	 *            the context
+	 * @throws IOException
+	 *             when the context can't be stored
+	 */
+	private void save(final String key, final WebsurveyContext ctx)
+			throws IOException {
+
+		this.store.save(key, ctx);
+
+		QuestionnaireEntry entry = ctx.getEntry();
+
+		if (entry != null) {
+			this.entries.put(key, entry);
+		}
+	}
+
+	/**
+	 * Get the context for a request on the session. With a store, the context
+	 * is loaded into the session, and stays there until the last request
+	 * releases it. Every call must be followed by releaseContext.
+	 * 
+	 * @param session
+	 *            the session
+	 * @return the context, or null if there is none
+	 */
+	public final WebsurveyContext acquireContext(final HttpSession session) {
+
+		if (this.store == null) {
+			return (WebsurveyContext) session.getAttribute("runnerCtx");
+		}
+
+		String id = session.getId();
+
+		while (true) {
+			Lease lease = this.leases.get(id);
+
+			if (lease == null) {
+				Lease fresh = new Lease();
+				lease = this.leases.putIfAbsent(id, fresh);
+				if (lease == null) {
+					lease = fresh;
+				}
+			}
+
+			synchronized (lease) {
+				if (lease.released) {
+					continue;
+				}
+
+				lease.count++;
+
+				WebsurveyContext ctx = getContext(session);
+
+				if (ctx != null) {
+					session.setAttribute("runnerCtx", ctx);
+				}
+
+				return ctx;
+			}
+		}
+	}
+
+	/**
+	 * Release the session's context at the end of a request. When no other
+	 * request uses it, the context moves from the session to the store, and
+	 * its runner context goes back to the questionnaire, for reuse. If it
+	 * can't be stored, it stays in the session. Does nothing without a store.
+	 * 
+	 * @param session
+	 *            the session
+	 */
+	public final void releaseContext(final HttpSession session) {
+
+		if (this.store == null) {
+			return;
+		}
+
+		String id = session.getId();
+		Lease lease = this.leases.get(id);
+
+		if (lease == null) {
+			return;
+		}
+
+		synchronized (lease) {
+			if (--lease.count > 0) {
+				return;
+			}
+
+			lease.released = true;
+			this.leases.remove(id, lease);
+
+			try {
+				WebsurveyContext ctx = (WebsurveyContext) session
+						.getAttribute("runnerCtx");
+
+				if (ctx != null) {
+					String key = storeKey(session);
+
+					save(key, ctx);
+					session.removeAttribute("runnerCtx");
+					spare(ctx);
+
+					if (this.store.isShared()) {
+						session.setAttribute("socrates.storeversion", Long
+								.valueOf(this.store.getVersion(key)));
+					}
+				}
+			} catch (IllegalStateException e) {
+				// Session was invalidated during the request, and its
+				// context removed with it.
+				LOGGER.fine("Session " + id + " invalidated during request");
+			} catch (IOException e) {
+				LOGGER.warning("Keeping context for session " + id
+						+ " in memory: " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Hand the runner context of a stored context to its questionnaire, so
+	 * the next context restored from the store needn't be built.
+	 * 
+	 * @param ctx
+	 *            the stored context
+	 */
+	private void spare(final WebsurveyContext ctx) {
+
+		QuestionnaireEntry entry = ctx.getEntry();
+		RunnerContext runnerCtx;
+
+		synchronized (ctx) {
+			runnerCtx = ctx.isInvalid() ? null : ctx.detach();
+		}
+
+		if (entry != null && runnerCtx instanceof RunnerContextImpl) {
+			entry.offerSpareContext((RunnerContextImpl) runnerCtx);
+		}
+	}
+
+	/**
+	 * Forget the stored context of a session that is gone.
+	 * 
+	 * @param session
+	 *            the session
+	 */
+	public final void removeContext(final HttpSession session) {
+
+		if (this.store != null) {
+			String key = storeKey(session);
+
+			this.store.remove(key);
+			this.entries.remove(key);
+		}
+	}
+
+	/**
+	 * Set the lanes the servlets take turns on, so contexts can be looked at
+	 * while no request is using them.
+	 * 
+	 * @param newLanes
+	 *            the lanes
+	 */
+	public final void setLanes(final SessionLanes newLanes) {
+
+		this.lanes = newLanes;
+	}
+
+	/**
+	 * Get the session state store.
+	 * 
+	 * @return the store, or null if contexts are kept in the session
+	 */
+	public final SessionStateStore getStore() {
+
+		return this.store;
+	}
+
 	/**
 	 * Invalidate user session after submit. This involves setting long session
 	 * to invalid.
@@ -208,6 +626,7 @@ public class SessionManager {
 
 		try {
 			destroySessionReference(req.getSession().getId());
+			removeContext(req.getSession());
 			req.getSession().invalidate();
 		} catch (Exception e) {
 			LOGGER.log(Level.WARNING,
@@ -227,7 +646,33 @@ public class SessionManager {
 				SessionManager.LONG_SESSION_INVALID);
 		bastogne.setMaxAge(0);
 
-		res.addCookie(bastogne);
+		addCookie(res, bastogne);
+	}
+
+	/**
+	 * Add cookie, unless the request is served async and was abandoned
+	 * meanwhile.
+	 * 
+	 * @param res
+	 *            the response
+	 * @param cookie
+	 *            the cookie
+	 * @return whether the cookie was added
+	 */
+	private static boolean addCookie(final HttpServletResponse res,
+			final Cookie cookie) {
+
+		try {
+			return AsyncExecutor.respond(new AsyncExecutor.ResponseWrite() {
+				@Override
+				public void write() {
+					res.addCookie(cookie);
+				}
+			});
+		} catch (IOException e) {
+			// Adding a cookie doesn't write anything yet.
+			return false;
+		}
 	}
 
 	/**
@@ -241,6 +686,19 @@ public class SessionManager {
 		this.sessionRefs.put(id, session);
 	}
 
+	/**
+	 * Make session findable by it's regkey.
+	 * 
+	 * @param id
+	 *            session id
+	 * @param regKey
+	 *            registration key
+	 */
+	public void storeRegkeyReference(String id, String regKey) {
+
+		this.sessionRefs.setRegkey(id, regKey);
+	}
+
 	/**
 	 * Remove ref to session.
 	 * 
@@ -263,41 +721,56 @@ public class SessionManager {
 		WebsurveyContext ctx = null;
 
 		try {
-			ctx = (WebsurveyContext) this.sessionRefs.get(regKey).getAttribute(
-					"runnerCtx");
+			String id = this.sessionRefs.getIdByRegkey(regKey);
+
+			ctx = getContext(this.sessionRefs.get(id));
 			LOGGER.info("Found existing session in session manager.");
 
-			destroySessionReference(regKey);
+			destroySessionReference(id);
 
 		} catch (Exception e) {
 			LOGGER.info("No session left for id: " + regKey);
 		}
 
 		if (ctx != null) {
+			this.salvageHits.incrementAndGet();
 			return ctx.getInstance();
 		}
 
 		LOGGER.fine("Request for restoring instance file");
+		this.salvageFallbacks.incrementAndGet();
 
 		try {
-			String base = runnercontext.getModel().getSubmission().getAction()
-					.getPath()
-					+ "/stored_sessions/";
+			File baseDir = getStoredSessionsDir(runnercontext.getModel());
 
-			if (base.startsWith("/.")) {
-				base = base.substring(1);
-			}
+			// Try the index first; only scan the directory if need be.
+			RegkeyIndex index = RegkeyIndex.forDirectory(baseDir);
+			File tgt = index == null ? null : index.get(regKey);
 
-			File baseDir = new File(base);
+			if (tgt == null) {
+				LOGGER.fine("Regkey " + regKey + " not in index; scanning " + baseDir);
 
-			FilenameFilter filter = new FilenameFilter() {
-				@Override
-				public boolean accept(File dir, String name) {
-					return name.indexOf(regKey) > -1;
+				// Only the file named after the regkey exactly will do.
+				FilenameFilter filter = new FilenameFilter() {
+					@Override
+					public boolean accept(File dir, String name) {
+						return RegkeyIndex.matches(name, regKey);
+					}
+				};
+
+				File[] found = baseDir.listFiles(filter);
+
+				if (found == null || found.length == 0) {
+					LOGGER.warning("No instance file for regkey " + regKey);
+					return null;
 				}
-			};
 
-			File tgt = baseDir.listFiles(filter)[0];
+				tgt = found[0];
+
+				if (index != null) {
+					index.put(regKey, tgt.getName());
+				}
+			}
 
 			if (tgt.exists()) {
 				try {
@@ -337,8 +810,7 @@ public class SessionManager {
 		WebsurveyContext ctx = null;
 
 		try {
-			ctx = (WebsurveyContext) this.sessionRefs.get(id).getAttribute(
-					"runnerCtx");
+			ctx = getContext(this.sessionRefs.get(id));
 			LOGGER.info("Found existing session in session manager.");
 
 			destroySessionReference(id);
@@ -348,10 +820,12 @@ public class SessionManager {
 		}
 
 		if (ctx != null) {
+			this.salvageHits.incrementAndGet();
 			return ctx.getInstance();
 		}
 
 		LOGGER.fine("Request for restoring instance file");
+		this.salvageFallbacks.incrementAndGet();
 
 		if (instancefile != null) {
 
@@ -409,8 +883,298 @@ public class SessionManager {
 		return null;
 	}
 
+	/**
+	 * Determine directory for temporarily stored sessions of the given
+	 * model.
+	 * 
+	 * @param model
+	 *            questionnaire model
+	 * @return the stored_sessions directory
+	 */
+	public static File getStoredSessionsDir(final Model model) {
+
+		String base = model.getSubmission().getAction().getPath()
+				+ "/stored_sessions/";
+
+		if (base.startsWith("/.")) {
+			base = base.substring(1);
+		}
+
+		return new File(base);
+	}
+
 	public int getNrOfSessionRefs() {
 
 		return this.sessionRefs.size();
 	}
+
+	/**
+	 * Mark session as running the given questionnaire, for the statistics.
+	 * 
+	 * @param session
+	 *            the session
+	 * @param qId
+	 *            questionnaire id
+	 */
+	public final void setQuestionnaire(final HttpSession session,
+			final String qId) {
+
+		session.setAttribute("socrates.qid", qId);
+	}
+
+	/**
+	 * Count live sessions per questionnaire.
+	 * 
+	 * @return number of sessions by questionnaire id
+	 */
+	public final Map<String, Integer> getSessionsPerQuestionnaire() {
+
+		Map<String, Integer> counts = new TreeMap<String, Integer>();
+
+		for (HttpSession session : this.sessionRefs.getSessions()) {
+			try {
+				String qId = (String) session.getAttribute("socrates.qid");
+
+				if (qId != null) {
+					Integer count = counts.get(qId);
+					counts.put(qId, count == null ? 1 : count + 1);
+				}
+			} catch (IllegalStateException e) {
+				// Invalidated in the meantime.
+			}
+		}
+
+		return counts;
+	}
+
+	/**
+	 * Estimate the memory used by a session's context, from the serialized
+	 * size of the contexts of a sample of idle sessions. A session is only
+	 * looked at while it has its turn in the lanes, so no request changes
+	 * the context meanwhile; busy sessions are skipped. Heap use is higher,
+	 * but goes up with it.
+	 * 
+	 * @param sample
+	 *            max number of sessions to look at
+	 * @return average size in bytes, or 0 if no idle session holds a context,
+	 *         or the lanes aren't known
+	 */
+	public final long getEstimatedBytesPerSession(final int sample) {
+
+		SessionLanes turns = this.lanes;
+
+		if (turns == null) {
+			return 0;
+		}
+
+		long total = 0;
+		int n = 0;
+
+		for (HttpSession session : this.sessionRefs.getSessions()) {
+			if (n >= sample) {
+				break;
+			}
+
+			String id;
+
+			try {
+				id = session.getId();
+			} catch (IllegalStateException e) {
+				continue;
+			}
+
+			if (!turns.tryEnter(id)) {
+				continue;
+			}
+
+			try {
+				WebsurveyContext ctx = getContext(session);
+
+				if (ctx != null) {
+					total += ctx.toBytes().length;
+					n++;
+				}
+			} catch (Exception e) {
+				// Invalidated; skip it.
+			} finally {
+				turns.exit(id);
+			}
+		}
+
+		return n == 0 ? 0 : total / n;
+	}
+
+	/**
+	 * Invalidate session. As with a time out, the session's data are stored
+	 * by the SessionTimeoutNotifier, also when the context is in the store.
+	 * 
+	 * @param id
+	 *            session id
+	 * @return whether the session was found
+	 */
+	public final boolean evictSession(final String id) {
+
+		HttpSession session = this.sessionRefs.remove(id);
+
+		if (session == null) {
+			return false;
+		}
+
+		try {
+			session.invalidate();
+		} catch (IllegalStateException e) {
+			return false;
+		}
+
+		LOGGER.info("Evicted session " + id);
+
+		return true;
+	}
+
+	/**
+	 * Invalidate sessions that have been idle for a while.
+	 * 
+	 * @param idleSeconds
+	 *            idle time after which sessions go
+	 * @return number of evicted sessions
+	 */
+	public final int evictIdleSessions(final long idleSeconds) {
+
+		long limit = System.currentTimeMillis() - idleSeconds * 1000;
+		int evicted = 0;
+
+		for (HttpSession session : this.sessionRefs.getSessions()) {
+			try {
+				if (session.getLastAccessedTime() < limit
+						&& evictSession(session.getId())) {
+					evicted++;
+				}
+			} catch (IllegalStateException e) {
+				// Gone already.
+			}
+		}
+
+		return evicted;
+	}
+
+	/**
+	 * Move the context of every session that is not serving a request to the
+	 * store. Only possible with a store.
+	 * 
+	 * @return number of passivated sessions
+	 */
+	public final int passivateSessions() {
+
+		if (this.store == null) {
+			return 0;
+		}
+
+		int passivated = 0;
+
+		for (HttpSession session : this.sessionRefs.getSessions()) {
+			if (passivate(session)) {
+				passivated++;
+			}
+		}
+
+		LOGGER.info("Passivated " + passivated + " sessions");
+
+		return passivated;
+	}
+
+	/**
+	 * Move the session's context to the store, unless a request is using it.
+	 * 
+	 * @param session
+	 *            the session
+	 * @return whether the context was moved
+	 */
+	private boolean passivate(final HttpSession session) {
+
+		Lease lease = new Lease();
+		lease.count = 1;
+
+		// Any request that comes in now waits for us, and then loads the
+		// context from the store.
+		if (this.leases.putIfAbsent(session.getId(), lease) != null) {
+			return false;
+		}
+
+		synchronized (lease) {
+			// A request got in first; it will release the context itself.
+			if (--lease.count > 0) {
+				return false;
+			}
+
+			try {
+				WebsurveyContext ctx = (WebsurveyContext) session
+						.getAttribute("runnerCtx");
+
+				if (ctx == null) {
+					return false;
+				}
+
+				String key = storeKey(session);
+
+				save(key, ctx);
+				session.removeAttribute("runnerCtx");
+
+				if (this.store.isShared()) {
+					session.setAttribute("socrates.storeversion", Long
+							.valueOf(this.store.getVersion(key)));
+				}
+
+				return true;
+			} catch (IllegalStateException e) {
+				return false;
+			} catch (IOException e) {
+				LOGGER.warning("Couldn't passivate session " + session.getId()
+						+ ": " + e.getMessage());
+				return false;
+			} finally {
+				lease.released = true;
+				this.leases.remove(session.getId(), lease);
+			}
+		}
+	}
+
+	/**
+	 * @return number of instances salvaged from a live session
+	 */
+	public final long getSalvageHits() {
+
+		return this.salvageHits.get();
+	}
+
+	/**
+	 * @return number of instances looked for on disk
+	 */
+	public final long getSalvageFallbacks() {
+
+		return this.salvageFallbacks.get();
+	}
+
+	/**
+	 * @return number of long session cookies handed out
+	 */
+	public final long getLongSessionsCreated() {
+
+		return this.longSessions.get();
+	}
+
+	/**
+	 * Requests using a context.
+	 */
+	private static final class Lease {
+
+		/**
+		 * Number of requests.
+		 */
+		private int count;
+
+		/**
+		 * Set when the last request is done; a new request needs a new lease.
+		 */
+		private boolean released;
+	}
 }
@@ -0,0 +1,514 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Thread safe registry of live sessions, indexed by session id and by
+ * registration key. The registry is only a shortcut to instances still in
+ * memory: an entry that is missing, because it expired or because the
+ * registry was full, just means the instance is read from disk.
+ *
+ * Entries expire when their session is no longer valid, when it's inactive
+ * for longer than the session's max inactive interval, or, for sessions that
+ * never time out, after the registry's time to live. Expired entries are
+ * purged every so many registrations, on a background thread that stops
+ * when idle. When the registry is full, the oldest registration makes way
+ * for the new one.
+ *
+ * An entry and its regkey are updated together under the entry's lock, so a
+ * regkey never outlives its session's entry.
+ */
+public final class SessionRegistry {
+
+    /**
+     * Default maximum number of sessions.
+     */
+    public static final int DEFAULT_MAX_SIZE = 100000;
+
+    /**
+     * Default time to live in seconds, for sessions that don't time out.
+     */
+    public static final long DEFAULT_TTL = 86400;
+
+    /**
+     * Purge expired entries every this many registrations.
+     */
+    private static final int PURGE_INTERVAL = 1024;
+
+    /**
+     * Number of lock stripes for the maps.
+     */
+    private static final int CONCURRENCY = 64;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(SessionRegistry.class.getName());
+
+    /**
+     * Sessions by id.
+     */
+    private final ConcurrentMap<String, Entry> sessions;
+
+    /**
+     * Session id by regkey.
+     */
+    private final ConcurrentMap<String, String> regkeys;
+
+    /**
+     * Entries in order of registration; may hold entries removed since.
+     */
+    private final ConcurrentLinkedQueue<Entry> order = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * Registrations since last purge.
+     */
+    private final AtomicInteger registrations = new AtomicInteger();
+
+    /**
+     * Set while a purge is queued or running.
+     */
+    private final AtomicBoolean purging = new AtomicBoolean();
+
+    /**
+     * Runs the purges; its thread stops when idle.
+     */
+    private final ThreadPoolExecutor purger;
+
+    /**
+     * Max number of sessions.
+     */
+    private final int maxSize;
+
+    /**
+     * Time to live in milliseconds.
+     */
+    private final long ttl;
+
+    /**
+     * Create registry with default size and time to live.
+     */
+    public SessionRegistry() {
+
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL);
+    }
+
+    /**
+     * Create registry.
+     *
+     * @param newMaxSize
+     *            max number of sessions
+     * @param newTtl
+     *            time to live in seconds, for sessions that never time out
+     */
+    public SessionRegistry(final int newMaxSize, final long newTtl) {
+
+        this.maxSize = newMaxSize;
+        this.ttl = newTtl * 1000;
+        this.sessions = new ConcurrentHashMap<String, Entry>(1024, 0.75f,
+                CONCURRENCY);
+        this.regkeys = new ConcurrentHashMap<String, String>(1024, 0.75f,
+                CONCURRENCY);
+        this.purger = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "socrates-session-purge");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        this.purger.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Register session. If the registry is full, the oldest registration is
+     * dropped. A session registered again keeps its regkey.
+     *
+     * @param id
+     *            session id
+     * @param session
+     *            the session
+     */
+    public void put(final String id, final HttpSession session) {
+
+        if (this.registrations.incrementAndGet() >= PURGE_INTERVAL) {
+            this.registrations.set(0);
+            schedulePurge();
+        }
+
+        while (this.sessions.size() >= this.maxSize && evictOldest()) {
+            // Make room.
+        }
+
+        Entry entry = new Entry(id, session);
+        Entry old = this.sessions.put(id, entry);
+
+        this.order.add(entry);
+
+        if (old != null) {
+            String regkey;
+
+            synchronized (old) {
+                regkey = old.regkey;
+                old.removed = true;
+            }
+
+            // The regkey maps to the id, so it stays; the new entry owns it.
+            if (regkey != null) {
+                synchronized (entry) {
+                    if (!entry.removed && entry.regkey == null) {
+                        entry.regkey = regkey;
+                    } else if (!regkey.equals(entry.regkey)) {
+                        this.regkeys.remove(regkey, id);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Have expired entries purged in the background, unless that's queued
+     * already.
+     */
+    private void schedulePurge() {
+
+        if (!this.purging.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            this.purger.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        purge();
+                    } finally {
+                        SessionRegistry.this.purging.set(false);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.purging.set(false);
+        }
+    }
+
+    /**
+     * Associate regkey with a registered session, replacing the one it had.
+     *
+     * @param id
+     *            session id
+     * @param regkey
+     *            the regkey
+     */
+    public void setRegkey(final String id, final String regkey) {
+
+        Entry entry = this.sessions.get(id);
+
+        if (entry == null || regkey == null) {
+            return;
+        }
+
+        synchronized (entry) {
+            if (entry.removed) {
+                return;
+            }
+
+            if (entry.regkey != null && !entry.regkey.equals(regkey)) {
+                this.regkeys.remove(entry.regkey, id);
+            }
+
+            entry.regkey = regkey;
+            this.regkeys.put(regkey, id);
+        }
+    }
+
+    /**
+     * Get session by id.
+     *
+     * @param id
+     *            session id
+     * @return the session, or null if unknown or expired
+     */
+    public HttpSession get(final String id) {
+
+        if (id == null) {
+            return null;
+        }
+
+        Entry entry = this.sessions.get(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        if (isExpired(entry, System.currentTimeMillis())) {
+            drop(entry);
+            return null;
+        }
+
+        return entry.session;
+    }
+
+    /**
+     * Get session by regkey. For sessions that have the session id as key,
+     * this is the same as get.
+     *
+     * @param regkey
+     *            the regkey
+     * @return the session, or null if unknown or expired
+     */
+    public HttpSession getByRegkey(final String regkey) {
+
+        if (regkey == null) {
+            return null;
+        }
+
+        String id = this.regkeys.get(regkey);
+
+        return get(id == null ? regkey : id);
+    }
+
+    /**
+     * Find session id for regkey.
+     *
+     * @param regkey
+     *            the regkey
+     * @return the session id, or null
+     */
+    public String getIdByRegkey(final String regkey) {
+
+        String id = this.regkeys.get(regkey);
+
+        if (id == null && regkey != null && this.sessions.containsKey(regkey)) {
+            return regkey;
+        }
+
+        return id;
+    }
+
+    /**
+     * Remove session.
+     *
+     * @param id
+     *            session id
+     * @return the removed session, or null
+     */
+    public HttpSession remove(final String id) {
+
+        if (id == null) {
+            return null;
+        }
+
+        Entry entry = this.sessions.remove(id);
+
+        if (entry == null) {
+            return null;
+        }
+
+        unlink(entry);
+
+        return entry.session;
+    }
+
+    /**
+     * Remove entry, if it is still the session's entry.
+     *
+     * @param entry
+     *            the entry
+     * @return whether it was removed
+     */
+    private boolean drop(final Entry entry) {
+
+        if (!this.sessions.remove(entry.id, entry)) {
+            return false;
+        }
+
+        unlink(entry);
+
+        return true;
+    }
+
+    /**
+     * Mark entry removed, and remove its regkey.
+     *
+     * @param entry
+     *            entry removed from the sessions
+     */
+    private void unlink(final Entry entry) {
+
+        synchronized (entry) {
+            entry.removed = true;
+
+            if (entry.regkey != null) {
+                this.regkeys.remove(entry.regkey, entry.id);
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest registration still present.
+     *
+     * @return whether one was removed
+     */
+    private boolean evictOldest() {
+
+        Entry entry;
+
+        while ((entry = this.order.poll()) != null) {
+            if (drop(entry)) {
+                LOGGER.fine("Session registry full; dropped " + entry.id);
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Snapshot of the registered sessions, expired ones included.
+     *
+     * @return the sessions
+     */
+    public List<HttpSession> getSessions() {
+
+        List<HttpSession> result = new ArrayList<HttpSession>(this.sessions
+                .size());
+
+        for (Entry entry : this.sessions.values()) {
+            result.add(entry.session);
+        }
+
+        return result;
+    }
+
+    /**
+     * @return number of registered sessions
+     */
+    public int size() {
+
+        return this.sessions.size();
+    }
+
+    /**
+     * Remove all expired entries.
+     *
+     * @return number of entries removed
+     */
+    public int purge() {
+
+        long now = System.currentTimeMillis();
+        int removed = 0;
+
+        for (Iterator<Entry> i = this.order.iterator(); i.hasNext();) {
+
+            Entry entry = i.next();
+
+            if (entry.removed) {
+                i.remove();
+            } else if (isExpired(entry, now) && drop(entry)) {
+                i.remove();
+                removed++;
+            }
+        }
+
+        if (removed > 0) {
+            LOGGER.fine("Purged " + removed + " expired session references");
+        }
+
+        return removed;
+    }
+
+    /**
+     * Check whether the entry is expired.
+     *
+     * @param entry
+     *            registry entry
+     * @param now
+     *            current time
+     * @return expired or not
+     */
+    private boolean isExpired(final Entry entry, final long now) {
+
+        try {
+            long lastAccessed = entry.session.getLastAccessedTime();
+            int maxInactive = entry.session.getMaxInactiveInterval();
+
+            if (maxInactive > 0) {
+                return now - lastAccessed > maxInactive * 1000L;
+            }
+
+            return now - lastAccessed > this.ttl;
+        } catch (IllegalStateException e) {
+            // Session was invalidated.
+            return true;
+        }
+    }
+
+    /**
+     * Registry entry.
+     */
+    private static final class Entry {
+
+        /**
+         * Session id.
+         */
+        private final String id;
+
+        /**
+         * The session.
+         */
+        private final HttpSession session;
+
+        /**
+         * Regkey, if any. Guarded by the entry.
+         */
+        private String regkey;
+
+        /**
+         * Set once the entry is removed from the registry.
+         */
+        private volatile boolean removed;
+
+        /**
+         * Create entry.
+         *
+         * @param newId
+         *            session id
+         * @param newSession
+         *            the session
+         */
+        Entry(final String newId, final HttpSession newSession) {
+
+            this.id = newId;
+            this.session = newSession;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+
+/**
+ * Storage for respondent state outside of the HTTP session. When a store is
+ * configured, the session manager only keeps the context in the session
+ * while a request is being served; in between requests it lives in the
+ * store, in serialized form.
+ */
+public interface SessionStateStore {
+
+    /**
+     * Load context for session.
+     *
+     * @param id
+     *            session id
+     * @return the context, still to be rehydrated, or null if not stored
+     * @throws IOException
+     *             when the context can't be read
+     */
+    WebsurveyContext load(String id) throws IOException;
+
+    /**
+     * Store context for session, replacing what was stored before.
+     *
+     * @param id
+     *            session id
+     * @param ctx
+     *            the context
+     * @throws IOException
+     *             when the context can't be stored
+     */
+    void save(String id, WebsurveyContext ctx) throws IOException;
+
+    /**
+     * Forget context for session.
+     *
+     * @param id
+     *            session id
+     */
+    void remove(String id);
+
+    /**
+     * Version of the stored context. Every save gives a higher version, so
+     * this tells whether someone else stored the context in the meantime.
+     *
+     * @param id
+     *            session id
+     * @return the version, or -1 if not stored
+     */
+    long getVersion(String id);
+
+    /**
+     * Is the store shared with other nodes? If so, requests for a session
+     * may be served by any node.
+     *
+     * @return whether it is
+     */
+    boolean isShared();
+
+    /**
+     * @return number of stored contexts
+     */
+    int size();
+
+    /**
+     * Release all resources.
+     */
+    void close();
+}
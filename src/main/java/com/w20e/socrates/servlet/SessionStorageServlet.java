@@ -20,8 +20,10 @@ package com.w20e.socrates.servlet;
 
 import java.io.IOException;
 import java.net.URI;
+import java.util.Map;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -29,6 +31,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
+import com.w20e.socrates.data.Instance;
 import com.w20e.socrates.model.Model;
 import com.w20e.socrates.model.Submission;
 import com.w20e.socrates.model.SubmissionImpl;
@@ -51,6 +54,26 @@ public class SessionStorageServlet extends HttpServlet {
     private static final Logger LOGGER = Logger
             .getLogger(SessionStorageServlet.class.getName());
 
+    /**
+     * Write behind store, or null if writes are synchronous.
+     */
+    private CoalescingStore store;
+
+    /**
+     * Workers for async requests, or null to store on the container thread.
+     */
+    private AsyncExecutor executor;
+
+    /**
+     * Max time to wait for pending requests on shutdown, in ms.
+     */
+    private long drainTimeout;
+
+    /**
+     * Lets requests on the same session take turns.
+     */
+    private SessionLanes lanes;
+
     /**
      * The init method creates an instance of the Socrates class, and allocates
      * initial resources. This includes compiling of XSL style sheets and
@@ -66,10 +89,40 @@ public class SessionStorageServlet extends HttpServlet {
         super.init(c);
 
         LOGGER.info("Initializing the session storage servlet");
+
+        long window = ServletHelper.getLongParameter(c,
+                "socrates.storage.coalesce_window", 0);
+
+        if (window > 0) {
+            LOGGER.info("Coalescing session writes within " + window + " ms");
+            this.store = new CoalescingStore(window);
+        }
+
+        this.executor = AsyncExecutor.create(c);
+        this.drainTimeout = ServletHelper.getLongParameter(c,
+                "socrates.submission.drain_timeout", 30000);
+        this.lanes = SessionLanes.getInstance(c);
+    }
+
+    /**
+     * Flush pending writes.
+     */
+    public final void destroy() {
+
+        if (this.executor != null) {
+            this.executor.shutdown(this.drainTimeout);
+        }
+
+        if (this.store != null) {
+            this.store.shutdown();
+        }
+
+        super.destroy();
     }
 
     /**
-     * Do the thing...
+     * Do the thing... In async mode, the instance is stored by a worker.
+     *
      * @param req
      *            The request
      * @param res
@@ -92,8 +145,11 @@ public class SessionStorageServlet extends HttpServlet {
         res.addHeader("Cache-Control", "no-cache");
         res.addHeader("Pragma", "No-Cache");
 
+        final HttpSession session = ServletHelper.findSession(
+                getServletContext(), req);
+
         // We might as well return...
-        if (req.getSession(false) == null) {
+        if (session == null) {
 
             // return error xml.
             res.getOutputStream()
@@ -102,31 +158,125 @@ public class SessionStorageServlet extends HttpServlet {
             return;
         }
 
-        HttpSession session = req.getSession();
+        if (this.executor != null && this.executor.accepts(req)) {
+            this.executor.dispatch(req, res, new AsyncExecutor.Task() {
+                @Override
+                public boolean run(final AsyncContext async)
+                        throws IOException {
+                    save(session, res);
+                    return false;
+                }
+            });
+            return;
+        }
+
+        save(session, res);
+    }
+
+    /**
+     * Store the session's instance, or have it stored by the write behind
+     * store. Waits for the session's other requests; if that takes too long,
+     * the client gets a 503.
+     *
+     * @param session
+     *            the session
+     * @param res
+     *            the response
+     * @throws IOException
+     *             when the 503 can't be sent
+     */
+    private void save(final HttpSession session,
+            final HttpServletResponse res) throws IOException {
+
+        if (!this.lanes.enter(session.getId())) {
+            SessionLanes.reject(res);
+            return;
+        }
 
         try {
-            WebsurveyContext wwCtx = (WebsurveyContext) session
-                    .getAttribute("runnerCtx");
+            WebsurveyContext wwCtx = ServletHelper.acquireContext(
+                    getServletContext(), session);
 
             RunnerContextImpl ctx = (RunnerContextImpl) wwCtx
                     .getRunnerContext();
 
-			Model model = ctx.getModel();
-			Submission submission = new SubmissionImpl();
-			
-			submission.setAction(new URI(model.getSubmission().getAction() + "/stored_sessions/"));
-			
-			// Copy metadata from model into instance
-			ctx.getInstance().getMetaData().putAll(model.getMetaData());
-			ctx.getInstance().getMetaData().put("storage-type", "stored");
-			
-			HandlerManager.getInstance().submit(
-					ctx.getInstance(),
-					model,
-					submission);
-		} catch (Exception e) {
-			LOGGER.severe("Couldn't submit instance for temporary storage");
-		}
+            Instance inst = ctx.getInstance();
+            final Model model = ctx.getModel();
+
+            prepare(inst, model);
+
+            if (this.store == null) {
+                store(inst, model);
+            } else {
+                // Write a copy, the session may change before the write.
+                final Instance copy = ServletHelper.copyInstance(inst);
+
+                this.store.store(session.getId(), new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            store(copy, model);
+                        } catch (Exception e) {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                });
+            }
+        } catch (Exception e) {
+            LOGGER.severe("Couldn't submit instance for temporary storage");
+        } finally {
+            ServletHelper.releaseContext(getServletContext(), session);
+            this.lanes.exit(session.getId());
+        }
+    }
+
+    /**
+     * Copy metadata from model into instance, and mark it as stored.
+     *
+     * @param inst
+     *            instance to store
+     * @param model
+     *            the instance's model
+     */
+    private void prepare(final Instance inst, final Model model) {
+
+        inst.getMetaData().putAll(model.getMetaData());
+        inst.getMetaData().put("storage-type", "stored");
+    }
+
+    /**
+     * Write instance to the stored sessions, and keep the regkey index up to
+     * date.
+     *
+     * @param inst
+     *            instance to store
+     * @param model
+     *            the instance's model
+     * @throws Exception
+     *             when submission fails
+     */
+    private void store(final Instance inst, final Model model)
+            throws Exception {
+
+        Submission submission = new SubmissionImpl();
+
+        submission.setAction(new URI(model.getSubmission().getAction()
+                + "/stored_sessions/"));
+
+        HandlerManager.getInstance().submit(inst, model, submission);
+
+        // Keep regkey index up to date, for quick resume.
+        Map<String, Object> meta = inst.getMetaData();
+
+        if (meta.get("key") != null && meta.get("filename") != null) {
+            RegkeyIndex index = RegkeyIndex.forDirectory(SessionManager
+                    .getStoredSessionsDir(model));
+
+            if (index != null) {
+                index.put(meta.get("key").toString(), meta.get("filename")
+                        + ".xml");
+            }
+        }
     }
 
             
@@ -22,11 +22,13 @@ import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.ServletContext;
 import javax.servlet.http.HttpSessionEvent;
 import javax.servlet.http.HttpSessionListener;
 
 import com.w20e.socrates.data.Instance;
 import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.Model;
 import com.w20e.socrates.submission.HandlerManager;
 
 /**
@@ -73,12 +75,14 @@ public final class SessionTimeoutNotifier implements HttpSessionListener {
         // Whatever happens, we need to destroy the session managers reference...
         // Otherwise, we create a nasty garbage collection problem.
         //
+        SessionManager mgr = null;
+
         try {
-            SessionManager mgr = (SessionManager) event.getSession()
+            mgr = (SessionManager) event.getSession()
                     .getServletContext()
                     .getAttribute("socrates.sessionmanager");
             if (mgr != null) {
-                LOGGER.info("Session manager holds " + mgr.getNrOfSessionRefs() + " sessions");
+                LOGGER.fine("Session manager holds " + mgr.getNrOfSessionRefs() + " sessions");
                 
                 mgr.destroySessionReference(event.getSession().getId());
             } else {
@@ -91,13 +95,48 @@ public final class SessionTimeoutNotifier implements HttpSessionListener {
         }
 
         WebsurveyContext ctx = null;
+        boolean owned = false;
 
         try {
-            ctx = (WebsurveyContext) event.getSession().getAttribute(
-                    "runnerCtx");
+            if (mgr == null) {
+                ctx = (WebsurveyContext) event.getSession().getAttribute(
+                        "runnerCtx");
+            } else if (mgr.ownsContext(event.getSession())) {
+                ctx = mgr.getContext(event.getSession());
+                owned = true;
+            } else {
+                LOGGER.info("Session continued on another node; leaving it");
+                return;
+            }
         } catch (Exception e) {
         }
 
+        try {
+            store(event, ctx);
+        } finally {
+            // Only now that the data are handed off, the stored copy may go.
+            if (owned) {
+                try {
+                    mgr.removeContext(event.getSession());
+                } catch (Exception e) {
+                    LOGGER.warning("Couldn't remove stored context: "
+                            + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the data of the session's context, unless stored already.
+     * 
+     * @param event
+     *            The binding event
+     * @param ctx
+     *            the session's context, or null
+     */
+    private void store(final HttpSessionEvent event,
+            final WebsurveyContext ctx) {
+
         // If the context is null, we can really return, otherwise clean up mess.
         if (ctx == null) {
             LOGGER.severe("No runner context could be retrieved");
@@ -123,6 +162,8 @@ public final class SessionTimeoutNotifier implements HttpSessionListener {
 
         inst.getMetaData().put("storage-type", "timeout");
 
+        ServletContext sc = event.getSession().getServletContext();
+
         try {
             // Do we need to submit any data at all?
             if (ctx.getSubmission() != null
@@ -131,8 +172,29 @@ public final class SessionTimeoutNotifier implements HttpSessionListener {
 
                 if (hasData(inst)) {
 
-                    HandlerManager.getInstance().submit(inst,
-                            ctx.getRunnerContext().getModel(),
+                    SubmissionPipeline pipeline = (SubmissionPipeline) sc
+                            .getAttribute("socrates.submissionpipeline");
+                    SubmissionPipeline.ModelSource models = getModels(ctx,
+                            sc);
+
+                    // Don't hold up the container's expiry thread, not even
+                    // to load the model; if there's no pipeline (anymore),
+                    // submit right away.
+                    if (pipeline != null) {
+                        pipeline.submitFrom(inst, models, ctx.getSubmission());
+                        return;
+                    }
+
+                    Model model = models.getModel();
+
+                    if (model == null) {
+                        LOGGER.severe("No model for " + ctx.getModelId()
+                                + "; couldn't store timed out session "
+                                + event.getSession().getId());
+                        return;
+                    }
+
+                    HandlerManager.getInstance().submit(inst, model,
                             ctx.getSubmission());
                 }
             }
@@ -143,6 +205,39 @@ public final class SessionTimeoutNotifier implements HttpSessionListener {
         }
     }
 
+    /**
+     * Get the source of the context's model. A context that was loaded from
+     * the session store has no runner context; its model is found through
+     * the rehydrator, which may need to load it.
+     * 
+     * @param ctx
+     *            the context
+     * @param sc
+     *            servlet context
+     * @return the model's source
+     */
+    private SubmissionPipeline.ModelSource getModels(
+            final WebsurveyContext ctx, final ServletContext sc) {
+
+        final ContextRehydrator rehydrator = (ContextRehydrator) sc
+                .getAttribute("socrates.rehydrator");
+
+        return new SubmissionPipeline.ModelSource() {
+            @Override
+            public Model getModel() throws Exception {
+
+                if (rehydrator != null) {
+                    return rehydrator.getModel(ctx);
+                }
+
+                synchronized (ctx) {
+                    return ctx.isInvalid() ? null : ctx.getRunnerContext()
+                            .getModel();
+                }
+            }
+        };
+    }
+
     /**
      * Do we have any data at all?
      * 
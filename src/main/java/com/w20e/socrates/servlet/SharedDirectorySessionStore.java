@@ -0,0 +1,772 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Session state store on a directory shared by all nodes, so any node can
+ * serve any respondent. Every node appends to segment files of its own,
+ * named after the node; nobody ever writes to another node's files. Each
+ * node keeps a lookup index of where the latest version of every context
+ * is, and brings it up to date by reading what was appended to all segments
+ * since it last looked. Versions go up by one on every save, so the latest
+ * write wins, whichever node made it.
+ *
+ * Looking means listing the directory and reading every segment, so it is
+ * done at most once per refresh interval, and whenever a session isn't in
+ * the index at all. A node may therefore miss another node's latest write
+ * to a session it knows for up to the interval; sessions are expected to
+ * stick to a node, and only move when it goes away.
+ *
+ * When a node's segment grows beyond the segment size, it starts a new one,
+ * copies the records that are still current out of its older segments and
+ * deletes those. The same happens at startup. Removed contexts leave a
+ * tombstone, which is kept for the retention time so other nodes see the
+ * removal. Segments of a node that never comes back stay around until a
+ * node with the same name is started.
+ */
+public final class SharedDirectorySessionStore implements SessionStateStore {
+
+    /**
+     * Default segment size: 64MB.
+     */
+    public static final long DEFAULT_SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * Default tombstone retention: a day.
+     */
+    public static final long DEFAULT_RETENTION = 24L * 3600 * 1000;
+
+    /**
+     * Default refresh interval: a second.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL = 1000;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(SharedDirectorySessionStore.class.getName());
+
+    /**
+     * Start of every record.
+     */
+    private static final int MAGIC = 0x534f4352;
+
+    /**
+     * Segment file extension.
+     */
+    private static final String EXT = ".seg";
+
+    /**
+     * The shared directory.
+     */
+    private final File dir;
+
+    /**
+     * Name of this node.
+     */
+    private final String node;
+
+    /**
+     * Size after which a new segment is started.
+     */
+    private final long segmentSize;
+
+    /**
+     * How long tombstones are kept, in ms.
+     */
+    private final long retention;
+
+    /**
+     * Min time between refreshes of known sessions, in ms.
+     */
+    private final long refreshInterval;
+
+    /**
+     * Time of the last refresh.
+     */
+    private long lastRefresh;
+
+    /**
+     * Segments of all nodes, by file name.
+     */
+    private final Map<String, Segment> segments = new HashMap<String, Segment>();
+
+    /**
+     * Latest record per session id.
+     */
+    private final Map<String, Entry> index = new HashMap<String, Entry>();
+
+    /**
+     * Segment this node appends to.
+     */
+    private Segment current;
+
+    /**
+     * Sequence number of the current segment.
+     */
+    private long sequence;
+
+    /**
+     * Open the store with the default refresh interval.
+     *
+     * @param newDir
+     *            shared directory; created if need be
+     * @param nodeName
+     *            name of this node, unique among the nodes sharing the
+     *            directory
+     * @param newSegmentSize
+     *            size after which a new segment is started
+     * @param newRetention
+     *            how long tombstones are kept, in ms
+     * @throws IOException
+     *             when the directory can't be used
+     */
+    public SharedDirectorySessionStore(final File newDir,
+            final String nodeName, final long newSegmentSize,
+            final long newRetention) throws IOException {
+
+        this(newDir, nodeName, newSegmentSize, newRetention,
+                DEFAULT_REFRESH_INTERVAL);
+    }
+
+    /**
+     * Open the store. Reads all segments, and moves the records in this
+     * node's segments of a previous run to a fresh one.
+     *
+     * @param newDir
+     *            shared directory; created if need be
+     * @param nodeName
+     *            name of this node, unique among the nodes sharing the
+     *            directory
+     * @param newSegmentSize
+     *            size after which a new segment is started
+     * @param newRetention
+     *            how long tombstones are kept, in ms
+     * @param newRefreshInterval
+     *            min time between refreshes of known sessions, in ms
+     * @throws IOException
+     *             when the directory can't be used
+     */
+    public SharedDirectorySessionStore(final File newDir,
+            final String nodeName, final long newSegmentSize,
+            final long newRetention, final long newRefreshInterval)
+            throws IOException {
+
+        if (!newDir.isDirectory() && !newDir.mkdirs()) {
+            throw new IOException("Can't create session store directory "
+                    + newDir);
+        }
+
+        this.dir = newDir;
+        this.node = nodeName.replaceAll("[^A-Za-z0-9_.]", "_");
+        this.segmentSize = Math.max(1024, newSegmentSize);
+        this.retention = newRetention;
+        this.refreshInterval = newRefreshInterval;
+
+        synchronized (this) {
+            refresh();
+
+            for (Segment segment : this.segments.values()) {
+                if (this.node.equals(segment.node)) {
+                    this.sequence = Math.max(this.sequence, segment.sequence);
+                }
+            }
+
+            rollover();
+        }
+    }
+
+    @Override
+    public WebsurveyContext load(final String id) throws IOException {
+
+        byte[] bytes;
+
+        synchronized (this) {
+            Entry entry = lookup(id);
+
+            if (entry == null || entry.length < 0) {
+                return null;
+            }
+
+            try {
+                bytes = entry.segment.read(entry.offset, entry.length);
+            } catch (IOException e) {
+                // Moved by its owner in the meantime.
+                refresh();
+                entry = this.index.get(id);
+
+                if (entry == null || entry.length < 0) {
+                    return null;
+                }
+
+                bytes = entry.segment.read(entry.offset, entry.length);
+            }
+        }
+
+        return WebsurveyContext.fromBytes(bytes);
+    }
+
+    @Override
+    public void save(final String id, final WebsurveyContext ctx)
+            throws IOException {
+
+        byte[] bytes = ctx.toBytes();
+
+        synchronized (this) {
+            Entry entry = lookup(id);
+
+            append(id, entry == null ? 1 : entry.version + 1, System
+                    .currentTimeMillis(), bytes);
+
+            if (this.current.size >= this.segmentSize) {
+                rollover();
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(final String id) {
+
+        try {
+            Entry entry = lookup(id);
+
+            if (entry == null || entry.length < 0) {
+                return;
+            }
+
+            append(id, entry.version + 1, System.currentTimeMillis(), null);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Couldn't remove context for " + id, e);
+        }
+    }
+
+    @Override
+    public synchronized long getVersion(final String id) {
+
+        Entry entry;
+
+        try {
+            entry = lookup(id);
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't read session store: " + e.getMessage());
+            entry = this.index.get(id);
+        }
+
+        return entry == null || entry.length < 0 ? -1 : entry.version;
+    }
+
+    @Override
+    public boolean isShared() {
+
+        return true;
+    }
+
+    @Override
+    public synchronized int size() {
+
+        try {
+            if (isRefreshDue()) {
+                refresh();
+            }
+        } catch (IOException e) {
+            LOGGER.warning("Couldn't read session store: " + e.getMessage());
+        }
+
+        int size = 0;
+
+        for (Entry entry : this.index.values()) {
+            if (entry.length >= 0) {
+                size++;
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * Name of this node.
+     *
+     * @return the node name
+     */
+    public String getNode() {
+
+        return this.node;
+    }
+
+    @Override
+    public synchronized void close() {
+
+        for (Segment segment : this.segments.values()) {
+            segment.close();
+        }
+
+        this.segments.clear();
+        this.index.clear();
+        this.current = null;
+    }
+
+    /**
+     * Append record to the current segment.
+     *
+     * @param id
+     *            session id
+     * @param version
+     *            record version
+     * @param stamp
+     *            time of the original write
+     * @param bytes
+     *            serialized context, or null for a tombstone
+     * @throws IOException
+     *             when writing fails
+     */
+    private void append(final String id, final long version,
+            final long stamp, final byte[] bytes) throws IOException {
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(
+                bytes == null ? 64 : bytes.length + 64);
+        DataOutputStream out = new DataOutputStream(buf);
+
+        out.writeInt(MAGIC);
+        out.writeUTF(id);
+        out.writeLong(version);
+        out.writeLong(stamp);
+        out.writeInt(bytes == null ? -1 : bytes.length);
+
+        int header = buf.size();
+
+        if (bytes != null) {
+            out.write(bytes);
+        }
+
+        out.flush();
+
+        // One write, so readers see either nothing or a full header.
+        Segment segment = this.current;
+        long offset = segment.size;
+
+        segment.file.seek(offset);
+        segment.file.write(buf.toByteArray());
+        segment.size += buf.size();
+        segment.position = segment.size;
+
+        this.index.put(id, new Entry(segment, offset + header,
+                bytes == null ? -1 : bytes.length, version, stamp));
+    }
+
+    /**
+     * Start a new segment, and move the current records of this node's
+     * older segments into it.
+     *
+     * @throws IOException
+     *             when the segment can't be created
+     */
+    private void rollover() throws IOException {
+
+        this.sequence++;
+
+        String name = this.node + "-" + String.format("%010d", this.sequence)
+                + EXT;
+        Segment fresh = new Segment(new File(this.dir, name), this.node,
+                this.sequence);
+
+        this.segments.put(name, fresh);
+        this.current = fresh;
+
+        List<Segment> old = new ArrayList<Segment>();
+
+        for (Segment segment : this.segments.values()) {
+            if (segment != fresh && this.node.equals(segment.node)) {
+                old.add(segment);
+            }
+        }
+
+        if (old.isEmpty()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int moved = 0;
+
+        for (Iterator<Map.Entry<String, Entry>> i = this.index.entrySet()
+                .iterator(); i.hasNext();) {
+            Map.Entry<String, Entry> e = i.next();
+            Entry entry = e.getValue();
+
+            if (!old.contains(entry.segment)) {
+                continue;
+            }
+
+            if (entry.length < 0) {
+                if (now - entry.stamp > this.retention) {
+                    i.remove();
+                    continue;
+                }
+
+                append(e.getKey(), entry.version, entry.stamp, null);
+            } else {
+                append(e.getKey(), entry.version, entry.stamp, entry.segment
+                        .read(entry.offset, entry.length));
+            }
+
+            moved++;
+        }
+
+        for (Segment segment : old) {
+            this.segments.remove(segment.name);
+            segment.close();
+
+            if (!segment.path.delete()) {
+                LOGGER.warning("Couldn't delete session store segment "
+                        + segment.path);
+            }
+        }
+
+        LOGGER.info("Session store segment " + name + " started; moved "
+                + moved + " records out of " + old.size() + " old segments");
+    }
+
+    /**
+     * Find the latest record for a session. The index is brought up to date
+     * first if the refresh interval has passed, or if the session isn't in
+     * it.
+     *
+     * @param id
+     *            session id
+     * @return the record, or null if there is none
+     * @throws IOException
+     *             when the directory can't be read
+     */
+    private Entry lookup(final String id) throws IOException {
+
+        Entry entry = this.index.get(id);
+
+        if (entry == null || isRefreshDue()) {
+            refresh();
+            entry = this.index.get(id);
+        }
+
+        return entry;
+    }
+
+    /**
+     * Has the refresh interval passed since the last refresh?
+     *
+     * @return whether it has
+     */
+    private boolean isRefreshDue() {
+
+        return System.currentTimeMillis() - this.lastRefresh
+                >= this.refreshInterval;
+    }
+
+    /**
+     * Bring the index up to date with what all nodes appended.
+     *
+     * @throws IOException
+     *             when the directory can't be read
+     */
+    private void refresh() throws IOException {
+
+        this.lastRefresh = System.currentTimeMillis();
+
+        File[] files = this.dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(final File d, final String name) {
+                return name.endsWith(EXT) && name.lastIndexOf('-') > 0;
+            }
+        });
+
+        if (files == null) {
+            throw new IOException("Can't list session store directory "
+                    + this.dir);
+        }
+
+        Map<String, File> present = new HashMap<String, File>();
+
+        for (File file : files) {
+            present.put(file.getName(), file);
+        }
+
+        // Segments deleted by their owner.
+        boolean deleted = false;
+
+        for (Iterator<Segment> i = this.segments.values().iterator(); i
+                .hasNext();) {
+            Segment segment = i.next();
+
+            if (!present.containsKey(segment.name)) {
+                segment.close();
+                i.remove();
+                deleted = true;
+            }
+        }
+
+        for (File file : present.values()) {
+            Segment segment = this.segments.get(file.getName());
+
+            if (segment == null) {
+                String name = file.getName();
+                String owner = name.substring(0, name.lastIndexOf('-'));
+                long seq;
+
+                try {
+                    seq = Long.parseLong(name.substring(
+                            name.lastIndexOf('-') + 1, name.length()
+                                    - EXT.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+
+                segment = new Segment(file, owner, seq);
+                this.segments.put(name, segment);
+            }
+
+            if (segment != this.current) {
+                tail(segment);
+            }
+        }
+
+        // The owner copied what was current before deleting; the rest is
+        // gone for good.
+        if (deleted) {
+            for (Iterator<Entry> i = this.index.values().iterator(); i
+                    .hasNext();) {
+                if (!this.segments.containsKey(i.next().segment.name)) {
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Read records appended to segment since last time.
+     *
+     * @param segment
+     *            the segment
+     * @throws IOException
+     *             when reading fails
+     */
+    private void tail(final Segment segment) throws IOException {
+
+        long length = segment.file.length();
+
+        while (segment.position < length) {
+            long start = segment.position;
+
+            try {
+                segment.file.seek(start);
+
+                if (segment.file.readInt() != MAGIC) {
+                    LOGGER.severe("Corrupt session store segment "
+                            + segment.path + " at " + start + "; skipping rest");
+                    segment.position = Long.MAX_VALUE;
+                    return;
+                }
+
+                String id = segment.file.readUTF();
+                long version = segment.file.readLong();
+                long stamp = segment.file.readLong();
+                int len = segment.file.readInt();
+                long data = segment.file.getFilePointer();
+
+                if (data + Math.max(0, len) > length) {
+                    // Still being written.
+                    return;
+                }
+
+                segment.position = data + Math.max(0, len);
+
+                Entry known = this.index.get(id);
+
+                // Equal versions are the same record, moved by its owner.
+                if (known == null || version >= known.version) {
+                    this.index.put(id, new Entry(segment, data, len,
+                            version, stamp));
+                }
+            } catch (EOFException e) {
+                // Header still being written.
+                segment.position = start;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Segment file.
+     */
+    private static final class Segment {
+
+        /**
+         * File name.
+         */
+        private final String name;
+
+        /**
+         * The file.
+         */
+        private final File path;
+
+        /**
+         * Node that writes the file.
+         */
+        private final String node;
+
+        /**
+         * Sequence number among the node's segments.
+         */
+        private final long sequence;
+
+        /**
+         * Open file.
+         */
+        private final RandomAccessFile file;
+
+        /**
+         * Read up to here.
+         */
+        private long position;
+
+        /**
+         * Written up to here, for our own segment.
+         */
+        private long size;
+
+        /**
+         * Open segment.
+         *
+         * @param newPath
+         *            the file
+         * @param newNode
+         *            owning node
+         * @param newSequence
+         *            sequence number
+         * @throws IOException
+         *             when the file can't be opened
+         */
+        Segment(final File newPath, final String newNode,
+                final long newSequence) throws IOException {
+
+            this.path = newPath;
+            this.name = newPath.getName();
+            this.node = newNode;
+            this.sequence = newSequence;
+            this.file = new RandomAccessFile(newPath, "rw");
+            this.size = this.file.length();
+        }
+
+        /**
+         * Read record data.
+         *
+         * @param offset
+         *            where the data starts
+         * @param length
+         *            data length
+         * @return the data
+         * @throws IOException
+         *             when reading fails
+         */
+        byte[] read(final long offset, final int length) throws IOException {
+
+            byte[] bytes = new byte[length];
+
+            this.file.seek(offset);
+            this.file.readFully(bytes);
+
+            return bytes;
+        }
+
+        /**
+         * Close the file.
+         */
+        void close() {
+
+            try {
+                this.file.close();
+            } catch (IOException e) {
+                LOGGER.fine("Couldn't close " + this.path + ": "
+                        + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Where the latest record for a session is.
+     */
+    private static final class Entry {
+
+        /**
+         * Segment holding the record.
+         */
+        private final Segment segment;
+
+        /**
+         * Start of the data.
+         */
+        private final long offset;
+
+        /**
+         * Data length, or -1 for a tombstone.
+         */
+        private final int length;
+
+        /**
+         * Record version.
+         */
+        private final long version;
+
+        /**
+         * Time of the write.
+         */
+        private final long stamp;
+
+        /**
+         * Create entry.
+         *
+         * @param newSegment
+         *            segment
+         * @param newOffset
+         *            data offset
+         * @param newLength
+         *            data length
+         * @param newVersion
+         *            version
+         * @param newStamp
+         *            write time
+         */
+        Entry(final Segment newSegment, final long newOffset,
+                final int newLength, final long newVersion,
+                final long newStamp) {
+
+            this.segment = newSegment;
+            this.offset = newOffset;
+            this.length = newLength;
+            this.version = newVersion;
+            this.stamp = newStamp;
+        }
+    }
+}
@@ -0,0 +1,642 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.Submission;
+import com.w20e.socrates.submission.HandlerManager;
+
+/**
+ * Background submission of instances, so callers like the session timeout
+ * notifier don't have to wait for the submission target. Submissions are
+ * queued in a bounded queue and handled one by one by a pool of workers.
+ * Failed submissions are retried with exponential backoff. If the queue is
+ * full, or the pipeline is shutting down, the caller does the submission
+ * itself, so nothing is ever dropped; this is counted as backpressure.
+ *
+ * The model may be looked up by the worker, for callers that can't afford
+ * to load it themselves.
+ */
+public final class SubmissionPipeline {
+
+    /**
+     * Default queue size.
+     */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    /**
+     * Default number of workers.
+     */
+    public static final int DEFAULT_WORKERS = 2;
+
+    /**
+     * Default number of attempts per submission.
+     */
+    public static final int DEFAULT_ATTEMPTS = 5;
+
+    /**
+     * Default first retry delay in milliseconds; doubles with every attempt.
+     */
+    private static final long BACKOFF = 1000;
+
+    /**
+     * Time to wait for the workers to stop, in milliseconds.
+     */
+    private static final long STOP_TIMEOUT = 5000;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(SubmissionPipeline.class.getName());
+
+    /**
+     * Where submissions end up.
+     */
+    public interface Target {
+
+        /**
+         * Submit instance.
+         *
+         * @param inst
+         *            instance to submit
+         * @param model
+         *            the model
+         * @param submission
+         *            submission info
+         * @throws Exception
+         *             when submission fails
+         */
+        void submit(Instance inst, Model model, Submission submission)
+                throws Exception;
+    }
+
+    /**
+     * Where the model of a submission comes from, if it isn't known yet.
+     */
+    public interface ModelSource {
+
+        /**
+         * Get the model.
+         *
+         * @return the model, or null if there is none
+         * @throws Exception
+         *             when the model can't be loaded
+         */
+        Model getModel() throws Exception;
+    }
+
+    /**
+     * Submits through the submission handlers.
+     */
+    private static final Target HANDLERS = new Target() {
+        @Override
+        public void submit(final Instance inst, final Model model,
+                final Submission submission) throws Exception {
+
+            HandlerManager.getInstance().submit(inst, model, submission);
+        }
+    };
+
+    /**
+     * Pending submissions.
+     */
+    private final BlockingQueue<Job> queue;
+
+    /**
+     * Submissions waiting for retry.
+     */
+    private final DelayQueue<Job> retries = new DelayQueue<Job>();
+
+    /**
+     * The workers.
+     */
+    private final ExecutorService workers;
+
+    /**
+     * Where submissions end up.
+     */
+    private final Target target;
+
+    /**
+     * Max attempts per submission.
+     */
+    private final int attempts;
+
+    /**
+     * First retry delay in milliseconds.
+     */
+    private final long backoff;
+
+    /**
+     * Still accepting work? Guarded by the lock.
+     */
+    private boolean running = true;
+
+    /**
+     * Submitters share, shutdown takes it exclusively, so nothing is queued
+     * once shutdown has started.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Number of submissions accepted.
+     */
+    private final AtomicLong queued = new AtomicLong();
+
+    /**
+     * Number of successful submissions.
+     */
+    private final AtomicLong submitted = new AtomicLong();
+
+    /**
+     * Number of retries.
+     */
+    private final AtomicLong retried = new AtomicLong();
+
+    /**
+     * Number of submissions given up on.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * Number of submissions done by the caller, because the queue was full.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of submissions accepted in the background and not yet done
+     * with, whether queued, handled by a worker, or waiting for retry.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /**
+     * Create pipeline and start the workers.
+     *
+     * @param capacity
+     *            max number of queued submissions
+     * @param nrOfWorkers
+     *            number of worker threads
+     * @param maxAttempts
+     *            max attempts per submission
+     */
+    public SubmissionPipeline(final int capacity, final int nrOfWorkers,
+            final int maxAttempts) {
+
+        this(capacity, nrOfWorkers, maxAttempts, HANDLERS, BACKOFF);
+    }
+
+    /**
+     * Create pipeline for the given target, and start the workers.
+     *
+     * @param capacity
+     *            max number of queued submissions
+     * @param nrOfWorkers
+     *            number of worker threads
+     * @param maxAttempts
+     *            max attempts per submission
+     * @param newTarget
+     *            where submissions end up
+     * @param newBackoff
+     *            first retry delay in milliseconds
+     */
+    SubmissionPipeline(final int capacity, final int nrOfWorkers,
+            final int maxAttempts, final Target newTarget,
+            final long newBackoff) {
+
+        this.queue = new LinkedBlockingQueue<Job>(capacity);
+        this.attempts = maxAttempts;
+        this.target = newTarget;
+        this.backoff = newBackoff;
+        this.workers = Executors.newFixedThreadPool(nrOfWorkers,
+                new ThreadFactory() {
+                    private final AtomicInteger nr = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        Thread t = new Thread(r, "socrates-submission-"
+                                + this.nr.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+        for (int i = 0; i < nrOfWorkers; i++) {
+            this.workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            });
+        }
+    }
+
+    /**
+     * Submit instance in the background. If the pipeline is full or shut
+     * down, the submission is done right away by the calling thread.
+     *
+     * @param inst
+     *            instance to submit
+     * @param model
+     *            the model
+     * @param submission
+     *            submission info
+     */
+    public void submit(final Instance inst, final Model model,
+            final Submission submission) {
+
+        enqueue(new Job(inst, model, null, submission));
+    }
+
+    /**
+     * Submit instance in the background, looking up the model when it's
+     * submitted. If the pipeline is full or shut down, the submission is
+     * done right away by the calling thread.
+     *
+     * @param inst
+     *            instance to submit
+     * @param models
+     *            where the model comes from
+     * @param submission
+     *            submission info
+     */
+    public void submitFrom(final Instance inst, final ModelSource models,
+            final Submission submission) {
+
+        enqueue(new Job(inst, null, models, submission));
+    }
+
+    /**
+     * Queue job, or do it right away if the pipeline is full or shut down.
+     *
+     * @param job
+     *            the submission
+     */
+    private void enqueue(final Job job) {
+
+        this.lock.readLock().lock();
+
+        try {
+            if (this.running) {
+                // Counted before it can be taken off the queue.
+                this.pending.incrementAndGet();
+
+                if (this.queue.offer(job)) {
+                    this.queued.incrementAndGet();
+                    return;
+                }
+
+                this.pending.decrementAndGet();
+                LOGGER.warning("Submission pipeline full; submitting "
+                        + "synchronously");
+            } else {
+                LOGGER.warning("Submission pipeline shut down; submitting "
+                        + "synchronously");
+            }
+        } finally {
+            this.lock.readLock().unlock();
+        }
+
+        this.rejected.incrementAndGet();
+
+        try {
+            Model model = job.getModel();
+
+            if (model == null && job.models != null) {
+                this.failed.incrementAndGet();
+                LOGGER.severe("No model for submission; not submitted");
+                return;
+            }
+
+            this.target.submit(job.instance, model, job.submission);
+            this.submitted.incrementAndGet();
+        } catch (Exception e) {
+            this.failed.incrementAndGet();
+            LOGGER.log(Level.SEVERE, "Submission failed", e);
+        }
+    }
+
+    /**
+     * Stop accepting work, and wait for pending submissions to be done.
+     * Retries that are not due within the timeout are tried once more right
+     * away, by the calling thread, as is whatever is left at the timeout.
+     *
+     * @param timeout
+     *            max time to wait, in milliseconds
+     */
+    public void shutdown(final long timeout) {
+
+        this.lock.writeLock().lock();
+
+        try {
+            this.running = false;
+        } finally {
+            this.lock.writeLock().unlock();
+        }
+
+        LOGGER.info("Draining submission pipeline: " + getQueueSize()
+                + " queued, " + this.retries.size() + " waiting for retry");
+
+        long deadline = System.currentTimeMillis() + timeout;
+
+        while (isBusy(deadline) && System.currentTimeMillis() < deadline) {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        this.workers.shutdownNow();
+
+        try {
+            if (!this.workers.awaitTermination(STOP_TIMEOUT,
+                    TimeUnit.MILLISECONDS)) {
+                LOGGER.warning("Submission workers still running at shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        List<Job> left = new ArrayList<Job>();
+        this.queue.drainTo(left);
+
+        // Retries not due yet; drainTo only takes those that are.
+        for (Job job : this.retries.toArray(new Job[0])) {
+            if (this.retries.remove(job)) {
+                left.add(job);
+            }
+        }
+
+        for (Job job : left) {
+            handle(job, true);
+        }
+    }
+
+    /**
+     * Is there work for the workers before the deadline? Jobs that are not
+     * waiting for retry are queued or being handled.
+     *
+     * @param deadline
+     *            the deadline
+     * @return whether there is
+     */
+    private boolean isBusy(final long deadline) {
+
+        if (this.pending.get() > this.retries.size()) {
+            return true;
+        }
+
+        Job next = this.retries.peek();
+
+        return next != null && next.due < deadline;
+    }
+
+    /**
+     * Worker loop: take the next due submission, and handle it.
+     */
+    private void work() {
+
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Job job = this.retries.poll();
+
+                if (job == null) {
+                    job = this.queue.poll(100, TimeUnit.MILLISECONDS);
+                }
+
+                if (job != null) {
+                    handle(job, false);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Do the actual submission. A job is done with when it succeeds or is
+     * given up on; otherwise it is scheduled for retry.
+     *
+     * @param job
+     *            the submission
+     * @param last
+     *            whether this is the last chance, no matter the number of
+     *            attempts
+     */
+    private void handle(final Job job, final boolean last) {
+
+        try {
+            Model model = job.getModel();
+
+            if (model == null && job.models != null) {
+                this.failed.incrementAndGet();
+                this.pending.decrementAndGet();
+                LOGGER.severe("No model for submission; not submitted");
+                return;
+            }
+
+            this.target.submit(job.instance, model, job.submission);
+            this.submitted.incrementAndGet();
+            this.pending.decrementAndGet();
+        } catch (Exception e) {
+            job.attempt++;
+
+            if (last || job.attempt >= this.attempts) {
+                this.failed.incrementAndGet();
+                this.pending.decrementAndGet();
+                LOGGER.log(Level.SEVERE, "Submission failed after "
+                        + job.attempt + " attempts", e);
+            } else {
+                this.retried.incrementAndGet();
+                LOGGER.warning("Submission failed, retrying: "
+                        + e.getMessage());
+                job.due = System.currentTimeMillis()
+                        + (this.backoff << (job.attempt - 1));
+                this.retries.put(job);
+            }
+        }
+    }
+
+    /**
+     * @return number of submissions waiting in the queue
+     */
+    public int getQueueSize() {
+
+        return this.queue.size();
+    }
+
+    /**
+     * @return number of submissions accepted in the background and not yet
+     *         done with
+     */
+    public int getPending() {
+
+        return this.pending.get();
+    }
+
+    /**
+     * @return number of submissions waiting for retry
+     */
+    public int getRetrySize() {
+
+        return this.retries.size();
+    }
+
+    /**
+     * @return number of submissions accepted in the background
+     */
+    public long getQueued() {
+
+        return this.queued.get();
+    }
+
+    /**
+     * @return number of successful submissions
+     */
+    public long getSubmitted() {
+
+        return this.submitted.get();
+    }
+
+    /**
+     * @return number of retries
+     */
+    public long getRetried() {
+
+        return this.retried.get();
+    }
+
+    /**
+     * @return number of submissions given up on
+     */
+    public long getFailed() {
+
+        return this.failed.get();
+    }
+
+    /**
+     * @return number of submissions done synchronously, because the queue
+     *         was full or the pipeline shut down
+     */
+    public long getRejected() {
+
+        return this.rejected.get();
+    }
+
+    /**
+     * A pending submission.
+     */
+    private static final class Job implements Delayed {
+
+        /**
+         * Instance to submit.
+         */
+        private final Instance instance;
+
+        /**
+         * Where the model comes from, if not given.
+         */
+        private final ModelSource models;
+
+        /**
+         * The model, once looked up.
+         */
+        private Model model;
+
+        /**
+         * Submission info.
+         */
+        private final Submission submission;
+
+        /**
+         * Failed attempts so far.
+         */
+        private int attempt;
+
+        /**
+         * Time of next attempt.
+         */
+        private long due;
+
+        /**
+         * Create job.
+         *
+         * @param inst
+         *            instance
+         * @param newModel
+         *            model, if known
+         * @param newModels
+         *            where the model comes from, if not known
+         * @param newSubmission
+         *            submission info
+         */
+        Job(final Instance inst, final Model newModel,
+                final ModelSource newModels, final Submission newSubmission) {
+
+            this.instance = inst;
+            this.model = newModel;
+            this.models = newModels;
+            this.submission = newSubmission;
+        }
+
+        /**
+         * Get the model, looking it up the first time.
+         *
+         * @return the model, or null if there is none
+         * @throws Exception
+         *             when the model can't be loaded
+         */
+        Model getModel() throws Exception {
+
+            if (this.model == null && this.models != null) {
+                this.model = this.models.getModel();
+            }
+
+            return this.model;
+        }
+
+        @Override
+        public long getDelay(final TimeUnit unit) {
+
+            return unit.convert(this.due - System.currentTimeMillis(),
+                    TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(final Delayed o) {
+
+            long diff = this.due - ((Job) o).due;
+
+            return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Admin endpoint that dumps the latest request traces as plain text. Only
+ * answers requests from the addresses in socrates.trace.allow (comma
+ * separated; local only by default).
+ */
+public class TraceDumpServlet extends HttpServlet {
+
+    /**
+     * Make serializable.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Initialize this class' logging.
+     */
+    private static final Logger LOGGER = Logger
+            .getLogger(TraceDumpServlet.class.getName());
+
+    /**
+     * Addresses allowed to see traces.
+     */
+    private Set<String> allowed;
+
+    /**
+     * Read the allowed addresses.
+     *
+     * @param c
+     *            Servlet configuration
+     * @throws ServletException
+     *             when the servlet fails.
+     */
+    public final void init(final ServletConfig c) throws ServletException {
+
+        super.init(c);
+
+        this.allowed = new HashSet<String>(Arrays.asList(ServletHelper
+                .getParameter(c, "socrates.trace.allow",
+                        "127.0.0.1,0:0:0:0:0:0:0:1,::1").split("\\s*,\\s*")));
+
+        LOGGER.info("Trace dumps allowed for " + this.allowed);
+    }
+
+    /**
+     * Dump traces.
+     *
+     * @param req
+     *            The request
+     * @param res
+     *            The response
+     * @throws IOException
+     *             when some io error occurs
+     * @throws ServletException
+     *             when the servlet fails
+     */
+    public final void doGet(final HttpServletRequest req,
+            final HttpServletResponse res) throws IOException, ServletException {
+
+        if (!this.allowed.contains(req.getRemoteAddr())) {
+            res.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+
+        res.setContentType("text/plain;charset=UTF-8");
+        res.addHeader("Cache-Control", "no-cache");
+
+        PrintWriter out = res.getWriter();
+        RequestTracer tracer = (RequestTracer) getServletContext()
+                .getAttribute(RequestTracer.ATTRIBUTE);
+
+        if (tracer == null) {
+            out.println("No requests traced yet");
+        } else {
+            tracer.dump(out);
+        }
+
+        out.flush();
+    }
+}
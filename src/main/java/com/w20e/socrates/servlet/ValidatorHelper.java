@@ -15,14 +15,12 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
 import java.util.logging.Logger;
 
-import org.apache.commons.configuration.Configuration;
-
 import com.w20e.socrates.data.Instance;
 import com.w20e.socrates.data.Node;
-import com.w20e.socrates.model.ConstraintViolation;
 import com.w20e.socrates.model.InvalidPathExpression;
 import com.w20e.socrates.model.ItemProperties;
 import com.w20e.socrates.model.ItemPropertiesImpl;
@@ -33,9 +31,6 @@ import com.w20e.socrates.rendering.Control;
 import com.w20e.socrates.rendering.Group;
 import com.w20e.socrates.rendering.RenderConfig;
 import com.w20e.socrates.rendering.Renderable;
-import com.w20e.socrates.util.FillProcessor;
-import com.w20e.socrates.util.UTF8ResourceBundle;
-import com.w20e.socrates.util.UTF8ResourceBundleImpl;
 
 /**
  * This helper enables detection and setting of changes in Ajax validation.
@@ -59,13 +54,34 @@ public final class ValidatorHelper {
 			final Map<String, Map<String, String>> props, final RunnerContext pContext)
 			throws Exception {
 
+		getRenderableProperties(items, props, pContext,
+				MessageCatalog.load(pContext.getConfiguration(),
+						pContext.getLocale()), null, null);
+	}
+
+	/**
+	 * Determine UI properties for those renderables that are affected by a
+	 * change, according to the dependency graph. Groups are only evaluated if
+	 * they hold an affected control. If affected is null, all items are
+	 * evaluated.
+	 * 
+	 * @param items
+	 *            List of items to use.
+	 * @param messages
+	 *            alert messages for the context's questionnaire and locale
+	 * @param graph
+	 *            the model's dependency graph
+	 * @param affected
+	 *            affected nodes, as given by the graph, or null for all
+	 * @throws Exception
+	 *             in case of Velocity errors, or output stream errors.
+	 */
+	public static void getRenderableProperties(final Collection<Renderable> items,
+			final Map<String, Map<String, String>> props, final RunnerContext pContext,
+			final MessageCatalog messages, final DependencyGraph graph,
+			final Set<String> affected) throws Exception {
+
         Locale locale = pContext.getLocale();
-        
-        Configuration cfg = pContext.getConfiguration();
-        
-        String base = cfg.getString("formatter.locale.prefix");
-        
-        UTF8ResourceBundle bundle = UTF8ResourceBundleImpl.getBundle(base, locale);
 
         Stack<Group> parents = new Stack<Group>();
         
@@ -74,7 +90,7 @@ public final class ValidatorHelper {
 		for (Renderable rItem: items) {
 
 			addItem(rItem, parents, props, pContext.getInstance(), pContext.getModel(),
-					pContext.getRenderConfig(), bundle, locale);
+					pContext.getRenderConfig(), messages, locale, graph, affected);
 
 		}
 	}
@@ -85,30 +101,51 @@ public final class ValidatorHelper {
 	 * @param rItem
 	 * @param context
 	 * @param pContext
-	 * @param bundle
+	 * @param messages
+	 * @return whether the item was evaluated, or for groups, any of it's
+	 *         controls.
 	 */
-	private static void addItem(Renderable rItem, Stack<Group> parents,
+	private static boolean addItem(Renderable rItem, Stack<Group> parents,
 	        final Map<String, Map<String, String>> props,
 			final Instance inst, Model model, RenderConfig cfg,
-			final UTF8ResourceBundle bundle, final Locale locale) {
+			final MessageCatalog messages, final Locale locale,
+			final DependencyGraph graph, final Set<String> affected) {
 
 		/**
 		 * If it's a group, just add it's controls to the context.
 		 */
 		if (rItem instanceof Group) {
 
+		    boolean found = false;
+
 		    parents.push((Group) rItem);
 		    
 			for (Renderable rSubItem: ((Group) rItem).getItems()) {
 
-				addItem(rSubItem, parents, props, inst, model, cfg, bundle, locale);
+				found |= addItem(rSubItem, parents, props, inst, model, cfg,
+						messages, locale, graph, affected);
 			}
 			
 			parents.pop();
+
+			// Only part of the group was evaluated, so determine relevance
+			// of the group as a whole.
+			if (found && affected != null) {
+                Map<String, String> groupProps = new HashMap<String, String>();
+                groupProps.put("relevant",
+                        Boolean.toString(isRelevant((Group) rItem, inst, model)));
+                props.put("group:" + rItem.getId(), groupProps);
+			}
+
+			return found;
 		}
 
 		if (!(rItem instanceof Control)) {
-			return;
+			return false;
+		}
+
+		if (affected != null && !graph.isAffected((Control) rItem, affected)) {
+			return false;
 		}
 
 		Control control = (Control) rItem;
@@ -119,7 +156,7 @@ public final class ValidatorHelper {
 		try {
 			n = inst.getNode(bind);
 		} catch (InvalidPathExpression e1) {
-			return;
+			return false;
 		}
 
 		ItemProperties itemProps = model.getItemProperties(bind);
@@ -139,7 +176,7 @@ public final class ValidatorHelper {
 			if (NodeValidator.isRelevant(itemProps, inst, model)) {
                 localProps.put("relevant", "true");
                 for (Group group: parents) {
-                    LOGGER.fine("Adding relevant to parent " + group.getId());
+                    RequestTracer.event("relevant", group.getId());
                     Map<String, String> groupProps = new HashMap<String, String>();
                     groupProps.put("relevant", "true");
                     props.put("group:" + group.getId(), groupProps);
@@ -148,7 +185,7 @@ public final class ValidatorHelper {
                 localProps.put("relevant", "false");
                 for (Group group: parents) {
                     if (!props.containsKey("group:" + group.getId())) {
-                        LOGGER.fine("Removing relevant of parent " + group.getId());
+                        RequestTracer.event("irrelevant", group.getId());
                         Map<String, String> groupProps = new HashMap<String, String>();
                         groupProps.put("relevant", "false");
                         props.put("group:" + group.getId(), groupProps);
@@ -174,17 +211,17 @@ public final class ValidatorHelper {
 			}
 
 			// Redo label if necessary
-			if (control.getLabel().toString().indexOf("${") != -1) {
-				String label = FillProcessor.processFills(control.getLabel().toString(),
-						inst, model, cfg, locale);
-				localProps.put("label", label);
+			FillTemplate label = FillTemplate.getInstance(control.getLabel().toString(),
+					inst, model);
+			if (label.hasFills()) {
+				localProps.put("label", label.render(inst, model, cfg, locale));
 			}
 
 	         // Redo hint if necessary
-            if (control.getHint().toString().indexOf("${") != -1) {
-                String hint = FillProcessor.processFills(control.getHint().toString(),
-                        inst, model, cfg, locale);
-                localProps.put("hint", hint);
+            FillTemplate hint = FillTemplate.getInstance(control.getHint().toString(),
+                    inst, model);
+            if (hint.hasFills()) {
+                localProps.put("hint", hint.render(inst, model, cfg, locale));
             }
 			
 			if (n.getValue() != null) {
@@ -193,12 +230,11 @@ public final class ValidatorHelper {
 					NodeValidator.validate(n, itemProps, inst, model);
                     localProps.put("alert", "");
 				} catch (Exception cv) {
-				    LOGGER.finest("Exception during validation" + cv.getMessage());
-				    LOGGER.finest("Node value: " + n.getValue() +"; type " + itemProps.getDatatype());
+				    RequestTracer.event("invalid", n.getName(), cv.getMessage());
 					String msg = "";
 
 					if ("".equals(((Control) rItem).getAlert())) {
-						msg = translateError(cv.getMessage(), bundle);
+						msg = messages.translate(cv.getMessage());
 					} else {
 						msg = ((Control) rItem).getAlert().toString();
 					}
@@ -212,32 +248,56 @@ public final class ValidatorHelper {
 		}
 		
         props.put(rItem.getId(), localProps);
+
+        return true;
 	}
 
 	/**
-	 * Return the translated alert message.
+	 * A group is relevant if any of it's controls is.
 	 * 
-	 * @param msg
-	 *            original message.
-	 * @param bundle
-	 *            locale bindle
-	 * @return the translated message.
+	 * @param group
+	 *            the group
+	 * @param inst
+	 *            the instance
+	 * @param model
+	 *            the model
+	 * @return relevance
 	 */
-	private static String translateError(final String msg,
-			final UTF8ResourceBundle bundle) {
+	private static boolean isRelevant(final Group group, final Instance inst,
+			final Model model) {
 
-		try {
-			if (ConstraintViolation.REQUIRED.equals(msg)) {
-				return bundle.getString("alert.required");
-			} else if (ConstraintViolation.TYPE.equals(msg)) {
-				return bundle.getString("alert.type");
-			} else if (ConstraintViolation.FALSE.equals(msg)) {
-				return bundle.getString("alert.constraint");
-			} else {
-				return bundle.getString("alert.unknown");
+		for (Renderable rItem: group.getItems()) {
+
+			if (rItem instanceof Group) {
+				if (isRelevant((Group) rItem, inst, model)) {
+					return true;
+				}
+				continue;
+			}
+
+			if (!(rItem instanceof Control)) {
+				continue;
+			}
+
+			String bind = ((Control) rItem).getBind();
+
+			try {
+				inst.getNode(bind);
+
+				ItemProperties itemProps = model.getItemProperties(bind);
+
+				if (itemProps == null) {
+					itemProps = new ItemPropertiesImpl(bind);
+				}
+
+				if (NodeValidator.isRelevant(itemProps, inst, model)) {
+					return true;
+				}
+			} catch (Exception e) {
+				// Not found, or not resolvable: doesn't count.
 			}
-		} catch (Exception e) {
-			return "Erroneous input";
 		}
+
+		return false;
 	}
 }
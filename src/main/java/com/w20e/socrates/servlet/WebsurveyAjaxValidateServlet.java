@@ -64,6 +64,37 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
      */
     private XMLRPCFormatter formatter;
 
+    /**
+     * JSON formatter, for clients that ask for JSON.
+     */
+    private JSONFormatter jsonFormatter;
+
+    /**
+     * Only evaluate controls affected by the change?
+     */
+    private boolean incremental;
+
+    /**
+     * Request phases we time.
+     */
+    private static final int BEFORE = 0, APPLY = 1, AFTER = 2, DIFF = 3,
+            FORMAT = 4, TOTAL = 5;
+
+    /**
+     * Time spent per phase.
+     */
+    private RequestTiming timing;
+
+    /**
+     * Sampled request traces.
+     */
+    private RequestTracer tracer;
+
+    /**
+     * Lets requests on the same session take turns.
+     */
+    private SessionLanes lanes;
+
     /**
      * The init method creates an instance of the Socrates class, and allocates
      * initial resources. This includes compiling of XSL style sheets and
@@ -80,6 +111,26 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
 
         LOGGER.info("Initializing the Websurvey Ajax validation servlet");
         this.formatter = new XMLRPCFormatter();
+        this.jsonFormatter = new JSONFormatter();
+        this.incremental = "true".equals(ServletHelper.getParameter(c,
+                "socrates.ajax.incremental", "false"));
+        this.timing = new RequestTiming("before", "apply", "after", "diff",
+                "format", "total");
+        this.timing.register(c.getServletName());
+        this.tracer = RequestTracer.getInstance(c);
+        this.lanes = SessionLanes.getInstance(c);
+    }
+
+    /**
+     * Unregister timing.
+     */
+    public final void destroy() {
+
+        if (this.timing != null) {
+            this.timing.unregister();
+        }
+
+        super.destroy();
     }
 
     /**
@@ -102,8 +153,15 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
     public final void doPost(final HttpServletRequest req,
             final HttpServletResponse res) throws IOException, ServletException {
 
+        long start = System.nanoTime();
+        boolean json = wantsJSON(req);
+
         // Always use UTF!
-        res.setContentType("text/xml;charset=UTF-8");
+        if (json) {
+            res.setContentType("application/json;charset=UTF-8");
+        } else {
+            res.setContentType("text/xml;charset=UTF-8");
+        }
 
         // P3P header necessary for IE cookie policy
         res.addHeader("P3P", "CP=\"CAO DSP COR CURa ADMa DEVa OUR IND PHY ONL "
@@ -112,31 +170,43 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
         res.addHeader("Cache-Control", "no-cache");
         res.addHeader("Pragma", "No-Cache");
 
+        HttpSession session = ServletHelper.findSession(getServletContext(),
+                req);
+
         // We might as well return...
-        if (req.getSession(false) == null) {
+        if (session == null) {
 
             // return error xml.
-            res.getOutputStream()
-                    .print("<validation>Nasty Error!</validation>");
+            if (json) {
+                res.getOutputStream().print("{\"error\":\"No session\"}");
+            } else {
+                res.getOutputStream()
+                        .print("<validation>Nasty Error!</validation>");
+            }
             res.getOutputStream().flush();
             return;
         }
 
-        LOGGER.fine("Incoming request, session id validity is \""
-                + req.isRequestedSessionIdValid() + "\"");
+        this.tracer.begin(req, start);
 
-        HttpSession session = req.getSession();
-        LOGGER.fine("Session found with id " + session.getId());
+        RequestTracer.event("session", session.getId());
+
+        if (!this.lanes.enter(session.getId())) {
+            RequestTracer.event("lane", "timed out");
+            this.tracer.end(req, start);
+            SessionLanes.reject(res);
+            return;
+        }
 
         try {
-            WebsurveyContext wwCtx = (WebsurveyContext) session
-                    .getAttribute("runnerCtx");
+            WebsurveyContext wwCtx = ServletHelper.acquireContext(
+                    getServletContext(), session);
 
             RunnerContextImpl ctx = (RunnerContextImpl) wwCtx
                     .getRunnerContext();
 
-            LOGGER.finer("Context id "
-                    + ctx.getInstance().getMetaData().get("key"));
+            RequestTracer.event("context", ctx.getInstance().getMetaData()
+                    .get("key"));
 
             // Add all http params and output to runner's context. Sadly
             // for http params we need a hack, since the getParameterMap
@@ -148,12 +218,37 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
             Map<String, Map<String, String>> after = new HashMap<String, Map<String, String>>();
             Map<String, Map<String, String>> filtered = new HashMap<String, Map<String, String>>();
 
-            ValidatorHelper.getRenderableProperties(ctx.getStateManager().current().getItems(), before, ctx);
-
             Collection<Renderable> found = new ArrayList<Renderable>();
 
             findRenderables(params.keySet(), ctx.getStateManager().current().getItems(), found);
 
+            // Determine what may change, so we only evaluate that.
+            DependencyGraph graph = null;
+            Set<String> affected = null;
+
+            if (this.incremental) {
+                Collection<String> changed = new ArrayList<String>();
+
+                for (Renderable r : found) {
+                    changed.add(((Control) r).getBind());
+                }
+
+                graph = DependencyGraph.getInstance(ctx.getModel(), ctx.getInstance());
+                affected = graph.getAffected(changed);
+            }
+
+            MessageCatalog messages = MessageCatalog.getInstance(
+                    wwCtx.getEntry(), ctx);
+
+            String qId = wwCtx.getModelId();
+            long t = System.nanoTime();
+
+            req.setAttribute("socrates.qid", qId);
+
+            ValidatorHelper.getRenderableProperties(ctx.getStateManager().current().getItems(), before, ctx, messages, graph, affected);
+
+            t = lap(qId, BEFORE, t);
+
             // Here we only set the data of the parameters we actually have...
             RenderStateImpl tmpState = new RenderStateImpl("TMP", found);
 
@@ -163,7 +258,11 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
                 // Not a problem here.
             }
 
-            ValidatorHelper.getRenderableProperties(ctx.getStateManager().current().getItems(), after, ctx);
+            t = lap(qId, APPLY, t);
+
+            ValidatorHelper.getRenderableProperties(ctx.getStateManager().current().getItems(), after, ctx, messages, graph, affected);
+
+            t = lap(qId, AFTER, t);
 
             for (String rItem: before.keySet()) {
 
@@ -171,11 +270,8 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
 
                 for (String key: before.get(rItem).keySet()) {
                     try {
-                        LOGGER.fine("Before '" + rItem + "', " + key + ": " + before.get(rItem).get(key));
-                        LOGGER.fine("After '" + rItem + "', " + key + ": " + after.get(rItem).get(key));
-
                         if (!before.get(rItem).get(key).equals(after.get(rItem).get(key))) {
-                            LOGGER.fine("Adding to filtered: " + key);
+                            RequestTracer.event("changed", rItem, key);
                             localProps.put(key, after.get(rItem).get(key));
                         }
                     } catch (Exception e) {
@@ -184,19 +280,27 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
                 }
 
                 if (localProps.keySet().size() > 0) {
-                    LOGGER.fine("Adding to filtered: " + rItem);
                     filtered.put(rItem, localProps);
                 }
             }
 
+            t = lap(qId, DIFF, t);
+
             OutputStream out = res.getOutputStream();
 
             ctx.setOutputStream(out);
 
-            this.formatter.format(filtered, out, ctx);
+            if (json) {
+                this.jsonFormatter.format(filtered, out, ctx);
+            } else {
+                this.formatter.format(filtered, out, ctx);
+            }
 
             res.getOutputStream().flush();
 
+            lap(qId, FORMAT, t);
+            this.timing.record(qId, TOTAL, System.nanoTime() - start);
+
             // free resources...
             ctx.setOutputStream(null);
 
@@ -204,10 +308,53 @@ public class WebsurveyAjaxValidateServlet extends HttpServlet {
             LOGGER.log(Level.SEVERE, "No runner created", e);
             throw new ServletException("Runner could not be created: "
                     + e.getMessage());
+        } finally {
+            ServletHelper.releaseContext(getServletContext(), session);
+            this.lanes.exit(session.getId());
+            this.tracer.end(req, start);
         }
     }
 
 
+    /**
+     * Record time spent in a phase.
+     *
+     * @param qId
+     *            questionnaire id
+     * @param phase
+     *            the phase
+     * @param since
+     *            start of the phase, in ns
+     * @return end of the phase, in ns
+     */
+    private long lap(final String qId, final int phase, final long since) {
+
+        long now = System.nanoTime();
+
+        this.timing.record(qId, phase, now - since);
+
+        return now;
+    }
+
+    /**
+     * Does the client want JSON? This is the case if the format parameter is
+     * json, or if the Accept header lists application/json.
+     *
+     * @param req
+     *            The request
+     * @return whether to send JSON
+     */
+    private boolean wantsJSON(final HttpServletRequest req) {
+
+        if ("json".equals(req.getParameter("format"))) {
+            return true;
+        }
+
+        String accept = req.getHeader("Accept");
+
+        return accept != null && accept.indexOf("application/json") != -1;
+    }
+
     /**
      * Recursively find renderables that are listed in keys.
      * @param keys
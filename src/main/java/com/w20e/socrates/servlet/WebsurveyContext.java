@@ -11,33 +11,69 @@
 
 package com.w20e.socrates.servlet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
 import java.io.IOException;
+import java.io.ObjectInput;
 import java.io.ObjectInputStream;
-import java.io.Serializable;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Date;
 import java.util.Locale;
+import java.util.Map;
 
 import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.data.Node;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.NodeImpl;
 import com.w20e.socrates.model.Submission;
 import com.w20e.socrates.process.RunnerContext;
 
 /**
- * @author dokter
+ * Session wrapper for the runner context. Only the instance, submission info,
+ * model id and locale survive serialization; the runner context needs to be
+ * restored afterwards.
+ * 
+ * The context is written in a compact format of its own, since containers
+ * serialize sessions when persisting or replicating them: a version byte,
+ * model id, locale, submission, the instance's meta data, and for every node
+ * the name and, if set, the value. Common value types are written as a type
+ * tag and the bare value; anything else is serialized as an object.
  * 
- * @todo To change the template for this generated type comment go to Window -
- *       Preferences - Java - Code Style - Code Templates
+ * @author dokter
  */
-public class WebsurveyContext implements Serializable {
+public class WebsurveyContext implements Externalizable {
 
 	/**
 	 * Version ID.
 	 */
 	private static final long serialVersionUID = 8613064653864548295L;
 
+	/**
+	 * Version of the serialized format.
+	 */
+	private static final byte FORMAT_VERSION = 1;
+
+	/**
+	 * Value tags.
+	 */
+	private static final byte NULL = 0, STRING = 1, INTEGER = 2, LONG = 3,
+			DOUBLE = 4, BOOLEAN = 5, DECIMAL = 6, DATE = 7, OBJECT = 8;
+
 	/**
 	 * Hold the runner context. This will not be serialized.
 	 */
 	private transient RunnerContext ctx;
 
+	/**
+	 * Questionnaire the runner context was created for, holding the runner.
+	 * This will not be serialized.
+	 */
+	private transient QuestionnaireEntry entry;
+
 	/**
 	 * Indicate status of context. This is invalid after deserialization.
 	 */
@@ -85,23 +121,251 @@ public class WebsurveyContext implements Serializable {
 	}
 
 	/**
-	 * Override for serialization. This will make sure that the instance is
-	 * deserialized, and that the model is restored.
+	 * Only for deserialization.
+	 */
+	public WebsurveyContext() {
+
+		this.invalid = true;
+	}
+
+	/**
+	 * Write context in compact format.
+	 * 
+	 * @param out
+	 *            object output.
+	 * @throws IOException
+	 *             when writing fails.
+	 */
+	public void writeExternal(final ObjectOutput out) throws IOException {
+
+		out.writeByte(FORMAT_VERSION);
+
+		writeString(this.modelId, out);
+
+		if (this.locale == null) {
+			out.writeBoolean(false);
+		} else {
+			out.writeBoolean(true);
+			out.writeUTF(this.locale.getLanguage());
+			out.writeUTF(this.locale.getCountry());
+			out.writeUTF(this.locale.getVariant());
+		}
+
+		out.writeObject(this.submission);
+
+		if (this.inst == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		Map<String, Object> meta = this.inst.getMetaData();
+
+		out.writeInt(meta.size());
+
+		for (Map.Entry<String, Object> entry : meta.entrySet()) {
+			out.writeUTF(entry.getKey());
+			writeValue(entry.getValue(), out);
+		}
+
+		Collection<Node> nodes = this.inst.getAllNodes();
+
+		out.writeInt(nodes.size());
+
+		for (Node node : nodes) {
+			out.writeUTF(node.getName());
+			writeValue(node.getValue(), out);
+		}
+	}
+
+	/**
+	 * Read context. The context is invalid afterwards, until the runner
+	 * context is restored.
 	 * 
 	 * @param in
-	 *            object input stream.
+	 *            object input.
 	 * @throws IOException
 	 *             when a deserialization error occurs.
 	 * @throws ClassNotFoundException
-	 *             when the stream doesn't actually hold this class.
+	 *             when a value's class is not available.
 	 */
-	private void readObject(final ObjectInputStream in) throws IOException,
+	public void readExternal(final ObjectInput in) throws IOException,
 			ClassNotFoundException {
 
-		in.defaultReadObject();
+		byte version = in.readByte();
+
+		if (version != FORMAT_VERSION) {
+			throw new IOException("Unknown context format version " + version);
+		}
+
+		this.modelId = readString(in);
+
+		if (in.readBoolean()) {
+			this.locale = new Locale(in.readUTF(), in.readUTF(), in.readUTF());
+		}
+
+		this.submission = (Submission) in.readObject();
+
+		int metaSize = in.readInt();
+
+		if (metaSize < 0) {
+			this.inst = null;
+			this.invalid = true;
+			return;
+		}
+
+		InstanceImpl restored = new InstanceImpl();
+
+		for (int i = 0; i < metaSize; i++) {
+			String key = in.readUTF();
+			restored.getMetaData().put(key, readValue(in));
+		}
+
+		int nodes = in.readInt();
+
+		for (int i = 0; i < nodes; i++) {
+			String name = in.readUTF();
+			Object value = readValue(in);
+
+			if (value == null) {
+				restored.addNode(new NodeImpl(name));
+			} else {
+				restored.addNode(new NodeImpl(name, value));
+			}
+		}
+
+		this.inst = restored;
 		this.invalid = true;
 	}
 
+	/**
+	 * Write possibly long, possibly null string.
+	 * 
+	 * @param s
+	 *            the string
+	 * @param out
+	 *            output
+	 * @throws IOException
+	 *             when writing fails.
+	 */
+	private static void writeString(final String s, final ObjectOutput out)
+			throws IOException {
+
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+
+		byte[] bytes = s.getBytes("UTF-8");
+
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read string written by writeString.
+	 * 
+	 * @param in
+	 *            input
+	 * @return the string
+	 * @throws IOException
+	 *             when reading fails.
+	 */
+	private static String readString(final ObjectInput in) throws IOException {
+
+		int len = in.readInt();
+
+		if (len < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[len];
+		in.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
+
+	/**
+	 * Write tagged value.
+	 * 
+	 * @param value
+	 *            the value, may be null
+	 * @param out
+	 *            output
+	 * @throws IOException
+	 *             when writing fails.
+	 */
+	private static void writeValue(final Object value, final ObjectOutput out)
+			throws IOException {
+
+		if (value == null) {
+			out.writeByte(NULL);
+		} else if (value instanceof String) {
+			out.writeByte(STRING);
+			writeString((String) value, out);
+		} else if (value instanceof Integer) {
+			out.writeByte(INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Double) {
+			out.writeByte(DOUBLE);
+			out.writeDouble((Double) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value.getClass() == BigDecimal.class) {
+			out.writeByte(DECIMAL);
+			out.writeUTF(value.toString());
+		} else if (value.getClass() == Date.class) {
+			out.writeByte(DATE);
+			out.writeLong(((Date) value).getTime());
+		} else {
+			out.writeByte(OBJECT);
+			out.writeObject(value);
+		}
+	}
+
+	/**
+	 * Read value written by writeValue.
+	 * 
+	 * @param in
+	 *            input
+	 * @return the value
+	 * @throws IOException
+	 *             when reading fails.
+	 * @throws ClassNotFoundException
+	 *             when the value's class is not available.
+	 */
+	private static Object readValue(final ObjectInput in) throws IOException,
+			ClassNotFoundException {
+
+		byte tag = in.readByte();
+
+		switch (tag) {
+		case NULL:
+			return null;
+		case STRING:
+			return readString(in);
+		case INTEGER:
+			return Integer.valueOf(in.readInt());
+		case LONG:
+			return Long.valueOf(in.readLong());
+		case DOUBLE:
+			return Double.valueOf(in.readDouble());
+		case BOOLEAN:
+			return Boolean.valueOf(in.readBoolean());
+		case DECIMAL:
+			return new BigDecimal(in.readUTF());
+		case DATE:
+			return new Date(in.readLong());
+		case OBJECT:
+			return in.readObject();
+		default:
+			throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
 	/**
 	 * Set the runner context and set status to valid. This will also set the
 	 * instance to the runner context's instance!
@@ -117,6 +381,22 @@ public class WebsurveyContext implements Serializable {
 		this.invalid = false;
 	}
 
+	/**
+	 * Take the runner context away, once the context is stored. The context
+	 * is invalid afterwards, like a deserialized one; the instance stays.
+	 * 
+	 * @return the runner context, or null if there was none
+	 */
+	public final RunnerContext detach() {
+
+		RunnerContext old = this.ctx;
+
+		this.ctx = null;
+		this.invalid = true;
+
+		return old;
+	}
+
 	/**
 	 * Return instance after serialization.
 	 * 
@@ -167,6 +447,28 @@ public class WebsurveyContext implements Serializable {
 		return this.ctx;
 	}
 
+	/**
+	 * Get the questionnaire the context was created for.
+	 * 
+	 * @return the entry, or null if not bound (yet).
+	 */
+	public final QuestionnaireEntry getEntry() {
+
+		return this.entry;
+	}
+
+	/**
+	 * Bind the questionnaire, so the runner needn't be looked up on every
+	 * request.
+	 * 
+	 * @param newEntry
+	 *            the questionnaire
+	 */
+	public final void setEntry(final QuestionnaireEntry newEntry) {
+
+		this.entry = newEntry;
+	}
+
 	/**
 	 * Return the context's locale.
 	 * 
@@ -186,4 +488,47 @@ public class WebsurveyContext implements Serializable {
 
 		return this.submission;
 	}
+
+	/**
+	 * Serialize to bytes, for session stores.
+	 * 
+	 * @return serialized context
+	 * @throws IOException
+	 *             when serialization fails.
+	 */
+	public final byte[] toBytes() throws IOException {
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+
+		out.writeObject(this);
+		out.close();
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Restore context serialized by toBytes. The context is invalid until the
+	 * runner context is restored.
+	 * 
+	 * @param bytes
+	 *            serialized context
+	 * @return the context
+	 * @throws IOException
+	 *             when deserialization fails.
+	 */
+	public static WebsurveyContext fromBytes(final byte[] bytes)
+			throws IOException {
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes));
+
+		try {
+			return (WebsurveyContext) in.readObject();
+		} catch (ClassNotFoundException e) {
+			throw new IOException("Can't restore context: " + e.getMessage());
+		} finally {
+			in.close();
+		}
+	}
 }
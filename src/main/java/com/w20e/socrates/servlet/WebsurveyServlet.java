@@ -18,8 +18,9 @@
 
 package com.w20e.socrates.servlet;
 
-import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -31,6 +32,7 @@ import java.util.Map.Entry;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -40,13 +42,11 @@ import javax.servlet.http.HttpSession;
 
 import org.apache.commons.configuration.Configuration;
 
-import com.w20e.socrates.config.ConfigurationResource;
 import com.w20e.socrates.data.Instance;
 import com.w20e.socrates.data.Node;
 import com.w20e.socrates.process.Runner;
 import com.w20e.socrates.process.RunnerContext;
 import com.w20e.socrates.process.RunnerContextImpl;
-import com.w20e.socrates.process.RunnerFactoryImpl;
 import com.w20e.socrates.process.UnsupportedMediumException;
 import com.w20e.socrates.process.ValidationException;
 import com.w20e.socrates.rendering.Control;
@@ -101,15 +101,78 @@ public class WebsurveyServlet extends HttpServlet {
             .getLogger(WebsurveyServlet.class.getName());
 
     /**
-     * Hold the runner factory.
+     * Hold the questionnaires.
      */
-    private RunnerFactoryImpl runnerFactory;
+    private QuestionnaireRegistry registry;
+
+    /**
+     * Reloads questionnaires when they change on disk, or null.
+     */
+    private QuestionnaireWatcher watcher;
 
     /**
      * Hold config rootdir.
      */
     private String rootDir;
 
+    /**
+     * Chunks for rendering pages.
+     */
+    private BufferPool bufferPool;
+
+    /**
+     * Page size after which pages are streamed to the client, or -1 to
+     * always buffer the full page.
+     */
+    private int streamThreshold;
+
+    /**
+     * Background submission of timed out sessions.
+     */
+    private SubmissionPipeline submissionPipeline;
+
+    /**
+     * Max time to wait for pending submissions on shutdown, in ms.
+     */
+    private long drainTimeout;
+
+    /**
+     * Restores deserialized sessions.
+     */
+    private ContextRehydrator rehydrator;
+
+    /**
+     * Request phases we time.
+     */
+    private static final int SESSION = 0, REHYDRATE = 1, PARSE = 2, NEXT = 3,
+            WRITE = 4, TOTAL = 5;
+
+    /**
+     * Time spent per phase.
+     */
+    private RequestTiming timing;
+
+    /**
+     * Session statistics and operations.
+     */
+    private SessionManagement sessionManagement;
+
+    /**
+     * Sampled request traces.
+     */
+    private RequestTracer tracer;
+
+    /**
+     * Workers for async requests, or null to serve requests on the
+     * container thread.
+     */
+    private AsyncExecutor executor;
+
+    /**
+     * Lets requests on the same session take turns.
+     */
+    private SessionLanes lanes;
+
     /**
      * The 'init' method creates an instance of the Socrates class, and allocates
      * initial resources. This includes compiling of XSL style sheets and
@@ -126,7 +189,11 @@ public class WebsurveyServlet extends HttpServlet {
 
         LOGGER.info("Initializing the Websurvey servlet");
 
-        this.sessionMgr = new SessionManager();
+        this.sessionMgr = new SessionManager((int) ServletHelper
+                .getLongParameter(c, "socrates.sessions.max",
+                        SessionRegistry.DEFAULT_MAX_SIZE),
+                ServletHelper.getLongParameter(c, "socrates.sessions.ttl",
+                        SessionRegistry.DEFAULT_TTL), createSessionStore(c));
 
         // Adding sessionmanager to servlet context, so individual sessions can
         // reach their manager.
@@ -134,23 +201,217 @@ public class WebsurveyServlet extends HttpServlet {
         getServletContext().setAttribute("socrates.sessionmanager",
                 this.sessionMgr);
 
-        if (System.getProperty("socrates.cfg.root") != null) {
-            this.rootDir = System.getProperty("socrates.cfg.root");
-        } else if (c.getInitParameter("socrates.cfg.root") != null) {
-            this.rootDir = c.getInitParameter("socrates.cfg.root");
+        this.rootDir = ServletHelper.getParameter(c, "socrates.cfg.root", ".");
+
+        LOGGER.info("Setting config root to " + this.rootDir);
+
+        this.registry = new QuestionnaireRegistry(this.rootDir,
+                ServletHelper.getLongParameter(c,
+                        "socrates.cfg.check_interval",
+                        QuestionnaireRegistry.DEFAULT_CHECK_INTERVAL));
+
+        getServletContext().setAttribute("socrates.registry", this.registry);
+
+        // With a watcher, requests needn't check for modifications.
+        //
+        if ("true".equals(ServletHelper.getParameter(c, "socrates.cfg.watch",
+                "true"))) {
+            this.watcher = QuestionnaireWatcher.start(this.registry,
+                    ServletHelper.getLongParameter(c,
+                            "socrates.cfg.watch.delay",
+                            QuestionnaireWatcher.DEFAULT_DELAY));
+
+            if (this.watcher != null) {
+                this.registry.setCheckInterval(-1);
+            }
+        }
+
+        this.rehydrator = new ContextRehydrator(this.registry,
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.rehydrate.concurrency",
+                        ContextRehydrator.DEFAULT_CONCURRENCY));
+
+        getServletContext().setAttribute("socrates.rehydrator",
+                this.rehydrator);
+
+        this.bufferPool = new BufferPool((int) ServletHelper.getLongParameter(
+                c, "socrates.output.chunk_size", BufferPool.DEFAULT_CHUNK_SIZE),
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.output.pool_size",
+                        BufferPool.DEFAULT_POOL_SIZE));
+
+        if ("true".equals(ServletHelper.getParameter(c,
+                "socrates.output.streaming", "true"))) {
+            this.streamThreshold = (int) ServletHelper.getLongParameter(c,
+                    "socrates.output.stream_threshold", 32768);
         } else {
-            this.rootDir = ".";
+            this.streamThreshold = -1;
         }
 
-        LOGGER.info("Setting config root to " + this.rootDir);
+        this.submissionPipeline = new SubmissionPipeline(
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.submission.queue_size",
+                        SubmissionPipeline.DEFAULT_CAPACITY),
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.submission.workers",
+                        SubmissionPipeline.DEFAULT_WORKERS),
+                (int) ServletHelper.getLongParameter(c,
+                        "socrates.submission.attempts",
+                        SubmissionPipeline.DEFAULT_ATTEMPTS));
+
+        this.drainTimeout = ServletHelper.getLongParameter(c,
+                "socrates.submission.drain_timeout", 30000);
+
+        getServletContext().setAttribute("socrates.submissionpipeline",
+                this.submissionPipeline);
+
+        this.timing = new RequestTiming("session", "rehydrate", "parse",
+                "next", "write", "total");
+        this.timing.register(c.getServletName());
+
+        this.sessionManagement = new SessionManagement(this.sessionMgr,
+                this.rehydrator, this.submissionPipeline);
+        this.sessionManagement.register(c.getServletName());
 
-        this.runnerFactory = new RunnerFactoryImpl(this.rootDir);
+        this.tracer = RequestTracer.getInstance(c);
+
+        this.executor = AsyncExecutor.create(c);
+
+        this.lanes = SessionLanes.getInstance(c);
+        this.sessionMgr.setLanes(this.lanes);
 
         // Register handlers
         HandlerManager.getInstance().register("file",
                 new XMLFileSubmissionHandler());
         HandlerManager.getInstance().register("none",
                 new NoneSubmissionHandler());
+
+        // Load all questionnaires before taking requests, if so requested.
+        // Rebuilding the regkey indexes takes the questionnaires' models, so
+        // that loads them as well.
+        //
+        boolean rebuild = "true".equals(ServletHelper.getParameter(c,
+                "socrates.regkey_index.rebuild", "false"));
+
+        if (rebuild
+                || "true".equals(ServletHelper.getParameter(c,
+                        "socrates.preload", "false"))) {
+            QuestionnairePreloader preloader = new QuestionnairePreloader(
+                    this.registry, (int) ServletHelper.getLongParameter(c,
+                            "socrates.preload.parallelism", Runtime
+                                    .getRuntime().availableProcessors()));
+
+            preloader.setRebuildIndexes(rebuild);
+            preloader.preload();
+        }
+    }
+
+    /**
+     * Release resources held by the servlet.
+     */
+    public final void destroy() {
+
+        LOGGER.info("Destroying the Websurvey servlet");
+
+        if (this.timing != null) {
+            this.timing.unregister();
+        }
+
+        if (this.sessionManagement != null) {
+            this.sessionManagement.unregister();
+        }
+
+        if (this.executor != null) {
+            this.executor.shutdown(this.drainTimeout);
+        }
+
+        SessionLanes.release(getServletContext());
+
+        if (this.submissionPipeline != null) {
+            getServletContext().removeAttribute("socrates.submissionpipeline");
+            this.submissionPipeline.shutdown(this.drainTimeout);
+        }
+
+        RegkeyIndex.closeAll();
+
+        if (this.watcher != null) {
+            this.watcher.stop();
+        }
+
+        if (this.sessionMgr != null && this.sessionMgr.getStore() != null) {
+            this.sessionMgr.getStore().close();
+        }
+
+        super.destroy();
+    }
+
+    /**
+     * Create the session state store, if configured. With
+     * socrates.session.store set to 'mapped', contexts are kept in memory
+     * mapped files between requests. With 'shared', they are kept in a
+     * directory shared by all nodes, so any node can serve any request.
+     * Otherwise they stay in the session.
+     *
+     * @param c
+     *            servlet configuration
+     * @return the store, or null
+     */
+    private static SessionStateStore createSessionStore(final ServletConfig c) {
+
+        String type = ServletHelper.getParameter(c, "socrates.session.store",
+                "");
+
+        if (!"mapped".equals(type) && !"shared".equals(type)) {
+            return null;
+        }
+
+        File dir = new File(ServletHelper.getParameter(c,
+                "socrates.session.store.dir", System
+                        .getProperty("java.io.tmpdir")
+                        + File.separator + "socrates-sessions"));
+
+        try {
+            if ("shared".equals(type)) {
+                String node = ServletHelper.getParameter(c,
+                        "socrates.session.store.node", null);
+
+                if (node == null) {
+                    node = InetAddress.getLocalHost().getHostName();
+                }
+
+                SharedDirectorySessionStore store = new SharedDirectorySessionStore(
+                        dir, node, ServletHelper.getLongParameter(c,
+                                "socrates.session.store.segment_size",
+                                SharedDirectorySessionStore.DEFAULT_SEGMENT_SIZE),
+                        ServletHelper.getLongParameter(c,
+                                "socrates.session.store.retention",
+                                SharedDirectorySessionStore.DEFAULT_RETENTION),
+                        ServletHelper.getLongParameter(c,
+                                "socrates.session.store.refresh",
+                                SharedDirectorySessionStore.DEFAULT_REFRESH_INTERVAL));
+
+                LOGGER.info("Sharing session state in " + dir + " as node "
+                        + store.getNode());
+
+                return store;
+            }
+
+            MappedSessionStore store = new MappedSessionStore(dir,
+                    (int) ServletHelper.getLongParameter(c,
+                            "socrates.session.store.segment_size",
+                            MappedSessionStore.DEFAULT_SEGMENT_SIZE),
+                    (int) ServletHelper.getLongParameter(c,
+                            "socrates.session.store.max_segments",
+                            MappedSessionStore.DEFAULT_MAX_SEGMENTS));
+
+            LOGGER.info("Keeping session state in " + dir);
+
+            return store;
+        } catch (IOException e) {
+            LOGGER.severe("Couldn't create session store in " + dir
+                    + "; keeping state in sessions: " + e.getMessage());
+            return null;
+        }
     }
 
     /**
@@ -160,6 +421,9 @@ public class WebsurveyServlet extends HttpServlet {
      * runner context anyway. If a parameter called regkey is given, this
      * parameter is used for storage and possibly retrieval of the instance.
      * This way, a user may provide it's own key.
+     *
+     * In async mode, the session is looked up on the container thread, and
+     * the rest is handed to a worker.
      * 
      * @param req
      *            The request
@@ -173,6 +437,8 @@ public class WebsurveyServlet extends HttpServlet {
     public final void doPost(final HttpServletRequest req,
             final HttpServletResponse res) throws IOException, ServletException {
 
+        final long start = System.nanoTime();
+
         // Always use UTF!
         res.setContentType("text/html;charset=UTF-8");
         req.setCharacterEncoding("UTF-8");
@@ -181,7 +447,7 @@ public class WebsurveyServlet extends HttpServlet {
         res.addHeader("Cache-Control", "no-cache");
         res.addHeader("Pragma", "No-Cache");
 
-        HttpSession session = this.sessionMgr.getSession(req);
+        final HttpSession session = this.sessionMgr.getSession(req);
 
         // If we don't have a session now, we might as well call it a day...
         if (session == null) {
@@ -199,6 +465,109 @@ public class WebsurveyServlet extends HttpServlet {
             }
         }
 
+        this.sessionMgr.exposeSession(session, req, res);
+
+        if (this.executor != null && this.executor.accepts(req)) {
+            this.executor.dispatch(req, res, new AsyncExecutor.Task() {
+                @Override
+                public boolean run(final AsyncContext async) throws Exception {
+                    return handle(req, res, session, start, async);
+                }
+            });
+            return;
+        }
+
+        handle(req, res, session, start, null);
+    }
+
+    /**
+     * Handle request for a session, with the session's context acquired.
+     * Requests on the same session take turns; a request that doesn't get
+     * its turn in time gets a 503. For async requests, the page is sent
+     * after the context is released and the turn is handed on.
+     *
+     * @param req
+     *            The request
+     * @param res
+     *            The response
+     * @param session
+     *            The session
+     * @param start
+     *            start of the request, in ns
+     * @param async
+     *            async context, or null if served synchronously
+     * @return whether the response is being sent asynchronously, and will
+     *         complete the async context
+     * @throws IOException
+     *             when some io error occurs
+     * @throws ServletException
+     *             when the servlet fails
+     */
+    private boolean handle(final HttpServletRequest req,
+            final HttpServletResponse res, final HttpSession session,
+            final long start, final AsyncContext async) throws IOException,
+            ServletException {
+
+        AsyncPageWriter writer;
+
+        this.tracer.begin(req, start);
+
+        if (!this.lanes.enter(session.getId())) {
+            RequestTracer.event("lane", "timed out");
+            this.tracer.end(req, start);
+            SessionLanes.reject(res);
+            return false;
+        }
+
+        // With a session state store, the context is only in the session
+        // while requests use it.
+        //
+        try {
+            this.sessionMgr.acquireContext(session);
+
+            try {
+                writer = serve(req, res, session, start, async);
+            } finally {
+                this.sessionMgr.releaseContext(session);
+            }
+        } finally {
+            this.lanes.exit(session.getId());
+            this.tracer.end(req, start);
+        }
+
+        if (writer == null) {
+            return false;
+        }
+
+        writer.start();
+
+        return true;
+    }
+
+    /**
+     * Handle request for a session.
+     *
+     * @param req
+     *            The request
+     * @param res
+     *            The response
+     * @param session
+     *            The session
+     * @param start
+     *            start of the request, in ns
+     * @param async
+     *            async context, or null if served synchronously
+     * @return writer that is to send the page, for async requests
+     * @throws IOException
+     *             when some io error occurs
+     * @throws ServletException
+     *             when the servlet fails
+     */
+    private AsyncPageWriter serve(final HttpServletRequest req,
+            final HttpServletResponse res, final HttpSession session,
+            final long start, final AsyncContext async) throws IOException,
+            ServletException {
+
         // Hold all enable/disable options
         //
         Map<String, String> options = ServletHelper.determineOptions(req);
@@ -209,67 +578,73 @@ public class WebsurveyServlet extends HttpServlet {
         //
         if (session.getAttribute("runnerCtx") == null) {
             
-            LOGGER.finer("Session instantiated with id " + session.getId());
-            LOGGER.fine("No runner context available in session; creating one");
+            RequestTracer.event("new runner", session.getId());
           
             if (req.getParameter("id") == null && req.getParameter("regkey") == null) {
                 LOGGER.warning("No id nor regkey parameter in request");
+                this.sessionMgr.invalidateSession(req);
                 try {
-                    res.sendRedirect("session-creation-error.html");
-                    this.sessionMgr.invalidateSession(req);
-                    res.getOutputStream().flush();
+                    AsyncExecutor.respond(new AsyncExecutor.ResponseWrite() {
+                        @Override
+                        public void write() throws IOException {
+                            res.sendRedirect("session-creation-error.html");
+                            res.getOutputStream().flush();
+                        }
+                    });
                 } catch (IOException e) {
                     LOGGER.severe("Couldn't even send error message..."
                             + e.getMessage());
                 }
-                return;
+                return null;
             }
 
             if (!initializeRunner(req, res, session, options)) {
                 LOGGER.severe("Could not create runner context. Bye for now.");
-                return;
+                return null;
             }
         }
 
         // Okido, by now we should have a session, and a valid runner context
         // stored in the session.
         //
+        PageOutputStream output = null;
+        AsyncPageWriter writer = null;
+
         try {
             WebsurveyContext wwCtx = (WebsurveyContext) session
                     .getAttribute("runnerCtx");
 
+            final String qId = wwCtx.getModelId();
+            long t = lap(qId, SESSION, start);
+
+            req.setAttribute("socrates.qid", qId);
+
             // Now let's see whether this session was deserialized.
             //
             if (wwCtx.isInvalid()) {
                 LOGGER.info("Serialized session found!");
                 // Re-create the context, and attach to WoliWeb context.
-                LOGGER.finer("Model id: " + wwCtx.getModelId());
-                LOGGER.finer("State id: " + wwCtx.getStateId());
-                LOGGER.finer("Locale: " + wwCtx.getLocale());
-
-                URI qUri = QuestionnaireURIFactory.getInstance().determineURI(
-                        this.rootDir, wwCtx.getModelId());
-
-                RunnerContextImpl ctx = this.runnerFactory.createContext(qUri,
-                        null);
-                ctx.setLocale(wwCtx.getLocale());
-                ctx.setQuestionnaireId(qUri);
-                ctx.getStateManager().setStateById(wwCtx.getStateId());
-                ctx.setInstance(wwCtx.getInstance());
-                wwCtx.setRunnerContext(ctx);
+                RequestTracer.event("rehydrate", wwCtx.getStateId(), wwCtx
+                        .getLocale());
+
+                if (!this.rehydrator.rehydrate(wwCtx)) {
+                    throw new ServletException("No questionnaire found for "
+                            + wwCtx.getModelId());
+                }
+
+                t = lap(qId, REHYDRATE, t);
             }
 
             RunnerContextImpl ctx = (RunnerContextImpl) wwCtx
                     .getRunnerContext();
 
-            LOGGER.finer("Session id " + session.getId());
-            LOGGER.finer("Context id "
-                    + ctx.getInstance().getMetaData().get("key"));
+            RequestTracer.event("context", session.getId(), ctx.getInstance()
+                    .getMetaData().get("key"));
 
             // set locale if requested later on, when the survey is well under way...
             if (req.getParameter("locale") != null && req.getParameter("id") == null) {
             	ctx.setLocale(LocaleUtility.getLocale(req.getParameter("locale"), false));
-            	LOGGER.fine("Locale change requested; set to " + LocaleUtility.getLocale(req.getParameter("locale"), false));
+            	RequestTracer.event("locale", ctx.getLocale());
             }
             
             // even check on locale in instance data...
@@ -278,7 +653,7 @@ public class WebsurveyServlet extends HttpServlet {
             					ctx.getInstance().getNode("locale").getValue().toString(), false);
             	
             	if (instanceLocale != null && instanceLocale != ctx.getLocale()) {
-            		LOGGER.fine("Locale is set in instance data: " + instanceLocale);
+            		RequestTracer.event("instance locale", instanceLocale);
             		ctx.setLocale(instanceLocale);
             	}
             } catch (Exception ex) {
@@ -303,25 +678,56 @@ public class WebsurveyServlet extends HttpServlet {
                 for (String key: params.keySet()) {
                     node = ctx.getInstance().getNode(key);
                     if (node != null) {
-                        LOGGER.fine("Preloading node value " + params.get(key) + " for node " + node.getName());
+                        RequestTracer.event("preload", key, params.get(key));
                         node.setValue(params.get(key));
                     }
                 }
             }
 
-            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            t = lap(qId, PARSE, t);
+
+            // Small pages are kept in full, so a failure may still end up in
+            // an error page. Larger pages are sent while rendering. Async
+            // requests keep the full page, and send it without blocking; the
+            // response's stream is only taken once the page is handed over.
+            //
+            output = async == null ? new PageOutputStream(this.bufferPool,
+                    res.getOutputStream(), this.streamThreshold)
+                    : new PageOutputStream(this.bufferPool, null, -1);
+
+            // A page may start streaming after the submission; headers
+            // must be set before that.
+            //
+            final RunnerContextImpl rCtx = ctx;
+            final boolean[] longSessionEnded = new boolean[1];
+
+            output.setBeforeCommit(new Runnable() {
+                @Override
+                public void run() {
+                    longSessionEnded[0] = endLongSession(rCtx, req, res);
+                }
+            });
 
             ctx.setOutputStream(output);
 
-            // @todo: I really don't see why we should re-create the runner for
-            // every post. Actually, the factory holds a reference to existing
-            // runners, so it is not really bad, but I reckon the context should
-            // hold the runner?
+            // The context holds the runner. Sessions keep the version of the
+            // questionnaire they started with, even if it was reloaded since.
             //
-            URI qUri = QuestionnaireURIFactory.getInstance().determineURI(
-                    this.rootDir, wwCtx.getModelId());
+            QuestionnaireEntry entry = wwCtx.getEntry();
 
-            Runner runner = this.runnerFactory.createRunner(qUri);
+            if (entry == null) {
+                entry = this.registry.getEntry(wwCtx.getModelId());
+                wwCtx.setEntry(entry);
+            } else if (entry.isRetired()) {
+                RequestTracer.event("retired version", qId);
+            }
+
+            if (entry == null) {
+                throw new ServletException("No questionnaire found for "
+                        + wwCtx.getModelId());
+            }
+
+            Runner runner = entry.getRunner();
 
             if (req.getParameter("previous") == null) {
                 Map<String, Object> meta = ctx.getInstance().getMetaData();
@@ -332,7 +738,7 @@ public class WebsurveyServlet extends HttpServlet {
             // serialization.
             //
             if (req.getParameter("stateId") != null) {
-                LOGGER.fine("Setting state id to " + req.getParameter("stateId"));
+                RequestTracer.event("state", req.getParameter("stateId"));
                 ctx.getInstance().getMetaData().put("stateId",
                         req.getParameter("stateId"));
                 if (!ctx.getStateManager().setStateById(req.getParameter("stateId"))) {
@@ -346,8 +752,6 @@ public class WebsurveyServlet extends HttpServlet {
                 ctx.getStateManager().previous();
                 RenderState state = ctx.getStateManager().previous();
 
-                LOGGER.finest("Fill data from instance");
-
                 ctx.setProperty("previous", "true");
 
                 if (state != null) {
@@ -362,8 +766,8 @@ public class WebsurveyServlet extends HttpServlet {
                             String name = ((Control) r).getBind();
                             params.put(name, ctx.getInstance().getNode(name)
                                     .getValue());
-                            LOGGER.finest("Set node " + name + " to "
-                                    + params.get(name));
+                            RequestTracer.event("refill", name, params
+                                    .get(name));
                         }
                     }
                 }
@@ -373,17 +777,23 @@ public class WebsurveyServlet extends HttpServlet {
 
             next(ctx, runner);
 
-            LOGGER.fine("Are we stored yet? "
-                    + ctx.getInstance().getMetaData().get("storage-type"));
-
-            // If we submitted, destroy long session
-            if ("submit".equals(ctx.getInstance().getMetaData().get(
-                    "storage-type"))) {
-                LOGGER.fine("Invalidating long session");
+            t = lap(qId, NEXT, t);
 
-                String surveyId = ctx.getInstance().getMetaData().get("qId").toString();
+            RequestTracer.event("storage", ctx.getInstance().getMetaData()
+                    .get("storage-type"));
 
-                this.sessionMgr.invalidateLongSession(surveyId, req, res);
+            // If we submitted, destroy long session, unless that happened
+            // when the page started streaming.
+            if (!longSessionEnded[0]) {
+                if (output.isCommitted()
+                        && "submit".equals(ctx.getInstance().getMetaData()
+                                .get("storage-type"))) {
+                    LOGGER.severe("Submitted after the page started streaming;"
+                            + " can't invalidate long session for "
+                            + ctx.getInstance().getMetaData().get("qId"));
+                } else {
+                    endLongSession(ctx, req, res);
+                }
             }
 
             // If this was the last action, destroy session.
@@ -391,17 +801,87 @@ public class WebsurveyServlet extends HttpServlet {
                 this.sessionMgr.invalidateSession(req);
             }
 
-            res.getOutputStream().write(output.toByteArray());
-            res.getOutputStream().flush();
-
             // free resources...
             ctx.setOutputStream(null);
 
+            if (async == null) {
+                output.finish();
+
+                lap(qId, WRITE, t);
+                this.timing.record(qId, TOTAL, System.nanoTime() - start);
+            } else {
+                final long rendered = t;
+
+                writer = new AsyncPageWriter(output, async, new Runnable() {
+                    @Override
+                    public void run() {
+                        lap(qId, WRITE, rendered);
+                        WebsurveyServlet.this.timing.record(qId, TOTAL,
+                                System.nanoTime() - start);
+                    }
+                }, AsyncExecutor.current());
+
+                // The writer owns the page now.
+                output = null;
+            }
+
         } catch (Exception e) {
             LOGGER.log(Level.SEVERE, "No runner created", e);
             throw new ServletException("Runner could not be created: "
                     + e.getMessage());
+        } finally {
+            if (output != null) {
+                output.release();
+            }
         }
+
+        return writer;
+    }
+
+    /**
+     * Destroy the long session if the instance was submitted.
+     *
+     * @param ctx
+     *            the runner context
+     * @param req
+     *            The request
+     * @param res
+     *            The response
+     * @return whether the long session was destroyed
+     */
+    private boolean endLongSession(final RunnerContextImpl ctx,
+            final HttpServletRequest req, final HttpServletResponse res) {
+
+        Map<String, Object> meta = ctx.getInstance().getMetaData();
+
+        if (!"submit".equals(meta.get("storage-type"))) {
+            return false;
+        }
+
+        this.sessionMgr.invalidateLongSession(meta.get("qId").toString(), req,
+                res);
+
+        return true;
+    }
+
+    /**
+     * Record time spent in a phase.
+     *
+     * @param qId
+     *            questionnaire id
+     * @param phase
+     *            the phase
+     * @param since
+     *            start of the phase, in ns
+     * @return end of the phase, in ns
+     */
+    private long lap(final String qId, final int phase, final long since) {
+
+        long now = System.nanoTime();
+
+        this.timing.record(qId, phase, now - since);
+
+        return now;
     }
 
     /**
@@ -435,18 +915,15 @@ public class WebsurveyServlet extends HttpServlet {
     private void next(final RunnerContext ctx, final Runner runner)
             throws Exception {
 
-        LOGGER.finest("Next state asked");
-
         // get next action till we receive the wait status. This
         // indicates that something is hanging out for user input.
         //
         while (runner.hasNext(ctx)) {
 
-            LOGGER.finest("Doing next thing");
-            LOGGER.fine("Current action before next call: " + ctx.getCurrentAction());
+            RequestTracer.event("next", ctx.getCurrentAction());
             runner.next(ctx);
-            LOGGER.fine("Current action after next call: " + ctx.getCurrentAction());
-            LOGGER.finest("Last result: " + ctx.getResult());
+            RequestTracer.event("result", ctx.getCurrentAction(), ctx
+                    .getResult());
 
             // Failure may be due to validation, in which case we should
             // provide an error message, or due to a submission error, in which
@@ -461,7 +938,7 @@ public class WebsurveyServlet extends HttpServlet {
 
                     for (Iterator<Entry<String, Exception>> i = ((ValidationException) e)
                             .getErrors().entrySet().iterator(); i.hasNext();) {
-                        LOGGER.fine("Error: " + i.next());
+                        RequestTracer.event("error", i.next());
                     }
                 } else if (e != null && e instanceof SubmissionException) {
                     LOGGER.log(Level.SEVERE, "SubmissionException"
@@ -494,28 +971,24 @@ public class WebsurveyServlet extends HttpServlet {
 
         String id = req.getParameter("id");
         
-        LOGGER.finest("Parameter id is " + id);
+        QuestionnaireEntry entry = this.registry.getEntry(id);
+
+        if (entry == null) {
+            return false;
+        }
 
-        URI qUri = QuestionnaireURIFactory.getInstance().determineURI(
-        		this.rootDir, id);
+        URI qUri = entry.getURI();
 
         /**
          * Get global config.
          */
-        Configuration cfg = null;
+        Configuration cfg = entry.getConfiguration();
 
-        try {
-            cfg = ConfigurationResource.getInstance().getConfiguration(
-                    qUri.toURL());
-        } catch (Exception e1) {
-            return false;
-        }
-
-        LOGGER.fine("Using config URI " + qUri.toString());
+        RequestTracer.event("config", qUri);
 
         try {
-            RunnerContextImpl ctx = this.runnerFactory.createContext(qUri,
-                    options);
+            RunnerContextImpl ctx = entry.getRunnerFactory().createContext(
+                    qUri, options);
             
             // Check whether the instance has a variable locale set. If so, this becomes the default.
             //
@@ -523,19 +996,16 @@ public class WebsurveyServlet extends HttpServlet {
             
             try {
             	locale = LocaleUtility.getLocale(ctx.getInstance().getNode("locale").getValue().toString(), true);
-            	LOGGER.fine("Using default locale set in model instance: " + locale);
             } catch (Exception e) {
             	locale = LocaleUtility.DEFAULT_LOCALE;
             	LOGGER.warning("Not using default locale set in model instance due to errors, fall back: " + locale);
             }
 
-        	LOGGER.fine("Using default locale " + locale);
-
             // Now see if we need to take the locale from the request
             // parameters or the user agent headers.
             locale = ServletHelper.getLocale(req, locale);
 
-            LOGGER.fine("Using locale " + locale);
+            RequestTracer.event("locale", locale);
             
             ctx.setLocale(locale);
             ctx.setQuestionnaireId(qUri);
@@ -547,18 +1017,20 @@ public class WebsurveyServlet extends HttpServlet {
              */
             if ("true".equals(cfg.getString("enablelongsessions", "true"))) {
 
-                LOGGER.info("Has long session? "
-                        + this.sessionMgr.hasLongSession(req, id));
+                boolean longSession = this.sessionMgr.hasLongSession(req, id);
+
+                RequestTracer.event("long session", Boolean
+                        .valueOf(longSession));
 
-                if (this.sessionMgr.hasLongSession(req, id)
+                if (longSession
                         && !"true".equals(options.get("disable_reload"))) {
 
                     Instance inst = this.sessionMgr.salvageInstance(id, req, ctx);
 
                     if (inst != null) {
                         ctx.setInstance(inst);
-                        LOGGER.fine("Setting state to "
-                                + (String) inst.getMetaData().get("stateId"));
+                        RequestTracer.event("salvaged", inst.getMetaData()
+                                .get("stateId"));
                         ctx.getStateManager().setStateById(
                                 (String) inst.getMetaData().get("stateId"));
                     } else {
@@ -571,8 +1043,8 @@ public class WebsurveyServlet extends HttpServlet {
 
                 if (inst != null) {
                     ctx.setInstance(inst);
-                    LOGGER.fine("Setting state to "
-                            + (String) inst.getMetaData().get("stateId"));
+                    RequestTracer.event("salvaged", inst.getMetaData().get(
+                            "stateId"));
                     ctx.getStateManager().setStateById(
                             (String) inst.getMetaData().get("stateId"));
                 } else {
@@ -587,10 +1059,18 @@ public class WebsurveyServlet extends HttpServlet {
 
             ServletHelper.setMetaData(req, meta);
 
+            if (meta.get("key") != null) {
+                this.sessionMgr.storeRegkeyReference(session.getId(), meta
+                        .get("key").toString());
+            }
+
             // Store runner context in session
             //
-            session.setAttribute("runnerCtx", new WebsurveyContext(ctx, id,
-                    locale));
+            WebsurveyContext wwCtx = new WebsurveyContext(ctx, id, locale);
+
+            wwCtx.setEntry(entry);
+            session.setAttribute("runnerCtx", wwCtx);
+            this.sessionMgr.setQuestionnaire(session, id);
 
             // Output filename. If unset, default to overwritable file.
             //
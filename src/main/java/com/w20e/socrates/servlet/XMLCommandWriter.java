@@ -0,0 +1,301 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2, or (at your option)
+ * any later version.
+ *
+ * You should have received a copy of the GNU General Public License
+ * (for example /usr/src/linux/COPYING); if not, write to the Free
+ * Software Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+package com.w20e.socrates.servlet;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Writer for the validation/commands/command/param XML sent to the Ajax
+ * client. Writes UTF-8 straight to the stream, using pre-encoded fragments
+ * for all fixed parts. The layout is the one the JAXP serializer used to
+ * produce with indenting on: one element per line, no indentation, text only
+ * elements on a single line.
+ */
+final class XMLCommandWriter {
+
+    /**
+     * Encoding used for everything.
+     */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Line separator, as used by the serializer.
+     */
+    private static final String NL = System.getProperty("line.separator",
+            "\n");
+
+    /**
+     * Document start.
+     */
+    private static final byte[] START = bytes("<?xml version=\"1.0\" "
+            + "encoding=\"UTF-8\"?><validation>" + NL + "<commands>");
+
+    /**
+     * Document end.
+     */
+    private static final byte[] END = bytes(NL + "</commands>" + NL
+            + "</validation>" + NL);
+
+    /**
+     * Document without commands.
+     */
+    private static final byte[] EMPTY = bytes("<?xml version=\"1.0\" "
+            + "encoding=\"UTF-8\"?><validation>" + NL + "<commands/>" + NL
+            + "</validation>" + NL);
+
+    /**
+     * Command start, up to the selector value.
+     */
+    private static final byte[] COMMAND_START = bytes(NL
+            + "<command selector=\"");
+
+    /**
+     * Between selector and command name.
+     */
+    private static final byte[] COMMAND_NAME = bytes("\" selectorType=\"\" "
+            + "name=\"");
+
+    /**
+     * Command start end, up to the param name.
+     */
+    private static final byte[] PARAM_START = bytes("\">" + NL
+            + "<param name=\"");
+
+    /**
+     * Between param name and value.
+     */
+    private static final byte[] PARAM_VALUE = bytes("\">");
+
+    /**
+     * Param and command end.
+     */
+    private static final byte[] COMMAND_END = bytes("</param>" + NL
+            + "</command>");
+
+    /**
+     * Size of the write buffer.
+     */
+    private static final int BUFFER_SIZE = 1024;
+
+    /**
+     * Target stream.
+     */
+    private final OutputStream out;
+
+    /**
+     * Write buffer.
+     */
+    private final byte[] buf = new byte[BUFFER_SIZE];
+
+    /**
+     * Position in buffer.
+     */
+    private int pos;
+
+    /**
+     * Any commands written yet?
+     */
+    private boolean started;
+
+    /**
+     * Create writer.
+     *
+     * @param target
+     *            stream to write to
+     */
+    XMLCommandWriter(final OutputStream target) {
+
+        this.out = target;
+    }
+
+    /**
+     * Write a command with a single parameter.
+     *
+     * @param selector
+     *            the selector
+     * @param name
+     *            command name
+     * @param paramName
+     *            parameter name
+     * @param paramValue
+     *            parameter value
+     * @throws IOException
+     *             when writing fails
+     */
+    void command(final String selector, final String name,
+            final String paramName, final String paramValue)
+            throws IOException {
+
+        if (!this.started) {
+            write(START);
+            this.started = true;
+        }
+
+        write(COMMAND_START);
+        escape(selector, true);
+        write(COMMAND_NAME);
+        escape(name, true);
+        write(PARAM_START);
+        escape(paramName, true);
+        write(PARAM_VALUE);
+        escape(paramValue, false);
+        write(COMMAND_END);
+    }
+
+    /**
+     * End the document and flush the stream.
+     *
+     * @throws IOException
+     *             when writing fails
+     */
+    void close() throws IOException {
+
+        write(this.started ? END : EMPTY);
+
+        this.out.write(this.buf, 0, this.pos);
+        this.pos = 0;
+        this.out.flush();
+    }
+
+    /**
+     * Add bytes to the buffer.
+     *
+     * @param b
+     *            bytes to add
+     * @throws IOException
+     *             when writing fails
+     */
+    private void write(final byte[] b) throws IOException {
+
+        if (this.pos + b.length > this.buf.length) {
+            this.out.write(this.buf, 0, this.pos);
+            this.pos = 0;
+
+            if (b.length > this.buf.length) {
+                this.out.write(b);
+                return;
+            }
+        }
+
+        System.arraycopy(b, 0, this.buf, this.pos, b.length);
+        this.pos += b.length;
+    }
+
+    /**
+     * Add single byte to the buffer.
+     *
+     * @param b
+     *            the byte
+     * @throws IOException
+     *             when writing fails
+     */
+    private void write(final int b) throws IOException {
+
+        if (this.pos == this.buf.length) {
+            this.out.write(this.buf, 0, this.pos);
+            this.pos = 0;
+        }
+
+        this.buf[this.pos++] = (byte) b;
+    }
+
+    /**
+     * Write string as escaped UTF-8.
+     *
+     * @param s
+     *            the string
+     * @param attr
+     *            whether this is an attribute value
+     * @throws IOException
+     *             when writing fails
+     */
+    private void escape(final String s, final boolean attr)
+            throws IOException {
+
+        int len = s.length();
+
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+
+            switch (c) {
+            case '&':
+                ascii("&amp;");
+                break;
+            case '<':
+                ascii("&lt;");
+                break;
+            case '>':
+                ascii("&gt;");
+                break;
+            case '"':
+                if (attr) {
+                    ascii("&quot;");
+                } else {
+                    write(c);
+                }
+                break;
+            case '\n':
+                if (attr) {
+                    ascii("&#10;");
+                } else {
+                    ascii(NL);
+                }
+                break;
+            default:
+                if (c < 0x80) {
+                    write(c);
+                } else if (c < 0x800) {
+                    write(0xc0 | (c >> 6));
+                    write(0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < len
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    // The serializer wrote these as character references.
+                    ascii("&#" + Character.toCodePoint(c, s.charAt(++i))
+                            + ";");
+                } else {
+                    write(0xe0 | (c >> 12));
+                    write(0x80 | ((c >> 6) & 0x3f));
+                    write(0x80 | (c & 0x3f));
+                }
+            }
+        }
+    }
+
+    /**
+     * Write ASCII only string.
+     *
+     * @param s
+     *            the string
+     * @throws IOException
+     *             when writing fails
+     */
+    private void ascii(final String s) throws IOException {
+
+        for (int i = 0; i < s.length(); i++) {
+            write(s.charAt(i));
+        }
+    }
+
+    /**
+     * Encode constant.
+     *
+     * @param s
+     *            the constant
+     * @return UTF-8 bytes
+     */
+    private static byte[] bytes(final String s) {
+
+        return s.getBytes(UTF8);
+    }
+}
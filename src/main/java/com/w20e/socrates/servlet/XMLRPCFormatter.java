@@ -11,27 +11,17 @@
 
 package com.w20e.socrates.servlet;
 
+import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.util.Map;
 import java.util.logging.Logger;
 
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.sax.SAXTransformerFactory;
-import javax.xml.transform.sax.TransformerHandler;
-import javax.xml.transform.stream.StreamResult;
-
-import org.xml.sax.helpers.AttributesImpl;
-
 import com.w20e.socrates.process.RunnerContext;
 
 /**
- * Velocity formatter for the Socrates engine. The formatter is configured with
- * a mapping from classes to templates. This formatter is implemented as a
- * singleton.
+ * Formatter for Ajax validation results: turns the changed properties into
+ * commands for the client. The XML is written straight to the stream by an
+ * XMLCommandWriter, so no JAXP serializer is set up per request.
  */
 public final class XMLRPCFormatter {
 
@@ -51,205 +41,107 @@ public final class XMLRPCFormatter {
      * @param pContext
      *            Processing context
      * @throws Exception
-     *             in case of Velocity errors, or output stream errors.
+     *             in case of output stream errors.
      */
     public void format(final Map<String, Map<String, String>> items,
             final OutputStream out, final RunnerContext pContext)
             throws Exception {
 
-        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        XMLCommandWriter writer = new XMLCommandWriter(out);
 
         LOGGER.finest("Formatting " + items.size() + " items");
 
-        StreamResult streamResult = new StreamResult(writer);
-        SAXTransformerFactory tf = (SAXTransformerFactory) TransformerFactory
-                .newInstance();
-        TransformerHandler hd = tf.newTransformerHandler();
-        Transformer serializer = hd.getTransformer();
+        // Let's loop over renderable items.
+        //
+        for (Map.Entry<String, Map<String, String>> item : items.entrySet()) {
 
-        serializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-        // serializer.setOutputProperty(OutputKeys.DOCTYPE_SYSTEM,"users.dtd");
-        serializer.setOutputProperty(OutputKeys.INDENT, "yes");
-        hd.setResult(streamResult);
-        hd.startDocument();
+            addItem(item.getKey(), item.getValue(), writer);
+        }
 
-        AttributesImpl atts = new AttributesImpl();
+        writer.close();
+    }
 
-        hd.startElement("", "", "validation", atts);
-        hd.startElement("", "", "commands", atts);
+    /**
+     * Add commands for single item.
+     * 
+     * @param rItem
+     *            item id, or group:id for groups
+     * @param itemProps
+     *            changed properties
+     * @param writer
+     *            where to write the commands
+     * @throws IOException
+     *             when writing fails
+     */
+    private void addItem(final String rItem,
+            final Map<String, String> itemProps, final XMLCommandWriter writer)
+            throws IOException {
 
-        // Let's loop over renderable items.
-        //
-        for (String rItem : items.keySet()) {
+        String selector = "";
 
-            addItem(rItem, items.get(rItem), hd);
+        if (rItem.startsWith("group:")) {
+            selector = "#fieldset-" + rItem.substring(6);
+        } else {
+            selector = "#field-" + rItem;
         }
 
-        hd.endElement("", "", "commands");
-        hd.endElement("", "", "validation");
-        hd.endDocument();
+        // Is the item required?
+        addClassCommand(selector, "required", itemProps, writer);
+
+        // Relevance
+        addClassCommand(selector, "relevant", itemProps, writer);
 
-        writer.flush();
+        // Readonly-ness
+        addClassCommand(selector, "readonly", itemProps, writer);
+
+        // New values we might have
+        if (itemProps.get("value") != null) {
+            writer.command(selector + " div.readonly-value",
+                    "replaceInnerHTML", "html", itemProps.get("value"));
+        }
+
+        // Redo label if necessary
+        if (itemProps.get("label") != null) {
+            writer.command(selector + " label.field-label",
+                    "replaceInnerHTML", "html", itemProps.get("label"));
+        }
+
+        // Redo hint if necessary
+        if (itemProps.get("hint") != null) {
+            writer.command(selector + " div.hint", "replaceInnerHTML",
+                    "html", itemProps.get("hint"));
+        }
+
+        if (itemProps.get("alert") != null) {
+            writer.command("#alert-" + rItem, "replaceInnerHTML", "html",
+                    itemProps.get("alert"));
+        }
     }
 
     /**
-     * Add single item to the stream or, if it's a group, add it's controls.
+     * Add addClass or removeClass command for boolean property, if it's
+     * there.
      * 
-     * @param rItem
-     * @param context
-     * @param pContext
-     * @param bundle
+     * @param selector
+     *            item selector
+     * @param prop
+     *            property name, also used as class name
+     * @param itemProps
+     *            changed properties
+     * @param writer
+     *            where to write the command
+     * @throws IOException
+     *             when writing fails
      */
-    private void addItem(String rItem, Map<String, String> itemProps,
-            TransformerHandler hd) {
-
-        AttributesImpl atts = new AttributesImpl();
-
-        try {
-
-            atts.clear();
-
-            String selector = "";
-
-            if (rItem.startsWith("group:")) {
-                selector = "#fieldset-" + rItem.substring(6);
-            } else {
-                selector = "#field-" + rItem;
-            }
-
-            atts.addAttribute("", "", "selector", "CDATA", selector);
-            atts.addAttribute("", "", "selectorType", "CDATA", "");
-
-            // Is the item required?
-            if (itemProps.containsKey("required")) {
-                if ("true".equals(itemProps.get("required"))) {
-                    atts.addAttribute("", "", "name", "CDATA", "addClass");
-                } else {
-                    atts.addAttribute("", "", "name", "CDATA", "removeClass");
-                }
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "value");
-                hd.startElement("", "", "param", atts);
-                hd.characters("required".toCharArray(), 0, 8);
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            // Relevance
-            if (itemProps.containsKey("relevant")) {
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", selector);
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-
-                if ("true".equals(itemProps.get("relevant"))) {
-                    atts.addAttribute("", "", "name", "CDATA", "addClass");
-                } else {
-                    atts.addAttribute("", "", "name", "CDATA", "removeClass");
-                }
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "value");
-                hd.startElement("", "", "param", atts);
-                hd.characters("relevant".toCharArray(), 0, 8);
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            if (itemProps.containsKey("readonly")) {
-                // Readonly-ness
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", selector);
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-
-                if ("true".equals(itemProps.get("readonly"))) {
-                    atts.addAttribute("", "", "name", "CDATA", "addClass");
-                } else {
-                    atts.addAttribute("", "", "name", "CDATA", "removeClass");
-                }
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "value");
-                hd.startElement("", "", "param", atts);
-                hd.characters("readonly".toCharArray(), 0, 8);
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            // New values we might have
-            if (itemProps.get("value") != null) {
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", selector
-                        + " div.readonly-value");
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-                atts.addAttribute("", "", "name", "CDATA", "replaceInnerHTML");
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "html");
-                hd.startElement("", "", "param", atts);
-                hd.characters(itemProps.get("value").toCharArray(), 0,
-                        itemProps.get("value").length());
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            // Redo label if necessary
-            if (itemProps.get("label") != null) {
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", selector
-                        + " label.field-label");
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-                atts.addAttribute("", "", "name", "CDATA", "replaceInnerHTML");
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "html");
-                hd.startElement("", "", "param", atts);
-                hd.characters(itemProps.get("label").toCharArray(), 0,
-                        itemProps.get("label").length());
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            // Redo hint if necessary
-            if (itemProps.get("hint") != null) {
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", selector
-                        + " div.hint");
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-                atts.addAttribute("", "", "name", "CDATA", "replaceInnerHTML");
-
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "html");
-                hd.startElement("", "", "param", atts);
-                hd.characters(itemProps.get("hint").toCharArray(), 0, itemProps
-                        .get("hint").length());
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-
-            if (itemProps.get("alert") != null) {
-                atts.clear();
-                atts.addAttribute("", "", "selector", "CDATA", "#alert-"
-                        + rItem);
-                atts.addAttribute("", "", "selectorType", "CDATA", "");
-                atts.addAttribute("", "", "name", "CDATA", "replaceInnerHTML");
-                hd.startElement("", "", "command", atts);
-                atts.clear();
-                atts.addAttribute("", "", "name", "CDATA", "html");
-                hd.startElement("", "", "param", atts);
-                hd.characters(itemProps.get("alert").toCharArray(), 0,
-                        itemProps.get("alert").length());
-                hd.endElement("", "", "param");
-                hd.endElement("", "", "command");
-            }
-        } catch (Exception e) {
-            // @todo Well, let's come up with something...
+    private void addClassCommand(final String selector, final String prop,
+            final Map<String, String> itemProps, final XMLCommandWriter writer)
+            throws IOException {
+
+        if (!itemProps.containsKey(prop)) {
+            return;
         }
+
+        writer.command(selector, "true".equals(itemProps.get(prop))
+                ? "addClass" : "removeClass", "value", prop);
     }
 }
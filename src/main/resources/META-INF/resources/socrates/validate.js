@@ -0,0 +1,111 @@
+/*
+ * Client for the JSON mode of the Socrates Ajax validation servlet. Applies
+ * the changed properties the same way the XML commands do:
+ *
+ *   required, relevant, readonly: class on #field-<id> / #fieldset-<id>
+ *   value: inner HTML of #field-<id> div.readonly-value
+ *   label: inner HTML of #field-<id> label.field-label
+ *   hint:  inner HTML of #field-<id> div.hint
+ *   alert: inner HTML of #alert-<id>
+ *
+ * Usage: socratesValidate(url, {A01: "some value"}, optionalCallback);
+ */
+(function (window, document) {
+
+    "use strict";
+
+    var CLASSES = ["required", "relevant", "readonly"];
+
+    function byId(id) {
+        return document.getElementById(id);
+    }
+
+    function setClass(elt, name, on) {
+        var classes = (" " + elt.className + " ").replace(" " + name + " ", " ");
+        elt.className = (on ? classes + name : classes).replace(/^\s+|\s+$/g, "");
+    }
+
+    function setHTML(elt, selector, html) {
+        var target = selector ? elt.querySelector(selector) : elt;
+        if (target) {
+            target.innerHTML = html;
+        }
+    }
+
+    function apply(result) {
+        var key, props, elt, i;
+
+        for (key in result) {
+            if (!result.hasOwnProperty(key)) {
+                continue;
+            }
+            props = result[key];
+
+            if (key.indexOf("group:") === 0) {
+                elt = byId("fieldset-" + key.substring(6));
+            } else {
+                elt = byId("field-" + key);
+            }
+
+            if (elt) {
+                for (i = 0; i < CLASSES.length; i++) {
+                    if (props.hasOwnProperty(CLASSES[i])) {
+                        setClass(elt, CLASSES[i], props[CLASSES[i]]);
+                    }
+                }
+                if (props.value !== undefined) {
+                    setHTML(elt, "div.readonly-value", props.value);
+                }
+                if (props.label !== undefined) {
+                    setHTML(elt, "label.field-label", props.label);
+                }
+                if (props.hint !== undefined) {
+                    setHTML(elt, "div.hint", props.hint);
+                }
+            }
+
+            if (props.alert !== undefined && byId("alert-" + key)) {
+                setHTML(byId("alert-" + key), null, props.alert);
+            }
+        }
+    }
+
+    function encode(params) {
+        var parts = [], key;
+
+        for (key in params) {
+            if (params.hasOwnProperty(key)) {
+                parts.push(encodeURIComponent(key) + "=" +
+                           encodeURIComponent(params[key]));
+            }
+        }
+        return parts.join("&");
+    }
+
+    window.socratesValidate = function (url, params, callback) {
+        var xhr = new XMLHttpRequest();
+
+        xhr.open("POST", url, true);
+        xhr.setRequestHeader("Content-Type",
+                             "application/x-www-form-urlencoded; charset=UTF-8");
+        xhr.setRequestHeader("Accept", "application/json");
+        xhr.onreadystatechange = function () {
+            var result;
+
+            if (xhr.readyState !== 4 || xhr.status !== 200) {
+                return;
+            }
+            result = JSON.parse(xhr.responseText);
+            if (!result.error) {
+                apply(result);
+            }
+            if (callback) {
+                callback(result);
+            }
+        };
+        xhr.send(encode(params));
+    };
+
+    window.socratesValidate.apply = apply;
+
+}(window, document));
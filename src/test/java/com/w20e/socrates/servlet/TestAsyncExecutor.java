@@ -0,0 +1,243 @@
+package com.w20e.socrates.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import junit.framework.TestCase;
+
+public class TestAsyncExecutor extends TestCase {
+
+	/**
+	 * Status sent, or 0.
+	 */
+	private volatile int status;
+
+	/**
+	 * Counted down when the async context completes.
+	 */
+	private CountDownLatch completed;
+
+	/**
+	 * Number of times the async context was completed.
+	 */
+	private AtomicInteger completions;
+
+	/**
+	 * Number of errors sent.
+	 */
+	private AtomicInteger errors;
+
+	/**
+	 * The executor's listener.
+	 */
+	private volatile AsyncListener listener;
+
+	private HttpServletRequest req;
+
+	private HttpServletResponse res;
+
+	public void setUp() {
+
+		this.status = 0;
+		this.completed = new CountDownLatch(1);
+		this.completions = new AtomicInteger();
+		this.errors = new AtomicInteger();
+
+		final AsyncContext async = (AsyncContext) proxy(AsyncContext.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("complete".equals(m.getName())) {
+							TestAsyncExecutor.this.completions.incrementAndGet();
+							TestAsyncExecutor.this.completed.countDown();
+						} else if ("addListener".equals(m.getName())) {
+							TestAsyncExecutor.this.listener = (AsyncListener) args[0];
+						}
+						return null;
+					}
+				});
+
+		this.req = (HttpServletRequest) proxy(HttpServletRequest.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("startAsync".equals(m.getName())) {
+							return async;
+						} else if ("isAsyncSupported".equals(m.getName())) {
+							return Boolean.TRUE;
+						}
+						return null;
+					}
+				});
+
+		this.res = (HttpServletResponse) proxy(HttpServletResponse.class,
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("sendError".equals(m.getName())) {
+							TestAsyncExecutor.this.errors.incrementAndGet();
+							TestAsyncExecutor.this.status = (Integer) args[0];
+						} else if ("isCommitted".equals(m.getName())) {
+							return Boolean.valueOf(TestAsyncExecutor.this.status != 0);
+						}
+						return null;
+					}
+				});
+	}
+
+	private static Object proxy(Class<?> iface, InvocationHandler handler) {
+
+		return Proxy.newProxyInstance(TestAsyncExecutor.class.getClassLoader(),
+				new Class<?>[] { iface }, handler);
+	}
+
+	public void testServed() throws Exception {
+
+		AsyncExecutor executor = new AsyncExecutor("test", 1, 1, 0);
+		final String[] thread = new String[1];
+
+		assertTrue(executor.accepts(this.req));
+
+		executor.dispatch(this.req, this.res, new AsyncExecutor.Task() {
+			public boolean run(AsyncContext async) {
+				thread[0] = Thread.currentThread().getName();
+				return false;
+			}
+		});
+
+		assertTrue(this.completed.await(5, TimeUnit.SECONDS));
+		assertEquals("socrates-async-test-1", thread[0]);
+		assertEquals(0, this.status);
+
+		executor.shutdown(1000);
+	}
+
+	public void testFailure() throws Exception {
+
+		AsyncExecutor executor = new AsyncExecutor("test", 1, 1, 0);
+
+		executor.dispatch(this.req, this.res, new AsyncExecutor.Task() {
+			public boolean run(AsyncContext async) throws Exception {
+				throw new Exception("Broken on purpose");
+			}
+		});
+
+		assertTrue(this.completed.await(5, TimeUnit.SECONDS));
+		assertEquals(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, this.status);
+
+		executor.shutdown(1000);
+	}
+
+	public void testRejected() throws Exception {
+
+		AsyncExecutor executor = new AsyncExecutor("test", 1, 1, 0);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		AsyncExecutor.Task blocking = new AsyncExecutor.Task() {
+			public boolean run(AsyncContext async) throws Exception {
+				release.await();
+				return false;
+			}
+		};
+
+		// One running, one queued, the third is turned away.
+		HttpServletResponse busy = (HttpServletResponse) proxy(
+				HttpServletResponse.class, new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						return null;
+					}
+				});
+
+		executor.dispatch(this.req, busy, blocking);
+		executor.dispatch(this.req, busy, blocking);
+		executor.dispatch(this.req, this.res, blocking);
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, this.status);
+		assertEquals(1, executor.getRejected());
+		assertTrue(this.completed.await(5, TimeUnit.SECONDS));
+
+		release.countDown();
+		executor.shutdown(1000);
+	}
+
+	public void testAbandoned() throws Exception {
+
+		AsyncExecutor executor = new AsyncExecutor("test", 1, 1, 1000);
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final boolean[] abandoned = new boolean[1];
+
+		executor.dispatch(this.req, this.res, new AsyncExecutor.Task() {
+			public boolean run(AsyncContext async) throws Exception {
+				running.countDown();
+				release.await();
+				abandoned[0] = AsyncExecutor.current().isAbandoned();
+				throw new Exception("Too late");
+			}
+		});
+
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+
+		// The container gives up on the request while it is being served.
+		this.listener.onTimeout(null);
+
+		assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, this.status);
+		assertEquals(1, executor.getAbandoned());
+		assertEquals(1, this.completions.get());
+
+		release.countDown();
+		executor.shutdown(1000);
+
+		// The worker left the response alone.
+		assertTrue(abandoned[0]);
+		assertEquals(1, this.errors.get());
+		assertEquals(1, this.completions.get());
+		assertNull(AsyncExecutor.current());
+	}
+
+	public void testRespond() throws Exception {
+
+		final AtomicInteger writes = new AtomicInteger();
+		final AsyncExecutor.ResponseWrite write = new AsyncExecutor.ResponseWrite() {
+			public void write() {
+				writes.incrementAndGet();
+			}
+		};
+
+		// Not served by an executor: just written.
+		assertTrue(AsyncExecutor.respond(write));
+		assertEquals(1, writes.get());
+
+		AsyncExecutor executor = new AsyncExecutor("test", 1, 1, 1000);
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final boolean[] written = new boolean[2];
+
+		executor.dispatch(this.req, this.res, new AsyncExecutor.Task() {
+			public boolean run(AsyncContext async) throws Exception {
+				written[0] = AsyncExecutor.respond(write);
+				running.countDown();
+				release.await();
+				written[1] = AsyncExecutor.respond(write);
+				return false;
+			}
+		});
+
+		assertTrue(running.await(5, TimeUnit.SECONDS));
+		this.listener.onTimeout(null);
+
+		release.countDown();
+		executor.shutdown(1000);
+
+		// Written while served, not once abandoned.
+		assertTrue(written[0]);
+		assertFalse(written[1]);
+		assertEquals(2, writes.get());
+	}
+}
@@ -0,0 +1,127 @@
+package com.w20e.socrates.servlet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class TestCoalescingStore extends TestCase {
+
+	public void testCoalesce() throws Exception {
+
+		// A window no test run gets to the end of; shutdown does the writes.
+		CoalescingStore store = new CoalescingStore(60000);
+		final AtomicInteger writes = new AtomicInteger();
+
+		Runnable write = new Runnable() {
+			public void run() {
+				writes.incrementAndGet();
+			}
+		};
+
+		for (int i = 0; i < 10; i++) {
+			store.store("s1", write);
+		}
+		store.store("s2", write);
+
+		assertEquals(2, store.getPending());
+		assertEquals(0, writes.get());
+
+		store.shutdown();
+
+		assertEquals(2, writes.get());
+		assertEquals(0, store.getPending());
+		assertEquals(11, store.getRequests());
+	}
+
+	public void testWindow() throws Exception {
+
+		CoalescingStore store = new CoalescingStore(50);
+		final CountDownLatch written = new CountDownLatch(1);
+
+		store.store("s1", new Runnable() {
+			public void run() {
+				written.countDown();
+			}
+		});
+
+		assertTrue(written.await(5, TimeUnit.SECONDS));
+		assertEquals(0, store.getPending());
+
+		store.shutdown();
+
+		assertEquals(1, store.getWrites());
+	}
+
+	public void testShutdownFlushes() throws Exception {
+
+		CoalescingStore store = new CoalescingStore(60000);
+		final AtomicInteger writes = new AtomicInteger();
+
+		store.store("s1", new Runnable() {
+			public void run() {
+				writes.incrementAndGet();
+			}
+		});
+
+		store.shutdown();
+
+		assertEquals(1, writes.get());
+		assertEquals(1, store.getWrites());
+	}
+
+	public void testLatestWins() throws Exception {
+
+		CoalescingStore store = new CoalescingStore(60000);
+		final StringBuffer written = new StringBuffer();
+
+		for (int i = 0; i < 3; i++) {
+			final int version = i;
+
+			store.store("s1", new Runnable() {
+				public void run() {
+					written.append(version);
+				}
+			});
+		}
+
+		store.shutdown();
+
+		assertEquals("2", written.toString());
+		assertEquals(1, store.getWrites());
+	}
+
+	public void testShutdownWaitsForWrite() throws Exception {
+
+		CoalescingStore store = new CoalescingStore(0);
+		final CountDownLatch started = new CountDownLatch(1);
+		final AtomicInteger writes = new AtomicInteger();
+
+		store.store("s1", new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					Thread.sleep(300);
+				} catch (InterruptedException e) {
+					return;
+				}
+				writes.incrementAndGet();
+			}
+		});
+
+		assertTrue(started.await(5, TimeUnit.SECONDS));
+
+		store.shutdown();
+
+		assertEquals(1, writes.get());
+
+		store.store("s2", new Runnable() {
+			public void run() {
+				writes.incrementAndGet();
+			}
+		});
+
+		assertEquals(2, writes.get());
+	}
+}
@@ -0,0 +1,283 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+import com.w20e.socrates.process.RunnerFactoryImpl;
+import com.w20e.socrates.process.StateManager;
+
+public class TestContextRehydrator extends TestCase {
+
+	/**
+	 * Factory that takes its time, and keeps track of concurrent builds.
+	 */
+	private static class SlowFactory extends RunnerFactoryImpl {
+
+		final AtomicInteger builds = new AtomicInteger();
+
+		final AtomicInteger running = new AtomicInteger();
+
+		final AtomicInteger maxRunning = new AtomicInteger();
+
+		SlowFactory() {
+			super(".");
+		}
+
+		public RunnerContextImpl createContext(URI uri,
+				Map<String, String> options) {
+
+			int now = this.running.incrementAndGet();
+			int max = this.maxRunning.get();
+
+			while (max < now && !this.maxRunning.compareAndSet(max, now)) {
+				max = this.maxRunning.get();
+			}
+
+			try {
+				Thread.sleep(50);
+			} catch (InterruptedException e) {
+				// done sooner
+			}
+
+			this.builds.incrementAndGet();
+			this.running.decrementAndGet();
+
+			return new RunnerContextImpl(new ByteArrayOutputStream(), null,
+					null, new ModelImpl(), new InstanceImpl(), null);
+		}
+	}
+
+	public void testEveryoneGetsOwnContext() throws Exception {
+
+		final SlowFactory factory = new SlowFactory();
+		final QuestionnaireEntry entry = new QuestionnaireEntry("test", null,
+				null, factory, null, Collections.<File> emptyList());
+		final ContextRehydrator rehydrator = new ContextRehydrator(null, 2);
+		final Set<RunnerContextImpl> built = Collections
+				.newSetFromMap(new ConcurrentHashMap<RunnerContextImpl, Boolean>());
+		final AtomicInteger failures = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(8);
+
+		for (int i = 0; i < 8; i++) {
+			new Thread() {
+				public void run() {
+					try {
+						built.add(rehydrator.build(entry));
+					} catch (Exception e) {
+						failures.incrementAndGet();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(0, failures.get());
+		assertEquals(8, built.size());
+		assertEquals(8, factory.builds.get());
+		assertTrue(factory.maxRunning.get() <= 2);
+	}
+
+	public void testSpareContextReused() throws Exception {
+
+		final AtomicInteger builds = new AtomicInteger();
+		final List<Object> states = new ArrayList<Object>();
+
+		final StateManager stateMgr = (StateManager) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { StateManager.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("setStateById".equals(m.getName())) {
+							states.add(args[0]);
+							return Boolean.TRUE;
+						}
+						return null;
+					}
+				});
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry("./target",
+				-1);
+		registry.add(new QuestionnaireEntry("q1", null, null,
+				new RunnerFactoryImpl(".") {
+					public RunnerContextImpl createContext(URI uri,
+							Map<String, String> options) {
+						builds.incrementAndGet();
+						return new RunnerContextImpl(
+								new ByteArrayOutputStream(), null, null,
+								new ModelImpl(), new InstanceImpl(), null) {
+							public StateManager getStateManager() {
+								return stateMgr;
+							}
+						};
+					}
+				}, null, Collections.<File> emptyList()));
+
+		ContextRehydrator rehydrator = new ContextRehydrator(registry, 1);
+		MappedSessionStore store = new MappedSessionStore(new File(
+				"./target/rehydrate-spare"), 65536, 1);
+		SessionManager mgr = new SessionManager(100, 3600, store);
+		HttpSession session = createSession("s1");
+
+		try {
+			InstanceImpl inst = new InstanceImpl();
+			inst.getMetaData().put("stateId", "page2");
+
+			store.save("s1", new WebsurveyContext(new RunnerContextImpl(
+					new ByteArrayOutputStream(), null, null, new ModelImpl(),
+					inst, null), "q1", Locale.UK));
+
+			// Two requests: the second one gets the context of the first.
+			for (int i = 0; i < 2; i++) {
+				WebsurveyContext ctx = mgr.acquireContext(session);
+
+				assertTrue(ctx.isInvalid());
+				assertTrue(rehydrator.rehydrate(ctx));
+				assertEquals("page2", ctx.getRunnerContext().getInstance()
+						.getMetaData().get("stateId"));
+				mgr.releaseContext(session);
+			}
+
+			assertEquals(1, builds.get());
+			assertEquals(2, rehydrator.getRehydrations());
+			assertEquals(1, rehydrator.getReuses());
+			assertEquals(2, states.size());
+			assertEquals("page2", states.get(1));
+		} finally {
+			store.close();
+		}
+	}
+
+	public void testBoundVersionKept() throws Exception {
+
+		AtomicInteger v1Builds = new AtomicInteger();
+		AtomicInteger v2Builds = new AtomicInteger();
+		QuestionnaireEntry v1 = new QuestionnaireEntry("q1", null, null,
+				createFactory(v1Builds), null, Collections.<File> emptyList());
+		QuestionnaireEntry v2 = new QuestionnaireEntry("q1", null, null,
+				createFactory(v2Builds), null, Collections.<File> emptyList());
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry("./target",
+				-1);
+		registry.add(v1);
+
+		ContextRehydrator rehydrator = new ContextRehydrator(registry, 1);
+		MappedSessionStore store = new MappedSessionStore(new File(
+				"./target/rehydrate-bound"), 65536, 1);
+		SessionManager mgr = new SessionManager(100, 3600, store);
+		HttpSession session = createSession("s1");
+
+		try {
+			store.save("s1", new WebsurveyContext(new RunnerContextImpl(
+					new ByteArrayOutputStream(), null, null, new ModelImpl(),
+					new InstanceImpl(), null), "q1", Locale.UK));
+
+			WebsurveyContext ctx = mgr.acquireContext(session);
+
+			assertTrue(rehydrator.rehydrate(ctx));
+			assertSame(v1, ctx.getEntry());
+			mgr.releaseContext(session);
+
+			// Reloaded while the session is in the store.
+			registry.add(v2);
+
+			ctx = mgr.acquireContext(session);
+
+			assertTrue(rehydrator.rehydrate(ctx));
+			assertSame(v1, ctx.getEntry());
+			assertSame(v1, mgr.getContext(session).getEntry());
+			mgr.releaseContext(session);
+
+			assertEquals(2, v1Builds.get());
+			assertEquals(0, v2Builds.get());
+
+			// Once the session is gone, its binding goes with it.
+			mgr.removeContext(session);
+			store.save("s1", new WebsurveyContext(new RunnerContextImpl(
+					new ByteArrayOutputStream(), null, null, new ModelImpl(),
+					new InstanceImpl(), null), "q1", Locale.UK));
+
+			ctx = mgr.acquireContext(session);
+
+			assertTrue(rehydrator.rehydrate(ctx));
+			assertSame(v2, ctx.getEntry());
+			mgr.releaseContext(session);
+		} finally {
+			store.close();
+		}
+	}
+
+	private RunnerFactoryImpl createFactory(final AtomicInteger builds) {
+
+		final StateManager stateMgr = (StateManager) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { StateManager.class }, new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("setStateById".equals(m.getName())) {
+							return Boolean.TRUE;
+						}
+						return null;
+					}
+				});
+
+		return new RunnerFactoryImpl(".") {
+			public RunnerContextImpl createContext(URI uri,
+					Map<String, String> options) {
+				builds.incrementAndGet();
+				return new RunnerContextImpl(new ByteArrayOutputStream(),
+						null, null, new ModelImpl(), new InstanceImpl(), null) {
+					public StateManager getStateManager() {
+						return stateMgr;
+					}
+				};
+			}
+		};
+	}
+
+	private HttpSession createSession(final String id) {
+
+		final Map<String, Object> attrs = new HashMap<String, Object>();
+
+		return (HttpSession) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+
+						if ("getId".equals(name)) {
+							return id;
+						} else if ("getAttribute".equals(name)) {
+							return attrs.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							attrs.put((String) args[0], args[1]);
+						} else if ("removeAttribute".equals(name)) {
+							attrs.remove(args[0]);
+						}
+						return null;
+					}
+				});
+	}
+}
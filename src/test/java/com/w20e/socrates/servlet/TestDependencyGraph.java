@@ -0,0 +1,146 @@
+package com.w20e.socrates.servlet;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import junit.framework.TestCase;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class TestDependencyGraph extends TestCase {
+
+	private static final String[] EXPRESSIONS = { "relevant", "required",
+			"readonly", "constraint" };
+
+	private List<String> names;
+
+	private DependencyGraph graph;
+
+	/**
+	 * Build the graph for test-model.xml, with nodes named by their path.
+	 */
+	public void setUp() throws Exception {
+
+		InputStream in = getClass().getResourceAsStream("/test-model.xml");
+		Document doc;
+
+		try {
+			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(in);
+		} finally {
+			in.close();
+		}
+
+		this.names = new ArrayList<String>();
+		addNames((Element) doc.getElementsByTagName("data").item(0), "");
+
+		this.graph = new DependencyGraph(this.names);
+
+		NodeList props = doc.getElementsByTagName("properties");
+
+		for (int i = 0; i < props.getLength(); i++) {
+			Element prop = (Element) props.item(i);
+			String bind = text(prop, "bind");
+
+			for (String name : this.names) {
+				if (!name.substring(name.lastIndexOf('/') + 1).matches(bind)) {
+					continue;
+				}
+				for (String expr : EXPRESSIONS) {
+					this.graph.addExpression(name, text(prop, expr), false);
+				}
+				this.graph.addExpression(name, text(prop, "calculate"), true);
+			}
+		}
+	}
+
+	private void addNames(final Element parent, final String path) {
+
+		NodeList children = parent.getChildNodes();
+
+		for (int i = 0; i < children.getLength(); i++) {
+			if (!(children.item(i) instanceof Element)) {
+				continue;
+			}
+			Element child = (Element) children.item(i);
+			String name = path + "/" + child.getAttribute("name");
+
+			if ("var".equals(child.getTagName())) {
+				this.names.add(name);
+			} else {
+				addNames(child, name);
+			}
+		}
+	}
+
+	private String text(final Element parent, final String tag) {
+
+		NodeList nodes = parent.getElementsByTagName(tag);
+
+		return nodes.getLength() == 0 ? null : nodes.item(0).getTextContent();
+	}
+
+	public void testModel() {
+
+		assertEquals(4, this.names.size());
+		assertTrue(this.names.contains("/xx/yy/pipo"));
+
+		Set<String> affected = this.graph.getAffected(Arrays.asList("/xx/bar"));
+
+		assertTrue(affected.contains("/xx/bar"));
+		assertTrue(affected.contains("/xx/foo"));
+		assertEquals(2, affected.size());
+
+		affected = this.graph.getAffected(Arrays.asList("/xx/yy/pipo"));
+
+		assertEquals(1, affected.size());
+	}
+
+	public void testPaths() {
+
+		this.graph.addExpression("/zzz", "/xx/yy/pipo > 1", false);
+		this.graph.addExpression("/xx/yy/pipo", "../bar = 1", false);
+
+		assertTrue(this.graph.getAffected(Arrays.asList("/xx/yy/pipo"))
+				.contains("/zzz"));
+		assertTrue(this.graph.getAffected(Arrays.asList("/xx/bar"))
+				.contains("/xx/yy/pipo"));
+		assertFalse(this.graph.getAffected(Arrays.asList("/xx/foo"))
+				.contains("/zzz"));
+	}
+
+	public void testCalculate() {
+
+		this.graph.addExpression("/zzz", "/xx/foo-1", true);
+		this.graph.addExpression("/xx/yy/pipo", "zzz > 1", false);
+
+		Set<String> affected = this.graph.getAffected(Arrays.asList("/xx/foo"));
+
+		assertTrue(affected.contains("/zzz"));
+		assertTrue(affected.contains("/xx/yy/pipo"));
+	}
+
+	public void testFills() {
+
+		NodeReferences refs = new NodeReferences(this.names);
+
+		assertEquals(Arrays.asList("/xx/bar", "foo"),
+				NodeReferences.getFills("${ /xx/bar } and ${foo}"));
+		assertTrue(NodeReferences.isReference("/xx/yy/pipo"));
+		assertTrue(NodeReferences.isReference("../bar"));
+		assertFalse(NodeReferences.isReference("bar, '%d'"));
+
+		Set<String> found = refs.resolveFills("You said ${/xx/bar}");
+
+		assertEquals(1, found.size());
+		assertTrue(found.contains("/xx/bar"));
+		assertTrue(refs.resolveFills("Nothing here").isEmpty());
+	}
+}
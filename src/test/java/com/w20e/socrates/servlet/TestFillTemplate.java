@@ -0,0 +1,148 @@
+package com.w20e.socrates.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.rendering.RenderConfig;
+
+public class TestFillTemplate extends TestCase {
+
+	private InstanceImpl inst;
+
+	private Model model;
+
+	private RenderConfig cfg;
+
+	private int calls;
+
+	private final FillTemplate.Filler filler = new FillTemplate.Filler() {
+		public String fill(String text, Instance i, Model m, RenderConfig c,
+				Locale l) throws Exception {
+			TestFillTemplate.this.calls++;
+			return text + ":" + i.getNode("A1").getValue() + ":" + l;
+		}
+	};
+
+	public void setUp() {
+
+		this.inst = new InstanceImpl();
+		this.inst.addNode(new NodeImpl("A1", "fine"));
+		this.inst.addNode(new NodeImpl("/xx/bar", Integer.valueOf(1)));
+		this.model = new ModelImpl();
+		this.cfg = newRenderConfig();
+		this.calls = 0;
+	}
+
+	private RenderConfig newRenderConfig() {
+
+		return (RenderConfig) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { RenderConfig.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method method,
+							Object[] args) {
+						if ("equals".equals(method.getName())) {
+							return Boolean.valueOf(proxy == args[0]);
+						} else if ("hashCode".equals(method.getName())) {
+							return Integer.valueOf(System
+									.identityHashCode(proxy));
+						}
+						return null;
+					}
+				});
+	}
+
+	private String render(FillTemplate template, Locale locale)
+			throws Exception {
+
+		return template.render(this.inst, this.model, this.cfg, locale,
+				this.filler);
+	}
+
+	public void testNoFills() throws Exception {
+
+		FillTemplate template = FillTemplate.getInstance("How are you?",
+				this.inst, this.model);
+
+		assertFalse(template.hasFills());
+		assertEquals("How are you?", render(template, Locale.UK));
+		assertEquals(0, this.calls);
+	}
+
+	public void testRemembered() throws Exception {
+
+		FillTemplate template = FillTemplate.getInstance("You said ${A1}",
+				this.inst, this.model);
+
+		assertSame(template, FillTemplate.getInstance("You said ${A1}",
+				this.inst, this.model));
+
+		String first = render(template, Locale.UK);
+
+		assertEquals("You said ${A1}:fine:en_GB", first);
+		assertEquals(first, render(template, Locale.UK));
+		assertEquals(1, this.calls);
+
+		// Changing an unreferenced node doesn't matter.
+		this.inst.getNode("/xx/bar").setValue(Integer.valueOf(2));
+		render(template, Locale.UK);
+		assertEquals(1, this.calls);
+
+		this.inst.getNode("A1").setValue("bad");
+		assertEquals("You said ${A1}:bad:en_GB", render(template, Locale.UK));
+		assertEquals(2, this.calls);
+
+		this.inst.getNode("A1").setValue("fine");
+		assertEquals(first, render(template, Locale.UK));
+		assertEquals(2, this.calls);
+	}
+
+	public void testLocaleAndConfig() throws Exception {
+
+		FillTemplate template = FillTemplate.getInstance("You said ${A1}",
+				this.inst, this.model);
+
+		render(template, Locale.UK);
+		assertEquals("You said ${A1}:fine:fr_FR", render(template,
+				Locale.FRANCE));
+		assertEquals(2, this.calls);
+
+		// Option labels come from the render config.
+		this.cfg = newRenderConfig();
+		render(template, Locale.UK);
+		assertEquals(3, this.calls);
+	}
+
+	public void testPath() throws Exception {
+
+		FillTemplate template = FillTemplate.getInstance("Bar is ${ /xx/bar }",
+				this.inst, this.model);
+
+		render(template, Locale.UK);
+		render(template, Locale.UK);
+		assertEquals(1, this.calls);
+
+		this.inst.getNode("/xx/bar").setValue(Integer.valueOf(2));
+		render(template, Locale.UK);
+		assertEquals(2, this.calls);
+	}
+
+	public void testNotRemembered() throws Exception {
+
+		FillTemplate template = FillTemplate.getInstance(
+				"You said ${A1, '%s'} and ${nonexistent}", this.inst,
+				this.model);
+
+		render(template, Locale.UK);
+		render(template, Locale.UK);
+		assertEquals(2, this.calls);
+	}
+}
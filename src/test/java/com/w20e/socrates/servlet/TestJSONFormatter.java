@@ -0,0 +1,42 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+public class TestJSONFormatter extends TestCase {
+
+	public void testFormat() throws Exception {
+
+		Map<String, Map<String, String>> items = new LinkedHashMap<String, Map<String, String>>();
+
+		Map<String, String> props = new LinkedHashMap<String, String>();
+		props.put("required", "true");
+		props.put("relevant", "false");
+		props.put("alert", "Say \"yes\"\n</script>");
+		items.put("A01", props);
+
+		Map<String, String> group = new LinkedHashMap<String, String>();
+		group.put("relevant", "true");
+		items.put("group:g1", group);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new JSONFormatter().format(items, out, null);
+
+		assertEquals("{\"A01\":{\"required\":true,\"relevant\":false,"
+				+ "\"alert\":\"Say \\\"yes\\\"\\n\\u003c/script>\"},"
+				+ "\"group:g1\":{\"relevant\":true}}", out.toString("UTF-8"));
+	}
+
+	public void testFormatEmpty() throws Exception {
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new JSONFormatter().format(new LinkedHashMap<String, Map<String, String>>(), out, null);
+
+		assertEquals("{}", out.toString("UTF-8"));
+	}
+}
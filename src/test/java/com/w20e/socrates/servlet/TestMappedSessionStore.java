@@ -0,0 +1,113 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.model.SubmissionImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+public class TestMappedSessionStore extends TestCase {
+
+	private File dir = new File("./target/session-store");
+
+	private MappedSessionStore store;
+
+	public void setUp() throws Exception {
+
+		this.store = new MappedSessionStore(this.dir, 4096, 2);
+	}
+
+	public void tearDown() {
+
+		this.store.close();
+	}
+
+	private WebsurveyContext createContext(String value, int nodes) {
+
+		InstanceImpl inst = new InstanceImpl();
+
+		for (int i = 0; i < nodes; i++) {
+			inst.addNode(new NodeImpl("q" + i, value));
+		}
+
+		ModelImpl model = new ModelImpl();
+		model.setSubmission(new SubmissionImpl());
+
+		return new WebsurveyContext(new RunnerContextImpl(
+				new ByteArrayOutputStream(), null, null, model, inst, null),
+				"pipo", new Locale("nl", "NL"));
+	}
+
+	public void testRoundTrip() throws Exception {
+
+		assertNull(this.store.load("s1"));
+
+		this.store.save("s1", createContext("one", 5));
+		this.store.save("s2", createContext("two", 5));
+		this.store.save("s1", createContext("uno", 5));
+
+		assertEquals(2, this.store.size());
+
+		WebsurveyContext ctx = this.store.load("s1");
+
+		assertTrue(ctx.isInvalid());
+		assertEquals("pipo", ctx.getModelId());
+		assertEquals("uno", ctx.getInstance().getNode("q4").getValue());
+		assertEquals("two", this.store.load("s2").getInstance().getNode("q0")
+				.getValue());
+
+		this.store.remove("s1");
+
+		assertNull(this.store.load("s1"));
+		assertEquals(1, this.store.size());
+	}
+
+	public void testReuse() throws Exception {
+
+		// Keep rewriting a few sessions; way more than fits in two segments.
+		for (int i = 0; i < 500; i++) {
+			this.store.save("s" + (i % 5), createContext("answer " + i, 3));
+		}
+
+		assertEquals(5, this.store.size());
+		assertEquals(2, this.store.getSegments());
+
+		for (int i = 495; i < 500; i++) {
+			assertEquals("answer " + i, this.store.load("s" + (i % 5))
+					.getInstance().getNode("q2").getValue());
+		}
+	}
+
+	public void testFull() throws Exception {
+
+		try {
+			this.store.save("big", createContext("x", 1000));
+			fail("Context shouldn't fit");
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		int i = 0;
+
+		try {
+			for (; i < 1000; i++) {
+				this.store.save("s" + i, createContext("answer", 3));
+			}
+			fail("Store should be full");
+		} catch (IOException e) {
+			// Expected.
+		}
+
+		// What's there is still fine.
+		assertEquals(i, this.store.size());
+		assertEquals("answer", this.store.load("s0").getInstance()
+				.getNode("q0").getValue());
+	}
+}
@@ -0,0 +1,47 @@
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.configuration.BaseConfiguration;
+
+import com.w20e.socrates.model.ConstraintViolation;
+
+public class TestMessageCatalog extends TestCase {
+
+	private QuestionnaireEntry newEntry() {
+
+		BaseConfiguration cfg = new BaseConfiguration();
+
+		cfg.setProperty("formatter.locale.prefix", "websurvey");
+
+		return new QuestionnaireEntry("test", null, cfg, null, null,
+				Collections.<File> emptyList());
+	}
+
+	public void testTranslate() throws Exception {
+
+		MessageCatalog catalog = newEntry().getMessageCatalog(Locale.UK);
+
+		assertEquals("Answering this question is required",
+				catalog.translate(ConstraintViolation.REQUIRED));
+		assertEquals("Erroneous format",
+				catalog.translate(ConstraintViolation.TYPE));
+		assertEquals("Erroneous input", catalog.translate("whatever"));
+	}
+
+	public void testHeldByEntry() throws Exception {
+
+		QuestionnaireEntry entry = newEntry();
+		MessageCatalog catalog = entry.getMessageCatalog(Locale.UK);
+
+		assertSame(catalog, entry.getMessageCatalog(Locale.UK));
+		assertNotSame(catalog, entry.getMessageCatalog(Locale.FRANCE));
+
+		// A reloaded questionnaire gets its own catalogs.
+		assertNotSame(catalog, newEntry().getMessageCatalog(Locale.UK));
+	}
+}
@@ -0,0 +1,156 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+
+import junit.framework.TestCase;
+
+public class TestPageOutputStream extends TestCase {
+
+	private BufferPool pool;
+
+	private ByteArrayOutputStream target;
+
+	public void setUp() {
+
+		this.pool = new BufferPool(16, 4);
+		this.target = new ByteArrayOutputStream();
+	}
+
+	public void testBuffered() throws Exception {
+
+		PageOutputStream out = new PageOutputStream(this.pool, this.target, -1);
+
+		byte[] page = page(100);
+		out.write(page);
+
+		assertFalse(out.isCommitted());
+		assertEquals(0, this.target.size());
+
+		out.finish();
+
+		assertTrue(Arrays.equals(page, this.target.toByteArray()));
+		assertEquals(4, this.pool.getPooled());
+	}
+
+	public void testStreaming() throws Exception {
+
+		PageOutputStream out = new PageOutputStream(this.pool, this.target, 32);
+
+		byte[] page = page(100);
+
+		out.write(page, 0, 20);
+		assertFalse(out.isCommitted());
+
+		for (int i = 20; i < page.length; i++) {
+			out.write(page[i]);
+		}
+
+		assertTrue(out.isCommitted());
+		assertTrue(this.target.size() >= 32);
+
+		out.finish();
+
+		assertTrue(Arrays.equals(page, this.target.toByteArray()));
+	}
+
+	public void testBeforeCommit() throws Exception {
+
+		PageOutputStream out = new PageOutputStream(this.pool, this.target, 32);
+		final int[] calls = new int[1];
+
+		out.setBeforeCommit(new Runnable() {
+			public void run() {
+				// Nothing sent yet.
+				assertEquals(0, TestPageOutputStream.this.target.size());
+				calls[0]++;
+			}
+		});
+
+		out.write(page(20));
+		assertEquals(0, calls[0]);
+
+		out.write(page(80));
+		assertEquals(1, calls[0]);
+
+		out.finish();
+		assertEquals(1, calls[0]);
+		assertEquals(100, this.target.size());
+	}
+
+	public void testRelease() throws Exception {
+
+		PageOutputStream out = new PageOutputStream(this.pool, this.target, -1);
+
+		out.write(page(50));
+		out.release();
+
+		assertEquals(0, this.target.size());
+		assertEquals(4, this.pool.getPooled());
+
+		// second release, or finish, is harmless
+		out.release();
+		out.finish();
+		assertEquals(0, this.target.size());
+	}
+
+	public void testDrain() throws Exception {
+
+		PageOutputStream out = new PageOutputStream(this.pool, this.target, -1);
+
+		byte[] page = page(50);
+		out.write(page);
+
+		// Client takes one write at a time.
+		final int[] ready = new int[1];
+
+		ServletOutputStream client = new ServletOutputStream() {
+			public void write(int b) {
+				TestPageOutputStream.this.target.write(b);
+			}
+
+			public void write(byte[] b, int off, int len) {
+				ready[0]--;
+				TestPageOutputStream.this.target.write(b, off, len);
+			}
+
+			public boolean isReady() {
+				return ready[0] > 0;
+			}
+
+			public void setWriteListener(WriteListener listener) {
+			}
+		};
+
+		assertFalse(out.drain(client));
+		assertEquals(0, this.target.size());
+
+		ready[0] = 2;
+		assertFalse(out.drain(client));
+		assertTrue(out.isCommitted());
+		assertEquals(32, this.target.size());
+
+		ready[0] = 10;
+		assertTrue(out.drain(client));
+		assertTrue(Arrays.equals(page, this.target.toByteArray()));
+		assertEquals(4, this.pool.getPooled());
+
+		// done is done
+		assertTrue(out.drain(client));
+		assertEquals(50, this.target.size());
+	}
+
+	private static byte[] page(int size) {
+
+		byte[] page = new byte[size];
+
+		for (int i = 0; i < size; i++) {
+			page[i] = (byte) i;
+		}
+
+		return page;
+	}
+}
@@ -0,0 +1,34 @@
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+public class TestQuestionnairePreloader extends TestCase {
+
+	public void testNothingToLoad() throws Exception {
+
+		File root = new File("./target/preload-empty");
+		root.mkdirs();
+
+		FileWriter out = new FileWriter(new File(root, "notes.txt"));
+		out.write("Not a questionnaire");
+		out.close();
+
+		QuestionnairePreloader preloader = new QuestionnairePreloader(
+				new QuestionnaireRegistry(root.getPath(), -1), 4);
+
+		assertTrue(preloader.discover().isEmpty());
+		assertEquals(0, preloader.preload());
+		assertTrue(preloader.getFailures().isEmpty());
+	}
+
+	public void testMissingRoot() {
+
+		QuestionnairePreloader preloader = new QuestionnairePreloader(
+				new QuestionnaireRegistry("./target/preload-missing", -1), 4);
+
+		assertEquals(0, preloader.preload());
+	}
+}
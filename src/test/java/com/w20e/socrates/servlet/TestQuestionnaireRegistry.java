@@ -0,0 +1,68 @@
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.FileWriter;
+
+import junit.framework.TestCase;
+
+public class TestQuestionnaireRegistry extends TestCase {
+
+	public void testLoad() {
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry(
+				"./target/test-classes", -1);
+
+		QuestionnaireEntry entry = registry.getEntry("websurvey-test-config");
+
+		assertNotNull(entry);
+		assertSame(entry, registry.getEntry("websurvey-test-config"));
+		assertFalse(registry.isKnownFailure("websurvey-test-config"));
+	}
+
+	public void testUnknownId() {
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry(
+				"./target/test-classes", -1);
+
+		for (int i = 0; i < 100; i++) {
+			assertNull(registry.getEntry("no-such-survey-" + i));
+		}
+
+		assertTrue(registry.isKnownFailure("no-such-survey-0"));
+
+		// No locks for questionnaires that don't exist.
+		assertEquals(0, registry.getLockCount());
+	}
+
+	public void testBrokenConfig() throws Exception {
+
+		File root = new File("./target/registry-broken");
+		root.mkdirs();
+
+		FileWriter out = new FileWriter(new File(root, "broken.xml"));
+		out.write("Not a questionnaire");
+		out.close();
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry(root
+				.getPath(), -1);
+
+		assertNull(registry.getEntry("broken"));
+		assertTrue(registry.isKnownFailure("broken"));
+		assertNull(registry.getEntry("broken"));
+		assertEquals(1, registry.getLockCount());
+	}
+
+	public void testManyFailures() {
+
+		QuestionnaireRegistry registry = new QuestionnaireRegistry(
+				"./target/registry-none", -1);
+
+		for (int i = 0; i < QuestionnaireRegistry.MAX_FAILURES + 10; i++) {
+			assertNull(registry.getEntry("q" + i));
+		}
+
+		// Remembering is bounded; the latest is kept.
+		assertTrue(registry.isKnownFailure("q"
+				+ (QuestionnaireRegistry.MAX_FAILURES + 9)));
+	}
+}
@@ -0,0 +1,70 @@
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+public class TestQuestionnaireWatcher extends TestCase {
+
+	private QuestionnaireEntry entry(String id, String... files) {
+
+		File[] deps = new File[files.length];
+
+		for (int i = 0; i < files.length; i++) {
+			deps[i] = new File(files[i]);
+		}
+
+		return new QuestionnaireEntry(id, null, null, null, null, Arrays
+				.asList(deps));
+	}
+
+	private Set<Path> paths(String... files) {
+
+		Set<Path> paths = new HashSet<Path>();
+
+		for (String file : files) {
+			paths.add(new File(file).toPath());
+		}
+
+		return paths;
+	}
+
+	public void testAffected() {
+
+		List<QuestionnaireEntry> entries = Arrays.asList(
+				entry("q1", "cfg/q1.xml", "cfg/model.xml", "flows/q1.xml"),
+				entry("q2", "cfg/q2.xml", "cfg/model.xml", "flows/q2.xml"),
+				entry("q3", "other/q3.xml"));
+
+		assertEquals(Collections.singletonList("q1"), QuestionnaireWatcher
+				.affected(entries, paths("cfg/q1.xml")));
+		assertEquals(Arrays.asList("q1", "q2"), QuestionnaireWatcher
+				.affected(entries, paths("./cfg/model.xml")));
+		assertEquals(Collections.singletonList("q2"), QuestionnaireWatcher
+				.affected(entries, paths("flows/../flows/q2.xml")));
+		assertTrue(QuestionnaireWatcher.affected(entries,
+				paths("cfg/unrelated.xml")).isEmpty());
+
+		// Lost events for a directory: all with files in there.
+		assertEquals(Arrays.asList("q1", "q2"), QuestionnaireWatcher
+				.affected(entries, paths("flows")));
+	}
+
+	public void testStartStop() {
+
+		File root = new File("./target/watched");
+		root.mkdirs();
+
+		QuestionnaireWatcher watcher = QuestionnaireWatcher.start(
+				new QuestionnaireRegistry(root.getPath(), -1), 10);
+
+		assertNotNull(watcher);
+		watcher.stop();
+	}
+}
@@ -0,0 +1,88 @@
+package com.w20e.socrates.servlet;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+public class TestRegkeyIndex extends TestCase {
+
+	private File dir;
+
+	public void setUp() throws Exception {
+
+		this.dir = new File("./target/regkey-index-test");
+
+		if (this.dir.exists()) {
+			for (File f : this.dir.listFiles()) {
+				f.delete();
+			}
+		}
+		this.dir.mkdirs();
+
+		touch("pipo-1_en_GB_20120101120000_KEY0001.xml");
+		touch("pipo-1_nl_NL_20120101120001_KEY0002.xml");
+	}
+
+	public void tearDown() {
+
+		RegkeyIndex.closeAll();
+	}
+
+	public void testRebuildAndLookup() throws Exception {
+
+		RegkeyIndex index = RegkeyIndex.forDirectory(this.dir);
+
+		assertNotNull(index);
+		assertEquals(2, index.size());
+		assertEquals("pipo-1_nl_NL_20120101120001_KEY0002.xml", index.get(
+				"KEY0002").getName());
+		assertNull(index.get("KEY0003"));
+
+		touch("pipo-1_en_GB_20120101120002_KEY0003.xml");
+		index.put("KEY0003", "pipo-1_en_GB_20120101120002_KEY0003.xml");
+		assertNotNull(index.get("KEY0003"));
+
+		// Names that don't hold the key are refused.
+		index.put("KEY0004", "some-other-file.xml");
+		assertNull(index.get("KEY0004"));
+	}
+
+	public void testExactKey() throws Exception {
+
+		RegkeyIndex index = RegkeyIndex.forDirectory(this.dir);
+
+		// KEY000 is part of other names, but no file is named after it.
+		assertNull(index.get("KEY000"));
+		assertNull(index.get("0001"));
+
+		index.put("KEY000", "pipo-1_en_GB_20120101120000_KEY0001.xml");
+		assertNull(index.get("KEY000"));
+
+		assertTrue(RegkeyIndex.matches("a_KEY1.xml", "KEY1"));
+		assertFalse(RegkeyIndex.matches("a_KEY12.xml", "KEY1"));
+		assertFalse(RegkeyIndex.matches("a_XKEY1.xml", "KEY1"));
+		assertFalse(RegkeyIndex.matches("KEY1.xml", "KEY1"));
+		assertFalse(RegkeyIndex.matches("a_KEY1.txt", "KEY1"));
+	}
+
+	public void testPersistent() throws Exception {
+
+		RegkeyIndex.forDirectory(this.dir);
+		RegkeyIndex.closeAll();
+
+		// Remove a file; the index should still know about the others.
+		new File(this.dir, "pipo-1_en_GB_20120101120000_KEY0001.xml").delete();
+
+		RegkeyIndex index = RegkeyIndex.forDirectory(this.dir);
+
+		assertEquals(2, index.size());
+		assertNull(index.get("KEY0001"));
+		assertNotNull(index.get("KEY0002"));
+	}
+
+	private void touch(String name) throws Exception {
+
+		new FileOutputStream(new File(this.dir, name)).close();
+	}
+}
@@ -0,0 +1,64 @@
+package com.w20e.socrates.servlet;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import junit.framework.TestCase;
+
+public class TestRequestTiming extends TestCase {
+
+	public void testRecord() {
+
+		RequestTiming timing = new RequestTiming("parse", "render");
+
+		for (int i = 1; i <= 100; i++) {
+			timing.record("q1", 0, i * 1000000L);
+		}
+		timing.record("q2", 1, 5000);
+
+		PhaseStatistics parse = timing.getPhaseStatistics("q1", "parse");
+
+		assertEquals(100, parse.getCount());
+		assertEquals(50500.0, parse.getMeanMicros(), 0.1);
+		assertEquals(100000, parse.getMaxMicros());
+
+		// Buckets are powers of two, so percentiles are within a factor two.
+		assertTrue(parse.getP50Micros() >= 50000);
+		assertTrue(parse.getP50Micros() <= 100000);
+		assertEquals(100000, parse.getP99Micros());
+
+		assertEquals(0, timing.getPhaseStatistics("q1", "render").getCount());
+		assertEquals(1, timing.getPhaseStatistics("q2", "render").getCount());
+		assertNull(timing.getPhaseStatistics("q3", "render"));
+		assertEquals(4, timing.getStatistics().size());
+
+		timing.reset();
+
+		assertEquals(0, timing.getStatistics().size());
+	}
+
+	public void testJMX() throws Exception {
+
+		RequestTiming timing = new RequestTiming("parse");
+		timing.record("q1", 0, 2000000L);
+		timing.register("test");
+
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(
+					"com.w20e.socrates:type=RequestTiming,servlet=\"test\"");
+
+			CompositeData[] stats = (CompositeData[]) server.getAttribute(
+					name, "Statistics");
+
+			assertEquals(1, stats.length);
+			assertEquals("q1", stats[0].get("questionnaire"));
+			assertEquals(Long.valueOf(1), stats[0].get("count"));
+		} finally {
+			timing.unregister();
+		}
+	}
+}
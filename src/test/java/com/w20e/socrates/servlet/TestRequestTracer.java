@@ -0,0 +1,110 @@
+package com.w20e.socrates.servlet;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpServletRequest;
+
+import junit.framework.TestCase;
+
+public class TestRequestTracer extends TestCase {
+
+	/**
+	 * Minimal request: URI and the questionnaire attribute.
+	 */
+	private HttpServletRequest createRequest(final String uri, final String qId) {
+
+		return (HttpServletRequest) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { HttpServletRequest.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("getRequestURI".equals(m.getName())) {
+							return uri;
+						} else if ("getAttribute".equals(m.getName())
+								&& "socrates.qid".equals(args[0])) {
+							return qId;
+						}
+						return null;
+					}
+				});
+	}
+
+	private String dump(final RequestTracer tracer) {
+
+		StringWriter out = new StringWriter();
+
+		tracer.dump(new PrintWriter(out));
+
+		return out.toString();
+	}
+
+	public void testSampled() {
+
+		RequestTracer tracer = new RequestTracer(2, 0, 4, 8);
+		HttpServletRequest req = createRequest("/survey", "q1");
+
+		for (int i = 0; i < 4; i++) {
+			tracer.begin(req, System.nanoTime());
+			assertEquals(i % 2 == 1, RequestTracer.isTracing());
+			RequestTracer.event("param", "foo", Integer.valueOf(i));
+			tracer.end(req, System.nanoTime());
+			assertFalse(RequestTracer.isTracing());
+		}
+
+		String dump = dump(tracer);
+
+		assertTrue(dump.indexOf("#4 ") != -1);
+		assertTrue(dump.indexOf("#2 ") != -1);
+		assertTrue(dump.indexOf("#3 ") == -1);
+		assertTrue(dump.indexOf("q=q1") != -1);
+		assertTrue(dump.indexOf("param foo 3") != -1);
+		assertTrue(dump.indexOf("param foo 2") == -1);
+
+		// Events outside of a request go nowhere.
+		RequestTracer.event("stray");
+		assertTrue(dump(tracer).indexOf("stray") == -1);
+	}
+
+	public void testEventOverflow() {
+
+		RequestTracer tracer = new RequestTracer(1, 0, 1, 2);
+		HttpServletRequest req = createRequest("/survey", null);
+
+		tracer.begin(req, System.nanoTime());
+		RequestTracer.event("first");
+		RequestTracer.event("second");
+		RequestTracer.event("third");
+		tracer.end(req, System.nanoTime());
+
+		String dump = dump(tracer);
+
+		assertTrue(dump.indexOf("first") == -1);
+		assertTrue(dump.indexOf("second") != -1);
+		assertTrue(dump.indexOf("third") != -1);
+	}
+
+	public void testSlowSummary() {
+
+		RequestTracer tracer = new RequestTracer(0, 1, 4, 8);
+		HttpServletRequest req = createRequest("/slow", "q2");
+
+		tracer.begin(req, System.nanoTime());
+		assertFalse(RequestTracer.isTracing());
+		RequestTracer.event("param", "foo", "bar");
+		tracer.end(req, System.nanoTime() - 5000000L);
+
+		tracer.begin(req, System.nanoTime());
+		tracer.end(req, System.nanoTime());
+
+		String dump = dump(tracer);
+
+		assertTrue(dump.indexOf("/slow") != -1);
+		assertTrue(dump.indexOf("SLOW") != -1);
+		assertTrue(dump.indexOf("not sampled") != -1);
+		assertTrue(dump.indexOf("param") == -1);
+		assertEquals(dump.indexOf("/slow"), dump.lastIndexOf("/slow"));
+	}
+}
@@ -0,0 +1,30 @@
+package com.w20e.socrates.servlet;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.NodeImpl;
+
+public class TestServletHelper extends TestCase {
+
+	public void testCopyInstance() throws Exception {
+
+		InstanceImpl inst = new InstanceImpl();
+
+		inst.addNode(new NodeImpl("/a"));
+		inst.addNode(new NodeImpl("/a/b", Integer.valueOf(42)));
+		inst.getMetaData().put("stateId", "page1");
+
+		Instance copy = ServletHelper.copyInstance(inst);
+
+		inst.getNode("/a").setValue("changed");
+		inst.getNode("/a/b").setValue(Integer.valueOf(7));
+		inst.getMetaData().put("stateId", "page2");
+
+		assertNull(copy.getNode("/a").getValue());
+		assertEquals(Integer.valueOf(42), copy.getNode("/a/b").getValue());
+		assertEquals("page1", copy.getMetaData().get("stateId"));
+		assertEquals(2, copy.getAllNodes().size());
+	}
+}
@@ -0,0 +1,112 @@
+package com.w20e.socrates.servlet;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import junit.framework.TestCase;
+
+public class TestSessionLanes extends TestCase {
+
+	/**
+	 * Enter the lane on another thread, and hold it until released.
+	 */
+	private static Thread hold(final SessionLanes lanes, final String id,
+			final CountDownLatch entered, final CountDownLatch release) {
+
+		Thread t = new Thread() {
+			public void run() {
+				if (lanes.enter(id)) {
+					entered.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						// Just leave.
+					}
+					lanes.exit(id);
+				}
+			}
+		};
+
+		t.start();
+
+		return t;
+	}
+
+	public void testSameSession() throws Exception {
+
+		final SessionLanes lanes = new SessionLanes(5000);
+		CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean released = new AtomicBoolean();
+
+		Thread holder = hold(lanes, "s1", entered, release);
+
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// Release early then.
+				}
+				released.set(true);
+				release.countDown();
+			}
+		};
+
+		releaser.start();
+
+		// Waits for the holder.
+		assertTrue(lanes.enter("s1"));
+		assertTrue(released.get());
+		lanes.exit("s1");
+
+		holder.join();
+		releaser.join();
+
+		assertEquals(2, lanes.getEntered());
+		assertEquals(1, lanes.getContended());
+		assertEquals(0, lanes.getWaiting());
+		assertEquals(0, lanes.getActiveLanes());
+		assertTrue(lanes.getWaitMaxMicros() > 0);
+	}
+
+	public void testTimeout() throws Exception {
+
+		SessionLanes lanes = new SessionLanes(50);
+		CountDownLatch entered = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		Thread holder = hold(lanes, "s1", entered, release);
+
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+		assertFalse(lanes.enter("s1"));
+		assertEquals(1, lanes.getTimedOut());
+
+		// Other sessions don't wait.
+		assertTrue(lanes.enter("s2"));
+		assertEquals(2, lanes.getActiveLanes());
+		lanes.exit("s2");
+
+		release.countDown();
+		holder.join();
+
+		assertEquals(0, lanes.getActiveLanes());
+	}
+
+	public void testReentrant() throws Exception {
+
+		SessionLanes lanes = new SessionLanes(0);
+
+		assertTrue(lanes.enter("s1"));
+		assertTrue(lanes.enter("s1"));
+		lanes.exit("s1");
+		assertEquals(1, lanes.getActiveLanes());
+		lanes.exit("s1");
+		assertEquals(0, lanes.getActiveLanes());
+		assertEquals(0, lanes.getContended());
+	}
+}
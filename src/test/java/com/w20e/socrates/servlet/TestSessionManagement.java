@@ -0,0 +1,191 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.model.SubmissionImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+public class TestSessionManagement extends TestCase {
+
+	private MappedSessionStore store;
+
+	private SessionManager mgr;
+
+	private SessionManagement management;
+
+	public void setUp() throws Exception {
+
+		this.store = new MappedSessionStore(new File(
+				"./target/session-management"), 65536, 1);
+		this.mgr = new SessionManager(100, 3600, this.store);
+		this.mgr.setLanes(new SessionLanes(1000));
+		this.management = new SessionManagement(this.mgr, null);
+	}
+
+	public void tearDown() {
+
+		this.store.close();
+	}
+
+	/**
+	 * Minimal session: id, attributes, last access and invalidation.
+	 */
+	private HttpSession createSession(final String id, final long lastAccessed) {
+
+		final Map<String, Object> attrs = new HashMap<String, Object>();
+		final boolean[] invalid = new boolean[1];
+
+		return (HttpSession) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+
+						if (invalid[0] && !"getId".equals(name)) {
+							throw new IllegalStateException("invalidated");
+						}
+						if ("getId".equals(name)) {
+							return id;
+						} else if ("getAttribute".equals(name)) {
+							return attrs.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							attrs.put((String) args[0], args[1]);
+						} else if ("removeAttribute".equals(name)) {
+							attrs.remove(args[0]);
+						} else if ("getLastAccessedTime".equals(name)) {
+							return lastAccessed;
+						} else if ("getMaxInactiveInterval".equals(name)) {
+							return 0;
+						} else if ("invalidate".equals(name)) {
+							invalid[0] = true;
+						} else if ("hashCode".equals(name)) {
+							return id.hashCode();
+						} else if ("equals".equals(name)) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	private HttpSession startSession(String id, String qId, long lastAccessed) {
+
+		HttpSession session = createSession(id, lastAccessed);
+
+		InstanceImpl inst = new InstanceImpl();
+		inst.addNode(new NodeImpl("q0", "answer"));
+
+		ModelImpl model = new ModelImpl();
+		model.setSubmission(new SubmissionImpl());
+
+		session.setAttribute("runnerCtx", new WebsurveyContext(
+				new RunnerContextImpl(new ByteArrayOutputStream(), null, null,
+						model, inst, null), qId, new Locale("nl", "NL")));
+		this.mgr.setQuestionnaire(session, qId);
+		this.mgr.storeSessionReference(id, session);
+
+		return session;
+	}
+
+	public void testStatistics() {
+
+		long now = System.currentTimeMillis();
+
+		startSession("s1", "q1", now);
+		startSession("s2", "q1", now);
+		startSession("s3", "q2", now);
+
+		assertEquals(3, this.management.getSessionReferences());
+		assertEquals(Integer.valueOf(2), this.management
+				.getSessionsPerQuestionnaire().get("q1"));
+		assertEquals(Integer.valueOf(1), this.management
+				.getSessionsPerQuestionnaire().get("q2"));
+		assertTrue(this.management.getEstimatedBytesPerSession() > 0);
+		assertEquals(0, this.management.getStoredContexts());
+	}
+
+	public void testEvict() {
+
+		long now = System.currentTimeMillis();
+
+		startSession("s1", "q1", now - 7200000);
+		startSession("s2", "q1", now);
+
+		assertEquals(1, this.management.evictIdleSessions(3600));
+		assertEquals(1, this.management.getSessionReferences());
+		assertFalse(this.management.evictSession("s1"));
+		assertTrue(this.management.evictSession("s2"));
+		assertEquals(0, this.management.getSessionReferences());
+	}
+
+	public void testPassivate() {
+
+		long now = System.currentTimeMillis();
+
+		HttpSession idle = startSession("s1", "q1", now);
+		HttpSession busy = startSession("s2", "q1", now);
+
+		this.mgr.acquireContext(busy);
+
+		assertEquals(1, this.management.passivateSessions());
+		assertNull(idle.getAttribute("runnerCtx"));
+		assertNotNull(busy.getAttribute("runnerCtx"));
+		assertEquals(1, this.management.getStoredContexts());
+
+		// Loaded again on the next request.
+		assertNotNull(this.mgr.acquireContext(idle));
+		this.mgr.releaseContext(idle);
+
+		this.mgr.releaseContext(busy);
+		assertEquals(2, this.management.getStoredContexts());
+	}
+
+	public void testEstimateSkipsBusySessions() throws Exception {
+
+		final SessionLanes lanes = new SessionLanes(1000);
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(1);
+
+		this.mgr.setLanes(lanes);
+		startSession("s1", "q1", System.currentTimeMillis());
+
+		Thread request = new Thread() {
+			public void run() {
+				lanes.enter("s1");
+				entered.countDown();
+				try {
+					done.await();
+				} catch (InterruptedException e) {
+					// done
+				}
+				lanes.exit("s1");
+			}
+		};
+		request.start();
+
+		assertTrue(entered.await(5, TimeUnit.SECONDS));
+		assertEquals(0, this.management.getEstimatedBytesPerSession());
+
+		done.countDown();
+		request.join();
+
+		assertTrue(this.management.getEstimatedBytesPerSession() > 0);
+		assertEquals(0, lanes.getActiveLanes());
+	}
+}
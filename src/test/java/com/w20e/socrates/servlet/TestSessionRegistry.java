@@ -0,0 +1,149 @@
+package com.w20e.socrates.servlet;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import javax.servlet.http.HttpSession;
+
+import junit.framework.TestCase;
+
+public class TestSessionRegistry extends TestCase {
+
+	/**
+	 * Session last accessed at the given time, timing out after the given
+	 * number of seconds.
+	 */
+	private static HttpSession session(final String id,
+			final long lastAccessed, final int maxInactive) {
+
+		return (HttpSession) Proxy.newProxyInstance(TestSessionRegistry.class
+				.getClassLoader(), new Class<?>[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("getId".equals(m.getName())) {
+							return id;
+						} else if ("getLastAccessedTime".equals(m.getName())) {
+							return Long.valueOf(lastAccessed);
+						} else if ("getMaxInactiveInterval".equals(m.getName())) {
+							return Integer.valueOf(maxInactive);
+						}
+						return null;
+					}
+				});
+	}
+
+	private static HttpSession session(String id) {
+
+		return session(id, System.currentTimeMillis(), 1800);
+	}
+
+	public void testFull() {
+
+		SessionRegistry registry = new SessionRegistry(3, 60);
+
+		registry.put("s1", session("s1"));
+		registry.put("s2", session("s2"));
+		registry.put("s3", session("s3"));
+		registry.setRegkey("s1", "k1");
+
+		// The oldest makes way, regkey and all.
+		registry.put("s4", session("s4"));
+		assertEquals(3, registry.size());
+		assertNull(registry.get("s1"));
+		assertNull(registry.getIdByRegkey("k1"));
+		assertNotNull(registry.get("s4"));
+
+		// Removed entries don't count as oldest.
+		registry.remove("s2");
+		registry.put("s5", session("s5"));
+		registry.put("s6", session("s6"));
+		assertNotNull(registry.get("s4"));
+		assertNull(registry.get("s3"));
+	}
+
+	public void testExpired() {
+
+		SessionRegistry registry = new SessionRegistry(10, 60);
+
+		registry.put("old", session("old", 0, 60));
+		registry.put("eternal", session("eternal", 0, -1));
+		registry.put("fresh", session("fresh"));
+		registry.setRegkey("old", "k");
+
+		assertEquals(2, registry.purge());
+		assertNull(registry.getByRegkey("k"));
+		assertEquals(1, registry.size());
+		assertNotNull(registry.get("fresh"));
+	}
+
+	public void testRegkey() {
+
+		SessionRegistry registry = new SessionRegistry(10, 60);
+
+		registry.put("s1", session("s1"));
+		registry.setRegkey("s1", "k1");
+		assertEquals("s1", registry.getIdByRegkey("k1"));
+
+		registry.setRegkey("s1", "k2");
+		assertNull(registry.getIdByRegkey("k1"));
+		assertEquals("s1", registry.getIdByRegkey("k2"));
+
+		// Re-registering keeps the regkey.
+		registry.put("s1", session("s1"));
+		assertEquals("s1", registry.getIdByRegkey("k2"));
+
+		registry.setRegkey("s1", "k3");
+		assertNull(registry.getIdByRegkey("k2"));
+		assertEquals("s1", registry.getIdByRegkey("k3"));
+
+		// Sessions without regkey are found by id.
+		assertEquals("s1", registry.getIdByRegkey("s1"));
+
+		registry.remove("s1");
+		assertNull(registry.getIdByRegkey("k3"));
+		registry.setRegkey("s1", "k4");
+		assertNull(registry.getIdByRegkey("k4"));
+	}
+
+	public void testRegkeyRace() throws Exception {
+
+		final SessionRegistry registry = new SessionRegistry(1000, 60);
+		Thread[] threads = new Thread[4];
+
+		for (int t = 0; t < threads.length; t++) {
+			final int nr = t;
+
+			threads[t] = new Thread() {
+				public void run() {
+					for (int i = 0; i < 2000; i++) {
+						String id = "s" + (i % 50);
+
+						if ((i + nr) % 3 == 0) {
+							registry.remove(id);
+						} else if ((i + nr) % 3 == 1) {
+							registry.put(id, session(id));
+						} else {
+							registry.setRegkey(id, "k" + id);
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		// Every regkey left belongs to a registered session.
+		for (int i = 0; i < 50; i++) {
+			String id = registry.getIdByRegkey("ks" + i);
+
+			if (id != null) {
+				assertEquals("s" + i, id);
+				assertNotNull(registry.get(id));
+			}
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import javax.servlet.ServletContext;
+import javax.servlet.http.HttpSession;
+import javax.servlet.http.HttpSessionEvent;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.model.Submission;
+import com.w20e.socrates.model.SubmissionImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+import com.w20e.socrates.process.RunnerFactoryImpl;
+
+public class TestSessionTimeoutNotifier extends TestCase {
+
+	private MappedSessionStore store;
+
+	private SessionManager mgr;
+
+	private SubmissionPipeline pipeline;
+
+	private final Map<String, Object> globals = new HashMap<String, Object>();
+
+	private final List<Instance> submitted = Collections
+			.synchronizedList(new ArrayList<Instance>());
+
+	private final List<Model> models = Collections
+			.synchronizedList(new ArrayList<Model>());
+
+	private ModelImpl model;
+
+	public void setUp() throws Exception {
+
+		this.model = new ModelImpl();
+		SubmissionImpl sub = new SubmissionImpl();
+		sub.setAction(new URI("file:///./target/timeout-out"));
+		this.model.setSubmission(sub);
+
+		this.store = new MappedSessionStore(new File(
+				"./target/session-timeout"), 65536, 1);
+		this.mgr = new SessionManager(100, 3600, this.store);
+
+		this.pipeline = new SubmissionPipeline(10, 1, 1,
+				new SubmissionPipeline.Target() {
+					public void submit(Instance inst, Model m,
+							Submission submission) {
+						TestSessionTimeoutNotifier.this.submitted.add(inst);
+						TestSessionTimeoutNotifier.this.models.add(m);
+					}
+				}, 10);
+
+		// The questionnaire, for building a context from the stored copy.
+		QuestionnaireRegistry registry = new QuestionnaireRegistry(
+				"./target", -1);
+		registry.add(new QuestionnaireEntry("q1", null, null,
+				new RunnerFactoryImpl(".") {
+					public RunnerContextImpl createContext(URI uri,
+							Map<String, String> options) {
+						return new RunnerContextImpl(
+								new ByteArrayOutputStream(), null, null,
+								TestSessionTimeoutNotifier.this.model,
+								new InstanceImpl(), null);
+					}
+				}, null, Collections.<File> emptyList()));
+
+		this.globals.put("socrates.sessionmanager", this.mgr);
+		this.globals.put("socrates.rehydrator", new ContextRehydrator(
+				registry, 1));
+		this.globals.put("socrates.submissionpipeline", this.pipeline);
+	}
+
+	public void tearDown() {
+
+		this.pipeline.shutdown(1000);
+		this.store.close();
+	}
+
+	private HttpSession createSession(final String id) {
+
+		final Map<String, Object> attrs = new HashMap<String, Object>();
+
+		final ServletContext sc = (ServletContext) Proxy.newProxyInstance(
+				getClass().getClassLoader(),
+				new Class<?>[] { ServletContext.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						if ("getAttribute".equals(m.getName())) {
+							return TestSessionTimeoutNotifier.this.globals
+									.get(args[0]);
+						}
+						return null;
+					}
+				});
+
+		return (HttpSession) Proxy.newProxyInstance(getClass()
+				.getClassLoader(), new Class<?>[] { HttpSession.class },
+				new InvocationHandler() {
+					public Object invoke(Object proxy, Method m, Object[] args) {
+						String name = m.getName();
+
+						if ("getId".equals(name)) {
+							return id;
+						} else if ("getServletContext".equals(name)) {
+							return sc;
+						} else if ("getAttribute".equals(name)) {
+							return attrs.get(args[0]);
+						} else if ("setAttribute".equals(name)) {
+							attrs.put((String) args[0], args[1]);
+						} else if ("removeAttribute".equals(name)) {
+							attrs.remove(args[0]);
+						} else if ("hashCode".equals(name)) {
+							return id.hashCode();
+						} else if ("equals".equals(name)) {
+							return proxy == args[0];
+						}
+						return null;
+					}
+				});
+	}
+
+	public void testStoredSessionSubmitted() throws Exception {
+
+		HttpSession session = createSession("s1");
+
+		InstanceImpl inst = new InstanceImpl();
+		inst.addNode(new NodeImpl("q0", "answer"));
+
+		session.setAttribute("runnerCtx", new WebsurveyContext(
+				new RunnerContextImpl(new ByteArrayOutputStream(), null, null,
+						this.model, inst, null), "q1", new Locale("nl", "NL")));
+		this.mgr.storeSessionReference("s1", session);
+
+		// Move the context to the store, as between requests.
+		this.mgr.acquireContext(session);
+		this.mgr.releaseContext(session);
+
+		assertNull(session.getAttribute("runnerCtx"));
+		assertNotNull(this.store.load("s1"));
+
+		new SessionTimeoutNotifier().sessionDestroyed(new HttpSessionEvent(
+				session));
+
+		this.pipeline.shutdown(1000);
+
+		assertEquals(1, this.submitted.size());
+		assertEquals("answer", this.submitted.get(0).getNode("q0").getValue());
+		assertEquals("timeout", this.submitted.get(0).getMetaData().get(
+				"storage-type"));
+		assertSame(this.model, this.models.get(0));
+		assertNull(this.store.load("s1"));
+	}
+}
@@ -0,0 +1,134 @@
+package com.w20e.socrates.servlet;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Locale;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.NodeImpl;
+import com.w20e.socrates.model.SubmissionImpl;
+import com.w20e.socrates.process.RunnerContextImpl;
+
+public class TestSharedDirectorySessionStore extends TestCase {
+
+	private File dir = new File("./target/shared-sessions");
+
+	private SharedDirectorySessionStore nodeA;
+
+	private SharedDirectorySessionStore nodeB;
+
+	public void setUp() throws Exception {
+
+		if (this.dir.isDirectory()) {
+			for (File file : this.dir.listFiles()) {
+				file.delete();
+			}
+		}
+
+		// No refresh interval: every node sees every write right away.
+		this.nodeA = new SharedDirectorySessionStore(this.dir, "a", 4096,
+				SharedDirectorySessionStore.DEFAULT_RETENTION, 0);
+		this.nodeB = new SharedDirectorySessionStore(this.dir, "b", 4096,
+				SharedDirectorySessionStore.DEFAULT_RETENTION, 0);
+	}
+
+	public void tearDown() {
+
+		this.nodeA.close();
+		this.nodeB.close();
+	}
+
+	private WebsurveyContext createContext(String value) {
+
+		InstanceImpl inst = new InstanceImpl();
+		inst.addNode(new NodeImpl("q0", value));
+
+		ModelImpl model = new ModelImpl();
+		model.setSubmission(new SubmissionImpl());
+
+		return new WebsurveyContext(new RunnerContextImpl(
+				new ByteArrayOutputStream(), null, null, model, inst, null),
+				"pipo", new Locale("nl", "NL"));
+	}
+
+	private Object value(SharedDirectorySessionStore store, String id)
+			throws Exception {
+
+		return store.load(id).getInstance().getNode("q0").getValue();
+	}
+
+	public void testHandOver() throws Exception {
+
+		this.nodeA.save("s1", createContext("first"));
+
+		assertEquals("first", value(this.nodeB, "s1"));
+		assertEquals(1, this.nodeB.getVersion("s1"));
+
+		this.nodeB.save("s1", createContext("second"));
+
+		assertEquals("second", value(this.nodeA, "s1"));
+		assertEquals(2, this.nodeA.getVersion("s1"));
+
+		this.nodeA.remove("s1");
+
+		assertNull(this.nodeB.load("s1"));
+		assertEquals(-1, this.nodeB.getVersion("s1"));
+		assertEquals(0, this.nodeB.size());
+	}
+
+	public void testRollover() throws Exception {
+
+		for (int i = 0; i < 200; i++) {
+			this.nodeA.save("s" + (i % 3), createContext("answer " + i));
+		}
+
+		// Old segments are cleaned up as we go.
+		assertTrue(this.dir.listFiles().length < 5);
+
+		assertEquals(3, this.nodeB.size());
+
+		for (int i = 197; i < 200; i++) {
+			assertEquals("answer " + i, value(this.nodeB, "s" + (i % 3)));
+		}
+	}
+
+	public void testRestart() throws Exception {
+
+		this.nodeA.save("s1", createContext("kept"));
+		this.nodeA.close();
+
+		this.nodeA = new SharedDirectorySessionStore(this.dir, "a", 4096,
+				SharedDirectorySessionStore.DEFAULT_RETENTION);
+
+		assertEquals("kept", value(this.nodeA, "s1"));
+		assertEquals("kept", value(this.nodeB, "s1"));
+	}
+
+	public void testRefreshInterval() throws Exception {
+
+		SharedDirectorySessionStore nodeC = new SharedDirectorySessionStore(
+				this.dir, "c", 4096,
+				SharedDirectorySessionStore.DEFAULT_RETENTION, 3600000);
+
+		try {
+			this.nodeA.save("s1", createContext("first"));
+
+			// Unknown sessions are looked for right away.
+			assertEquals("first", value(nodeC, "s1"));
+			assertEquals(1, nodeC.getVersion("s1"));
+
+			this.nodeA.save("s1", createContext("second"));
+			this.nodeA.save("s2", createContext("other"));
+
+			// Known ones wait for the interval; others don't.
+			assertEquals(1, nodeC.getVersion("s1"));
+			assertEquals("other", value(nodeC, "s2"));
+			assertEquals("second", value(nodeC, "s1"));
+		} finally {
+			nodeC.close();
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package com.w20e.socrates.servlet;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.w20e.socrates.data.Instance;
+import com.w20e.socrates.model.InstanceImpl;
+import com.w20e.socrates.model.Model;
+import com.w20e.socrates.model.ModelImpl;
+import com.w20e.socrates.model.Submission;
+
+public class TestSubmissionPipeline extends TestCase {
+
+	/**
+	 * Instances submitted, in order.
+	 */
+	private List<Instance> done;
+
+	/**
+	 * Number of submissions to fail.
+	 */
+	private int failures;
+
+	/**
+	 * Time each submission takes, in ms.
+	 */
+	private long delay;
+
+	private SubmissionPipeline.Target target;
+
+	public void setUp() {
+
+		this.done = Collections.synchronizedList(new ArrayList<Instance>());
+		this.failures = 0;
+		this.delay = 0;
+
+		this.target = new SubmissionPipeline.Target() {
+			public void submit(Instance inst, Model model,
+					Submission submission) throws Exception {
+				synchronized (TestSubmissionPipeline.this) {
+					if (TestSubmissionPipeline.this.failures > 0) {
+						TestSubmissionPipeline.this.failures--;
+						throw new Exception("Failing on purpose");
+					}
+				}
+				if (TestSubmissionPipeline.this.delay > 0) {
+					try {
+						Thread.sleep(TestSubmissionPipeline.this.delay);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+				TestSubmissionPipeline.this.done.add(inst);
+			}
+		};
+	}
+
+	public void testDrainOnShutdown() {
+
+		this.delay = 5;
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 2, 3,
+				this.target, 10);
+
+		for (int i = 0; i < 50; i++) {
+			pipeline.submit(new InstanceImpl(), null, null);
+		}
+
+		pipeline.shutdown(10000);
+
+		assertEquals(50, this.done.size());
+		assertEquals(50, pipeline.getSubmitted());
+		assertEquals(0, pipeline.getPending());
+		assertEquals(0, pipeline.getRejected());
+	}
+
+	public void testRetry() {
+
+		this.failures = 2;
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 1, 5,
+				this.target, 10);
+
+		pipeline.submit(new InstanceImpl(), null, null);
+		pipeline.shutdown(10000);
+
+		assertEquals(1, this.done.size());
+		assertEquals(2, pipeline.getRetried());
+		assertEquals(0, pipeline.getFailed());
+	}
+
+	public void testGiveUp() {
+
+		this.failures = 10;
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 1, 2,
+				this.target, 10);
+
+		pipeline.submit(new InstanceImpl(), null, null);
+		pipeline.shutdown(10000);
+
+		assertEquals(0, this.done.size());
+		assertEquals(1, pipeline.getFailed());
+		assertEquals(0, pipeline.getPending());
+	}
+
+	public void testRetryAtShutdown() {
+
+		this.failures = 1;
+
+		// The retry isn't due before shutdown; it's tried right away.
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 1, 5,
+				this.target, 60000);
+
+		pipeline.submit(new InstanceImpl(), null, null);
+
+		long start = System.currentTimeMillis();
+
+		while (pipeline.getRetrySize() == 0
+				&& System.currentTimeMillis() - start < 5000) {
+			Thread.yield();
+		}
+
+		pipeline.shutdown(10000);
+
+		assertEquals(1, this.done.size());
+		assertTrue(System.currentTimeMillis() - start < 10000);
+	}
+
+	public void testSubmitAfterShutdown() {
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 1, 5,
+				this.target, 10);
+
+		pipeline.shutdown(1000);
+		pipeline.submit(new InstanceImpl(), null, null);
+
+		// Done by the caller, not lost in the queue.
+		assertEquals(1, this.done.size());
+		assertEquals(1, pipeline.getRejected());
+		assertEquals(0, pipeline.getQueueSize());
+	}
+
+	public void testFull() {
+
+		this.delay = 200;
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(1, 1, 5,
+				this.target, 10);
+
+		for (int i = 0; i < 4; i++) {
+			pipeline.submit(new InstanceImpl(), null, null);
+		}
+
+		assertTrue(pipeline.getRejected() > 0);
+
+		pipeline.shutdown(10000);
+
+		assertEquals(4, this.done.size());
+	}
+
+	public void testModelLookedUpByWorker() {
+
+		final List<Thread> lookups = Collections
+				.synchronizedList(new ArrayList<Thread>());
+
+		SubmissionPipeline pipeline = new SubmissionPipeline(100, 1, 2,
+				this.target, 10);
+
+		SubmissionPipeline.ModelSource models = new SubmissionPipeline.ModelSource() {
+			public Model getModel() {
+				lookups.add(Thread.currentThread());
+				return lookups.size() == 1 ? new ModelImpl() : null;
+			}
+		};
+
+		pipeline.submitFrom(new InstanceImpl(), models, null);
+		pipeline.submitFrom(new InstanceImpl(), models, null);
+		pipeline.shutdown(10000);
+
+		// The second one has no model, and is given up on.
+		assertEquals(1, this.done.size());
+		assertEquals(1, pipeline.getFailed());
+		assertEquals(2, lookups.size());
+		assertNotSame(Thread.currentThread(), lookups.get(0));
+		assertNotSame(Thread.currentThread(), lookups.get(1));
+	}
+}
@@ -6,13 +6,17 @@
  */
 package com.w20e.socrates.servlet;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Locale;
 
 import junit.framework.TestCase;
@@ -120,4 +124,75 @@ public class TestWebsurveyContext extends TestCase {
 		}
 
 	}
+
+	public void testRoundTrip() throws Exception {
+
+		this.ctx.getInstance().getNode("/a/b").setValue(Integer.valueOf(42));
+		this.ctx.getInstance().getNode("/a/b/c1").setValue(new BigDecimal("3.14"));
+		this.ctx.getInstance().getMetaData().put("stateId", "page2");
+		this.ctx.getInstance().getMetaData().put("key", "abc");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(this.ctx);
+		out.close();
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(
+				bytes.toByteArray()));
+		WebsurveyContext restoredCtx = (WebsurveyContext) in.readObject();
+		in.close();
+
+		assertTrue(restoredCtx.isInvalid());
+		assertNull(restoredCtx.getRunnerContext());
+		assertEquals("pipo", restoredCtx.getModelId());
+		assertEquals("page2", restoredCtx.getStateId());
+		assertEquals("abc", restoredCtx.getInstance().getMetaData().get("key"));
+		assertEquals(new Locale("nl", "NL"), restoredCtx.getLocale());
+		assertNotNull(restoredCtx.getSubmission());
+
+		assertNull(restoredCtx.getInstance().getNode("/a").getValue());
+		assertEquals(Integer.valueOf(42), restoredCtx.getInstance().getNode("/a/b").getValue());
+		assertEquals(new BigDecimal("3.14"), restoredCtx.getInstance().getNode("/a/b/c1").getValue());
+		assertNull(restoredCtx.getInstance().getNode("/a/b/c2").getValue());
+	}
+
+	public void testEntry() throws Exception {
+
+		QuestionnaireEntry entry = new QuestionnaireEntry("pipo", null, null,
+				null, null, new ArrayList<File>());
+
+		this.ctx.setEntry(entry);
+		assertSame(entry, this.ctx.getEntry());
+		assertFalse(entry.isRetired());
+
+		entry.retire();
+		assertTrue(entry.isRetired());
+
+		// The entry is bound to this VM only.
+		assertNull(WebsurveyContext.fromBytes(this.ctx.toBytes()).getEntry());
+	}
+
+	public void testSize() throws Exception {
+
+		for (int i = 0; i < 200; i++) {
+			this.instance.addNode(new NodeImpl("/a/q" + i, i % 2 == 0 ? "answer " + i : null));
+		}
+
+		ByteArrayOutputStream compact = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(compact);
+		out.writeObject(this.ctx);
+		out.close();
+
+		// What default serialization wrote: at least the instance, the
+		// submission and the locale.
+		ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+		out = new ObjectOutputStream(legacy);
+		out.writeObject(this.ctx.getInstance());
+		out.writeObject(this.ctx.getSubmission());
+		out.writeObject(this.ctx.getLocale());
+		out.close();
+
+		assertTrue("Compact " + compact.size() + " vs. " + legacy.size(),
+				compact.size() < legacy.size());
+	}
 }
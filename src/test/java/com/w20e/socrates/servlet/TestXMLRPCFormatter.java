@@ -2,7 +2,10 @@ package com.w20e.socrates.servlet;
 
 import java.io.ByteArrayOutputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 
 import junit.framework.TestCase;
 
@@ -58,4 +61,44 @@ public class TestXMLRPCFormatter extends TestCase {
 
 	}
 
+	public void testFormatCommands() throws Exception {
+
+		String nl = System.getProperty("line.separator");
+
+		Map<String, Map<String, String>> items = new LinkedHashMap<String, Map<String, String>>();
+		Map<String, String> props = new LinkedHashMap<String, String>();
+		props.put("required", "true");
+		props.put("relevant", "false");
+		props.put("alert", "a < b & \"c\"");
+		items.put("A01", props);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new XMLRPCFormatter().format(items, out, null);
+
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><validation>" + nl
+				+ "<commands>" + nl
+				+ "<command selector=\"#field-A01\" selectorType=\"\" name=\"addClass\">" + nl
+				+ "<param name=\"value\">required</param>" + nl
+				+ "</command>" + nl
+				+ "<command selector=\"#field-A01\" selectorType=\"\" name=\"removeClass\">" + nl
+				+ "<param name=\"value\">relevant</param>" + nl
+				+ "</command>" + nl
+				+ "<command selector=\"#alert-A01\" selectorType=\"\" name=\"replaceInnerHTML\">" + nl
+				+ "<param name=\"html\">a &lt; b &amp; \"c\"</param>" + nl
+				+ "</command>" + nl
+				+ "</commands>" + nl
+				+ "</validation>" + nl, out.toString("UTF-8"));
+	}
+
+	public void testFormatEmpty() throws Exception {
+
+		String nl = System.getProperty("line.separator");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		new XMLRPCFormatter().format(new HashMap<String, Map<String, String>>(), out, null);
+
+		assertEquals("<?xml version=\"1.0\" encoding=\"UTF-8\"?><validation>" + nl
+				+ "<commands/>" + nl + "</validation>" + nl, out.toString("UTF-8"));
+	}
 }